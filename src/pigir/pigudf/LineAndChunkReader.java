@@ -15,6 +15,9 @@ public class LineAndChunkReader {
   private int bufferLength = 0;
   // the current position wbRecordReader the buffer
   private int bufferPosn = 0;
+  // the number of bytes handed out to callers so far, plus
+  // the stream position at which this reader was created
+  private long pos = 0;
 
   private static final byte CR = '\r';
   private static final byte LF = '\n';
@@ -57,6 +60,44 @@ public class LineAndChunkReader {
     this(in, conf.getInt("io.file.buffer.size", DEFAULT_BUFFER_SIZE));
   }
 
+  /**
+   * Create a line reader over a stream that has already been
+   * positioned at initialPos, for instance by a seek() to the
+   * start of a file split. The reader's getPos() reports absolute
+   * positions relative to the beginning of the underlying file.
+   * @param in input stream, positioned at initialPos
+   * @param conf configuration
+   * @param initialPos the stream's position when handed to this reader
+   * @throws IOException
+   */
+  public LineAndChunkReader(InputStream in, Configuration conf, long initialPos) throws IOException {
+    this(in, conf);
+    this.pos = initialPos;
+  }
+
+  /**
+   * Start over on another stream, keeping the buffer. Positions
+   * count from zero again. The previous stream is not closed.
+   * @param in the new input stream
+   */
+  public void reset(InputStream in) {
+    this.in = in;
+    this.bufferLength = 0;
+    this.bufferPosn = 0;
+    this.pos = 0;
+  }
+
+  /**
+   * Position of the next byte this reader will hand out, counted
+   * from the initial position passed into the constructor (zero
+   * by default). Bytes that are buffered but not yet consumed by
+   * readLine() or read() are not included.
+   * @return the logical stream position
+   */
+  public long getPos() {
+    return pos;
+  }
+
   /**
    * Close the underlying stream.
    * @throws IOException
@@ -145,6 +186,7 @@ public class LineAndChunkReader {
 
     if (bytesConsumed > (long)Integer.MAX_VALUE)
       throw new IOException("Too many bytes before newline: " + bytesConsumed);    
+    pos += bytesConsumed;
     return (int)bytesConsumed;
   }
 
@@ -169,24 +211,73 @@ public class LineAndChunkReader {
     return readLine(str, Integer.MAX_VALUE, Integer.MAX_VALUE);
   }
 
+  /**
+   * Read up to lengthToRead bytes into destBuf, first draining
+   * whatever is left in the line buffer, then reading from the
+   * underlying stream.
+   * @param destBuf destination
+   * @param offset where in destBuf to start placing bytes
+   * @param lengthToRead maximum number of bytes to read
+   * @return number of bytes read, or -1 at end of stream
+   * @throws IOException if the underlying stream throws
+   */
   public int read (byte[] destBuf, int offset, int lengthToRead) throws IOException {
 	  int bytesConsumed = 0;
 	  int bytesToCopy = 0;
-	  // Empty what remained wbRecordReader the buffer during the last call
+	  // Empty what remained in the buffer during the last call
 	  // to the target:
-	  if ((bufferPosn < bufferSize) && bufferPosn > 0) {
+	  if (bufferPosn < bufferLength) {
 		  int bytesLeft = bufferLength - bufferPosn;
 		  bytesToCopy = Math.min(lengthToRead, bytesLeft);
 		  System.arraycopy(buffer, bufferPosn, destBuf, offset, bytesToCopy);
 		  bytesConsumed += bytesToCopy;
 		  bufferPosn += bytesToCopy;
-		  if (bytesToCopy >= lengthToRead)
-			  return lengthToRead;
+		  if (bytesConsumed >= lengthToRead) {
+			  pos += bytesConsumed;
+			  return bytesConsumed;
+		  }
 	  }
 	  bytesToCopy = lengthToRead - bytesConsumed;
 	  // read(dest, offset, length):
 	  int bytesPulled = in.read(destBuf, offset + bytesConsumed, bytesToCopy);
+	  if (bytesPulled < 0) {
+		  if (bytesConsumed == 0)
+			  return -1;
+		  bytesPulled = 0;
+	  }
+	  pos += bytesConsumed + bytesPulled;
 	  return bytesConsumed + bytesPulled;
   }
-}
 
+  /**
+   * Skip over numToSkip bytes, first from the line buffer, then
+   * by skipping the underlying stream. Hadoop's file system streams
+   * implement skip() as a seek, so for uncompressed files skipped
+   * bytes are never read. Compressed streams still inflate them.
+   * @param numToSkip number of bytes to skip
+   * @return number of bytes actually skipped. Less than numToSkip
+   *         only if the end of the stream was reached.
+   * @throws IOException if the underlying stream throws
+   */
+  public long skip(long numToSkip) throws IOException {
+	  long skipped = 0;
+	  if (bufferPosn < bufferLength) {
+		  int fromBuffer = (int) Math.min(numToSkip, bufferLength - bufferPosn);
+		  bufferPosn += fromBuffer;
+		  skipped += fromBuffer;
+	  }
+	  while (skipped < numToSkip) {
+		  long numSkipped = in.skip(numToSkip - skipped);
+		  if (numSkipped <= 0) {
+			  // skip() may return 0 without being at the end
+			  // of the stream. A read tells us for sure:
+			  if (in.read() < 0)
+				  break;
+			  numSkipped = 1;
+		  }
+		  skipped += numSkipped;
+	  }
+	  pos += skipped;
+	  return skipped;
+  }
+}
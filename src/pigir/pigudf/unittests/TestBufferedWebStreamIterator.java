@@ -0,0 +1,332 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pigir.webbase.WbRecord;
+import pigir.webbase.wbpull.webStream.BufferedWebStreamIterator;
+import pigir.webbase.wbpull.webStream.DistributorChannel;
+
+public class TestBufferedWebStreamIterator {
+
+	// More than the iterator's queue holds:
+	private static final int NUM_PAGES = 500;
+	private static final int NUM_INFLATE_THREADS = 4;
+	// Distributor stream document type of compressed pages:
+	private static final int COMPRESSED_DOC_TYPE = 2;
+
+	private ServerSocket serverSocket;
+	private FakeDistributor distributor;
+	private BufferedWebStreamIterator pages;
+	private int maxBodyLen = 5000;
+	// Inflaters the iterator made, if it counts them:
+	private List<CountingInflater> inflaters = null;
+
+	@Before
+	public void setUp() throws IOException {
+		serverSocket = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (pages != null)
+			pages.close();
+		if (distributor != null)
+			distributor.release();
+		serverSocket.close();
+	}
+
+	@Test(timeout=60000)
+	public void testPagesInOrder() throws Exception {
+		connect(NUM_PAGES, false);
+		for (int i=0; i<NUM_PAGES; i++) {
+			assertTrue(pages.hasNext());
+			checkPage(i, pages.next());
+			// Now and then let the reader fill the queue:
+			if (i % 150 == 0)
+				Thread.sleep(200);
+		}
+		assertFalse(pages.hasNext());
+		distributor.finish();
+		assertEquals(NUM_PAGES, distributor.numPagesRequested);
+	}
+
+	@Test(timeout=60000)
+	public void testCompressedPagesInOrder() throws Exception {
+		// Pages of very different sizes, so that the workers finish out of order:
+		maxBodyLen = 100000;
+		connect(NUM_PAGES, false, true);
+		for (int i=0; i<NUM_PAGES; i++) {
+			assertTrue(pages.hasNext());
+			checkPage(i, pages.next());
+		}
+		assertFalse(pages.hasNext());
+		distributor.finish();
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileWorkersInflate() throws Exception {
+		// Large pages, so that workers are busy when the iterator is closed:
+		maxBodyLen = 500000;
+		inflaters = new ArrayList<CountingInflater>();
+		connect(200, true, true);
+		for (int i=0; i<3; i++)
+			checkPage(i, pages.next());
+		closeAndCheckReaderEnds();
+		// Workers that were still inflating end their inflaters when they finish:
+		for (int attempt=0; !allEnded(); attempt++) {
+			assertTrue("Inflaters not ended.", attempt < 100);
+			Thread.sleep(100);
+		}
+		synchronized (inflaters) {
+			assertTrue(inflaters.size() >= 1);
+			for (CountingInflater inflater : inflaters)
+				assertEquals(1, inflater.numEnds.get());
+		}
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileReaderWaitsForQueue() throws Exception {
+		connect(NUM_PAGES, true);
+		for (int i=0; i<5; i++)
+			checkPage(i, pages.next());
+		// Let the reader fill the queue, and wait for room:
+		Thread.sleep(500);
+		closeAndCheckReaderEnds();
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileReaderWaitsForDistributor() throws Exception {
+		connect(10, true);
+		for (int i=0; i<10; i++)
+			checkPage(i, pages.next());
+		// The distributor keeps the connection open; the reader waits for more pages:
+		Thread.sleep(200);
+		closeAndCheckReaderEnds();
+	}
+
+	/**
+	 * Start a fake distributor that sends numPages pages, and open an
+	 * iterator on it.
+	 * @param holdOpen true to keep the connection open after the pages,
+	 *        until the test ends.
+	 */
+	private void connect(int numPages, boolean holdOpen) throws IOException {
+		connect(numPages, holdOpen, false);
+	}
+
+	/**
+	 * @param compress true to send zlib compressed pages, which the
+	 *        iterator inflates with NUM_INFLATE_THREADS threads.
+	 */
+	private void connect(int numPages, boolean holdOpen, boolean compress) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(compress ? COMPRESSED_DOC_TYPE : 0);
+		for (int i=0; i<numPages; i++)
+			writePage(stream, i, compress);
+		distributor = new FakeDistributor(stream.toByteArray(), holdOpen);
+		distributor.start();
+		DistributorChannel channel = new DistributorChannel(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()));
+		pages = new BufferedWebStreamIterator("127.0.0.1", serverSocket.getLocalPort(), channel, 
+											  numPages, NUM_INFLATE_THREADS) {
+			@Override
+			protected Inflater newInflater() {
+				if (inflaters == null)
+					return super.newInflater();
+				CountingInflater res = new CountingInflater();
+				synchronized (inflaters) {
+					inflaters.add(res);
+				}
+				return res;
+			}
+		};
+	}
+
+	/**
+	 * Close the iterator, which must not wait for the distributor,
+	 * and wait for its reader thread to end.
+	 */
+	private void closeAndCheckReaderEnds() throws InterruptedException {
+		Thread reader = readerThread();
+		assertTrue(reader != null);
+		pages.close();
+		pages = null;
+		reader.join(10000);
+		assertFalse(reader.isAlive());
+	}
+
+	private Thread readerThread() {
+		String name = "WebBase page reader 127.0.0.1:" + serverSocket.getLocalPort();
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals(name))
+				return thread;
+		return null;
+	}
+
+	private boolean allEnded() {
+		synchronized (inflaters) {
+			for (CountingInflater inflater : inflaters)
+				if (inflater.numEnds.get() == 0)
+					return false;
+		}
+		return true;
+	}
+
+	private void checkPage(int i, WbRecord page) {
+		assertEquals(i, page.getMetadata().getDocID());
+		assertEquals(url(i), page.getMetadata().getURLAsString());
+		assertArrayEquals(body(i), page.getContentBytes());
+	}
+
+	/**
+	 * Append page i, in the distributor's format, to a stream.
+	 */
+	private void writePage(ByteArrayOutputStream stream, int i, boolean compress) throws IOException {
+		byte[] page = compress ? deflate(page(i)) : page(i);
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(i);
+		out.writeLong(1000L * i);
+		out.writeInt(timeStamp(i).length());
+		out.writeInt(url(i).length());
+		out.writeInt(page.length);
+		out.writeBytes(timeStamp(i));
+		out.writeBytes(url(i));
+		out.write(page);
+		out.flush();
+	}
+
+	private static String timeStamp(int i) {
+		return "2010-03-" + (10 + i % 20);
+	}
+
+	private static String url(int i) {
+		return "http://host" + (i % 7) + ".com/page" + i;
+	}
+
+	/**
+	 * @return page i: an HTTP response header, and the body.
+	 */
+	private byte[] page(int i) {
+		byte[] header = WarcTestFiles.latin1("HTTP/1.0 200 OK\r\nContent-Type: text/html\r\n\r\n");
+		byte[] body = body(i);
+		byte[] page = new byte[header.length + body.length];
+		System.arraycopy(header, 0, page, 0, header.length);
+		System.arraycopy(body, 0, page, header.length, body.length);
+		return page;
+	}
+
+	private byte[] body(int i) {
+		Random random = new Random(i);
+		StringBuilder body = new StringBuilder("<html>");
+		int len = random.nextInt(maxBodyLen);
+		for (int c=0; c<len; c++)
+			body.append((char) ('a' + random.nextInt(26)));
+		return WarcTestFiles.latin1(body.append("</html>").toString());
+	}
+
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		while (!deflater.finished())
+			res.write(chunk, 0, deflater.deflate(chunk));
+		deflater.end();
+		return res.toByteArray();
+	}
+
+	/**
+	 * Counts how often it is ended; the iterator must end each of its
+	 * inflaters once.
+	 */
+	private static class CountingInflater extends Inflater {
+
+		final AtomicInteger numEnds = new AtomicInteger();
+
+		@Override
+		public void end() {
+			numEnds.incrementAndGet();
+			super.end();
+		}
+	}
+
+	/**
+	 * Accepts one connection, reads the page request, and sends a
+	 * stream; then closes the connection, or holds it open until
+	 * released.
+	 */
+	private class FakeDistributor extends Thread {
+
+		private byte[] stream;
+		private boolean holdOpen;
+		private CountDownLatch released = new CountDownLatch(1);
+		private volatile Throwable error;
+		volatile int numPagesRequested;
+
+		FakeDistributor(byte[] stream, boolean holdOpen) {
+			this.stream = stream;
+			this.holdOpen = holdOpen;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					numPagesRequested = new DataInputStream(socket.getInputStream()).readInt();
+					OutputStream out = socket.getOutputStream();
+					out.write(stream);
+					out.flush();
+					if (holdOpen)
+						released.await();
+				} finally {
+					socket.close();
+				}
+			} catch (Throwable e) {
+				// The iterator may close the connection before all is written:
+				if (!holdOpen)
+					error = e;
+			}
+		}
+
+		void release() {
+			released.countDown();
+		}
+
+		/**
+		 * Wait for the distributor to finish, and fail if it ran into an error.
+		 */
+		void finish() throws InterruptedException {
+			join();
+			if (error != null)
+				throw new AssertionError(error);
+		}
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestBufferedWebStreamIterator.class);
+	}
+}
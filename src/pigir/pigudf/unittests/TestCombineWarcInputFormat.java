@@ -0,0 +1,152 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.CombineWarcInputFormat;
+import pigir.warc.Constants;
+import pigir.warc.MultiFileWarcRecordReader;
+import pigir.warc.WarcMultiFileSplit;
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordReader;
+
+public class TestCombineWarcInputFormat extends WarcTestCase {
+
+	@Test
+	public void testAllRecordsOfAllParts() throws IOException {
+		writeCrawl();
+		long totalSize = totalSize();
+		// Everything in one split, a few parts per split, and one part per split:
+		for (long combineSize : new long[] {totalSize, totalSize / 3, 1}) {
+			conf.setLong(Constants.COMBINE_SPLIT_SIZE_PROP_NAME, combineSize);
+			List<InputSplit> splits = getSplits();
+			List<Integer> recordNums = new ArrayList<Integer>();
+			for (InputSplit split : splits) {
+				List<Integer> splitRecordNums = read(split);
+				assertEquals(numRecordsOfParts(split), splitRecordNums.size());
+				recordNums.addAll(splitRecordNums);
+			}
+			// Two copies of each record, and ten more:
+			assertEquals(2 * NUM_RECORDS + 10, recordNums.size());
+			if (combineSize == totalSize)
+				assertEquals(1, splits.size());
+			if (combineSize == 1)
+				assertEquals(numFiles(), splits.size());
+		}
+	}
+
+	@Test
+	public void testDuplicatesAcrossParts() throws IOException {
+		writeCrawl();
+		conf.set(Constants.DEDUP_PROP_NAME, "drop");
+		long totalSize = totalSize();
+		for (long combineSize : new long[] {totalSize, totalSize / 3, 1}) {
+			conf.setLong(Constants.COMBINE_SPLIT_SIZE_PROP_NAME, combineSize);
+			for (InputSplit split : getSplits()) {
+				// One copy per payload digest in each combined split,
+				// however its parts are spread over files:
+				LinkedHashSet<Integer> distinct = new LinkedHashSet<Integer>();
+				for (FileSplit part : ((WarcMultiFileSplit) split).getFileSplits())
+					distinct.addAll(readPart(part));
+				assertEquals(new ArrayList<Integer>(distinct), read(split));
+			}
+		}
+	}
+
+	/**
+	 * Write two files with the same records, one of them gzipped,
+	 * and a file with ten other records.
+	 */
+	private void writeCrawl() throws IOException {
+		WarcTestFiles.writeWarc(dir, "a.warc", NUM_RECORDS);
+		WarcTestFiles.writeWarcGz(dir, "b.warc.gz", NUM_RECORDS);
+		List<byte[]> others = new ArrayList<byte[]>();
+		for (int i=NUM_RECORDS; i<NUM_RECORDS + 10; i++)
+			others.add(WarcTestFiles.record(i));
+		WarcTestFiles.writeWarc(dir, "c.warc", others);
+	}
+
+	private List<InputSplit> getSplits() throws IOException {
+		Job job = new Job(conf);
+		FileInputFormat.setInputPaths(job, path(dir));
+		List<InputSplit> splits = new CombineWarcInputFormat().getSplits(job);
+		for (InputSplit split : splits)
+			assertTrue(split instanceof WarcMultiFileSplit);
+		return splits;
+	}
+
+	/**
+	 * Read a combined split, and check every record.
+	 * @return the numbers of the records read, in the order read.
+	 */
+	private List<Integer> read(InputSplit split) throws IOException {
+		RecordReader<LongWritable, Text> reader = 
+			new CombineWarcInputFormat().createRecordReader(split, WarcTestFiles.newContext(conf));
+		assertTrue(reader instanceof MultiFileWarcRecordReader);
+		List<Integer> recordNums = new ArrayList<Integer>();
+		try {
+			reader.initialize(split, WarcTestFiles.newContext(conf));
+			while (reader.nextKeyValue())
+				recordNums.add(WarcTestFiles.checkRecord((WarcRecord) reader.getCurrentValue()));
+		} catch (InterruptedException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			reader.close();
+		}
+		return recordNums;
+	}
+
+	/**
+	 * @return number of records in a combined split's parts, each read on its own.
+	 */
+	private int numRecordsOfParts(InputSplit split) throws IOException {
+		int numRecords = 0;
+		for (FileSplit part : ((WarcMultiFileSplit) split).getFileSplits())
+			numRecords += readPart(part).size();
+		return numRecords;
+	}
+
+	/**
+	 * Read one part on its own, without deduplication.
+	 * @return the numbers of the part's records, in the order read.
+	 */
+	private static List<Integer> readPart(FileSplit part) throws IOException {
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.initialize(part, WarcTestFiles.newContext(WarcTestFiles.localConf()));
+		List<Integer> recordNums = new ArrayList<Integer>();
+		while (reader.nextKeyValue())
+			recordNums.add(WarcTestFiles.checkRecord(reader.getCurrentValue()));
+		reader.close();
+		return recordNums;
+	}
+
+	private long totalSize() {
+		long size = 0;
+		for (File file : dir.listFiles())
+			size += file.length();
+		return size;
+	}
+
+	private int numFiles() {
+		return dir.listFiles().length;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestCombineWarcInputFormat.class);
+	}
+}
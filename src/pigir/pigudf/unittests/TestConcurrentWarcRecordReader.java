@@ -0,0 +1,109 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.junit.Test;
+
+import pigir.warc.ConcurrentWarcInputFormat;
+import pigir.warc.ConcurrentWarcRecordReader;
+import pigir.warc.Constants;
+import pigir.warc.WarcRecord;
+
+public class TestConcurrentWarcRecordReader extends WarcTestCase {
+
+	@Test(timeout=60000)
+	public void testAllRecordsReadOnce() throws Exception {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		List<WarcRecord> records = readConcurrently(warc, 8, 4);
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (WarcRecord record : records)
+			recordNums.add(WarcTestFiles.checkRecord(record));
+		Collections.sort(recordNums);
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+	}
+
+	@Test(timeout=60000)
+	public void testRecordReuseIsOverridden() throws Exception {
+		// The workers must not reuse their records, or records still
+		// queued would be overwritten. Check them all after reading:
+		conf.setBoolean(Constants.RECORD_REUSE_PROP_NAME, true);
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		List<WarcRecord> records = readConcurrently(warc, 8, 8);
+		assertEquals(NUM_RECORDS, records.size());
+		for (WarcRecord record : records)
+			WarcTestFiles.checkRecord(record);
+	}
+
+	@Test(timeout=60000)
+	public void testWorkerErrorReachesConsumer() throws Exception {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.corruptMember(warc, NUM_RECORDS / 2);
+		try {
+			readConcurrently(warc, 1, 1);
+			fail("Corrupt gzip member not reported.");
+		} catch (IOException e) {
+			// Expected, rather than a hang, or a silent end of the records.
+		}
+	}
+
+	@Test
+	public void testWritableCopy() throws Exception {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", 5);
+		List<WarcRecord> records = readConcurrently(warc, 1, 1);
+		for (WarcRecord record : records) {
+			DataOutputBuffer out = new DataOutputBuffer();
+			record.write(out);
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(out.getData(), out.getLength());
+			WarcRecord copy = new WarcRecord();
+			copy.readFields(in);
+			WarcTestFiles.checkRecord(copy);
+			assertEquals(record.toString(), copy.toString());
+			assertArrayEquals(record.getContentBytes(), copy.getContentBytes());
+		}
+	}
+
+	/**
+	 * Read a file in numSplits splits, splitsPerTask of them per
+	 * concurrent reader.
+	 * @return the records read
+	 */
+	private List<WarcRecord> readConcurrently(File warc, int numSplits, int splitsPerTask) throws Exception {
+		conf.setLong("mapred.max.split.size", Math.max(1, warc.length() / numSplits));
+		conf.setInt(Constants.CONCURRENT_SPLITS_PER_TASK_PROP_NAME, splitsPerTask);
+		Job job = new Job(conf);
+		FileInputFormat.setInputPaths(job, path(warc));
+		List<InputSplit> splits = new ConcurrentWarcInputFormat().getSplits(job);
+		assertTrue(splits.size() >= 1);
+		List<WarcRecord> records = new ArrayList<WarcRecord>();
+		for (InputSplit split : splits) {
+			ConcurrentWarcRecordReader reader = new ConcurrentWarcRecordReader();
+			reader.initialize(split, WarcTestFiles.newContext(job.getConfiguration()));
+			try {
+				while (reader.nextKeyValue())
+					records.add(reader.getCurrentValue());
+			} finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestConcurrentWarcRecordReader.class);
+	}
+}
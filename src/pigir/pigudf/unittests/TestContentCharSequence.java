@@ -0,0 +1,96 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import pigir.warc.ContentCharSequence;
+
+public class TestContentCharSequence {
+
+	private static final String ASCII_HEAD = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n<html>";
+
+	@Test
+	public void testAsciiCompatibleCharsets() {
+		check("UTF-8", ASCII_HEAD + "caf\u00e9 \u65e5\u672c\u8a9e </html>");
+		check("ISO-8859-1", ASCII_HEAD + "caf\u00e9 na\u00efve </html>");
+		check("windows-1252", ASCII_HEAD + "\u20ac caf\u00e9 </html>");
+		check("US-ASCII", ASCII_HEAD + "plain </html>");
+	}
+
+	@Test
+	public void testStatefulSevenBitCharset() {
+		// All bytes of ISO-2022-JP text are ASCII; the escape sequences
+		// switch to Japanese, so the bytes are not their own characters:
+		String text = ASCII_HEAD + "\u65e5\u672c\u8a9e\u306e\u30da\u30fc\u30b8 </html>";
+		ContentCharSequence chars = check("ISO-2022-JP", text);
+		assertFalse(chars.isAsciiUpTo(0));
+	}
+
+	@Test
+	public void testCharsetWithoutAsciiBytes() {
+		ContentCharSequence chars = check("UTF-16", ASCII_HEAD + "caf\u00e9 </html>");
+		assertFalse(chars.isAsciiUpTo(0));
+	}
+
+	@Test
+	public void testLongContent() {
+		// More characters after the ASCII prefix than one decoded chunk:
+		StringBuilder text = new StringBuilder(ASCII_HEAD);
+		for (int i=0; i<3000; i++)
+			text.append("caf\u00e9 \u65e5\u672c ");
+		check("UTF-8", text.toString());
+		check("ISO-2022-JP", text.toString().replace('\u00e9', 'e'));
+	}
+
+	@Test
+	public void testAllAscii() {
+		ContentCharSequence chars = check("UTF-8", ASCII_HEAD);
+		assertTrue(chars.isAsciiUpTo(ASCII_HEAD.length() - 1));
+	}
+
+	/**
+	 * Encode text, and check that the characters of the encoded bytes are
+	 * those the charset decodes them to, by every access method: within the
+	 * ASCII prefix, across its end, and after it. The bytes sit in the
+	 * middle of a larger buffer, as record content does.
+	 * @return the sequence after the checks
+	 */
+	private static ContentCharSequence check(String charsetName, String text) {
+		Charset charset = Charset.forName(charsetName);
+		byte[] encoded = text.getBytes(charset);
+		byte[] padded = new byte[encoded.length + 20];
+		padded[0] = (byte) 0xff;
+		padded[padded.length - 1] = (byte) 0xff;
+		System.arraycopy(encoded, 0, padded, 10, encoded.length);
+		String expected = charset.decode(ByteBuffer.wrap(encoded)).toString();
+
+		ContentCharSequence chars = new ContentCharSequence(ByteBuffer.wrap(padded, 10, encoded.length), charset);
+		// Characters one by one, before the length is known:
+		for (int i=0; i<expected.length(); i++)
+			assertEquals(charsetName + " char " + i, expected.charAt(i), chars.charAt(i));
+		assertEquals(charsetName, expected.length(), chars.length());
+		assertEquals(charsetName, expected, chars.toString());
+
+		// Ranges in a fresh sequence, so that the range is decoded first.
+		// Within the ASCII head, across its end, and after it:
+		int headLen = ASCII_HEAD.length();
+		int[][] ranges = {{0, 4}, {9, headLen}, {headLen - 3, headLen + 5}, {headLen + 2, expected.length()}};
+		for (int[] range : ranges) {
+			int end = Math.min(range[1], expected.length());
+			int start = Math.min(range[0], end);
+			CharSequence sub = new ContentCharSequence(ByteBuffer.wrap(padded, 10, encoded.length), charset).subSequence(start, end);
+			assertEquals(charsetName + " range " + start + "-" + end, expected.substring(start, end), sub.toString());
+		}
+		return chars;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestContentCharSequence.class);
+	}
+}
@@ -0,0 +1,228 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pigir.webbase.wbpull.webStream.DistributorChannel;
+
+public class TestDistributorChannel {
+
+	// Larger than the channel's read buffer, so that it is read
+	// with a scattering read:
+	private static final int LARGE_PAGE_SIZE = 600 * 1024;
+
+	private ServerSocket serverSocket;
+	private FakeDistributor distributor;
+	private DistributorChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		serverSocket = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (channel != null)
+			channel.close();
+		serverSocket.close();
+	}
+
+	@Test(timeout=60000)
+	public void testPagesInShortReads() throws Exception {
+		// Small pages around a large one, all sent a few bytes at a time:
+		int[] pageSizes = {0, 10, 3000, LARGE_PAGE_SIZE, 17, 5000, LARGE_PAGE_SIZE, 1};
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i=0; i<pageSizes.length; i++)
+			writePage(stream, i, pageSizes[i]);
+		connect(stream.toByteArray(), 7);
+
+		channel.requestPages(pageSizes.length);
+		byte[] page = new byte[1024];
+		for (int i=0; i<pageSizes.length; i++)
+			page = readAndCheckPage(i, pageSizes[i], page);
+		try {
+			channel.readPageHeader();
+			fail("End of distributor stream not reported.");
+		} catch (EOFException e) {
+			// Expected.
+		}
+		distributor.finish();
+		assertEquals(pageSizes.length, distributor.numPagesRequested);
+	}
+
+	@Test(timeout=60000)
+	public void testPagesInOneWrite() throws Exception {
+		// Many pages per socket read, so headers are decoded from the buffer:
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i=0; i<200; i++)
+			writePage(stream, i, 100 + i);
+		stream.write(42);
+		connect(stream.toByteArray(), Integer.MAX_VALUE);
+
+		channel.requestPages(200);
+		byte[] page = new byte[1024];
+		for (int i=0; i<200; i++)
+			page = readAndCheckPage(i, 100 + i, page);
+		assertEquals(42, channel.readByte());
+		distributor.finish();
+	}
+
+	@Test(timeout=60000)
+	public void testStreamEndsWithinPage() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writePage(stream, 0, 10);
+		writePage(stream, 1, LARGE_PAGE_SIZE);
+		byte[] bytes = stream.toByteArray();
+		byte[] truncated = new byte[bytes.length - 1000];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		connect(truncated, 4093);
+
+		channel.requestPages(2);
+		readAndCheckPage(0, 10, new byte[1024]);
+		channel.readPageHeader();
+		channel.readString(channel.getTimeStampLen());
+		channel.readString(channel.getUrlLen());
+		try {
+			channel.readFully(new byte[channel.getPageSize()], channel.getPageSize());
+			fail("Page cut short not reported.");
+		} catch (EOFException e) {
+			// Expected.
+		}
+		distributor.finish();
+	}
+
+	/**
+	 * Start a fake distributor that sends the given stream in chunks of
+	 * chunkSize bytes, and connect a channel to it.
+	 */
+	private void connect(byte[] stream, int chunkSize) throws IOException {
+		distributor = new FakeDistributor(stream, chunkSize);
+		distributor.start();
+		channel = new DistributorChannel(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()));
+	}
+
+	/**
+	 * Read page i from the channel, and check all its parts.
+	 * @param page array for the page; replaced if too small
+	 * @return the page array
+	 */
+	private byte[] readAndCheckPage(int i, int pageSize, byte[] page) throws IOException {
+		channel.readPageHeader();
+		assertEquals(i, channel.getDocID());
+		assertEquals(offset(i), channel.getOffset());
+		assertEquals(timeStamp(i).length(), channel.getTimeStampLen());
+		assertEquals(url(i).length(), channel.getUrlLen());
+		assertEquals(pageSize, channel.getPageSize());
+		assertEquals(timeStamp(i), channel.readString(channel.getTimeStampLen()));
+		assertEquals(url(i), channel.readString(channel.getUrlLen()));
+		if (page.length < pageSize)
+			page = new byte[pageSize];
+		channel.readFully(page, pageSize);
+		assertArrayEquals("Page " + i, content(i, pageSize), Arrays.copyOf(page, pageSize));
+		return page;
+	}
+
+	/**
+	 * Append page i, in the distributor's format, to a stream.
+	 */
+	private static void writePage(ByteArrayOutputStream stream, int i, int pageSize) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(i);
+		out.writeLong(offset(i));
+		out.writeInt(timeStamp(i).length());
+		out.writeInt(url(i).length());
+		out.writeInt(pageSize);
+		out.writeBytes(timeStamp(i));
+		out.writeBytes(url(i));
+		out.write(content(i, pageSize));
+		out.flush();
+	}
+
+	private static long offset(int i) {
+		return (1L << 40) + i;
+	}
+
+	private static String timeStamp(int i) {
+		return "2010-03-" + (10 + i % 20);
+	}
+
+	private static String url(int i) {
+		return "http://host" + i + ".com/" + "page".substring(0, i % 5);
+	}
+
+	private static byte[] content(int i, int pageSize) {
+		byte[] content = new byte[pageSize];
+		new Random(i).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Accepts one connection, reads the page request, and sends
+	 * a stream in chunks, pausing now and then so that the reader
+	 * catches up, and sees short reads.
+	 */
+	private class FakeDistributor extends Thread {
+
+		private byte[] stream;
+		private int chunkSize;
+		private volatile Throwable error;
+		volatile int numPagesRequested;
+
+		FakeDistributor(byte[] stream, int chunkSize) {
+			this.stream = stream;
+			this.chunkSize = chunkSize;
+		}
+
+		public void run() {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					socket.setTcpNoDelay(true);
+					numPagesRequested = new DataInputStream(socket.getInputStream()).readInt();
+					OutputStream out = socket.getOutputStream();
+					int numChunks = 0;
+					for (int pos=0; pos<stream.length; pos+=chunkSize) {
+						out.write(stream, pos, Math.min(chunkSize, stream.length - pos));
+						out.flush();
+						if (++numChunks % 100 == 0)
+							Thread.sleep(1);
+					}
+				} finally {
+					socket.close();
+				}
+			} catch (Throwable e) {
+				error = e;
+			}
+		}
+
+		/**
+		 * Wait for the distributor to finish, and fail if it ran into an error.
+		 */
+		void finish() throws InterruptedException {
+			join();
+			if (error != null)
+				throw new AssertionError(error);
+		}
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestDistributorChannel.class);
+	}
+}
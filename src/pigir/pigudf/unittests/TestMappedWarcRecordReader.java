@@ -0,0 +1,97 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.MappedWarcRecordReader;
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordFilter;
+
+public class TestMappedWarcRecordReader extends WarcTestCase {
+
+	@Test
+	public void testRecordsAcrossWindows() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		// Windows just large enough for the largest content, so that
+		// most records cross the end of a window:
+		conf.setLong(Constants.MMAP_WINDOW_SIZE_PROP_NAME, maxContentLength());
+		for (long splitSize : new long[] {333, 4096, warc.length()}) {
+			List<Integer> recordNums = new ArrayList<Integer>();
+			for (long start=0; start<warc.length(); start+=splitSize) {
+				MappedWarcRecordReader reader = open(warc, start, Math.min(splitSize, warc.length() - start));
+				while (reader.nextKeyValue()) {
+					int i = WarcTestFiles.checkRecord(reader.getCurrentValue());
+					assertEquals(WarcTestFiles.recordOffset(i), reader.getCurrentKey().get());
+					assertEquals(WarcTestFiles.recordOffset(i), reader.getCurrentRecordFileOffset());
+					recordNums.add(i);
+				}
+				reader.close();
+			}
+			assertEquals("Split size " + splitSize, WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+		}
+	}
+
+	@Test
+	public void testFilterAndTruncation() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		conf.setLong(Constants.MMAP_WINDOW_SIZE_PROP_NAME, maxContentLength());
+		conf.setLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, 100);
+		MappedWarcRecordReader reader = open(warc, 0, warc.length());
+		// Set after initialize(), as WarcLoader does:
+		reader.setRecordFilter(new WarcRecordFilter(null, "host3\\.com", null, null));
+		List<Integer> recordNums = new ArrayList<Integer>();
+		while (reader.nextKeyValue()) {
+			WarcRecord record = reader.getCurrentValue();
+			int i = WarcTestFiles.recordNum(record.get(WarcRecord.WARC_RECORD_ID));
+			assertTrue(record.isContentTruncated());
+			assertEquals(WarcTestFiles.content(i).length, record.getDeclaredContentLength());
+			assertArrayEquals(Arrays.copyOf(WarcTestFiles.content(i), 100), record.getContentBytes());
+			recordNums.add(i);
+		}
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i=3; i<NUM_RECORDS; i+=7)
+			expected.add(i);
+		assertEquals(expected, recordNums);
+		assertEquals(NUM_RECORDS - expected.size(), reader.getNumRecordsRejected());
+		reader.close();
+	}
+
+	@Test
+	public void testGzipFileIsReadAsStream() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		MappedWarcRecordReader reader = open(warc, 0, warc.length());
+		List<Integer> recordNums = new ArrayList<Integer>();
+		while (reader.nextKeyValue())
+			recordNums.add(WarcTestFiles.checkRecord(reader.getCurrentValue()));
+		reader.close();
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+	}
+
+	private MappedWarcRecordReader open(File warc, long start, long len) throws IOException {
+		MappedWarcRecordReader reader = new MappedWarcRecordReader();
+		reader.initialize(new FileSplit(path(warc), start, len, new String[0]), WarcTestFiles.newContext(conf));
+		return reader;
+	}
+
+	private static long maxContentLength() {
+		long max = 0;
+		for (int i=0; i<NUM_RECORDS; i++)
+			max = Math.max(max, WarcTestFiles.content(i).length);
+		return max;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestMappedWarcRecordReader.class);
+	}
+}
@@ -0,0 +1,196 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.ParallelGzipInputStream;
+import pigir.warc.WarcGzipMemberIndex;
+import pigir.warc.WarcRecordReader;
+
+public class TestParallelGzipInputStream extends WarcTestCase {
+
+	private static final int NUM_THREADS = 3;
+
+	@Test(timeout=60000)
+	public void testWholeFileInAnyBatchSize() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		long[] offsets = WarcGzipMemberIndex.build(fs, path(warc)).getMemberOffsets();
+		// One member per batch, a few members per batch, and all in one:
+		for (int batchSize : new int[] {1, 2000, 1 << 20})
+			assertArrayEquals(records(0, NUM_RECORDS), inflate(warc, offsets, warc.length(), batchSize));
+	}
+
+	@Test(timeout=60000)
+	public void testMembersOfASplit() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcGzipMemberIndex index = WarcGzipMemberIndex.build(fs, path(warc));
+		long start = WarcTestFiles.memberOffset(10);
+		long end = WarcTestFiles.memberOffset(30);
+		assertArrayEquals(records(10, 30), inflate(warc, index.getMemberOffsets(start, end), end, 1500));
+	}
+
+	@Test(timeout=60000)
+	public void testTrailingPaddingIsIgnored() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "padded.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[5000]);
+		long[] offsets = WarcGzipMemberIndex.build(fs, path(warc)).getMemberOffsets();
+		for (int batchSize : new int[] {1, 2000, 1 << 20})
+			assertArrayEquals(records(0, NUM_RECORDS), inflate(warc, offsets, warc.length(), batchSize));
+	}
+
+	@Test(timeout=60000)
+	public void testCorruptMemberIsReported() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		long[] offsets = WarcGzipMemberIndex.build(fs, path(warc)).getMemberOffsets();
+		WarcTestFiles.corruptMember(warc, NUM_RECORDS / 2);
+		try {
+			inflate(warc, offsets, warc.length(), 2000);
+			fail("Corrupt gzip member not reported.");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test(timeout=60000)
+	public void testRecordReaderInflatesInParallel() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[100]);
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+		conf.setBoolean(Constants.INFLATE_PARALLEL_PROP_NAME, true);
+		conf.setInt(Constants.INFLATE_BATCH_SIZE_PROP_NAME, 1000);
+		conf.setInt(Constants.INFLATE_THREADS_PROP_NAME, NUM_THREADS);
+		WarcGzipMemberIndex index = WarcGzipMemberIndex.load(fs, path(warc));
+		long[] splitPoints = index.getSplitPoints(warc.length() / 5);
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (int i=0; i<splitPoints.length; i++) {
+			long end = (i + 1 < splitPoints.length) ? splitPoints[i + 1] : warc.length();
+			FileSplit split = new FileSplit(path(warc), splitPoints[i], end - splitPoints[i], new String[0]);
+			WarcRecordReader reader = new WarcRecordReader();
+			reader.initialize(split, WarcTestFiles.newContext(conf));
+			while (reader.nextKeyValue())
+				recordNums.add(WarcTestFiles.checkRecord(reader.getCurrentValue()));
+			reader.close();
+		}
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileWorkersInflate() throws Exception {
+		// Members large enough that the workers are still inflating
+		// the batches after the first when the stream is closed:
+		File warc = new File(dir, "large.warc.gz");
+		FileOutputStream out = new FileOutputStream(warc);
+		try {
+			for (int i=0; i<4 * NUM_THREADS; i++)
+				out.write(WarcTestFiles.gzip(WarcTestFiles.record(i, largeContent(i))));
+		} finally {
+			out.close();
+		}
+		long[] offsets = WarcGzipMemberIndex.build(fs, path(warc)).getMemberOffsets();
+		final List<CountingInflater> inflaters = new ArrayList<CountingInflater>();
+		FSDataInputStream fileIn = fs.open(path(warc));
+		InputStream in = new ParallelGzipInputStream(fileIn, offsets, warc.length(), 1, NUM_THREADS) {
+			protected Inflater newInflater() {
+				CountingInflater inflater = new CountingInflater();
+				inflaters.add(inflater);
+				return inflater;
+			}
+		};
+		byte[] record = WarcTestFiles.record(0);
+		byte[] start = new byte[100];
+		assertEquals(start.length, in.read(start, 0, start.length));
+		assertArrayEquals(Arrays.copyOf(record, start.length), start);
+		in.close();
+		fileIn.close();
+		try {
+			in.read();
+			fail("Read from closed stream not reported.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Workers still busy after close() end their own inflaters:
+		assertEquals(NUM_THREADS, inflaters.size());
+		long deadline = System.currentTimeMillis() + 10000;
+		for (CountingInflater inflater : inflaters) {
+			while ((inflater.numEnds == 0) && (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			assertEquals("Inflater not ended exactly once.", 1, inflater.numEnds);
+		}
+	}
+
+	/**
+	 * @return the bytes a ParallelGzipInputStream delivers for the given members.
+	 */
+	private byte[] inflate(File warc, long[] offsets, long end, int batchSize) throws IOException {
+		FSDataInputStream fileIn = fs.open(path(warc));
+		InputStream in = new ParallelGzipInputStream(fileIn, offsets, end, batchSize, NUM_THREADS);
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		byte[] chunk = new byte[777];
+		int numRead;
+		try {
+			while ((numRead = in.read(chunk, 0, chunk.length)) >= 0)
+				inflated.write(chunk, 0, numRead);
+		} finally {
+			in.close();
+			fileIn.close();
+		}
+		return inflated.toByteArray();
+	}
+
+	/**
+	 * @return records from to to-1, in WARC format.
+	 */
+	private static byte[] records(int from, int to) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (int i=from; i<to; i++) {
+			byte[] record = WarcTestFiles.record(i);
+			records.write(record, 0, record.length);
+		}
+		return records.toByteArray();
+	}
+
+	/**
+	 * @return a few megabytes of text that takes a while to inflate.
+	 */
+	private static byte[] largeContent(int i) {
+		byte[] content = new byte[4 << 20];
+		Random random = new Random(i);
+		for (int pos=0; pos<content.length; pos++)
+			content[pos] = (byte) ('a' + random.nextInt(26));
+		return content;
+	}
+
+	private static class CountingInflater extends Inflater {
+		volatile int numEnds = 0;
+		CountingInflater() {
+			super(true);
+		}
+		@Override
+		public synchronized void end() {
+			numEnds++;
+			super.end();
+		}
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestParallelGzipInputStream.class);
+	}
+}
@@ -0,0 +1,206 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import pigir.warc.PrefetchInputStream;
+
+public class TestPrefetchInputStream {
+
+	private static final int BLOCK_SIZE = 100;
+	private static final int DEPTH = 3;
+
+	@Test(timeout=60000)
+	public void testStreamLargerThanRing() throws IOException {
+		byte[] data = randomBytes(100000);
+		PrefetchInputStream in = new PrefetchInputStream(new ByteArrayInputStream(data), BLOCK_SIZE, DEPTH);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		byte[] chunk = new byte[257];
+		int numRead;
+		// Mix single bytes, chunks across block boundaries, and skips:
+		for (int i=0; ; i++) {
+			if (i % 3 == 0) {
+				int b = in.read();
+				if (b < 0)
+					break;
+				read.write(b);
+			} else if (i % 7 == 0) {
+				int pos = read.size();
+				long numSkipped = in.skip(150);
+				read.write(data, pos, (int) numSkipped);
+			} else {
+				if ((numRead = in.read(chunk, 0, 1 + i % chunk.length)) < 0)
+					break;
+				read.write(chunk, 0, numRead);
+			}
+		}
+		assertArrayEquals(data, read.toByteArray());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	@Test(timeout=60000)
+	public void testFailureAfterPartialBlock() throws IOException {
+		// The failure comes in the middle of the third block:
+		checkFailure(250);
+	}
+
+	@Test(timeout=60000)
+	public void testFailureAtBlockBoundary() throws IOException {
+		checkFailure(2 * BLOCK_SIZE);
+	}
+
+	@Test(timeout=60000)
+	public void testFailureAtStart() throws IOException {
+		checkFailure(0);
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileRingIsFull() throws Exception {
+		SourceStream source = new SourceStream(Integer.MAX_VALUE, null);
+		PrefetchInputStream in = new PrefetchInputStream(source, BLOCK_SIZE, DEPTH);
+		assertEquals(0, in.read());
+		// Wait for the background thread to block on the full ring:
+		while (source.reader.getState() != Thread.State.WAITING)
+			Thread.sleep(10);
+		in.close();
+		checkStopped(source);
+	}
+
+	@Test(timeout=60000)
+	public void testCloseWhileReadBlocks() throws Exception {
+		SourceStream source = new SourceStream(BLOCK_SIZE + 10, null);
+		source.blockAtEnd = true;
+		PrefetchInputStream in = new PrefetchInputStream(source, BLOCK_SIZE, DEPTH);
+		assertEquals(0, in.read());
+		// Wait for the background thread to block in the wrapped stream:
+		synchronized (source) {
+			while (!source.blocked)
+				source.wait();
+		}
+		in.close();
+		checkStopped(source);
+		// Closing again does nothing:
+		in.close();
+	}
+
+	/**
+	 * Read a stream that fails after failAt bytes, and check that all
+	 * bytes before the failure come out, followed by the failure.
+	 */
+	private static void checkFailure(int failAt) throws IOException {
+		IOException failure = new IOException("Disk on fire.");
+		SourceStream source = new SourceStream(failAt, failure);
+		PrefetchInputStream in = new PrefetchInputStream(source, BLOCK_SIZE, DEPTH);
+		byte[] read = new byte[failAt + 1];
+		int numFilled = 0;
+		try {
+			int numRead;
+			while ((numRead = in.read(read, numFilled, read.length - numFilled)) >= 0)
+				numFilled += numRead;
+			fail("Failure of the wrapped stream not reported.");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+		assertEquals(failAt, numFilled);
+		assertArrayEquals(source.bytes(failAt), Arrays.copyOf(read, failAt));
+		in.close();
+		assertTrue(source.closed);
+	}
+
+	/**
+	 * Check that the background thread ended, and closed the source.
+	 */
+	private static void checkStopped(SourceStream source) throws InterruptedException {
+		assertTrue(source.closed);
+		source.reader.join(10000);
+		assertFalse("Prefetch thread still running.", source.reader.isAlive());
+	}
+
+	private static byte[] randomBytes(int len) {
+		byte[] bytes = new byte[len];
+		new Random(len).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Hands out a counting byte sequence in short reads, then either
+	 * fails, blocks until interrupted, or ends. Remembers the thread
+	 * that reads it.
+	 */
+	private static class SourceStream extends InputStream {
+
+		private final int len;
+		private final IOException failure;
+		private int pos = 0;
+		boolean blockAtEnd = false;
+		boolean blocked = false;
+		volatile boolean closed = false;
+		volatile Thread reader;
+
+		SourceStream(int len, IOException failure) {
+			this.len = len;
+			this.failure = failure;
+		}
+
+		byte[] bytes(int num) {
+			byte[] bytes = new byte[num];
+			for (int i=0; i<num; i++)
+				bytes[i] = (byte) i;
+			return bytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int num) throws IOException {
+			reader = Thread.currentThread();
+			if (pos >= len) {
+				if (failure != null)
+					throw failure;
+				if (blockAtEnd) {
+					blocked = true;
+					notifyAll();
+					try {
+						while (true)
+							wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				return -1;
+			}
+			num = Math.min(Math.min(num, 33), len - pos);
+			for (int i=0; i<num; i++)
+				b[off + i] = (byte) pos++;
+			return num;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestPrefetchInputStream.class);
+	}
+}
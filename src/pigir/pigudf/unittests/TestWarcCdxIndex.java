@@ -0,0 +1,131 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.ExecType;
+import org.apache.pig.PigServer;
+import org.apache.pig.data.Tuple;
+import org.junit.Test;
+
+import pigir.warc.WarcCdxIndex;
+import pigir.warc.WarcGzipMemberIndex;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcCdxIndex extends WarcTestCase {
+
+	@Test
+	public void testRecordFileOffsets() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[1000]);
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.setRecordFileOffsets(true);
+		reader.initialize(new FileSplit(path(warc), 0, warc.length(), new String[0]),
+						  WarcTestFiles.newContext(conf));
+		int numRecords = 0;
+		while (reader.nextKeyValue()) {
+			int i = WarcTestFiles.checkRecord(reader.getCurrentValue());
+			assertEquals(numRecords++, i);
+			assertEquals(WarcTestFiles.memberOffset(i), reader.getCurrentRecordFileOffset());
+			assertEquals(memberLength(i, warc), reader.getCurrentRecordFileLength());
+		}
+		reader.close();
+		assertEquals(NUM_RECORDS, numRecords);
+	}
+
+	@Test
+	public void testBuildLookUpAndFetch() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[1000]);
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+		String cdx = new File(dir, "crawl.cdx").getAbsolutePath();
+
+		PigServer pserver = new PigServer(ExecType.LOCAL);
+		pserver.registerQuery("entries = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcCdxLoader('response') " +
+							  "AS (url:chararray, date:chararray, file:chararray, offset:long, length:long);");
+		pserver.registerQuery("sorted = ORDER entries BY url, date;");
+		pserver.store("sorted", cdx);
+
+		WarcCdxIndex index = new WarcCdxIndex(fs, new Path(cdx));
+		for (int i=0; i<NUM_RECORDS; i++) {
+			List<WarcCdxIndex.Entry> entries = index.lookup(WarcTestFiles.targetUri(i));
+			assertEquals(1, entries.size());
+			assertEquals(WarcTestFiles.date(i), entries.get(0).date);
+			assertEquals(WarcTestFiles.memberOffset(i), entries.get(0).offset);
+			assertEquals(memberLength(i, warc), entries.get(0).length);
+		}
+		assertTrue(index.lookup("http://nowhere.com/").isEmpty());
+		index.close();
+
+		File urls = new File(dir, "urls.txt");
+		Set<String> wantedIds = new HashSet<String>();
+		StringBuilder urlList = new StringBuilder("http://nowhere.com/\n");
+		for (int i=NUM_RECORDS-1; i>=0; i-=3) {
+			urlList.append(WarcTestFiles.targetUri(i) + "\n");
+			wantedIds.add(WarcTestFiles.recordId(i));
+		}
+		WarcTestFiles.append(urls, urlList.toString().getBytes("UTF-8"));
+		pserver.registerQuery("docs = LOAD '" + urls.getAbsolutePath() + "' USING pigir.warc.WarcFetchLoader('" + cdx + "') " +
+							  "AS (warcRecordId:chararray, contentLength:int, date:chararray, warc_type:chararray, " +
+							  "    optionalHeaderFlds:bytearray, content:chararray);");
+		Iterator<Tuple> docs = pserver.openIterator("docs");
+		Set<String> fetchedIds = new HashSet<String>();
+		while (docs.hasNext()) {
+			Tuple doc = docs.next();
+			int i = WarcTestFiles.recordNum((String) doc.get(0));
+			assertEquals(WarcTestFiles.content(i).length, ((Integer) doc.get(1)).intValue());
+			assertTrue(fetchedIds.add((String) doc.get(0)));
+		}
+		assertEquals(wantedIds, fetchedIds);
+	}
+
+	/**
+	 * @return the number of bytes to read for record i: its gzip member,
+	 *         or, for the last member, the rest of the file. The member
+	 *         index does not tell where the last member ends, and reading
+	 *         a single member ignores the zero padding that may follow it.
+	 */
+	@Test
+	public void testPrunedColumns() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+
+		PigServer pserver = new PigServer(ExecType.LOCAL);
+		pserver.registerQuery("entries = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcCdxLoader() " +
+							  "AS (url:chararray, date:chararray, file:chararray, offset:long, length:long);");
+		pserver.registerQuery("offsets = FOREACH entries GENERATE offset, url;");
+		Set<Integer> recordNums = new HashSet<Integer>();
+		Iterator<Tuple> offsets = pserver.openIterator("offsets");
+		while (offsets.hasNext()) {
+			Tuple entry = offsets.next();
+			assertEquals(2, entry.size());
+			int i = Integer.parseInt(((String) entry.get(1)).replaceAll(".*/page", ""));
+			assertEquals(WarcTestFiles.targetUri(i), entry.get(1));
+			assertEquals(WarcTestFiles.memberOffset(i), ((Long) entry.get(0)).longValue());
+			recordNums.add(i);
+		}
+		pserver.shutdown();
+		assertEquals(NUM_RECORDS, recordNums.size());
+	}
+
+	private static long memberLength(int i, File warc) throws IOException {
+		if (i == NUM_RECORDS - 1)
+			return warc.length() - WarcTestFiles.memberOffset(i);
+		return WarcTestFiles.gzip(WarcTestFiles.record(i)).length;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcCdxIndex.class);
+	}
+}
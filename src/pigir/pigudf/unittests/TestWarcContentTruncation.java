@@ -0,0 +1,110 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcRecord;
+
+public class TestWarcContentTruncation extends WarcTestCase {
+
+	private static final int MAX_CONTENT_SIZE = 1000;
+	// Larger than the line reader's buffer, so that the tail is skipped past what is buffered:
+	private static final int LARGE_CONTENT_SIZE = 300 * 1024;
+
+	@Test
+	public void testLongContentIsTruncated() throws IOException {
+		conf.setLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, MAX_CONTENT_SIZE);
+		checkRecords(WarcTestFiles.writeWarc(dir, "crawl.warc", records()));
+	}
+
+	@Test
+	public void testGzipLongContentIsTruncated() throws IOException {
+		conf.setLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, MAX_CONTENT_SIZE);
+		File warc = new File(dir, "crawl.warc.gz");
+		FileOutputStream out = new FileOutputStream(warc);
+		try {
+			for (byte[] record : records())
+				out.write(WarcTestFiles.gzip(record));
+		} finally {
+			out.close();
+		}
+		checkRecords(warc);
+	}
+
+	@Test
+	public void testNoLimit() throws IOException {
+		conf.setLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, 0);
+		List<WarcRecord> records = WarcTestFiles.readRecords(WarcTestFiles.writeWarc(dir, "crawl.warc", records()), conf);
+		assertEquals(NUM_RECORDS, records.size());
+		for (int i=0; i<NUM_RECORDS; i++) {
+			assertFalse(records.get(i).isContentTruncated());
+			assertArrayEquals(content(i), records.get(i).getContentBytes());
+		}
+	}
+
+	/**
+	 * Read a file of the records of records(), and check that contents
+	 * longer than the limit are cut to it, while the others are whole.
+	 */
+	private void checkRecords(File warc) throws IOException {
+		List<WarcRecord> records = WarcTestFiles.readRecords(warc, conf);
+		assertEquals(NUM_RECORDS, records.size());
+		int numTruncated = 0;
+		for (int i=0; i<NUM_RECORDS; i++) {
+			WarcRecord record = records.get(i);
+			byte[] content = content(i);
+			assertEquals(WarcTestFiles.recordId(i), record.get(WarcRecord.WARC_RECORD_ID));
+			// The declared length is the original one:
+			assertEquals(content.length, record.getDeclaredContentLength());
+			assertEquals(Integer.toString(content.length), record.get(WarcRecord.CONTENT_LENGTH));
+			if (content.length > MAX_CONTENT_SIZE) {
+				assertTrue(record.isContentTruncated());
+				assertEquals(MAX_CONTENT_SIZE, record.getContentLength());
+				assertArrayEquals(Arrays.copyOf(content, MAX_CONTENT_SIZE), record.getContentBytes());
+				numTruncated++;
+			} else {
+				assertFalse(record.isContentTruncated());
+				assertArrayEquals(content, record.getContentBytes());
+			}
+		}
+		assertTrue((numTruncated > NUM_RECORDS / 10) && (numTruncated < NUM_RECORDS));
+	}
+
+	private static List<byte[]> records() {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int i=0; i<NUM_RECORDS; i++)
+			records.add(WarcTestFiles.record(i, content(i)));
+		return records;
+	}
+
+	/**
+	 * @return the fixture's content of record i, or for every tenth
+	 *         record, content larger than the line buffer.
+	 */
+	private static byte[] content(int i) {
+		if (i % 10 != 7)
+			return WarcTestFiles.content(i);
+		byte[] content = new byte[LARGE_CONTENT_SIZE];
+		Random random = new Random(i);
+		for (int pos=0; pos<content.length; pos++)
+			content[pos] = (byte) ('a' + random.nextInt(26));
+		return content;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcContentTruncation.class);
+	}
+}
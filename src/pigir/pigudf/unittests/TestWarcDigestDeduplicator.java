@@ -0,0 +1,183 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcDigestDeduplicator extends WarcTestCase {
+
+	private static final int NUM_COPIES = 3;
+	// Record IDs of copy c of record i are those of record i + c * COPY_ID_STEP:
+	private static final int COPY_ID_STEP = 1000;
+
+	@Test
+	public void testDropMode() throws IOException {
+		File warc = writeCopies(false);
+		conf.set(Constants.DEDUP_PROP_NAME, "drop");
+		List<WarcRecord> records = read(new FileSplit(path(warc), 0, warc.length(), new String[0]));
+		// The first copy of each record survives, in file order:
+		assertEquals(NUM_RECORDS, records.size());
+		for (int i=0; i<NUM_RECORDS; i++) {
+			WarcRecord record = records.get(i);
+			assertEquals(WarcTestFiles.recordId(i), record.get(WarcRecord.WARC_RECORD_ID));
+			assertFalse(record.isDuplicatePayload());
+			assertArrayEquals(WarcTestFiles.content(i), record.getContentBytes());
+		}
+	}
+
+	@Test
+	public void testDropModePerSplit() throws IOException {
+		File warc = writeCopies(true);
+		for (long splitSize : new long[] {warc.length() / 2, warc.length() / 5, 4096}) {
+			int numRead = 0;
+			for (FileSplit split : splits(warc, splitSize)) {
+				conf.set(Constants.DEDUP_PROP_NAME, "off");
+				List<WarcRecord> all = read(split);
+				conf.set(Constants.DEDUP_PROP_NAME, "drop");
+				List<WarcRecord> kept = read(split);
+				// Exactly one copy of each payload digest of the split,
+				// the first one, whatever the other splits hold:
+				assertEquals(new ArrayList<String>(firstCopies(all).values()), recordIds(kept));
+				numRead += kept.size();
+			}
+			assertTrue(numRead >= NUM_RECORDS);
+		}
+	}
+
+	@Test
+	public void testHeaderMode() throws IOException {
+		File warc = writeCopies(false);
+		conf.set(Constants.DEDUP_PROP_NAME, "header");
+		List<WarcRecord> records = read(new FileSplit(path(warc), 0, warc.length(), new String[0]));
+		// All copies are delivered; the later ones are marked, and their content is left out:
+		assertEquals(NUM_COPIES * NUM_RECORDS, records.size());
+		for (int copy=0; copy<NUM_COPIES; copy++) {
+			for (int i=0; i<NUM_RECORDS; i++) {
+				WarcRecord record = records.get(copy * NUM_RECORDS + i);
+				assertEquals(WarcTestFiles.recordId(i + copy * COPY_ID_STEP), record.get(WarcRecord.WARC_RECORD_ID));
+				assertEquals(WarcTestFiles.targetUri(i), record.get(WarcRecord.WARC_TARGET_URI));
+				assertEquals(copy > 0, record.isDuplicatePayload());
+				if (copy == 0)
+					assertArrayEquals(WarcTestFiles.content(i), record.getContentBytes());
+				else
+					assertEquals(0, record.getContentBytes().length);
+			}
+		}
+	}
+
+	@Test
+	public void testTable() throws IOException {
+		File warc = writeCopies(false);
+		// The table keeps the second copy of the even records; the odd ones are not repeated as far as it knows:
+		File table = new File(dir, "digests.txt");
+		FileOutputStream out = new FileOutputStream(table);
+		try {
+			for (int i=0; i<NUM_RECORDS; i+=2)
+				out.write(WarcTestFiles.latin1("sha1:PAYLOAD" + i + "\t" + WarcTestFiles.recordId(i + COPY_ID_STEP) + "\n"));
+		} finally {
+			out.close();
+		}
+		conf.set(Constants.DEDUP_PROP_NAME, "drop");
+		conf.set(Constants.DEDUP_TABLE_PROP_NAME, table.getAbsolutePath());
+		List<String> expected = new ArrayList<String>();
+		for (int copy=0; copy<NUM_COPIES; copy++)
+			for (int i=0; i<NUM_RECORDS; i++)
+				if ((i % 2 == 1) || (copy == 1))
+					expected.add(WarcTestFiles.recordId(i + copy * COPY_ID_STEP));
+		assertEquals(expected, recordIds(read(new FileSplit(path(warc), 0, warc.length(), new String[0]))));
+	}
+
+	@Test
+	public void testRecordsWithoutDigest() throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int copy=0; copy<NUM_COPIES; copy++)
+			for (int i=0; i<NUM_RECORDS; i++)
+				records.add(WarcTestFiles.edit(WarcTestFiles.record(i), "WARC-Payload-Digest", "X-Payload-Digest"));
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", records);
+		conf.set(Constants.DEDUP_PROP_NAME, "drop");
+		assertEquals(NUM_COPIES * NUM_RECORDS, read(new FileSplit(path(warc), 0, warc.length(), new String[0])).size());
+	}
+
+	/**
+	 * Write NUM_COPIES copies of the fixture records, each copy with
+	 * record IDs of its own and the same payload digests.
+	 * @param interleave true to write the copies of each record in a row,
+	 *        false to write one copy of all records after the other.
+	 */
+	private File writeCopies(boolean interleave) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int outer=0; outer<(interleave ? NUM_RECORDS : NUM_COPIES); outer++) {
+			for (int inner=0; inner<(interleave ? NUM_COPIES : NUM_RECORDS); inner++) {
+				int i = interleave ? outer : inner;
+				int copy = interleave ? inner : outer;
+				records.add(WarcTestFiles.edit(WarcTestFiles.record(i),
+											   WarcTestFiles.recordId(i),
+											   WarcTestFiles.recordId(i + copy * COPY_ID_STEP)));
+			}
+		}
+		return WarcTestFiles.writeWarc(dir, "crawl.warc", records);
+	}
+
+	private List<FileSplit> splits(File warc, long splitSize) {
+		List<FileSplit> splits = new ArrayList<FileSplit>();
+		for (long start=0; start<warc.length(); start+=splitSize)
+			splits.add(new FileSplit(path(warc), start, Math.min(splitSize, warc.length() - start), new String[0]));
+		return splits;
+	}
+
+	/**
+	 * Read a split with a reader of its own.
+	 */
+	private List<WarcRecord> read(FileSplit split) throws IOException {
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.setRecordReuse(false);
+		reader.initialize(split, WarcTestFiles.newContext(conf));
+		List<WarcRecord> records = new ArrayList<WarcRecord>();
+		try {
+			while (reader.nextKeyValue())
+				records.add(reader.getCurrentValue());
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	/**
+	 * @return payload digest to the record ID of its first record, in the order read.
+	 */
+	private static LinkedHashMap<String, String> firstCopies(List<WarcRecord> records) {
+		LinkedHashMap<String, String> res = new LinkedHashMap<String, String>();
+		for (WarcRecord record : records) {
+			String digest = record.get(WarcRecord.WARC_PAYLOAD_DIGEST);
+			if (!res.containsKey(digest))
+				res.put(digest, record.get(WarcRecord.WARC_RECORD_ID));
+		}
+		return res;
+	}
+
+	private static List<String> recordIds(List<WarcRecord> records) {
+		List<String> res = new ArrayList<String>();
+		for (WarcRecord record : records)
+			res.add(record.get(WarcRecord.WARC_RECORD_ID));
+		return res;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcDigestDeduplicator.class);
+	}
+}
@@ -0,0 +1,138 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.WarcGzipMemberIndex;
+import pigir.warc.WarcPigTextInputFormat;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcGzipMemberIndex extends WarcTestCase {
+
+	@Test
+	public void testBuildFindsEveryMember() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcGzipMemberIndex index = WarcGzipMemberIndex.build(fs, path(warc));
+		assertEquals(warc.length(), index.getFileLength());
+		assertArrayEquals(memberOffsets(NUM_RECORDS), index.getMemberOffsets());
+	}
+
+	@Test
+	public void testBuildIgnoresTrailingPadding() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "padded.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[4096]);
+		WarcGzipMemberIndex index = WarcGzipMemberIndex.build(fs, path(warc));
+		assertArrayEquals(memberOffsets(NUM_RECORDS), index.getMemberOffsets());
+	}
+
+	@Test
+	public void testWriteAndLoad() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		assertNull(WarcGzipMemberIndex.load(fs, path(warc)));
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+		assertTrue(fs.exists(WarcGzipMemberIndex.indexPathFor(path(warc))));
+
+		WarcGzipMemberIndex index = WarcGzipMemberIndex.load(fs, path(warc));
+		assertEquals(warc.length(), index.getFileLength());
+		assertArrayEquals(memberOffsets(NUM_RECORDS), index.getMemberOffsets());
+
+		// An index no longer matches once the file grows:
+		WarcTestFiles.append(warc, WarcTestFiles.gzip(WarcTestFiles.record(NUM_RECORDS)));
+		assertNull(WarcGzipMemberIndex.load(fs, path(warc)));
+	}
+
+	@Test
+	public void testSplitPointsAreMemberStarts() {
+		long[] offsets = memberOffsets(NUM_RECORDS);
+		WarcGzipMemberIndex index = new WarcGzipMemberIndex(offsets[offsets.length - 1] + 100, offsets);
+		long[] splitPoints = index.getSplitPoints(offsets[offsets.length - 1] / 5);
+		assertEquals(0L, splitPoints[0]);
+		assertTrue(splitPoints.length >= 5);
+		for (long splitPoint : splitPoints)
+			assertTrue(Arrays.binarySearch(offsets, splitPoint) >= 0);
+		assertArrayEquals(new long[] {offsets[2], offsets[3]}, index.getMemberOffsets(offsets[2], offsets[4]));
+	}
+
+	@Test
+	public void testIndexedFileIsSplit() throws Exception {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcGzipMemberIndex.build(fs, path(warc)).write(fs, path(warc));
+		conf.setLong("mapred.max.split.size", warc.length() / 6);
+		Job job = new Job(conf);
+		FileInputFormat.setInputPaths(job, path(warc));
+		WarcPigTextInputFormat inputFormat = new WarcPigTextInputFormat();
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		assertTrue(splits.size() >= 6);
+
+		long[] offsets = memberOffsets(NUM_RECORDS);
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (InputSplit split : splits) {
+			assertTrue(Arrays.binarySearch(offsets, ((FileSplit) split).getStart()) >= 0);
+			RecordReader<LongWritable, Text> reader = inputFormat.createRecordReader(split, null);
+			reader.initialize(split, WarcTestFiles.newContext(job.getConfiguration()));
+			while (reader.nextKeyValue())
+				recordNums.add(WarcTestFiles.checkRecord(((WarcRecordReader) reader).getCurrentValue()));
+			reader.close();
+		}
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+	}
+
+	@Test
+	public void testUnindexedFileIsNotSplit() throws Exception {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		conf.setLong("mapred.max.split.size", warc.length() / 6);
+		Job job = new Job(conf);
+		FileInputFormat.setInputPaths(job, path(warc));
+		assertEquals(1, new WarcPigTextInputFormat().getSplits(job).size());
+		// Nor is an index built behind the user's back:
+		assertNull(WarcGzipMemberIndex.load(fs, path(warc)));
+	}
+
+	@Test
+	public void testPlainWarcInArbitrarySplits() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		List<Integer> recordNums = WarcTestFiles.readAll(warc, 1000, conf);
+		Collections.sort(recordNums);
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), recordNums);
+	}
+
+	/**
+	 * @return the offsets of the first numRecords members of a file
+	 *         written by WarcTestFiles.writeWarcGz().
+	 */
+	private static long[] memberOffsets(int numRecords) {
+		long[] offsets = new long[numRecords];
+		long offset = 0;
+		try {
+			for (int i=0; i<numRecords; i++) {
+				offsets[i] = offset;
+				offset += WarcTestFiles.gzip(WarcTestFiles.record(i)).length;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return offsets;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcGzipMemberIndex.class);
+	}
+}
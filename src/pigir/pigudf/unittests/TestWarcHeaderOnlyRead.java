@@ -0,0 +1,117 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcHeaderOnlyRead extends WarcTestCase {
+
+	// Content larger than the line reader's buffer, so that
+	// skipping it goes past what is buffered:
+	private static final int LARGE_CONTENT_SIZE = 300 * 1024;
+
+	@Test
+	public void testContentIsSkipped() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", records(true));
+		checkHeaders(warc, readHeaders(warc, warc.length()), true);
+	}
+
+	@Test
+	public void testContentIsSkippedInSplits() throws IOException {
+		// A split that starts within content resyncs on the next version
+		// line, so here the content has none. Splits end within the large
+		// contents, and within the others:
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", records(false));
+		for (long splitSize : new long[] {1000, 100 * 1024})
+			checkHeaders(warc, readHeaders(warc, splitSize), false);
+	}
+
+	@Test
+	public void testGzipContentIsSkipped() throws IOException {
+		File warc = new File(dir, "crawl.warc.gz");
+		FileOutputStream out = new FileOutputStream(warc);
+		try {
+			for (byte[] record : records(true))
+				out.write(WarcTestFiles.gzip(record));
+		} finally {
+			out.close();
+		}
+		checkHeaders(warc, readHeaders(warc, warc.length()), true);
+	}
+
+	/**
+	 * @return generated records, some of them with content larger than
+	 *         the line buffer.
+	 * @param withVersionLines whether those records' content holds lines
+	 *        that look like the start of a record
+	 */
+	private static List<byte[]> records(boolean withVersionLines) {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int i=0; i<NUM_RECORDS; i++)
+			records.add((i % 10 == 3) ? WarcTestFiles.record(i, largeContent(i, withVersionLines)) : WarcTestFiles.record(i));
+		return records;
+	}
+
+	private static byte[] largeContent(int i, boolean withVersionLines) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] page = WarcTestFiles.content(i);
+		byte[] versionLine = WarcTestFiles.latin1(withVersionLines ? 
+				"\r\nWARC/1.0\r\nWARC-Type: response\r\nContent-Length: 5\r\n\r\n" : "\r\n");
+		while (content.size() < LARGE_CONTENT_SIZE) {
+			content.write(versionLine, 0, versionLine.length);
+			content.write(page, 0, page.length);
+		}
+		return content.toByteArray();
+	}
+
+	/**
+	 * Read the records of a file in splits, without their content.
+	 */
+	private List<WarcRecord> readHeaders(File warc, long splitSize) throws IOException {
+		List<WarcRecord> records = new ArrayList<WarcRecord>();
+		for (long start=0; start<warc.length(); start+=splitSize) {
+			FileSplit split = new FileSplit(path(warc), start, Math.min(splitSize, warc.length() - start), new String[0]);
+			WarcRecordReader reader = new WarcRecordReader();
+			reader.setRecordReuse(false);
+			reader.initialize(split, WarcTestFiles.newContext(conf));
+			while (reader.nextKeyValue(false))
+				records.add(reader.getCurrentValue());
+			reader.close();
+		}
+		return records;
+	}
+
+	private static void checkHeaders(File warc, List<WarcRecord> records, boolean withVersionLines) {
+		assertEquals(NUM_RECORDS, records.size());
+		List<byte[]> written = records(withVersionLines);
+		long offset = 0;
+		for (int i=0; i<NUM_RECORDS; i++) {
+			WarcRecord record = records.get(i);
+			assertEquals(WarcTestFiles.recordId(i), record.get(WarcRecord.WARC_RECORD_ID));
+			assertEquals(WarcTestFiles.targetUri(i), record.get(WarcRecord.WARC_TARGET_URI));
+			assertEquals(0, record.getContentLength());
+			long recordLen = written.get(i).length;
+			// Less the header, and the two line ends after the content:
+			long contentLen = recordLen - (WarcTestFiles.latin1(written.get(i)).indexOf("\r\n\r\n") + 4) - 4;
+			assertEquals(contentLen, record.getDeclaredContentLength());
+			if (!warc.getName().endsWith(".gz"))
+				assertEquals(offset, record.getRecordStartPos());
+			offset += recordLen;
+		}
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcHeaderOnlyRead.class);
+	}
+}
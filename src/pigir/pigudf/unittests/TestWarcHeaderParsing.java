@@ -0,0 +1,111 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import pigir.warc.WarcHeaderField;
+import pigir.warc.WarcRecord;
+
+public class TestWarcHeaderParsing extends WarcTestCase {
+
+	@Test
+	public void testStandardFieldsOfGeneratedRecords() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		List<WarcRecord> records = WarcTestFiles.readRecords(warc, conf);
+		assertEquals(NUM_RECORDS, records.size());
+		for (int i=0; i<NUM_RECORDS; i++) {
+			WarcRecord record = records.get(i);
+			assertEquals(i, WarcTestFiles.checkRecord(record));
+			assertEquals("response", record.getHeaderValue(WarcHeaderField.WARC_TYPE));
+			assertEquals(WarcTestFiles.recordId(i), record.getHeaderValue(WarcHeaderField.WARC_RECORD_ID));
+			assertEquals("sha1:PAYLOAD" + i, record.getHeaderValue(WarcHeaderField.WARC_PAYLOAD_DIGEST));
+			assertEquals(WarcTestFiles.content(i).length, record.getDeclaredContentLength());
+			assertEquals(8, record.getNumHeaders());
+			for (int h=0; h<record.getNumHeaders(); h++)
+				assertEquals(record.getHeaderField(h).getLowerCaseName(), record.getHeaderName(h));
+		}
+	}
+
+	@Test
+	public void testNamesInAnyCaseWithBlanks() throws IOException {
+		byte[] record = WarcTestFiles.edit(WarcTestFiles.record(0), "WARC-Type: response", "warc-TYPE \t:  response \t");
+		record = WarcTestFiles.edit(record, "WARC-Record-ID: ", "WARC-RECORD-id:");
+		record = WarcTestFiles.edit(record, "Content-Length: ", "content-length:   ");
+		List<WarcRecord> records = read(record);
+		assertEquals(1, records.size());
+		WarcRecord read = records.get(0);
+		assertEquals(0, WarcTestFiles.checkRecord(read));
+		assertEquals("response", read.getHeaderValue(WarcHeaderField.WARC_TYPE));
+		assertEquals("response", read.get(WarcRecord.WARC_TYPE));
+		assertEquals(WarcTestFiles.recordId(0), read.getHeaderValue(WarcHeaderField.WARC_RECORD_ID));
+	}
+
+	@Test
+	public void testNonStandardFields() throws IOException {
+		// Names that extend, or stop short of, a standard name:
+		byte[] record = WarcTestFiles.edit(WarcTestFiles.record(1), "WARC-Record-ID", 
+				"WARC-Typed: not a type\r\nWARC-Typ: nor this\r\nX-Crawler-Note:  kept as is \r\n" +
+				"WARC-Concurrent-To: <urn:uuid:other>\r\nWARC-Record-ID");
+		WarcRecord read = read(record).get(0);
+		assertEquals(1, WarcTestFiles.checkRecord(read));
+		assertEquals("response", read.getHeaderValue(WarcHeaderField.WARC_TYPE));
+		assertEquals("not a type", read.get("warc-typed"));
+		assertEquals("nor this", read.get("warc-typ"));
+		assertEquals("kept as is", read.get("x-crawler-note"));
+		assertEquals("<urn:uuid:other>", read.getHeaderValue(WarcHeaderField.WARC_CONCURRENT_TO));
+		assertEquals("<urn:uuid:other>", read.get(WarcRecord.WARC_CONCURRENT_TO));
+		int numNonStandard = 0;
+		for (int h=0; h<read.getNumHeaders(); h++) {
+			if (read.getHeaderField(h) == null)
+				numNonStandard++;
+		}
+		assertEquals(3, numNonStandard);
+		assertNull(read.getHeaderValue(WarcHeaderField.WARC_REFERS_TO));
+	}
+
+	@Test
+	public void testUtf8Values() throws IOException {
+		String uri = "http://host.com/caf\u00e9";
+		byte[] record = WarcTestFiles.edit(WarcTestFiles.record(2), WarcTestFiles.targetUri(2), "");
+		String text = WarcTestFiles.latin1(record);
+		int pos = text.indexOf("WARC-Target-URI: ") + "WARC-Target-URI: ".length();
+		byte[] uriBytes = uri.getBytes("UTF-8");
+		byte[] withUri = new byte[record.length + uriBytes.length];
+		System.arraycopy(record, 0, withUri, 0, pos);
+		System.arraycopy(uriBytes, 0, withUri, pos, uriBytes.length);
+		System.arraycopy(record, pos, withUri, pos + uriBytes.length, record.length - pos);
+		WarcRecord read = read(withUri).get(0);
+		assertEquals(uri, read.getHeaderValue(WarcHeaderField.WARC_TARGET_URI));
+		assertArrayEquals(WarcTestFiles.content(2), read.getContentBytes());
+	}
+
+	@Test
+	public void testEmptyContent() throws IOException {
+		String emptyRecord = "WARC/1.0\r\nWARC-Type: metadata\r\nWARC-Record-ID: " + WarcTestFiles.recordId(7) + "\r\n" +
+							 "Content-Length: 0\r\n\r\n\r\n\r\n";
+		List<WarcRecord> records = read(WarcTestFiles.latin1(emptyRecord), WarcTestFiles.record(8));
+		assertEquals(2, records.size());
+		assertEquals(0, records.get(0).getDeclaredContentLength());
+		assertEquals(0, records.get(0).getContentLength());
+		assertEquals(8, WarcTestFiles.checkRecord(records.get(1)));
+	}
+
+	private List<WarcRecord> read(byte[]... records) throws IOException {
+		List<byte[]> recordList = new ArrayList<byte[]>();
+		for (byte[] record : records)
+			recordList.add(record);
+		return WarcTestFiles.readRecords(WarcTestFiles.writeWarc(dir, "edited.warc", recordList), conf);
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcHeaderParsing.class);
+	}
+}
@@ -0,0 +1,183 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.SidecarWarcRecordReader;
+import pigir.warc.WarcGzipMemberIndex;
+import pigir.warc.WarcHeaderSidecar;
+import pigir.warc.WarcHeaderSidecar.Column;
+import pigir.warc.WarcPigTextInputFormat;
+import pigir.warc.WarcReadMetrics;
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordFilter;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcHeaderSidecar extends WarcTestCase {
+
+	@Test
+	public void testGzipSidecarRoundTrip() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[1000]);
+		assertEquals(NUM_RECORDS, WarcHeaderSidecar.build(fs, path(warc), conf));
+		// Building the sidecar saved the member index it needed:
+		assertTrue(WarcGzipMemberIndex.load(fs, path(warc)) != null);
+
+		WarcHeaderSidecar.Reader sidecar = WarcHeaderSidecar.Reader.open(fs, path(warc), Column.values());
+		assertTrue(sidecar.isOffsetsKnown());
+		for (int i=0; i<NUM_RECORDS; i++) {
+			assertTrue(sidecar.next());
+			checkEntry(sidecar, i);
+			assertEquals(WarcTestFiles.memberOffset(i), sidecar.getOffset());
+		}
+		assertFalse(sidecar.next());
+	}
+
+	@Test
+	public void testPlainSidecarRoundTrip() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		assertEquals(NUM_RECORDS, WarcHeaderSidecar.build(fs, path(warc), conf));
+
+		// Only some of the columns:
+		WarcHeaderSidecar.Reader sidecar =
+			WarcHeaderSidecar.Reader.open(fs, path(warc), Column.RECORD_IDS, Column.DATES);
+		long offset = 0;
+		for (int i=0; i<NUM_RECORDS; i++) {
+			assertTrue(sidecar.next());
+			assertEquals(WarcTestFiles.recordId(i), sidecar.getRecordId());
+			assertEquals(WarcTestFiles.date(i), sidecar.getDate());
+			assertEquals(offset, sidecar.getOffset());
+			offset += WarcTestFiles.record(i).length;
+		}
+		assertFalse(sidecar.next());
+	}
+
+	@Test
+	public void testStaleSidecarIsIgnored() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		assertNull(WarcHeaderSidecar.Reader.open(fs, path(warc)));
+		WarcHeaderSidecar.build(fs, path(warc), conf);
+		WarcTestFiles.append(warc, WarcTestFiles.record(NUM_RECORDS));
+		assertNull(WarcHeaderSidecar.Reader.open(fs, path(warc)));
+	}
+
+	@Test
+	public void testSidecarReaderMatchesFullRead() throws Exception {
+		File plainWarc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		File gzWarc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		for (File warc : new File[] {plainWarc, gzWarc}) {
+			WarcHeaderSidecar.build(fs, path(warc), conf);
+			conf.setLong("mapred.max.split.size", warc.length() / 4);
+			Job job = new Job(conf);
+			FileInputFormat.setInputPaths(job, path(warc));
+			List<InputSplit> splits = new WarcPigTextInputFormat().getSplits(job);
+			assertTrue(splits.size() >= 4);
+
+			// All records, and those of one host, found by their target URIs:
+			WarcRecordFilter hostFilter = new WarcRecordFilter(null, "http://host3\\.com/.*", null, null);
+			for (WarcRecordFilter filter : new WarcRecordFilter[] {null, hostFilter}) {
+				List<String> fromSidecar = new ArrayList<String>();
+				List<String> fromWarc = new ArrayList<String>();
+				long numFromSidecar = 0;
+				for (InputSplit split : splits) {
+					SidecarWarcRecordReader sidecarReader = new SidecarWarcRecordReader();
+					sidecarReader.setRecordReuse(true);
+					numFromSidecar += readHeaders(sidecarReader, filter, split, fromSidecar)
+									  .get(WarcReadMetrics.Counters.RECORDS_FROM_HEADER_SIDECAR);
+					readHeaders(new WarcRecordReader(), filter, split, fromWarc);
+				}
+				assertEquals((filter == null) ? NUM_RECORDS : (NUM_RECORDS + 3) / 7, fromWarc.size());
+				assertEquals(fromWarc, fromSidecar);
+				assertEquals(fromWarc.size(), numFromSidecar);
+			}
+		}
+	}
+
+	@Test
+	public void testContentFallsBackToWarc() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		WarcHeaderSidecar.build(fs, path(warc), conf);
+		SidecarWarcRecordReader reader = new SidecarWarcRecordReader();
+		reader.initialize(new FileSplit(path(warc), 0, warc.length(), new String[0]),
+						  WarcTestFiles.newContext(conf));
+		int numRecords = 0;
+		while (reader.nextKeyValue(true))
+			assertEquals(numRecords++, WarcTestFiles.checkRecord(reader.getCurrentValue()));
+		reader.close();
+		assertEquals(NUM_RECORDS, numRecords);
+	}
+
+	@Test
+	public void testFilterSetAfterInitialize() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		WarcHeaderSidecar.build(fs, path(warc), conf);
+		// As WarcLoader does it: initialize first, then set the filter:
+		SidecarWarcRecordReader reader = new SidecarWarcRecordReader();
+		reader.initialize(new FileSplit(path(warc), 0, warc.length(), new String[0]),
+						  WarcTestFiles.newContext(conf));
+		reader.setRecordReuse(true);
+		reader.setRecordFilter(new WarcRecordFilter(null, "http://host3\\.com/.*", null, null));
+		List<Integer> recordNums = new ArrayList<Integer>();
+		while (reader.nextKeyValue(false)) {
+			WarcRecord record = reader.getCurrentValue();
+			int i = WarcTestFiles.recordNum(record.get(WarcRecord.WARC_RECORD_ID));
+			assertEquals(WarcTestFiles.targetUri(i), record.get(WarcRecord.WARC_TARGET_URI));
+			recordNums.add(i);
+		}
+		reader.close();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i=3; i<NUM_RECORDS; i+=7)
+			expected.add(i);
+		assertEquals(expected, recordNums);
+		assertEquals(expected.size(), reader.getMetrics().get(WarcReadMetrics.Counters.RECORDS_FROM_HEADER_SIDECAR));
+		assertEquals(NUM_RECORDS - expected.size(), reader.getNumRecordsRejected());
+	}
+
+	private static void checkEntry(WarcHeaderSidecar.Reader sidecar, int i) {
+		assertEquals(WarcTestFiles.recordId(i), sidecar.getRecordId());
+		assertEquals(WarcTestFiles.date(i), sidecar.getDate());
+		assertEquals("response", sidecar.getType());
+		assertEquals(WarcTestFiles.targetUri(i), sidecar.getTargetUri());
+		assertEquals(WarcTestFiles.content(i).length, sidecar.getContentLength());
+	}
+
+	/**
+	 * Read the headers of a split's records, without content. The target
+	 * URI is only looked at if the filter needs it; otherwise sidecar
+	 * readers leave it out.
+	 * @return the reader's metrics
+	 */
+	private WarcReadMetrics readHeaders(WarcRecordReader reader, WarcRecordFilter filter,
+										InputSplit split, List<String> headers) throws IOException {
+		reader.setRecordFilter(filter);
+		reader.initialize(split, WarcTestFiles.newContext(conf));
+		try {
+			while (reader.nextKeyValue(false)) {
+				WarcRecord record = reader.getCurrentValue();
+				headers.add(record.get(WarcRecord.WARC_RECORD_ID) + "|" + record.get(WarcRecord.WARC_DATE) + "|" +
+							record.get(WarcRecord.WARC_TYPE) + "|" + record.getDeclaredContentLength() +
+							((filter == null) ? "" : "|" + record.get(WarcRecord.WARC_TARGET_URI)));
+			}
+		} finally {
+			reader.close();
+		}
+		return reader.getMetrics();
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcHeaderSidecar.class);
+	}
+}
@@ -0,0 +1,122 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.pig.ExecType;
+import org.apache.pig.PigServer;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcRecord;
+
+public class TestWarcLoader extends WarcTestCase {
+
+	private static final String SCHEMA = 
+		"AS (warcRecordId:chararray, contentLength:int, date:chararray, warcType:chararray, " +
+		"    optionalHeaderFlds:bytearray, content:chararray)";
+
+	private PigServer pserver;
+
+	@Before
+	public void setUp() throws IOException {
+		pserver = new PigServer(ExecType.LOCAL);
+	}
+
+	@After
+	public void tearDown() {
+		pserver.shutdown();
+	}
+
+	@Test
+	public void testAllColumns() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		pserver.registerQuery("docs = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcLoader();");
+		int numRecords = 0;
+		for (Iterator<Tuple> docs = pserver.openIterator("docs"); docs.hasNext(); numRecords++) {
+			Tuple doc = docs.next();
+			assertEquals(6, doc.size());
+			int i = WarcTestFiles.recordNum((String) doc.get(0));
+			assertEquals(WarcTestFiles.content(i).length, ((Integer) doc.get(1)).intValue());
+			assertEquals(WarcTestFiles.date(i), doc.get(2));
+			assertEquals("response", doc.get(3));
+			Map<String, String> optionalHeaders = new HashMap<String, String>();
+			for (Tuple field : (DataBag) doc.get(4))
+				optionalHeaders.put((String) field.get(0), (String) field.get(1));
+			checkOptionalHeaders(i, optionalHeaders);
+			assertEquals(new String(WarcTestFiles.content(i), "UTF-8"), doc.get(5));
+		}
+		assertEquals(NUM_RECORDS, numRecords);
+	}
+
+	@Test
+	public void testProjectedColumns() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		pserver.registerQuery("docs = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcLoader() " + SCHEMA + ";");
+		// Columns out of schema order, with the content left out:
+		pserver.registerQuery("dates = FOREACH docs GENERATE date, warcRecordId, contentLength;");
+		int numRecords = 0;
+		for (Iterator<Tuple> dates = pserver.openIterator("dates"); dates.hasNext(); numRecords++) {
+			Tuple date = dates.next();
+			assertEquals(3, date.size());
+			int i = WarcTestFiles.recordNum((String) date.get(1));
+			assertEquals(WarcTestFiles.date(i), date.get(0));
+			assertEquals(WarcTestFiles.content(i).length, ((Integer) date.get(2)).intValue());
+		}
+		assertEquals(NUM_RECORDS, numRecords);
+
+		pserver.registerQuery("contents = FOREACH docs GENERATE content, warcType;");
+		Map<String, Integer> recordNums = new HashMap<String, Integer>();
+		for (int i=0; i<NUM_RECORDS; i++)
+			recordNums.put(new String(WarcTestFiles.content(i), "UTF-8"), i);
+		numRecords = 0;
+		for (Iterator<Tuple> contents = pserver.openIterator("contents"); contents.hasNext(); numRecords++) {
+			Tuple content = contents.next();
+			assertTrue(recordNums.containsKey(content.get(0)));
+			assertEquals("response", content.get(1));
+		}
+		assertEquals(NUM_RECORDS, numRecords);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testOptionalHeadersAsMapAndContentAsBytes() throws IOException {
+		pserver.getPigContext().getProperties().setProperty(Constants.OPTIONAL_HEADERS_AS_MAP_PROP_NAME, "true");
+		pserver.getPigContext().getProperties().setProperty(Constants.CONTENT_AS_BYTES_PROP_NAME, "true");
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		pserver.registerQuery("docs = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcLoader();");
+		pserver.registerQuery("headers = FOREACH docs GENERATE $0, $4, $5;");
+		int numRecords = 0;
+		for (Iterator<Tuple> headers = pserver.openIterator("headers"); headers.hasNext(); numRecords++) {
+			Tuple header = headers.next();
+			int i = WarcTestFiles.recordNum((String) header.get(0));
+			checkOptionalHeaders(i, (Map<String, String>) header.get(1));
+			assertArrayEquals(WarcTestFiles.content(i), ((DataByteArray) header.get(2)).get());
+		}
+		assertEquals(NUM_RECORDS, numRecords);
+	}
+
+	private static void checkOptionalHeaders(int i, Map<String, String> optionalHeaders) {
+		assertEquals(4, optionalHeaders.size());
+		assertEquals(WarcTestFiles.targetUri(i), optionalHeaders.get(WarcRecord.WARC_TARGET_URI));
+		assertEquals("sha1:PAYLOAD" + i, optionalHeaders.get(WarcRecord.WARC_PAYLOAD_DIGEST));
+		assertEquals("sha1:BLOCK" + i, optionalHeaders.get(WarcRecord.WARC_BLOCK_DIGEST));
+		assertEquals("application/http;msgtype=response", optionalHeaders.get(WarcRecord.CONTENT_TYPE));
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcLoader.class);
+	}
+}
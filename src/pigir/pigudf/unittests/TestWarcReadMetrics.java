@@ -0,0 +1,121 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcReadMetrics;
+import pigir.warc.WarcReadMetrics.Counters;
+import pigir.warc.WarcRecordFilter;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcReadMetrics extends WarcTestCase {
+
+	@Test
+	public void testPlainFile() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		WarcReadMetrics metrics = read(warc, true, null);
+		assertEquals(NUM_RECORDS, metrics.get(Counters.RECORDS_READ));
+		assertEquals(0, metrics.get(Counters.RECORDS_CONTENT_SKIPPED));
+		assertEquals(0, metrics.get(Counters.RECORDS_CONTENT_TRUNCATED));
+		assertEquals(warc.length(), metrics.get(Counters.FILE_BYTES_READ));
+		assertEquals(warc.length(), metrics.get(Counters.UNCOMPRESSED_BYTES_READ));
+		checkContentSizes(metrics, NUM_RECORDS);
+		assertTrue(metrics.toString().endsWith("types={response=" + NUM_RECORDS + "}"));
+	}
+
+	@Test
+	public void testGzipFile() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		long uncompressedLen = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS).length();
+		WarcReadMetrics metrics = read(warc, true, null);
+		assertEquals(NUM_RECORDS, metrics.get(Counters.RECORDS_READ));
+		assertEquals(warc.length(), metrics.get(Counters.FILE_BYTES_READ));
+		assertEquals(uncompressedLen, metrics.get(Counters.UNCOMPRESSED_BYTES_READ));
+	}
+
+	@Test
+	public void testSkippedAndTruncatedContent() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		WarcReadMetrics metrics = read(warc, false, null);
+		assertEquals(NUM_RECORDS, metrics.get(Counters.RECORDS_CONTENT_SKIPPED));
+		// The content size histogram counts declared lengths, read or not:
+		checkContentSizes(metrics, NUM_RECORDS);
+
+		conf.setLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, 100);
+		metrics = read(warc, true, null);
+		assertEquals(0, metrics.get(Counters.RECORDS_CONTENT_SKIPPED));
+		assertEquals(NUM_RECORDS, metrics.get(Counters.RECORDS_CONTENT_TRUNCATED));
+	}
+
+	@Test
+	public void testRejectedAndDuplicateRecords() throws IOException {
+		// Two copies of every record, with the same payload digest:
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int copy=0; copy<2; copy++)
+			for (int i=0; i<NUM_RECORDS; i++)
+				records.add(WarcTestFiles.record(i));
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", records);
+		conf.set(Constants.DEDUP_PROP_NAME, "drop");
+		WarcReadMetrics metrics = read(warc, true, new WarcRecordFilter(null, "host3\\.com", null, null));
+		int numWanted = 0;
+		for (int i=0; i<NUM_RECORDS; i++)
+			if (i % 7 == 3)
+				numWanted++;
+		assertEquals(numWanted, metrics.get(Counters.RECORDS_READ));
+		assertEquals(2 * (NUM_RECORDS - numWanted), metrics.get(Counters.RECORDS_REJECTED_BY_FILTER));
+		assertEquals(numWanted, metrics.get(Counters.RECORDS_DUPLICATE_PAYLOAD));
+	}
+
+	@Test
+	public void testMetricsOff() throws IOException {
+		conf.setBoolean(Constants.METRICS_PROP_NAME, false);
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		assertNull(read(warc, true, null));
+	}
+
+	/**
+	 * Read a whole file with one reader, and close it.
+	 * @return the reader's metrics
+	 */
+	private WarcReadMetrics read(File warc, boolean readContents, WarcRecordFilter filter) throws IOException {
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.setRecordFilter(filter);
+		reader.initialize(new FileSplit(path(warc), 0, warc.length(), new String[0]), WarcTestFiles.newContext(conf));
+		while (reader.nextKeyValue(readContents))
+			;
+		reader.close();
+		return reader.getMetrics();
+	}
+
+	/**
+	 * Check the content size histogram of the first numRecords fixture records.
+	 */
+	private static void checkContentSizes(WarcReadMetrics metrics, int numRecords) {
+		long numUnder1K = 0;
+		long num1KTo10K = 0;
+		for (int i=0; i<numRecords; i++) {
+			if (WarcTestFiles.content(i).length < 1024)
+				numUnder1K++;
+			else
+				num1KTo10K++;
+		}
+		assertTrue((numUnder1K > 0) && (num1KTo10K > 0));
+		assertEquals(numUnder1K, metrics.get(Counters.CONTENT_SIZE_UNDER_1KB));
+		assertEquals(num1KTo10K, metrics.get(Counters.CONTENT_SIZE_1KB_TO_10KB));
+		assertEquals(0, metrics.get(Counters.CONTENT_SIZE_10KB_TO_100KB));
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcReadMetrics.class);
+	}
+}
@@ -0,0 +1,142 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordFilter;
+
+public class TestWarcRecordFilter extends WarcTestCase {
+
+	private static final String[] TYPES = {"response", "warcinfo", "Metadata"};
+
+	@Test
+	public void testTypes() throws IOException {
+		File warc = writeMixedWarc();
+		assertEquals(numsWhereType(0), read(warc, new WarcRecordFilter("response", null, null, null)));
+		// Case does not matter, on either side:
+		assertEquals(numsWhereType(0, 2), read(warc, new WarcRecordFilter(" RESPONSE  metadata ", null, null, null)));
+		assertEquals(new ArrayList<Integer>(), read(warc, new WarcRecordFilter("resource", null, null, null)));
+		// Nor does the default locale, which lower cases 'I' differently in Turkish:
+		Locale defaultLocale = Locale.getDefault();
+		try {
+			Locale.setDefault(new Locale("tr", "TR"));
+			assertEquals(numsWhereType(1, 2), read(warc, new WarcRecordFilter("METADATA WARCINFO", null, null, null)));
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	@Test
+	public void testDates() throws IOException {
+		File warc = writeMixedWarc();
+		// Days 5 through 9:
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i=0; i<NUM_RECORDS; i++) {
+			int day = 1 + (i % 28);
+			if ((day >= 5) && (day < 10) && (i % 9 != 4))
+				expected.add(i);
+		}
+		assertEquals(expected, read(warc, new WarcRecordFilter(null, null, "2009-03-05", "2009-03-10")));
+		// Bounds may be prefixes of a date:
+		assertEquals(numsWithDate(), read(warc, new WarcRecordFilter(null, null, "2009", "2009-04")));
+		assertEquals(new ArrayList<Integer>(), read(warc, new WarcRecordFilter(null, null, "2009-04", null)));
+		assertEquals(numsWithDate(), read(warc, new WarcRecordFilter(null, null, null, "2010")));
+	}
+
+	@Test
+	public void testTargetUri() throws IOException {
+		File warc = writeMixedWarc();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i=3; i<NUM_RECORDS; i+=7)
+			expected.add(i);
+		// Found anywhere in the URI:
+		assertEquals(expected, read(warc, new WarcRecordFilter(null, "host3\\.com", null, null)));
+		assertEquals(new ArrayList<Integer>(), read(warc, new WarcRecordFilter(null, "^host3", null, null)));
+	}
+
+	@Test
+	public void testAllCriteria() throws IOException {
+		File warc = writeMixedWarc();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i=0; i<NUM_RECORDS; i++) {
+			int day = 1 + (i % 28);
+			if ((i % 3 == 0) && (i % 7 == 3) && (day >= 10) && (i % 9 != 4))
+				expected.add(i);
+		}
+		assertTrue(expected.size() > 0);
+		assertEquals(expected, read(warc, new WarcRecordFilter("response", "host3", "2009-03-10", "2009-03-29")));
+	}
+
+	@Test
+	public void testNoCriteria() throws IOException {
+		WarcRecordFilter filter = new WarcRecordFilter(null, "", " ", "null");
+		assertTrue(filter.isEmpty());
+		assertFalse(new WarcRecordFilter(null, null, null, "2009").isEmpty());
+		File warc = writeMixedWarc();
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), read(warc, filter));
+	}
+
+	/**
+	 * Write records of the types in TYPES, in turn. Every ninth record,
+	 * starting with record 4, has no WARC-Date.
+	 */
+	private File writeMixedWarc() throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int i=0; i<NUM_RECORDS; i++) {
+			byte[] record = WarcTestFiles.edit(WarcTestFiles.record(i), "WARC-Type: response", "WARC-Type: " + TYPES[i % 3]);
+			if (i % 9 == 4)
+				record = WarcTestFiles.edit(record, "WARC-Date: ", "X-Not-A-Date: ");
+			records.add(record);
+		}
+		return WarcTestFiles.writeWarc(dir, "mixed.warc", records);
+	}
+
+	/**
+	 * @return the numbers of the records that pass a filter, checking
+	 *         each record's content.
+	 */
+	private List<Integer> read(File warc, WarcRecordFilter filter) throws IOException {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (WarcRecord record : WarcTestFiles.readRecords(warc, conf, filter)) {
+			int i = WarcTestFiles.recordNum(record.get(WarcRecord.WARC_RECORD_ID));
+			assertArrayEquals(WarcTestFiles.content(i), record.getContentBytes());
+			recordNums.add(i);
+		}
+		return recordNums;
+	}
+
+	private static List<Integer> numsWhereType(int... typeIndexes) {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (int i=0; i<NUM_RECORDS; i++) {
+			for (int typeIndex : typeIndexes) {
+				if (i % 3 == typeIndex)
+					recordNums.add(i);
+			}
+		}
+		return recordNums;
+	}
+
+	private static List<Integer> numsWithDate() {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (int i=0; i<NUM_RECORDS; i++) {
+			if (i % 9 != 4)
+				recordNums.add(i);
+		}
+		return recordNums;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcRecordFilter.class);
+	}
+}
@@ -0,0 +1,120 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcGzipMemberIndex;
+
+public class TestWarcSkipBadRecords extends WarcTestCase {
+
+	private static final int BAD_RECORD = 20;
+
+	@Before
+	public void setUp() throws IOException {
+		conf.setBoolean(Constants.SKIP_BAD_RECORDS_PROP_NAME, true);
+	}
+
+	@Test
+	public void testCorruptMemberIsSkipped() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.corruptMember(warc, BAD_RECORD);
+		assertEquals(allBut(BAD_RECORD), WarcTestFiles.readAll(warc, warc.length(), conf));
+	}
+
+	@Test
+	public void testCorruptIndexedMemberIsSkipped() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		WarcTestFiles.corruptMember(warc, BAD_RECORD);
+		// The index still holds the corrupt member's offset:
+		new WarcGzipMemberIndex(warc.length(), memberOffsets()).write(fs, path(warc));
+		assertEquals(allBut(BAD_RECORD), WarcTestFiles.readAll(warc, warc.length(), conf));
+	}
+
+	@Test
+	public void testTruncatedLastMember() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS);
+		truncate(warc, warc.length() - 100);
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS - 1), WarcTestFiles.readAll(warc, warc.length(), conf));
+
+		conf.setBoolean(Constants.SKIP_BAD_RECORDS_PROP_NAME, false);
+		try {
+			WarcTestFiles.readAll(warc, warc.length(), conf);
+			fail("Truncated gzip member not reported.");
+		} catch (IOException e) {
+			// Expected without skip mode.
+		}
+	}
+
+	@Test
+	public void testTrailingPaddingIsNoError() throws IOException {
+		File warc = WarcTestFiles.writeWarcGz(dir, "padded.warc.gz", NUM_RECORDS);
+		WarcTestFiles.append(warc, new byte[4096]);
+		assertEquals(WarcTestFiles.firstRecordNums(NUM_RECORDS), WarcTestFiles.readAll(warc, warc.length(), conf));
+	}
+
+	@Test
+	public void testMalformedRecordIsSkipped() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		// Make the bad record's Content-Length unreadable:
+		byte[] bytes = readFile(warc);
+		String text = new String(bytes, "ISO-8859-1");
+		int recordStart = text.indexOf(WarcTestFiles.recordId(BAD_RECORD));
+		int lengthStart = text.indexOf("Content-Length: ", recordStart) + "Content-Length: ".length();
+		RandomAccessFile out = new RandomAccessFile(warc, "rw");
+		out.seek(lengthStart);
+		out.write("x".getBytes("ISO-8859-1"));
+		out.close();
+		// Splits that end within the bad record, and start right after it:
+		for (long splitSize : new long[] {warc.length(), 777})
+			assertEquals(allBut(BAD_RECORD), WarcTestFiles.readAll(warc, splitSize, conf));
+	}
+
+	/**
+	 * @return record numbers 0 to NUM_RECORDS-1, without badRecord
+	 */
+	private static List<Integer> allBut(int badRecord) {
+		List<Integer> recordNums = WarcTestFiles.firstRecordNums(NUM_RECORDS);
+		recordNums.remove(badRecord);
+		return recordNums;
+	}
+
+	private static long[] memberOffsets() throws IOException {
+		long[] offsets = new long[NUM_RECORDS];
+		for (int i=0; i<NUM_RECORDS; i++)
+			offsets[i] = WarcTestFiles.memberOffset(i);
+		return offsets;
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(length);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcSkipBadRecords.class);
+	}
+}
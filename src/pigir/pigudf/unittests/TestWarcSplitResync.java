@@ -0,0 +1,82 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcSplitResync extends WarcTestCase {
+
+	@Test
+	public void testEveryRecordReadOnce() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		// Splits shorter than a record, of about a record, and of several:
+		for (long splitSize : new long[] {50, 333, 1000, 4096, warc.length() - 1, warc.length()})
+			assertEquals("Split size " + splitSize, WarcTestFiles.firstRecordNums(NUM_RECORDS),
+						 WarcTestFiles.readAll(warc, splitSize, conf));
+	}
+
+	@Test
+	public void testSplitsStartingAtVersionLines() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		// Splits start on a version line, one byte before it, and one after:
+		for (int shift : new int[] {0, -1, 1}) {
+			List<Long> starts = new ArrayList<Long>();
+			starts.add(0L);
+			for (int i=3; i<NUM_RECORDS; i+=3)
+				starts.add(WarcTestFiles.recordOffset(i) + shift);
+			assertEquals("Shift " + shift, WarcTestFiles.firstRecordNums(NUM_RECORDS), readSplits(warc, starts));
+		}
+	}
+
+	@Test
+	public void testKeysAreRecordOffsets() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		long splitStart = WarcTestFiles.recordOffset(10) + 5;
+		FileSplit split = new FileSplit(path(warc), splitStart, warc.length() - splitStart, new String[0]);
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.initialize(split, WarcTestFiles.newContext(conf));
+		int i = 11;
+		while (reader.nextKeyValue()) {
+			assertEquals(i, WarcTestFiles.checkRecord(reader.getCurrentValue()));
+			assertEquals(WarcTestFiles.recordOffset(i), reader.getCurrentKey().get());
+			assertEquals(WarcTestFiles.recordOffset(i), reader.getCurrentRecordFileOffset());
+			// The two line ends after the content are not part of the record:
+			assertEquals(WarcTestFiles.record(i).length - 4, reader.getCurrentRecordFileLength());
+			i++;
+		}
+		reader.close();
+		assertEquals(NUM_RECORDS, i);
+	}
+
+	/**
+	 * Read a file in splits that start at the given offsets, each split
+	 * ending where the next one starts.
+	 * @return the numbers of the records read, in the order read.
+	 */
+	private List<Integer> readSplits(File warc, List<Long> starts) throws IOException {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (int s=0; s<starts.size(); s++) {
+			long start = starts.get(s);
+			long end = (s + 1 < starts.size()) ? starts.get(s + 1) : warc.length();
+			WarcRecordReader reader = new WarcRecordReader();
+			reader.initialize(new FileSplit(path(warc), start, end - start, new String[0]),
+							  WarcTestFiles.newContext(conf));
+			while (reader.nextKeyValue())
+				recordNums.add(WarcTestFiles.checkRecord(reader.getCurrentValue()));
+			reader.close();
+		}
+		return recordNums;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcSplitResync.class);
+	}
+}
@@ -0,0 +1,175 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.ExecType;
+import org.apache.pig.PigServer;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pigir.warc.Constants;
+import pigir.warc.WarcGzipMemberIndex;
+import pigir.warc.WarcRecordReader;
+
+public class TestWarcStorage extends WarcTestCase {
+
+	private PigServer pserver;
+
+	@Before
+	public void setUp() throws IOException {
+		pserver = new PigServer(ExecType.LOCAL);
+	}
+
+	@After
+	public void tearDown() {
+		pserver.shutdown();
+		WarcTestFiles.deleteDir(dir);
+	}
+
+	@Test
+	public void testWriteWarcReproducesRecord() throws IOException {
+		File warc = WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS);
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.initialize(new FileSplit(path(warc), 0, warc.length(), new String[0]),
+						  WarcTestFiles.newContext(conf));
+		int i = 0;
+		while (reader.nextKeyValue()) {
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			reader.getCurrentValue().writeWarc(written);
+			// The fixture's fields are in the order writeWarc() uses:
+			assertArrayEquals(WarcTestFiles.record(i++), written.toByteArray());
+		}
+		reader.close();
+		assertEquals(NUM_RECORDS, i);
+	}
+
+	@Test
+	public void testBytearrayRoundTrip() throws IOException {
+		pserver.getPigContext().getProperties().setProperty(Constants.CONTENT_AS_BYTES_PROP_NAME, "true");
+		File out = store(WarcTestFiles.writeWarcGz(dir, "crawl.warc.gz", NUM_RECORDS));
+
+		Map<String, byte[]> contents = loadContents(out);
+		assertEquals(NUM_RECORDS, contents.size());
+		for (int i=0; i<NUM_RECORDS; i++)
+			assertArrayEquals(WarcTestFiles.content(i), contents.get(WarcTestFiles.recordId(i)));
+
+		// Unchanged content keeps its digests:
+		String written = writtenText(out);
+		assertEquals(NUM_RECORDS, count(written, "WARC/1.0\r\n"));
+		assertEquals(NUM_RECORDS, count(written, "WARC-Payload-Digest: "));
+		assertEquals(NUM_RECORDS, count(written, "WARC-Block-Digest: "));
+	}
+
+	@Test
+	public void testChararrayContentDropsDigests() throws IOException {
+		File out = store(WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS));
+		assertEquals(NUM_RECORDS, loadContents(out).size());
+		String written = writtenText(out);
+		assertEquals(NUM_RECORDS, count(written, "WARC/1.0\r\n"));
+		assertFalse(written.contains("Digest: "));
+	}
+
+	@Test
+	public void testTruncatedContentDropsDigests() throws IOException {
+		pserver.getPigContext().getProperties().setProperty(Constants.CONTENT_AS_BYTES_PROP_NAME, "true");
+		pserver.getPigContext().getProperties().setProperty(Constants.MAX_CONTENT_SIZE_PROP_NAME, "100");
+		File out = store(WarcTestFiles.writeWarc(dir, "crawl.warc", NUM_RECORDS));
+		Map<String, byte[]> contents = loadContents(out);
+		for (int i=0; i<NUM_RECORDS; i++)
+			assertEquals(100, contents.get(WarcTestFiles.recordId(i)).length);
+		String written = writtenText(out);
+		assertEquals(NUM_RECORDS, count(written, "WARC-Truncated: length\r\n"));
+		assertFalse(written.contains("Digest: "));
+	}
+
+	/**
+	 * Load a WARC file with WarcLoader, and store it with WarcStorage.
+	 * @return the output directory
+	 */
+	private File store(File warc) throws IOException {
+		File out = new File(dir, "out");
+		pserver.registerQuery("docs = LOAD '" + warc.getAbsolutePath() + "' USING pigir.warc.WarcLoader();");
+		pserver.store("docs", out.getAbsolutePath(), "pigir.warc.WarcStorage()");
+		// Each part file is indexed, so the output can be split:
+		for (File part : partFiles(out))
+			assertTrue(WarcGzipMemberIndex.load(fs, path(part)) != null);
+		return out;
+	}
+
+	/**
+	 * Load stored records back with WarcLoader.
+	 * @return content by record ID
+	 */
+	private Map<String, byte[]> loadContents(File out) throws IOException {
+		pserver.getPigContext().getProperties().setProperty(Constants.CONTENT_AS_BYTES_PROP_NAME, "true");
+		pserver.getPigContext().getProperties().setProperty(Constants.MAX_CONTENT_SIZE_PROP_NAME, "0");
+		pserver.registerQuery("back = LOAD '" + out.getAbsolutePath() + "' USING pigir.warc.WarcLoader();");
+		Map<String, byte[]> contents = new HashMap<String, byte[]>();
+		Iterator<Tuple> docs = pserver.openIterator("back");
+		while (docs.hasNext()) {
+			Tuple doc = docs.next();
+			byte[] content = ((DataByteArray) doc.get(5)).get();
+			assertEquals(content.length, ((Integer) doc.get(1)).intValue());
+			contents.put((String) doc.get(0), content);
+		}
+		return contents;
+	}
+
+	/**
+	 * @return the inflated text of all part files, in Latin-1.
+	 */
+	private static String writtenText(File out) throws IOException {
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		for (File part : partFiles(out)) {
+			InputStream in = new GZIPInputStream(new FileInputStream(part));
+			int numRead;
+			try {
+				while ((numRead = in.read(chunk)) >= 0)
+					written.write(chunk, 0, numRead);
+			} finally {
+				in.close();
+			}
+		}
+		return written.toString("ISO-8859-1");
+	}
+
+	private static File[] partFiles(File out) {
+		File[] parts = out.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("part") && name.endsWith(".warc.gz");
+			}
+		});
+		assertTrue(parts.length > 0);
+		return parts;
+	}
+
+	private static int count(String text, String pattern) {
+		int num = 0;
+		for (int pos = text.indexOf(pattern); pos >= 0; pos = text.indexOf(pattern, pos + 1))
+			num++;
+		return num;
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWarcStorage.class);
+	}
+}
@@ -0,0 +1,131 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import pigir.webbase.Metadata;
+import pigir.webbase.WbRecord;
+import pigir.webbase.WbRecordFactory;
+
+public class TestWbRecord {
+
+	private static final int NUM_FIELDS = 200;
+	private static final String BODY = "<html>body</html>";
+
+	@Test
+	public void testHeaderParsedOnDemand() {
+		Map<String, String> fields = fields(1);
+		byte[] page = page(fields);
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page);
+		assertEquals(BODY, record.getContent());
+
+		// The record refers to the raw header until a field is asked for,
+		// so a change to the page buffer now still shows:
+		edit(page, "value-0-", "VALUE-0-");
+		assertEquals("HTTP/1.0 200 OK", record.get("Server-response"));
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			String expected = field.getKey().equals("X-Field-0") ? 
+							  field.getValue().replace("value-0-", "VALUE-0-") : field.getValue();
+			assertEquals(expected, record.get(field.getKey()));
+		}
+
+		// Once parsed, the fields no longer depend on the buffer:
+		edit(page, "value-1-", "VALUE-1-");
+		assertEquals(fields.get("X-Field-1"), record.get("X-Field-1"));
+	}
+
+	@Test
+	public void testKeySetParsesHeader() {
+		Map<String, String> fields = fields(2);
+		byte[] page = page(fields);
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page);
+		Set<String> keys = record.keySet();
+		assertTrue(keys.containsAll(fields.keySet()));
+		assertTrue(keys.contains("Server-response"));
+		assertTrue(keys.contains(WbRecord.CONTENT));
+	}
+
+	@Test
+	public void testHeaderSurvivesContentRemoval() {
+		Map<String, String> fields = fields(3);
+		byte[] page = page(fields);
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page);
+		// The content buffer is replaced; the header it held is parsed first:
+		assertEquals(BODY, record.remove(WbRecord.CONTENT));
+		assertEquals(0, record.getContentLength());
+		edit(page, "value-2-", "VALUE-2-");
+		for (Map.Entry<String, String> field : fields.entrySet())
+			assertEquals(field.getValue(), record.get(field.getKey()));
+	}
+
+	@Test
+	public void testHeaderNotWanted() {
+		Map<String, String> fields = fields(4);
+		byte[] page = page(fields);
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page, page.length, false);
+		assertEquals(BODY, record.getContent());
+		for (String name : fields.keySet())
+			assertNull(record.get(name));
+		assertFalse(record.keySet().contains("Server-response"));
+	}
+
+	/**
+	 * @return NUM_FIELDS HTTP header fields with random values, and a
+	 *         Content-Type; in header order.
+	 */
+	private static Map<String, String> fields(long seed) {
+		Random random = new Random(seed);
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		fields.put("Content-Type", "text/html");
+		for (int i=0; i<NUM_FIELDS; i++) {
+			StringBuilder value = new StringBuilder("value-" + i + "-");
+			int len = random.nextInt(60);
+			for (int c=0; c<len; c++)
+				value.append((char) ('a' + random.nextInt(26)));
+			// Values may hold colons, as dates do:
+			if (random.nextInt(5) == 0)
+				value.append(" 10:00:00");
+			fields.put("X-Field-" + i, value.toString());
+		}
+		return fields;
+	}
+
+	/**
+	 * @return a page with an HTTP header of the given fields, and BODY.
+	 */
+	private static byte[] page(Map<String, String> fields) {
+		StringBuilder page = new StringBuilder("HTTP/1.0 200 OK\r\n");
+		for (Map.Entry<String, String> field : fields.entrySet())
+			page.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+		return WarcTestFiles.latin1(page.append("\r\n").append(BODY).toString());
+	}
+
+	/**
+	 * Replace the first occurrence of target in a page buffer with a
+	 * replacement of the same length.
+	 */
+	private static void edit(byte[] page, String target, String replacement) {
+		String text = WarcTestFiles.latin1(page);
+		int pos = text.indexOf(target);
+		assertTrue(pos >= 0);
+		byte[] bytes = WarcTestFiles.latin1(replacement);
+		System.arraycopy(bytes, 0, page, pos, bytes.length);
+	}
+
+	private static Metadata metadata(int pageSize) {
+		return new Metadata(1, pageSize, 0L, "2010", "http://x/");
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWbRecord.class);
+	}
+}
@@ -0,0 +1,95 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.pig.data.DataByteArray;
+import org.junit.Test;
+
+import pigir.webbase.Metadata;
+import pigir.webbase.WbAudioRecord;
+import pigir.webbase.WbDefaultRecord;
+import pigir.webbase.WbImageRecord;
+import pigir.webbase.WbRecord;
+import pigir.webbase.WbRecordFactory;
+import pigir.webbase.WbTextRecord;
+
+public class TestWbRecordFactory {
+
+	private static final String IMAGE_HEADER =
+		"HTTP/1.0 200 OK\r\nContent-Type: image/png\r\nDate: Mon, 01 Jan 2010 10:00:00 GMT\r\n\r\n";
+
+	@Test
+	public void testBinaryContentIsNotDecoded() throws UnsupportedEncodingException {
+		byte[] body = new byte[256];
+		for (int i=0; i<body.length; i++)
+			body[i] = (byte) i;
+		byte[] header = IMAGE_HEADER.getBytes("ISO-8859-1");
+		// The page buffer is longer than the page:
+		byte[] page = new byte[header.length + body.length + 10];
+		System.arraycopy(header, 0, page, 0, header.length);
+		System.arraycopy(body, 0, page, header.length, body.length);
+		int pageLen = header.length + body.length;
+
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(pageLen), page, pageLen);
+		assertTrue(record instanceof WbImageRecord);
+		assertArrayEquals(body, ((DataByteArray) record.getContent()).get());
+		assertEquals(body.length, record.getContentLength());
+		assertEquals("HTTP/1.0 200 OK", record.get("Server-response"));
+		assertEquals("Mon, 01 Jan 2010 10:00:00 GMT", record.get("Date"));
+	}
+
+	@Test
+	public void testMixedLineBreaks() throws UnsupportedEncodingException {
+		byte[] page = "HTTP/1.0 200 OK\nContent-Type: text/html\r\nServer: test\r\n\r\nhello".getBytes("ISO-8859-1");
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page);
+		assertTrue(record instanceof WbTextRecord);
+		assertEquals("hello", record.getContent());
+		assertEquals("test", record.get("Server"));
+		assertEquals("text/html", record.get("Content-Type"));
+	}
+
+	@Test
+	public void testContentTypeFieldName() throws UnsupportedEncodingException {
+		// Field names are matched in any case, with blanks around them:
+		assertTrue(recordOf("HTTP/1.0 200 OK\r\n content-TYPE : audio/mpeg\r\n\r\n") instanceof WbAudioRecord);
+		assertTrue(recordOf("HTTP/1.0 200 OK\r\nContent-Type: video/mpeg\r\n\r\n") instanceof WbDefaultRecord);
+		assertTrue(recordOf("HTTP/1.0 200 OK\r\nX-Content-Type: image/png\r\n\r\n") instanceof WbDefaultRecord);
+		assertTrue(recordOf("HTTP/1.0 200 OK\r\nContent-Typed: image/png\r\n\r\n") instanceof WbDefaultRecord);
+	}
+
+	@Test
+	public void testHttpHeaderLeftOut() throws UnsupportedEncodingException {
+		byte[] page = (IMAGE_HEADER + "body").getBytes("ISO-8859-1");
+		WbRecord record = WbRecordFactory.getWbRecord(metadata(page.length), page, page.length, false);
+		// The type still comes from the header:
+		assertTrue(record instanceof WbImageRecord);
+		assertNull(record.get("Date"));
+		assertArrayEquals("body".getBytes("ISO-8859-1"), record.getContentBytes());
+	}
+
+	@Test
+	public void testNoHeader() throws UnsupportedEncodingException {
+		assertNull(recordOf("no header here"));
+		// The header's end must lie within the page length:
+		byte[] page = IMAGE_HEADER.getBytes("ISO-8859-1");
+		assertNull(WbRecordFactory.getWbRecord(metadata(page.length), page, page.length - 1));
+	}
+
+	private static WbRecord recordOf(String page) throws UnsupportedEncodingException {
+		byte[] bytes = page.getBytes("ISO-8859-1");
+		return WbRecordFactory.getWbRecord(metadata(bytes.length), bytes);
+	}
+
+	private static Metadata metadata(int pageSize) {
+		return new Metadata(1, pageSize, 0L, "2010", "http://x/");
+	}
+
+	public static void main(String[] args) {
+		UnitTestRunner.run(TestWbRecordFactory.class);
+	}
+}
@@ -0,0 +1,51 @@
+package pigir.pigudf.unittests;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+/**
+ * Runs the JUnit test classes from their main() methods, printing
+ * failures, or "All tests passed." like the other unit tests. Run
+ * without arguments, runs them all.
+ */
+public class UnitTestRunner {
+
+	private static final Class<?>[] TEST_CLASSES = {
+		TestWarcSplitResync.class,
+		TestWarcGzipMemberIndex.class,
+		TestWarcHeaderParsing.class,
+		TestContentCharSequence.class,
+		TestWarcHeaderOnlyRead.class,
+		TestWarcRecordFilter.class,
+		TestMappedWarcRecordReader.class,
+		TestCombineWarcInputFormat.class,
+		TestWarcLoader.class,
+		TestWarcReadMetrics.class,
+		TestWarcContentTruncation.class,
+		TestWarcDigestDeduplicator.class,
+		TestPrefetchInputStream.class,
+		TestConcurrentWarcRecordReader.class,
+		TestParallelGzipInputStream.class,
+		TestWarcCdxIndex.class,
+		TestWarcSkipBadRecords.class,
+		TestWarcHeaderSidecar.class,
+		TestWarcStorage.class,
+		TestWbRecordFactory.class,
+		TestWbRecord.class,
+		TestDistributorChannel.class,
+		TestBufferedWebStreamIterator.class,
+	};
+
+	public static void run(Class<?>... testClasses) {
+		Result result = JUnitCore.runClasses(testClasses);
+		for (Failure failure : result.getFailures())
+			System.out.println(failure.toString());
+		if (result.wasSuccessful())
+			System.out.println("All tests passed.");
+	}
+
+	public static void main(String[] args) {
+		run(TEST_CLASSES);
+	}
+}
@@ -0,0 +1,40 @@
+package pigir.pigudf.unittests;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Base of the WARC reader tests. Each test gets a temporary directory
+ * of its own for WarcTestFiles to write into, and a configuration for
+ * the local file system that it may change.
+ */
+public abstract class WarcTestCase {
+
+	// Number of records in the files a test writes, unless it needs others:
+	protected static final int NUM_RECORDS = 50;
+
+	protected File dir;
+	protected Configuration conf = WarcTestFiles.localConf();
+	protected FileSystem fs;
+
+	@Before
+	public void createTempDir() throws IOException {
+		dir = WarcTestFiles.newTempDir();
+		fs = FileSystem.getLocal(conf);
+	}
+
+	@After
+	public void deleteTempDir() {
+		WarcTestFiles.deleteDir(dir);
+	}
+
+	protected static Path path(File file) {
+		return new Path(file.getAbsolutePath());
+	}
+}
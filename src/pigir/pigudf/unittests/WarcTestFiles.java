@@ -0,0 +1,346 @@
+package pigir.pigudf.unittests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import pigir.warc.WarcRecord;
+import pigir.warc.WarcRecordFilter;
+import pigir.warc.WarcRecordReader;
+
+/**
+ * Small WARC files for the WARC reader tests, written to a temporary
+ * directory. Record i has the ID <urn:uuid:rec-i>, and a content of a
+ * few hundred bytes that depends on i only, so records read back can
+ * be checked without keeping the files' contents around.
+ */
+public class WarcTestFiles {
+
+	private static final String CRLF = "\r\n";
+
+	/*-----------------------------------------------------
+	| Files
+	------------------------*/
+
+	public static File newTempDir() throws IOException {
+		File dir = File.createTempFile("pigirWarcTest", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Could not create temporary directory " + dir);
+		return dir;
+	}
+
+	public static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					deleteDir(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Write records 0 to numRecords-1 into an uncompressed WARC file.
+	 */
+	public static File writeWarc(File dir, String name, int numRecords) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int i=0; i<numRecords; i++)
+				out.write(record(i));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Write records 0 to numRecords-1 into a .warc.gz file, one gzip
+	 * member per record, as crawlers write them.
+	 */
+	public static File writeWarcGz(File dir, String name, int numRecords) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int i=0; i<numRecords; i++)
+				out.write(gzip(record(i)));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Write the given records, as they are, into an uncompressed WARC file.
+	 */
+	public static File writeWarc(File dir, String name, List<byte[]> records) throws IOException {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (byte[] record : records)
+				out.write(record);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	public static void append(File file, byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the file offset of record i of a file written by writeWarc().
+	 */
+	public static long recordOffset(int i) {
+		long offset = 0;
+		for (int record=0; record<i; record++)
+			offset += record(record).length;
+		return offset;
+	}
+
+	/**
+	 * @return the file offset of member i of a file written by writeWarcGz().
+	 */
+	public static long memberOffset(int i) throws IOException {
+		long offset = 0;
+		for (int member=0; member<i; member++)
+			offset += gzip(record(member)).length;
+		return offset;
+	}
+
+	/**
+	 * Overwrite some of the deflated data of member i of a file written
+	 * by writeWarcGz(), leaving its gzip header intact.
+	 */
+	public static void corruptMember(File file, int i) throws IOException {
+		byte[] garbage = new byte[32];
+		Arrays.fill(garbage, (byte) 0xff);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(memberOffset(i) + 20);
+			out.write(garbage);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(zipped);
+		out.write(bytes);
+		out.close();
+		return zipped.toByteArray();
+	}
+
+	/*-----------------------------------------------------
+	| Records
+	------------------------*/
+
+	public static String recordId(int i) {
+		return "<urn:uuid:rec-" + i + ">";
+	}
+
+	public static String targetUri(int i) {
+		return "http://host" + (i % 7) + ".com/page" + i;
+	}
+
+	public static String date(int i) {
+		return String.format("2009-03-%02dT12:00:00Z", 1 + (i % 28));
+	}
+
+	/**
+	 * @return the content of record i: an HTTP response with some lines
+	 *         of random letters, a few of them in Latin-1.
+	 */
+	public static byte[] content(int i) {
+		Random random = new Random(i);
+		StringBuilder page = new StringBuilder("HTTP/1.1 200 OK" + CRLF +
+											   "Content-Type: text/html" + CRLF + CRLF + "<html>");
+		int numLines = 3 + random.nextInt(20);
+		for (int line=0; line<numLines; line++) {
+			int lineLen = random.nextInt(80);
+			for (int c=0; c<lineLen; c++)
+				page.append((random.nextInt(50) == 0) ? '\u00e9' : (char) ('a' + random.nextInt(26)));
+			page.append('\n');
+		}
+		page.append("</html>");
+		return latin1(page.toString());
+	}
+
+	/**
+	 * @return record i in WARC format, including the two line ends
+	 *         that follow its content.
+	 */
+	public static byte[] record(int i) {
+		return record(i, content(i));
+	}
+
+	/**
+	 * @return record i in WARC format, with the given content instead of content(i).
+	 */
+	public static byte[] record(int i, byte[] content) {
+		String header = "WARC/1.0" + CRLF +
+				"WARC-Type: response" + CRLF +
+				"WARC-Target-URI: " + targetUri(i) + CRLF +
+				"WARC-Date: " + date(i) + CRLF +
+				"WARC-Payload-Digest: sha1:PAYLOAD" + i + CRLF +
+				"WARC-Block-Digest: sha1:BLOCK" + i + CRLF +
+				"WARC-Record-ID: " + recordId(i) + CRLF +
+				"Content-Type: application/http;msgtype=response" + CRLF +
+				"Content-Length: " + content.length + CRLF + CRLF;
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		byte[] headerBytes = latin1(header);
+		record.write(headerBytes, 0, headerBytes.length);
+		record.write(content, 0, content.length);
+		byte[] trailer = latin1(CRLF + CRLF);
+		record.write(trailer, 0, trailer.length);
+		return record.toByteArray();
+	}
+
+	/**
+	 * @return a copy of a record, with the first occurrence of target
+	 *         in its header replaced. The content, and its length, are kept.
+	 */
+	public static byte[] edit(byte[] record, String target, String replacement) {
+		String text = latin1(record);
+		int pos = text.indexOf(target);
+		assertTrue((pos >= 0) && (pos < text.indexOf(CRLF + CRLF)));
+		return latin1(text.substring(0, pos) + replacement + text.substring(pos + target.length()));
+	}
+
+	/**
+	 * @return the number i of a record ID made by recordId(i)
+	 */
+	public static int recordNum(String recordId) {
+		return Integer.parseInt(recordId.substring("<urn:uuid:rec-".length(), recordId.length() - 1));
+	}
+
+	/**
+	 * Check that a record read back has the headers and the content it
+	 * was written with.
+	 * @return the record's number
+	 */
+	public static int checkRecord(WarcRecord record) {
+		int i = recordNum(record.get(WarcRecord.WARC_RECORD_ID));
+		assertTrue(targetUri(i).equals(record.get(WarcRecord.WARC_TARGET_URI)));
+		assertTrue(date(i).equals(record.get(WarcRecord.WARC_DATE)));
+		assertArrayEquals(content(i), record.getContentBytes());
+		return i;
+	}
+
+	/*-----------------------------------------------------
+	| Reading
+	------------------------*/
+
+	public static Configuration localConf() {
+		Configuration conf = new Configuration();
+		conf.set("fs.default.name", "file:///");
+		return conf;
+	}
+
+	public static TaskAttemptContext newContext(Configuration conf) {
+		return new TaskAttemptContext(conf, new TaskAttemptID());
+	}
+
+	/**
+	 * Read a file in splits of splitSize bytes, each with a reader of
+	 * its own, and check every record.
+	 * @return the numbers of the records read, in the order read.
+	 */
+	public static List<Integer> readAll(File file, long splitSize, Configuration conf) throws IOException {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		Path path = new Path(file.getAbsolutePath());
+		long fileLen = file.length();
+		for (long start=0; start<fileLen; start+=splitSize) {
+			FileSplit split = new FileSplit(path, start, Math.min(splitSize, fileLen - start), new String[0]);
+			WarcRecordReader reader = new WarcRecordReader();
+			reader.initialize(split, newContext(conf));
+			try {
+				while (reader.nextKeyValue())
+					recordNums.add(checkRecord(reader.getCurrentValue()));
+			} finally {
+				reader.close();
+			}
+		}
+		return recordNums;
+	}
+
+	/**
+	 * Read all records of a file with a single reader, without checking them.
+	 */
+	public static List<WarcRecord> readRecords(File file, Configuration conf) throws IOException {
+		return readRecords(file, conf, null);
+	}
+
+	/**
+	 * Read the records of a file that pass a filter, with a single
+	 * reader, without checking them.
+	 */
+	public static List<WarcRecord> readRecords(File file, Configuration conf, WarcRecordFilter filter) throws IOException {
+		List<WarcRecord> records = new ArrayList<WarcRecord>();
+		FileSplit split = new FileSplit(new Path(file.getAbsolutePath()), 0, file.length(), new String[0]);
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.setRecordReuse(false);
+		reader.setRecordFilter(filter);
+		reader.initialize(split, newContext(conf));
+		try {
+			while (reader.nextKeyValue())
+				records.add(reader.getCurrentValue());
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	/**
+	 * @return the list 0, 1, ..., n-1, for comparing with readAll()'s result.
+	 */
+	public static List<Integer> firstRecordNums(int n) {
+		List<Integer> recordNums = new ArrayList<Integer>();
+		for (int i=0; i<n; i++)
+			recordNums.add(i);
+		return recordNums;
+	}
+
+	static byte[] latin1(String str) {
+		try {
+			return str.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String latin1(byte[] bytes) {
+		try {
+			return new String(bytes, "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Input format that packs many small WARC splits into fewer map tasks.
+ * Splits are computed as by WarcPigTextInputFormat (whole small files,
+ * block-sized pieces of large uncompressed files, member-aligned
+ * ranges of indexed .warc.gz files). They are then combined into
+ * WarcMultiFileSplits of up to Constants.COMBINE_SPLIT_SIZE_PROP_NAME
+ * bytes. MultiFileWarcRecordReader reads the parts one after the other.
+ *
+ * Locality: splits are first packed by host. Each host collects the not
+ * yet packed splits it holds a copy of, and every group that reaches
+ * the target size becomes a combined split that prefers that host.
+ * Whatever is left over is packed in input order, and prefers the
+ * hosts of its parts.
+ *
+ * WarcLoader uses this format when Constants.COMBINE_SPLITS_PROP_NAME is set:
+ *     SET pigir.warc.combine.splits 'true';
+ *
+ * @author paepcke
+ *
+ */
+public class CombineWarcInputFormat extends WarcPigTextInputFormat {
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
+															   TaskAttemptContext context) {
+		MultiFileWarcRecordReader reader = new MultiFileWarcRecordReader();
+		reader.setRecordFileOffsets(isRecordFileOffsets());
+		return reader;
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		List<InputSplit> fileSplits = super.getSplits(job);
+		long targetSize = job.getConfiguration().getLong(Constants.COMBINE_SPLIT_SIZE_PROP_NAME,
+														 Constants.DEFAULT_COMBINE_SPLIT_SIZE);
+		List<InputSplit> resSplits = new ArrayList<InputSplit>();
+		HashSet<FileSplit> packed = new HashSet<FileSplit>();
+
+		// Host-local groups first:
+		LinkedHashMap<String, List<FileSplit>> splitsByHost = new LinkedHashMap<String, List<FileSplit>>();
+		for (InputSplit split : fileSplits) {
+			FileSplit fileSplit = (FileSplit) split;
+			for (String host : fileSplit.getLocations()) {
+				List<FileSplit> hostSplits = splitsByHost.get(host);
+				if (hostSplits == null) {
+					hostSplits = new ArrayList<FileSplit>();
+					splitsByHost.put(host, hostSplits);
+				}
+				hostSplits.add(fileSplit);
+			}
+		}
+		for (Map.Entry<String, List<FileSplit>> hostEntry : splitsByHost.entrySet()) {
+			ArrayList<FileSplit> parts = new ArrayList<FileSplit>();
+			long partsSize = 0;
+			for (FileSplit fileSplit : hostEntry.getValue()) {
+				if (packed.contains(fileSplit))
+					continue;
+				parts.add(fileSplit);
+				partsSize += fileSplit.getLength();
+				if (partsSize >= targetSize) {
+					resSplits.add(new WarcMultiFileSplit(parts, new String[] {hostEntry.getKey()}));
+					packed.addAll(parts);
+					parts = new ArrayList<FileSplit>();
+					partsSize = 0;
+				}
+			}
+			// An incomplete group stays available to other hosts.
+		}
+
+		// Then the rest, in input order:
+		ArrayList<FileSplit> parts = new ArrayList<FileSplit>();
+		long partsSize = 0;
+		for (InputSplit split : fileSplits) {
+			FileSplit fileSplit = (FileSplit) split;
+			if (packed.contains(fileSplit))
+				continue;
+			parts.add(fileSplit);
+			partsSize += fileSplit.getLength();
+			if (partsSize >= targetSize) {
+				resSplits.add(new WarcMultiFileSplit(parts));
+				parts = new ArrayList<FileSplit>();
+				partsSize = 0;
+			}
+		}
+		if (!parts.isEmpty())
+			resSplits.add(new WarcMultiFileSplit(parts));
+		logger.info("Combined " + fileSplits.size() + " WARC splits into " + resSplits.size() + " splits.");
+		return resSplits;
+	}
+}
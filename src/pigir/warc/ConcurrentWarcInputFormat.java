@@ -0,0 +1,58 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Input format for map/reduce jobs that want one task to parse several
+ * WARC splits at once. Splits are computed as by WarcPigTextInputFormat,
+ * then packed into WarcMultiFileSplits of Constants.CONCURRENT_SPLITS_PER_TASK_PROP_NAME
+ * splits each. ConcurrentWarcRecordReader parses the parts of each such
+ * split in parallel threads.
+ *
+ * Typical setup with a multithreaded mapper:
+ *
+ *     job.setInputFormatClass(ConcurrentWarcInputFormat.class);
+ *     job.setMapperClass(MultithreadedMapper.class);
+ *     MultithreadedMapper.setMapperClass(job, MyWarcMapper.class);
+ *     MultithreadedMapper.setNumberOfThreads(job, 4);
+ *
+ * @author paepcke
+ *
+ */
+public class ConcurrentWarcInputFormat extends WarcPigTextInputFormat {
+
+	@Override
+	public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
+															   TaskAttemptContext context) {
+		return new ConcurrentWarcRecordReader();
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		List<InputSplit> fileSplits = super.getSplits(job);
+		int splitsPerTask = Math.max(1, job.getConfiguration().getInt(Constants.CONCURRENT_SPLITS_PER_TASK_PROP_NAME,
+																	  Constants.DEFAULT_CONCURRENT_SPLITS_PER_TASK));
+		List<InputSplit> resSplits = new ArrayList<InputSplit>();
+		ArrayList<FileSplit> parts = new ArrayList<FileSplit>(splitsPerTask);
+		for (InputSplit split : fileSplits) {
+			parts.add((FileSplit) split);
+			if (parts.size() == splitsPerTask) {
+				resSplits.add(new WarcMultiFileSplit(parts));
+				parts.clear();
+			}
+		}
+		if (!parts.isEmpty())
+			resSplits.add(new WarcMultiFileSplit(parts));
+		return resSplits;
+	}
+}
@@ -0,0 +1,196 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Parses the parts of a WarcMultiFileSplit in parallel threads of one
+ * task JVM. Each thread runs its own WarcRecordReader (and therefore its
+ * own WarcParser) over one part, and hands finished records to the
+ * consumer through a bounded queue. Records of different parts arrive
+ * interleaved; records of one part arrive in file order.
+ *
+ * Works with MultithreadedMapper: that mapper serializes calls
+ * to nextKeyValue(), and copies each record via WarcRecord.write()/readFields().
+ * The parsing itself happens in this reader's threads.
+ *
+ * Keys are the start positions of the records within their own files.
+ *
+ * @author paepcke
+ *
+ */
+public class ConcurrentWarcRecordReader extends RecordReader<LongWritable, Text> {
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	// Put into the queue by each worker when it is done with its part:
+	private static final WarcRecord END_OF_PART = new WarcRecord();
+
+	private FileSplit[] parts;
+	private ArrayBlockingQueue<WarcRecord> recordQueue;
+	private ExecutorService workers;
+	private int numPartsDone = 0;
+	private AtomicInteger numThreadsCreated = new AtomicInteger(0);
+	// First exception thrown by any worker:
+	private volatile IOException workerException = null;
+	private boolean readContent = true;
+
+	private LongWritable keyWarcStreamPos = new LongWritable();
+	private WarcRecord valueWarcRecord = null;
+
+	/**
+	 * Whether records should include their content. Must be called
+	 * before initialize().
+	 * @param doReadContent
+	 */
+	public void setReadContent(boolean doReadContent) {
+		readContent = doReadContent;
+	}
+
+	@Override
+	public void initialize(InputSplit genericSplit, final TaskAttemptContext context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		if (genericSplit instanceof WarcMultiFileSplit)
+			parts = ((WarcMultiFileSplit) genericSplit).getFileSplits();
+		else
+			parts = new FileSplit[] {(FileSplit) genericSplit};
+		recordQueue = new ArrayBlockingQueue<WarcRecord>(conf.getInt(Constants.CONCURRENT_QUEUE_SIZE_PROP_NAME,
+																	 Constants.DEFAULT_CONCURRENT_QUEUE_SIZE));
+		int numThreads = Math.max(1, Math.min(parts.length,
+											  conf.getInt(Constants.CONCURRENT_THREADS_PROP_NAME,
+													  	  Constants.DEFAULT_CONCURRENT_THREADS)));
+		workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WarcParser-" + numThreadsCreated.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final FileSplit part : parts) {
+			workers.execute(new Runnable() {
+				public void run() {
+					parsePart(part, context);
+				}
+			});
+		}
+		workers.shutdown();
+		logger.info("Parsing " + parts.length + " WARC splits with " + numThreads + " threads.");
+	}
+
+	/**
+	 * Worker body: parse one part into the queue, then post the end
+	 * marker. The marker is posted however parsing ends, so that the
+	 * consumer never waits for a worker that died.
+	 */
+	private void parsePart(FileSplit part, TaskAttemptContext context) {
+		WarcRecordReader partReader = new WarcRecordReader();
+		// Records cross threads, so each must be a fresh instance,
+		// whatever Constants.RECORD_REUSE_PROP_NAME says:
+		partReader.setRecordReuse(false);
+		boolean isInterrupted = false;
+		try {
+			try {
+				partReader.initialize(part, context);
+				while ((workerException == null) && partReader.nextKeyValue(readContent)) {
+					recordQueue.put(partReader.getCurrentValue());
+				}
+			} catch (InterruptedException e) {
+				// close() was called; just quit.
+				isInterrupted = true;
+			} catch (Throwable e) {
+				// Includes runtime exceptions and errors, such as running
+				// out of memory on a huge record; they fail the task:
+				setWorkerException(part, e);
+			} finally {
+				try {
+					partReader.close();
+				} catch (Throwable e) {
+					logger.warn("Could not close WARC split " + part + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			else {
+				try {
+					recordQueue.put(END_OF_PART);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remember the first exception thrown by a worker; the consumer rethrows it.
+	 */
+	private synchronized void setWorkerException(FileSplit part, Throwable cause) {
+		if (workerException == null)
+			workerException = new IOException("Error parsing WARC split " + part + ": " + cause, cause);
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException {
+		try {
+			while (numPartsDone < parts.length) {
+				WarcRecord rec = recordQueue.take();
+				if (workerException != null)
+					throw workerException;
+				if (rec == END_OF_PART) {
+					numPartsDone++;
+					continue;
+				}
+				valueWarcRecord = rec;
+				keyWarcStreamPos.set(rec.getRecordStartPos());
+				return true;
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for WARC records.");
+		}
+		if (workerException != null)
+			throw workerException;
+		valueWarcRecord = null;
+		return false;
+	}
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return keyWarcStreamPos;
+	}
+
+	@Override
+	public WarcRecord getCurrentValue() {
+		return valueWarcRecord;
+	}
+
+	/**
+	 * Progress is the fraction of parts that are completely parsed.
+	 */
+	@Override
+	public float getProgress() {
+		if ((parts == null) || (parts.length == 0))
+			return 0.0f;
+		return numPartsDone / (float) parts.length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (workers != null) {
+			// Unblock workers waiting for room in the queue:
+			workers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package pigir.warc;
+
+/**
+ * Constants and job configuration property names that control
+ * how WARC files are split and read.
+ *
+ * @author paepcke
+ *
+ */
+public final class Constants {
+
+	//-------------------------------- Gzip Member Index --------------------------
+
+	// Suffix appended to a .warc.gz file name to form the name of
+	// its gzip member offset index (e.g. foo.warc.gz.idx):
+	public static final String GZIP_MEMBER_INDEX_SUFFIX = ".idx";
+
+	//-------------------------------- Header Sidecar --------------------------
+
+	// Suffix appended to a WARC file name to form the name of its
+	// columnar header sidecar (e.g. foo.warc.gz.hdr). See WarcHeaderSidecar:
+	public static final String HEADER_SIDECAR_SUFFIX = ".hdr";
+
+	//-------------------------------- Job Configuration Properties Keys --------------------------
+
+	// Whether WarcPigTextInputFormat should build a member index for
+	// .warc.gz files that do not have one yet (default: false). Building
+	// inflates every such file, one after the other, on the machine that
+	// computes the splits; for large crawls, run WarcGzipMemberIndex
+	// from the command line instead:
+	public static final String GZIP_INDEX_BUILD_PROP_NAME = "pigir.warc.gzip.index.build";
+	// Whether an index built on the fly should be saved next to the
+	// .warc.gz file for use by later jobs (default: false). Writes
+	// into the input directories:
+	public static final String GZIP_INDEX_SAVE_PROP_NAME = "pigir.warc.gzip.index.save";
+	// Whether WarcRecordReader should refill a single WarcRecord instance
+	// for every record, instead of allocating a new one (default: false).
+	// WarcLoader always turns reuse on:
+	public static final String RECORD_REUSE_PROP_NAME = "pigir.warc.record.reuse";
+	// Whether WarcRecordReader inflates gzipped splits one member at a
+	// time, so that it can tell the file offset of each record's member
+	// (default: false). Needs the member index. Applies to every WARC
+	// load of the job; WarcCdxLoader turns it on for its own readers only:
+	public static final String RECORD_FILE_OFFSETS_PROP_NAME = "pigir.warc.record.file.offsets";
+	// Whether WarcLoader emits the optional WARC header fields as
+	// a Pig map, rather than as a bag of (name, value) tuples (default: false):
+	public static final String OPTIONAL_HEADERS_AS_MAP_PROP_NAME = "pigir.warc.loader.optional.headers.map";
+	// Whether WarcLoader emits record content as a bytearray of the raw
+	// content bytes, rather than as a chararray decoded from UTF-8 (default: false):
+	public static final String CONTENT_AS_BYTES_PROP_NAME = "pigir.warc.loader.content.bytes";
+	
+	//-------------------------------- Concurrent Reading --------------------------
+	
+	// Number of input splits ConcurrentWarcInputFormat packs into
+	// one WarcMultiFileSplit, i.e. into one map task (default: 4):
+	public static final String CONCURRENT_SPLITS_PER_TASK_PROP_NAME = "pigir.warc.concurrent.splits.per.task";
+	public static final int DEFAULT_CONCURRENT_SPLITS_PER_TASK = 4;
+	// Number of threads ConcurrentWarcRecordReader parses with (default: 4):
+	public static final String CONCURRENT_THREADS_PROP_NAME = "pigir.warc.concurrent.threads";
+	public static final int DEFAULT_CONCURRENT_THREADS = 4;
+	// Number of parsed records ConcurrentWarcRecordReader holds
+	// ahead of the consumer (default: 100):
+	public static final String CONCURRENT_QUEUE_SIZE_PROP_NAME = "pigir.warc.concurrent.queue.size";
+	public static final int DEFAULT_CONCURRENT_QUEUE_SIZE = 100;
+	
+	//-------------------------------- Read-Ahead --------------------------
+	
+	// Whether WarcRecordReader reads (and, for .warc.gz, inflates) ahead
+	// of the parser in a background thread (default: false). While
+	// read-ahead is on, skipped content of uncompressed files is read
+	// rather than seeked over:
+	public static final String PREFETCH_PROP_NAME = "pigir.warc.prefetch";
+	// Size of each read-ahead block (default: 1MB):
+	public static final String PREFETCH_BLOCK_SIZE_PROP_NAME = "pigir.warc.prefetch.block.size";
+	public static final int DEFAULT_PREFETCH_BLOCK_SIZE = 1024 * 1024;
+	// Maximum number of blocks read ahead (default: 8):
+	public static final String PREFETCH_DEPTH_PROP_NAME = "pigir.warc.prefetch.depth";
+	public static final int DEFAULT_PREFETCH_DEPTH = 8;
+	
+	//-------------------------------- Parallel Inflation --------------------------
+	
+	// Whether WarcRecordReader inflates the gzip members of a .warc.gz
+	// split on several threads (default: false). Needs the file's member
+	// index; splits of files without one are inflated on a single thread.
+	// Read-ahead (PREFETCH_PROP_NAME) is not used for such splits:
+	public static final String INFLATE_PARALLEL_PROP_NAME = "pigir.warc.inflate.parallel";
+	// Number of inflating threads per reader (default: 4):
+	public static final String INFLATE_THREADS_PROP_NAME = "pigir.warc.inflate.threads";
+	public static final int DEFAULT_INFLATE_THREADS = 4;
+	// Number of compressed bytes a thread inflates in one piece (default: 1MB):
+	public static final String INFLATE_BATCH_SIZE_PROP_NAME = "pigir.warc.inflate.batch.size";
+	public static final int DEFAULT_INFLATE_BATCH_SIZE = 1024 * 1024;
+	
+	//-------------------------------- Memory-Mapped Reading --------------------------
+	
+	// Whether WarcPigTextInputFormat reads uncompressed WARC files on the
+	// local file system through memory maps (default: false). Meant for
+	// local mode and single-node runs. Other files are read as usual:
+	public static final String MMAP_PROP_NAME = "pigir.warc.mmap";
+	// Largest part of a file that is mapped at one time (default and
+	// maximum: 2GB). No record's content may be larger:
+	public static final String MMAP_WINDOW_SIZE_PROP_NAME = "pigir.warc.mmap.window.size";
+	
+	//-------------------------------- Combined Splits --------------------------
+	
+	// Whether WarcLoader packs small WARC files (and pieces of gzipped
+	// ones) into fewer splits, via CombineWarcInputFormat (default: false):
+	public static final String COMBINE_SPLITS_PROP_NAME = "pigir.warc.combine.splits";
+	// Number of bytes CombineWarcInputFormat packs into one split (default: 256MB):
+	public static final String COMBINE_SPLIT_SIZE_PROP_NAME = "pigir.warc.combine.split.size";
+	public static final long DEFAULT_COMBINE_SPLIT_SIZE = 256L * 1024 * 1024;
+	
+	//-------------------------------- Bad Records --------------------------
+	
+	// Whether WarcRecordReader skips records it cannot parse, and corrupt
+	// gzip members, instead of failing the task (default: false). Skipped
+	// records and bytes are counted in the job's counters:
+	public static final String SKIP_BAD_RECORDS_PROP_NAME = "pigir.warc.skip.bad.records";
+	// Directory into which each task writes the file offsets of the
+	// bad records it skipped, one file per split (default: none):
+	public static final String SKIP_LOG_DIR_PROP_NAME = "pigir.warc.skip.log.dir";
+	
+	//-------------------------------- Metrics --------------------------
+	
+	// Whether WarcRecordReader and WarcLoader keep WarcReadMetrics, and add
+	// them to the job's counters when a split is done (default: true):
+	public static final String METRICS_PROP_NAME = "pigir.warc.metrics";
+	// Seconds between metrics summaries in the task log (default: 0, none):
+	public static final String METRICS_LOG_INTERVAL_PROP_NAME = "pigir.warc.metrics.log.interval";
+	
+	//-------------------------------- Content Size --------------------------
+	
+	// Most bytes of a record's content that are read into memory. Content
+	// beyond this is skipped, and the record is marked truncated (see
+	// WarcRecord.isContentTruncated()). 0 for no limit (default: 0):
+	public static final String MAX_CONTENT_SIZE_PROP_NAME = "pigir.warc.max.content.size";
+	
+	//-------------------------------- Payload Deduplication --------------------------
+	
+	// What to do with records whose WARC-Payload-Digest was seen before (see
+	// WarcDigestDeduplicator): 'drop' them, deliver them 'header' only, or
+	// 'off' (default: off):
+	public static final String DEDUP_PROP_NAME = "pigir.warc.dedup";
+	// Table of repeated digests and the ID of the record to keep for each.
+	// Without it, duplicates are found within each split only (default: none):
+	public static final String DEDUP_TABLE_PROP_NAME = "pigir.warc.dedup.table";
+	// Number of records per split the Bloom filter of seen digests is sized for:
+	public static final String DEDUP_EXPECTED_RECORDS_PROP_NAME = "pigir.warc.dedup.expected.records";
+	public static final long DEFAULT_DEDUP_EXPECTED_RECORDS = 1000000L;
+	// Chance that the Bloom filter takes a new digest for a seen one:
+	public static final String DEDUP_FALSE_POSITIVE_RATE_PROP_NAME = "pigir.warc.dedup.false.positive.rate";
+	public static final float DEFAULT_DEDUP_FALSE_POSITIVE_RATE = 0.0001f;
+	
+	//-------------------------------- Header Sidecar --------------------------
+	
+	// Whether WarcLoader reads header-only projections from the header
+	// sidecars of WARC files that have one (default: true):
+	public static final String HEADER_SIDECAR_PROP_NAME = "pigir.warc.header.sidecar";
+	
+	//-------------------------------- WarcStorage --------------------------
+	
+	// Deflate level of the gzip members WarcStorage writes, 0 (none) to 9
+	// (best), or -1 for zlib's default (default: -1):
+	public static final String WARC_STORAGE_COMPRESSION_LEVEL_PROP_NAME = "pigir.warc.storage.compression.level";
+}
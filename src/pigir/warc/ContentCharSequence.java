@@ -0,0 +1,203 @@
+package pigir.warc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Character view of a record's content that decodes the raw
+ * bytes only as far as someone looks. Code that examines just the
+ * HTTP status line, or the first few hundred characters, never pays
+ * for decoding (and holding in UTF-16) the whole payload.
+ *
+ * Leading ASCII bytes are not decoded at all: for US-ASCII, UTF-8,
+ * the ISO-8859 family and the windows-125x code pages, such a byte
+ * is its own character. That does not hold for every charset that
+ * encodes ASCII text as ASCII bytes: in stateful 7-bit encodings,
+ * such as ISO-2022-JP and UTF-7, runs of ASCII bytes can stand for
+ * other characters. Other charsets are therefore always decoded. From the
+ * first non-ASCII byte on, bytes are decoded in chunks, as characters
+ * are asked for. Malformed input is replaced, not reported.
+ *
+ * length() must know the number of characters, so for content that is
+ * not pure ASCII it decodes everything. The view is backed by the
+ * record's bytes: for reused records it must not be used after the
+ * reader moved on to the next record. Not thread safe.
+ *
+ * @author paepcke
+ *
+ */
+public class ContentCharSequence implements CharSequence {
+
+	private static final int DECODE_CHUNK_SIZE = 4096;
+
+	private final ByteBuffer bytes;
+	private final int byteStart;
+	private final int byteLen;
+	private final Charset charset;
+
+	// Number of leading bytes known to be ASCII, and whether
+	// a non-ASCII byte ended the ASCII prefix:
+	private int asciiPrefixLen = 0;
+	private boolean asciiPrefixDone;
+
+	// Characters decoded so far from the bytes after the ASCII prefix:
+	private CharsetDecoder decoder = null;
+	private ByteBuffer undecodedBytes = null;
+	private char[] decodedChars = null;
+	private int numDecodedChars = 0;
+	private boolean flushing = false;
+	private boolean decodingDone = false;
+
+	/**
+	 * @param theBytes buffer whose remaining bytes are the content. Not modified.
+	 * @param theCharset charset the content is encoded in
+	 */
+	public ContentCharSequence(ByteBuffer theBytes, Charset theCharset) {
+		this(theBytes, theBytes.position(), theBytes.remaining(), theCharset);
+	}
+
+	private ContentCharSequence(ByteBuffer theBytes, int theByteStart, int theByteLen, Charset theCharset) {
+		bytes = theBytes;
+		byteStart = theByteStart;
+		byteLen = theByteLen;
+		charset = theCharset;
+		// Other charsets have no ASCII prefix; everything is decoded:
+		asciiPrefixDone = !isAsciiCompatible(charset);
+	}
+
+	/**
+	 * @return true if every ASCII byte is its own character in the charset,
+	 *         whatever bytes come before it.
+	 */
+	private static boolean isAsciiCompatible(Charset charset) {
+		String name = charset.name().toUpperCase();
+		return name.equals("US-ASCII") || name.equals("UTF-8") ||
+			   name.startsWith("ISO-8859-") || name.startsWith("WINDOWS-125");
+	}
+
+	/**
+	 * @return the charset the content is decoded with.
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index: " + index);
+		if (index < asciiPrefixLen)
+			return (char) bytes.get(byteStart + index);
+		scanAscii(index + 1);
+		if (index < asciiPrefixLen)
+			return (char) bytes.get(byteStart + index);
+		int decodedIndex = index - asciiPrefixLen;
+		decodeUntil(decodedIndex + 1);
+		if (decodedIndex >= numDecodedChars)
+			throw new IndexOutOfBoundsException("Index: " + index + ", length: " + (asciiPrefixLen + numDecodedChars));
+		return decodedChars[decodedIndex];
+	}
+
+	@Override
+	public int length() {
+		scanAscii(byteLen);
+		if (asciiPrefixLen == byteLen)
+			return byteLen;
+		decodeUntil(Integer.MAX_VALUE);
+		return asciiPrefixLen + numDecodedChars;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if ((start < 0) || (end < start))
+			throw new IndexOutOfBoundsException("Range: " + start + " to " + end);
+		scanAscii(end);
+		if (end <= asciiPrefixLen)
+			return new ContentCharSequence(bytes, byteStart + start, end - start, charset);
+		StringBuilder res = new StringBuilder(end - start);
+		for (int i=start; i<end; i++)
+			res.append(charAt(i));
+		return res.toString();
+	}
+
+	/**
+	 * @return true if the characters up to the given index are known
+	 *         without decoding, because the bytes up to there are ASCII.
+	 */
+	public boolean isAsciiUpTo(int index) {
+		scanAscii(index + 1);
+		return index < asciiPrefixLen;
+	}
+
+	/**
+	 * Decodes the whole content into a String.
+	 */
+	@Override
+	public String toString() {
+		ByteBuffer content = bytes.duplicate();
+		content.limit(byteStart + byteLen);
+		content.position(byteStart);
+		return charset.decode(content).toString();
+	}
+
+	/*-----------------------------------------------------
+	| Private Methods
+	------------------------*/
+
+	/**
+	 * Extend the ASCII prefix until it is at least wantedLen
+	 * bytes long, or until a non-ASCII byte ends it.
+	 */
+	private void scanAscii(int wantedLen) {
+		int limit = Math.min(wantedLen, byteLen);
+		while (!asciiPrefixDone && (asciiPrefixLen < limit)) {
+			if (bytes.get(byteStart + asciiPrefixLen) < 0) {
+				asciiPrefixDone = true;
+				break;
+			}
+			asciiPrefixLen++;
+		}
+		if (asciiPrefixLen == byteLen)
+			asciiPrefixDone = true;
+	}
+
+	/**
+	 * Decode the bytes after the ASCII prefix until at least
+	 * wantedChars characters are decoded, or the input is used up.
+	 */
+	private void decodeUntil(int wantedChars) {
+		if (decodingDone || (numDecodedChars >= wantedChars))
+			return;
+		if (decoder == null) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			undecodedBytes = bytes.duplicate();
+			undecodedBytes.limit(byteStart + byteLen);
+			undecodedBytes.position(byteStart + asciiPrefixLen);
+			decodedChars = new char[Math.min(DECODE_CHUNK_SIZE, byteLen - asciiPrefixLen + 1)];
+		}
+		while (!decodingDone && (numDecodedChars < wantedChars)) {
+			if (decodedChars.length - numDecodedChars < 2)
+				decodedChars = Arrays.copyOf(decodedChars, Math.max(2 * decodedChars.length, DECODE_CHUNK_SIZE));
+			CharBuffer out = CharBuffer.wrap(decodedChars, numDecodedChars,
+											 Math.min(DECODE_CHUNK_SIZE, decodedChars.length - numDecodedChars));
+			CoderResult result = CoderResult.OVERFLOW;
+			if (!flushing) {
+				result = decoder.decode(undecodedBytes, out, true);
+				// Input used up; the decoder may still hold output:
+				flushing = result.isUnderflow();
+			}
+			if (flushing)
+				result = decoder.flush(out);
+			numDecodedChars = out.position();
+			if (result.isUnderflow())
+				decodingDone = true;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package pigir.warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a multi-member gzip stream one member at a time, and keeps
+ * track of the file offset at which each member starts. Unlike
+ * GZIPInputStream, it reports bytes after a member that are not a
+ * gzip header as an error, rather than taking them as the end of the
+ * data. Every member's CRC and length are checked against its trailer.
+ *
+ * WarcRecordReader uses this stream in skip mode for .warc.gz files
+ * without a member index: after an error, getMemberStart() tells
+ * where to start looking for the next good member. With a member
+ * index, it inflates one member at a time, and is reset() for each
+ * member, so that all members share one buffer and one Inflater.
+ *
+ * @author paepcke
+ *
+ */
+public class GzipMemberInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Bytes we try to have in the buffer before parsing a gzip header:
+	private static final int MAX_HEADER_LEN = 4096;
+
+	private InputStream rawIn;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int bufPos = 0;
+	private int bufLen = 0;
+	// File offset of buf[0]:
+	private long bufStartOffset;
+
+	private Inflater inflater = new Inflater(true);
+	private CRC32 crc = new CRC32();
+	private boolean inMember = false;
+	// If true, the stream ends after its first member:
+	private boolean isSingleMember = false;
+	private long memberStart = -1L;
+	private long memberUncompressedLen = 0L;
+	private byte[] oneByte = new byte[1];
+
+	/**
+	 * @param theRawIn stream of raw gzip bytes, positioned at a member boundary.
+	 *        Ends where the members to read end.
+	 * @param startOffset the file offset at which theRawIn is positioned.
+	 */
+	public GzipMemberInputStream(InputStream theRawIn, long startOffset) {
+		rawIn = theRawIn;
+		bufStartOffset = startOffset;
+	}
+
+	/**
+	 * Read another stream, keeping the buffer and the Inflater.
+	 * The previous stream is not closed.
+	 * @param theRawIn stream of raw gzip bytes, positioned at a member boundary.
+	 * @param startOffset the file offset at which theRawIn is positioned.
+	 * @param singleMember if true, the stream ends after its first member.
+	 *        Whatever follows that member, such as zero padding at the end
+	 *        of the file, is ignored, as GZIPInputStream ignores it.
+	 */
+	public void reset(InputStream theRawIn, long startOffset, boolean singleMember) {
+		rawIn = theRawIn;
+		bufStartOffset = startOffset;
+		bufPos = 0;
+		bufLen = 0;
+		inMember = false;
+		memberStart = -1L;
+		memberUncompressedLen = 0L;
+		isSingleMember = singleMember;
+	}
+
+	/**
+	 * @return file offset of the member being read, or of the last
+	 *         one if the stream is at its end. -1 before the first read.
+	 */
+	public long getMemberStart() {
+		return memberStart;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		try {
+			while (true) {
+				if (!inMember && !startMember())
+					return -1;
+				int numInflated = inflater.inflate(b, off, len);
+				if (numInflated > 0) {
+					crc.update(b, off, numInflated);
+					memberUncompressedLen += numInflated;
+					return numInflated;
+				}
+				if (inflater.finished()) {
+					finishMember();
+				} else if (inflater.needsDictionary()) {
+					throw new IOException("Gzip member starting at " + memberStart + " requires a preset dictionary.");
+				} else if (inflater.needsInput()) {
+					if (ensureBytes(1) == 0)
+						throw new EOFException("Gzip member starting at " + memberStart + " is truncated.");
+					inflater.setInput(buf, bufPos, bufLen - bufPos);
+					bufPos = bufLen;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member starting at " + memberStart + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		rawIn.close();
+	}
+
+	// ---------------------------------   Private Methods ---------------------------
+
+	/**
+	 * Parse the header of the next member, and hand the inflater its data.
+	 * @return false at the end of the stream.
+	 */
+	private boolean startMember() throws IOException {
+		if ((isSingleMember && (memberStart >= 0)) || (ensureBytes(1) == 0))
+			return false;
+		memberStart = bufStartOffset + bufPos;
+		int numAvailable = ensureBytes(MAX_HEADER_LEN);
+		int headerLen;
+		try {
+			headerLen = GzipMemberScanner.headerLength(buf, bufPos, numAvailable);
+		} catch (IOException e) {
+			throw new IOException("Bad gzip header at " + memberStart + ": " + e.getMessage());
+		}
+		bufPos += headerLen;
+		inflater.reset();
+		crc.reset();
+		memberUncompressedLen = 0L;
+		inflater.setInput(buf, bufPos, bufLen - bufPos);
+		bufPos = bufLen;
+		inMember = true;
+		return true;
+	}
+
+	/**
+	 * Check the trailer of the member the inflater just finished.
+	 */
+	private void finishMember() throws IOException {
+		// Take back the bytes the inflater did not need:
+		bufPos = bufLen - inflater.getRemaining();
+		if (ensureBytes(GzipMemberScanner.GZIP_TRAILER_LEN) < GzipMemberScanner.GZIP_TRAILER_LEN)
+			throw new EOFException("Trailer of gzip member starting at " + memberStart + " is truncated.");
+		if ((readIntLE(buf, bufPos) != (int) crc.getValue()) ||
+			(readIntLE(buf, bufPos + 4) != (int) memberUncompressedLen))
+			throw new IOException("CRC or length mismatch in gzip member starting at " + memberStart + ".");
+		bufPos += GzipMemberScanner.GZIP_TRAILER_LEN;
+		inMember = false;
+	}
+
+	/**
+	 * Try to have at least n unread bytes in the buffer. Must not be
+	 * called while the inflater still holds input from the buffer.
+	 * @return number of unread bytes in the buffer; less than n only at end of stream.
+	 */
+	private int ensureBytes(int n) throws IOException {
+		if (bufLen - bufPos >= n)
+			return bufLen - bufPos;
+		// Move the unread bytes to the front:
+		int numUnread = bufLen - bufPos;
+		System.arraycopy(buf, bufPos, buf, 0, numUnread);
+		bufStartOffset += bufPos;
+		bufPos = 0;
+		bufLen = numUnread;
+		while (bufLen < n) {
+			int numRead = rawIn.read(buf, bufLen, buf.length - bufLen);
+			if (numRead < 0)
+				break;
+			bufLen += numRead;
+		}
+		return bufLen;
+	}
+
+	private static int readIntLE(byte[] bytes, int pos) {
+		return (bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8) |
+			   ((bytes[pos + 2] & 0xff) << 16) | ((bytes[pos + 3] & 0xff) << 24);
+	}
+}
@@ -0,0 +1,282 @@
+package pigir.warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Walks the gzip members of a raw (still compressed) stream, and
+ * reports where each member starts and how many compressed bytes
+ * it occupies. Standard .warc.gz files hold one gzip member per
+ * WARC record, so member boundaries are record boundaries.
+ *
+ * The only way to find the end of a gzip member is to inflate it.
+ * The inflated bytes are discarded; only the offsets are kept.
+ *
+ * Usage:
+ *     GzipMemberScanner scanner = new GzipMemberScanner(rawIn, 0L);
+ *     while (scanner.next()) {
+ *         scanner.getMemberStart(); scanner.getMemberLength(); ...
+ *     }
+ *
+ * @author paepcke
+ *
+ */
+public class GzipMemberScanner {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public static final int GZIP_MAGIC_BYTE1 = 0x1f;
+	public static final int GZIP_MAGIC_BYTE2 = 0x8b;
+	private static final int GZIP_METHOD_DEFLATE = 8;
+	public static final int GZIP_TRAILER_LEN = 8;
+
+	// Gzip header flag bits (RFC 1952):
+	private static final int FHCRC    = 2;
+	private static final int FEXTRA   = 4;
+	private static final int FNAME    = 8;
+	private static final int FCOMMENT = 16;
+	private static final int FRESERVED = 0xe0;
+
+	private InputStream rawIn;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int bufLen = 0;
+	private int bufPos = 0;
+	// File offset of buf[0]:
+	private long bufStartOffset;
+
+	private Inflater inflater = new Inflater(true);
+	private byte[] sink = new byte[BUFFER_SIZE];
+
+	private long memberStart = -1L;
+	private long memberLength = -1L;
+	private long uncompressedMemberLength = -1L;
+
+	/**
+	 * @param rawIn stream of raw gzip bytes, positioned at a member boundary.
+	 * @param startOffset the file offset at which rawIn is positioned.
+	 */
+	public GzipMemberScanner(InputStream rawIn, long startOffset) {
+		this.rawIn = rawIn;
+		this.bufStartOffset = startOffset;
+	}
+
+	/**
+	 * Advance over the next gzip member.
+	 * @return true if a complete member was found, false at end of stream,
+	 *         or if the bytes that follow the last member are not a gzip member
+	 *         (e.g. zero padding).
+	 * @throws IOException if a member is truncated or corrupt.
+	 */
+	public boolean next() throws IOException {
+		if (!ensureBytes())
+			return false;
+		long thisMemberStart = bufStartOffset + bufPos;
+		if (!isMemberStart())
+			return false;
+		skipHeader();
+		inflater.reset();
+		long uncompressedLen = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (!ensureBytes())
+						throw new EOFException("Gzip member starting at " + thisMemberStart + " is truncated.");
+					inflater.setInput(buf, bufPos, bufLen - bufPos);
+					bufPos = bufLen;
+				}
+				int numInflated = inflater.inflate(sink);
+				if ((numInflated == 0) && inflater.needsDictionary())
+					throw new IOException("Gzip member starting at " + thisMemberStart + " requires a preset dictionary.");
+				uncompressedLen += numInflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member starting at " + thisMemberStart + ": " + e.getMessage());
+		}
+		// The inflater may have been handed bytes beyond the end of the
+		// deflate stream. Give them back:
+		bufPos = bufLen - inflater.getRemaining();
+		for (int i=0; i<GZIP_TRAILER_LEN; i++)
+			readByte();
+		memberStart = thisMemberStart;
+		memberLength = (bufStartOffset + bufPos) - thisMemberStart;
+		uncompressedMemberLength = uncompressedLen;
+		return true;
+	}
+
+	/**
+	 * @return file offset of the member most recently found by next().
+	 */
+	public long getMemberStart() {
+		return memberStart;
+	}
+
+	/**
+	 * @return number of compressed bytes, including gzip header and trailer,
+	 *         of the member most recently found by next().
+	 */
+	public long getMemberLength() {
+		return memberLength;
+	}
+
+	/**
+	 * @return number of bytes the member most recently found by next() inflates to.
+	 */
+	public long getUncompressedMemberLength() {
+		return uncompressedMemberLength;
+	}
+
+	/**
+	 * Release the inflater's native resources. Does not close the stream.
+	 */
+	public void end() {
+		inflater.end();
+	}
+
+	/*-----------------------------------------------------
+	| isGzipMagic()
+	------------------------*/
+
+	/**
+	 * @return true if the two bytes at buf[offset] are the gzip magic number.
+	 */
+	public static boolean isGzipMagic(byte[] bytes, int offset, int len) {
+		return (len >= 2) &&
+			   ((bytes[offset] & 0xff) == GZIP_MAGIC_BYTE1) &&
+			   ((bytes[offset + 1] & 0xff) == GZIP_MAGIC_BYTE2);
+	}
+
+	/**
+	 * Cheap test for a plausible member start: magic number, deflate
+	 * method, and no reserved flag bits. Used to find the next member
+	 * after corrupt bytes; the header may still turn out to be bogus.
+	 * @return true if the four bytes at bytes[offset] may start a gzip member.
+	 */
+	public static boolean isMemberHeaderStart(byte[] bytes, int offset, int len) {
+		return (len >= 4) &&
+			   isGzipMagic(bytes, offset, len) &&
+			   ((bytes[offset + 2] & 0xff) == GZIP_METHOD_DEFLATE) &&
+			   ((bytes[offset + 3] & FRESERVED) == 0);
+	}
+
+	/*-----------------------------------------------------
+	| headerLength()
+	------------------------*/
+
+	/**
+	 * Parse the gzip header of a member that is wholly in memory.
+	 * @param bytes buffer holding the member
+	 * @param offset index of the member's first byte
+	 * @param len number of member bytes available
+	 * @return number of header bytes, i.e. the offset of the deflate data
+	 *         relative to the member start.
+	 * @throws IOException if the bytes are not a deflate-compressed gzip member.
+	 */
+	public static int headerLength(byte[] bytes, int offset, int len) throws IOException {
+		if (!isGzipMagic(bytes, offset, len))
+			throw new IOException("No gzip member starts here.");
+		int end = offset + len;
+		int pos = offset + 2;
+		if ((pos >= end) || ((bytes[pos++] & 0xff) != GZIP_METHOD_DEFLATE))
+			throw new IOException("Gzip member is not deflate-compressed.");
+		if (pos >= end)
+			throw new EOFException("Gzip header is truncated.");
+		int flags = bytes[pos++] & 0xff;
+		// mtime (4), xfl (1), os (1):
+		pos += 6;
+		if ((flags & FEXTRA) != 0) {
+			if (pos + 2 > end)
+				throw new EOFException("Gzip header is truncated.");
+			int extraLen = (bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8);
+			pos += 2 + extraLen;
+		}
+		if ((flags & FNAME) != 0) {
+			while ((pos < end) && (bytes[pos] != 0))
+				pos++;
+			pos++;
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while ((pos < end) && (bytes[pos] != 0))
+				pos++;
+			pos++;
+		}
+		if ((flags & FHCRC) != 0)
+			pos += 2;
+		if (pos > end)
+			throw new EOFException("Gzip header is truncated.");
+		return pos - offset;
+	}
+
+	// ---------------------------------   Private Methods ---------------------------
+
+	private boolean isMemberStart() throws IOException {
+		if (bufLen - bufPos < 2) {
+			compactAndFill();
+		}
+		return isGzipMagic(buf, bufPos, bufLen - bufPos);
+	}
+
+	private void skipHeader() throws IOException {
+		readByte(); // magic 1
+		readByte(); // magic 2
+		if (readByte() != GZIP_METHOD_DEFLATE)
+			throw new IOException("Gzip member at " + (bufStartOffset + bufPos - 3) + " is not deflate-compressed.");
+		int flags = readByte();
+		// mtime (4), xfl (1), os (1):
+		for (int i=0; i<6; i++)
+			readByte();
+		if ((flags & FEXTRA) != 0) {
+			int extraLen = readByte() | (readByte() << 8);
+			for (int i=0; i<extraLen; i++)
+				readByte();
+		}
+		if ((flags & FNAME) != 0)
+			while (readByte() != 0) {};
+		if ((flags & FCOMMENT) != 0)
+			while (readByte() != 0) {};
+		if ((flags & FHCRC) != 0) {
+			readByte();
+			readByte();
+		}
+	}
+
+	private int readByte() throws IOException {
+		if (!ensureBytes())
+			throw new EOFException("Unexpected end of gzip stream at " + (bufStartOffset + bufPos) + ".");
+		return buf[bufPos++] & 0xff;
+	}
+
+	/**
+	 * Make sure at least one unconsumed byte is in the buffer.
+	 * @return false at end of stream.
+	 */
+	private boolean ensureBytes() throws IOException {
+		if (bufPos < bufLen)
+			return true;
+		bufStartOffset += bufLen;
+		bufPos = 0;
+		bufLen = 0;
+		int numRead = rawIn.read(buf, 0, buf.length);
+		if (numRead <= 0)
+			return false;
+		bufLen = numRead;
+		return true;
+	}
+
+	/**
+	 * Move unconsumed bytes to the front of the buffer, and
+	 * top the buffer up from the stream.
+	 */
+	private void compactAndFill() throws IOException {
+		int leftOver = bufLen - bufPos;
+		System.arraycopy(buf, bufPos, buf, 0, leftOver);
+		bufStartOffset += bufPos;
+		bufPos = 0;
+		bufLen = leftOver;
+		int numRead;
+		while ((bufLen < buf.length) && ((numRead = rawIn.read(buf, bufLen, buf.length - bufLen)) > 0))
+			bufLen += numRead;
+	}
+}
@@ -0,0 +1,46 @@
+package pigir.warc;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the WARC parsers for a record that cannot be read:
+ * its content is truncated, or too large, or (in skip mode) its
+ * header lacks a valid Content-Length. The parser remains usable
+ * after throwing: the next read resumes scanning for a version
+ * line after the bad record's header.
+ *
+ * @author paepcke
+ *
+ */
+@SuppressWarnings("serial")
+public class MalformedWarcRecordException extends IOException {
+
+	private long recordStartPos;
+	private long numBytesConsumed;
+
+	/**
+	 * @param msg what is wrong with the record
+	 * @param theRecordStartPos stream position of the record's version line
+	 * @param theNumBytesConsumed number of stream bytes consumed for the record
+	 */
+	public MalformedWarcRecordException(String msg, long theRecordStartPos, long theNumBytesConsumed) {
+		super(msg);
+		recordStartPos = theRecordStartPos;
+		numBytesConsumed = theNumBytesConsumed;
+	}
+
+	/**
+	 * @return stream position of the bad record's version line.
+	 */
+	public long getRecordStartPos() {
+		return recordStartPos;
+	}
+
+	/**
+	 * @return number of stream bytes consumed for the bad record,
+	 *         from its version line to where reading stopped.
+	 */
+	public long getNumBytesConsumed() {
+		return numBytesConsumed;
+	}
+}
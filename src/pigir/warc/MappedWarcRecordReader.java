@@ -0,0 +1,376 @@
+package pigir.warc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads uncompressed WARC files on the local file system through
+ * memory maps, rather than through Hadoop streams. Record boundaries
+ * and header fields are found by scanning the mapped bytes. Record
+ * content is not copied: WarcRecord.getContentBuffer() returns a
+ * slice of the map. Only callers that ask for getContentBytes(), or
+ * for the content as a String, pay for a copy.
+ *
+ * The file is mapped in windows of at most 2GB, the most a Java
+ * buffer can address. A window is moved forward when a record
+ * would cross its end, so a record's content must not exceed 2GB.
+ *
+ * Splits are handled as by WarcRecordReader: a record belongs to the
+ * split in which its version line starts. Header fields, the record
+ * filter, deduplication and content truncation are handled by a
+ * WarcParser, as for streams; only finding the lines differs. Gzipped files, and files
+ * that are not on the local file system, are passed on to the
+ * stream-based WarcRecordReader. Selected by Constants.MMAP_PROP_NAME.
+ *
+ * @author paepcke
+ *
+ */
+public class MappedWarcRecordReader extends WarcRecordReader {
+
+	private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	// Longest version line we look at, including its line terminator:
+	private static final int MAX_VERSION_LINE_LEN = 32;
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	// False if the split is read by the superclass:
+	private boolean isMapped = false;
+	private RandomAccessFile mappedFile = null;
+	private FileChannel channel = null;
+	private long fileLength;
+	private MappedByteBuffer window = null;
+	private long windowStart = 0L;
+	private long windowEnd = 0L;
+	private long maxWindowSize = MAX_WINDOW_SIZE;
+
+	private long start;
+	private long end;
+	// File offset of the next byte to scan:
+	private long pos;
+	private boolean reuseRecord = false;
+	// Judges records, but reads no stream:
+	private WarcParser parser = null;
+	private LongWritable keyWarcStreamPos = null;
+	private WarcRecord valueWarcRecord = null;
+	// Scratch copy of one header line:
+	private byte[] lineBuf = new byte[1024];
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+		FileSplit split = (FileSplit) genericSplit;
+		Configuration job = context.getConfiguration();
+		beginSplit(split, context);
+		Path file = split.getPath();
+		FileSystem fs = file.getFileSystem(job);
+		isMapped = false;
+		if (!isLocal(fs) || isGzipFile(fs, file)) {
+			openSplit(split, context);
+			return;
+		}
+		isMapped = true;
+		start = split.getStart();
+		end = start + split.getLength();
+		reuseRecord = isRecordReuse(job);
+		maxWindowSize = Math.min(MAX_WINDOW_SIZE, job.getLong(Constants.MMAP_WINDOW_SIZE_PROP_NAME, MAX_WINDOW_SIZE));
+		parser = newParser(null);
+
+		mappedFile = new RandomAccessFile(new File(file.toUri().getPath()), "r");
+		channel = mappedFile.getChannel();
+		fileLength = channel.size();
+		end = Math.min(end, fileLength);
+		pos = start;
+		if (start != 0) {
+			// As in WarcRecordReader: drop the (usually partial) line
+			// that straddles the split start, but do not lose a
+			// version line that starts exactly at 'start':
+			pos = nextLineStart(start - 1);
+		}
+		logger.debug("Memory-mapping " + file + " from " + start + " to " + end + ".");
+	}
+
+	private static boolean isLocal(FileSystem fs) {
+		return (fs instanceof LocalFileSystem) || "file".equals(fs.getUri().getScheme());
+	}
+
+	static boolean isGzipFile(FileSystem fs, Path file) throws IOException {
+		InputStream in = fs.open(file);
+		try {
+			return (in.read() == GzipMemberScanner.GZIP_MAGIC_BYTE1) && (in.read() == GzipMemberScanner.GZIP_MAGIC_BYTE2);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void setRecordReuse(boolean doReuse) {
+		super.setRecordReuse(doReuse);
+		reuseRecord = doReuse;
+	}
+
+	@Override
+	public void setRecordFilter(WarcRecordFilter theFilter) {
+		super.setRecordFilter(theFilter);
+		if (parser != null)
+			parser.setRecordFilter(theFilter);
+	}
+
+	@Override
+	public long getNumRecordsRejected() {
+		return isMapped ? parser.getNumRecordsRejected() : super.getNumRecordsRejected();
+	}
+
+	/*-----------------------------------------------------
+	| nextKeyValue()
+	------------------------*/
+
+	@Override
+	public boolean nextKeyValue(boolean readContents) throws IOException {
+		if (!isMapped)
+			return super.nextKeyValue(readContents);
+		if (channel == null)
+			return false;
+		if (keyWarcStreamPos == null)
+			keyWarcStreamPos = new LongWritable();
+		WarcRecord record = (reuseRecord && (valueWarcRecord != null)) ? valueWarcRecord : new WarcRecord();
+		WarcReadMetrics metrics = getMetrics();
+		long startNanos = (metrics == null) ? 0L : System.nanoTime();
+		long startPos = pos;
+		int outcome;
+		do {
+			record.clearRecord();
+			try {
+				outcome = readNextRecord(readContents, record);
+			} catch (MalformedWarcRecordException e) {
+				if (!isSkipBadRecords())
+					throw e;
+				// pos is past the bad record's header, or past its content:
+				reportBadRecord(e.getRecordStartPos(), e.getNumBytesConsumed(), 0L, e);
+				outcome = WarcParser.RECORD_REJECTED;
+				continue;
+			}
+		} while ((outcome == WarcParser.RECORD_REJECTED) || (outcome == WarcParser.RECORD_DROPPED_AS_DUPLICATE));
+		if (metrics != null) {
+			// Page faults happen while scanning, so file reads count as parsing:
+			long nowNanos = System.nanoTime();
+			metrics.add(WarcReadMetrics.Counters.PARSE_MSECS, nowNanos - startNanos);
+			metrics.add(WarcReadMetrics.Counters.FILE_BYTES_READ, pos - startPos);
+			metrics.add(WarcReadMetrics.Counters.UNCOMPRESSED_BYTES_READ, pos - startPos);
+			if (outcome == WarcParser.RECORD_READ) {
+				metrics.recordRead(record, readContents);
+				metrics.maybeLogSummary(nowNanos, getCurrentFile());
+			}
+		}
+		if (outcome == WarcParser.NO_MORE_RECORDS) {
+			valueWarcRecord = null;
+			keyWarcStreamPos = null;
+			return false;
+		}
+		valueWarcRecord = record;
+		keyWarcStreamPos.set(record.getRecordStartPos());
+		return true;
+	}
+
+	/**
+	 * Fill the record from the mapped bytes at pos, and move pos past it.
+	 * @return an outcome of WarcParser: RECORD_READ, RECORD_REJECTED if the
+	 *         record filter turned the record down, RECORD_DROPPED_AS_DUPLICATE,
+	 *         or NO_MORE_RECORDS if no record starts in this split.
+	 */
+	private int readNextRecord(boolean readContents, WarcRecord record) throws IOException {
+		// Find the version line:
+		long recordStart = -1L;
+		while (pos < fileLength) {
+			if (pos >= end)
+				return WarcParser.NO_MORE_RECORDS;
+			long lineEnd = lineEnd(pos);
+			// Longer lines cannot be version lines, and are not copied:
+			int lineLen = (lineEnd - pos <= MAX_VERSION_LINE_LEN) ? copyLine(pos, lineEnd) : 0;
+			if (WarcRecord.isVersionLine(lineBuf, 0, WarcParser.trimEnd(lineBuf, 0, lineLen))) {
+				recordStart = pos;
+				pos = nextLineStart(lineEnd);
+				break;
+			}
+			pos = nextLineStart(lineEnd);
+		}
+		if (recordStart < 0)
+			return WarcParser.NO_MORE_RECORDS;
+
+		// Header lines, up to the first empty line:
+		long contentLength = -1L;
+		while (pos < fileLength) {
+			long lineEnd = lineEnd(pos);
+			int lineLen = copyLine(pos, lineEnd);
+			pos = nextLineStart(lineEnd);
+			long lineValue = WarcParser.parseHeaderLine(record, lineBuf, 0, lineLen);
+			if (lineValue == WarcParser.END_OF_HEADER)
+				break;
+			if (lineValue != WarcParser.NOT_CONTENT_LENGTH)
+				contentLength = lineValue;
+		}
+		if (!parser.checkContentLength(record, contentLength, recordStart, pos - recordStart))
+			return WarcParser.NO_MORE_RECORDS;
+
+		long contentStart = pos;
+		long contentEnd = contentStart + contentLength;
+		if (contentEnd > fileLength) {
+			pos = fileLength;
+			throw new MalformedWarcRecordException("Hit end of file while reading content of WARC record ID: " +
+					record.get(WarcRecord.WARC_RECORD_ID) +
+					" of supposed content length " + contentLength + ".", recordStart, fileLength - recordStart);
+		}
+		int outcome = parser.judgeRecord(record);
+		if (readContents && (outcome == WarcParser.RECORD_READ) && !record.isDuplicatePayload()) {
+			long numToMap = parser.numContentBytesToRead(contentLength);
+			if (numToMap > maxWindowSize) {
+				pos = contentEnd;
+				throw new MalformedWarcRecordException("Content of WARC record ID: " +
+						record.get(WarcRecord.WARC_RECORD_ID) +
+						" is too large to map (" + contentLength + " bytes).", recordStart, contentEnd - recordStart);
+			}
+			mapWindow(contentStart, numToMap);
+			ByteBuffer content = window.duplicate();
+			content.position((int) (contentStart - windowStart));
+			content.limit((int) (contentStart + numToMap - windowStart));
+			record.setContentBuffer(content.slice());
+			if (numToMap < contentLength)
+				record.markContentTruncated();
+		}
+		// Content is skipped by just moving on; the pages are never touched:
+		pos = contentEnd;
+		record.setRecordStartPos(recordStart);
+		record.setTotalRecordLength(contentEnd - recordStart);
+		return outcome;
+	}
+
+	/*-----------------------------------------------------
+	| Window Handling
+	------------------------*/
+
+	/**
+	 * Make sure the window covers [from, from+len). Moves the window
+	 * to start at 'from' if it does not.
+	 */
+	private void mapWindow(long from, long len) throws IOException {
+		if ((window != null) && (from >= windowStart) && (from + len <= windowEnd))
+			return;
+		windowStart = from;
+		windowEnd = Math.min(fileLength, from + maxWindowSize);
+		// The previous window is unmapped once it is garbage
+		// collected, along with any content slices of it:
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+	}
+
+	/**
+	 * @return file offset of the newline that ends the line starting at
+	 *         lineStart, or the file length if the last line has no newline.
+	 */
+	private long lineEnd(long lineStart) throws IOException {
+		long scanPos = lineStart;
+		while (true) {
+			mapWindow(scanPos, 1);
+			int limit = (int) (windowEnd - windowStart);
+			for (int i=(int) (scanPos - windowStart); i<limit; i++) {
+				if (window.get(i) == '\n')
+					return windowStart + i;
+			}
+			if (windowEnd == fileLength)
+				return fileLength;
+			scanPos = windowEnd;
+		}
+	}
+
+	private long nextLineStart(long lineEnd) {
+		return Math.min(fileLength, lineEnd + 1);
+	}
+
+	/**
+	 * Copy the bytes [lineStart, lineEnd) into lineBuf. Meant for
+	 * version and header lines, not for content.
+	 * @return number of bytes copied
+	 */
+	private int copyLine(long lineStart, long lineEnd) throws IOException {
+		int len = (int) Math.min(lineEnd - lineStart, maxWindowSize);
+		if (len > lineBuf.length)
+			lineBuf = Arrays.copyOf(lineBuf, Math.max(len, 2 * lineBuf.length));
+		mapWindow(lineStart, len);
+		ByteBuffer line = window.duplicate();
+		line.position((int) (lineStart - windowStart));
+		line.get(lineBuf, 0, len);
+		return len;
+	}
+
+	/*-----------------------------------------------------
+	| RecordReader Methods
+	------------------------*/
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return isMapped ? keyWarcStreamPos : super.getCurrentKey();
+	}
+
+	@Override
+	public WarcRecord getCurrentValue() {
+		return isMapped ? valueWarcRecord : super.getCurrentValue();
+	}
+
+	@Override
+	public long getCurrentRecordFileOffset() {
+		if (!isMapped)
+			return super.getCurrentRecordFileOffset();
+		return (valueWarcRecord == null) ? -1L : valueWarcRecord.getRecordStartPos();
+	}
+
+	@Override
+	public long getCurrentRecordFileLength() {
+		if (!isMapped)
+			return super.getCurrentRecordFileLength();
+		return (valueWarcRecord == null) ? -1L : valueWarcRecord.getTotalRecordLength();
+	}
+
+	@Override
+	public float getProgress() {
+		if (!isMapped)
+			return super.getProgress();
+		if (start == end)
+			return 0.0f;
+		return Math.min(1.0f, (pos - start) / (float) (end - start));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!isMapped) {
+			super.close();
+			return;
+		}
+		window = null;
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		if (mappedFile != null) {
+			mappedFile.close();
+			mappedFile = null;
+		}
+		if (getMetrics() != null) {
+			getMetrics().add(WarcReadMetrics.Counters.RECORDS_REJECTED_BY_FILTER, parser.getNumRecordsRejected());
+		}
+		// Closes the bad record log, if any, and publishes the metrics:
+		super.close();
+	}
+}
@@ -0,0 +1,87 @@
+package pigir.warc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes that pass through a stream, and the time spent
+ * in its read() and skip() calls, in a WarcReadMetrics. Meters may
+ * be stacked: time that an inner meter has already booked under
+ * another counter can be left out, so that, say, the time of a
+ * GZIPInputStream is booked as inflate time without the file reads
+ * it makes.
+ *
+ * @author paepcke
+ *
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+	private final WarcReadMetrics metrics;
+	private final WarcReadMetrics.Counters bytesCounter;
+	private final WarcReadMetrics.Counters nanosCounter;
+	private final WarcReadMetrics.Counters innerNanosCounter;
+	private final boolean countSkippedBytes;
+
+	/**
+	 * @param in the stream to meter
+	 * @param theMetrics where to count
+	 * @param theBytesCounter counter for bytes, or null
+	 * @param theNanosCounter counter for time
+	 * @param theInnerNanosCounter time booked under this counter during a call
+	 *        is not booked again; or null
+	 * @param doCountSkippedBytes whether skipped bytes count as bytes. They
+	 *        do not if skipping is a seek.
+	 */
+	public MeteredInputStream(InputStream in,
+							  WarcReadMetrics theMetrics,
+							  WarcReadMetrics.Counters theBytesCounter,
+							  WarcReadMetrics.Counters theNanosCounter,
+							  WarcReadMetrics.Counters theInnerNanosCounter,
+							  boolean doCountSkippedBytes) {
+		super(in);
+		metrics = theMetrics;
+		bytesCounter = theBytesCounter;
+		nanosCounter = theNanosCounter;
+		innerNanosCounter = theInnerNanosCounter;
+		countSkippedBytes = doCountSkippedBytes;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long startNanos = System.nanoTime();
+		long innerNanos = innerNanos();
+		int res = in.read();
+		book(startNanos, innerNanos, (res < 0) ? 0 : 1);
+		return res;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long startNanos = System.nanoTime();
+		long innerNanos = innerNanos();
+		int numRead = in.read(b, off, len);
+		book(startNanos, innerNanos, Math.max(0, numRead));
+		return numRead;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long startNanos = System.nanoTime();
+		long innerNanos = innerNanos();
+		long numSkipped = in.skip(n);
+		book(startNanos, innerNanos, countSkippedBytes ? numSkipped : 0L);
+		return numSkipped;
+	}
+
+	private long innerNanos() {
+		return (innerNanosCounter == null) ? 0L : metrics.get(innerNanosCounter);
+	}
+
+	private void book(long startNanos, long innerNanosBefore, long numBytes) {
+		long nanos = System.nanoTime() - startNanos - (innerNanos() - innerNanosBefore);
+		metrics.add(nanosCounter, nanos);
+		if (bytesCounter != null)
+			metrics.add(bytesCounter, numBytes);
+	}
+}
@@ -0,0 +1,100 @@
+package pigir.warc;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads the parts of a WarcMultiFileSplit one after the other, as
+ * if they were one split. When a part runs out of records, the
+ * reader closes it and continues with the next. Record reuse, the
+ * record filter and the deduplicator carry over from part to part,
+ * so that duplicate payloads are found across the whole split.
+ *
+ * Keys are the start positions of the records within their own
+ * files; getCurrentFile() tells which file that is.
+ *
+ * @author paepcke
+ *
+ */
+public class MultiFileWarcRecordReader extends WarcRecordReader {
+
+	private FileSplit[] parts;
+	private int currentPart = -1;
+	private boolean currentPartOpen = false;
+	private TaskAttemptContext context;
+	private long totalLength = 0L;
+	private long lengthOfEarlierParts = 0L;
+	private long numRejectedInEarlierParts = 0L;
+	// Shared by all parts, or null if deduplication is off:
+	private WarcDigestDeduplicator deduplicator = null;
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext theContext) throws IOException {
+		context = theContext;
+		if (genericSplit instanceof WarcMultiFileSplit)
+			parts = ((WarcMultiFileSplit) genericSplit).getFileSplits();
+		else
+			parts = new FileSplit[] {(FileSplit) genericSplit};
+		for (FileSplit part : parts)
+			totalLength += part.getLength();
+		deduplicator = WarcDigestDeduplicator.forSplit(context.getConfiguration());
+		openNextPart();
+	}
+
+	/**
+	 * Close the current part, if any, and open the next one.
+	 * @return false if there are no more parts.
+	 * @throws IOException
+	 */
+	private boolean openNextPart() throws IOException {
+		if (currentPartOpen) {
+			numRejectedInEarlierParts += super.getNumRecordsRejected();
+			lengthOfEarlierParts += parts[currentPart].getLength();
+			super.close();
+			currentPartOpen = false;
+		}
+		if (currentPart + 1 >= parts.length)
+			return false;
+		FileSplit part = parts[++currentPart];
+		beginSplit(part, context, deduplicator);
+		openSplit(part, context);
+		currentPartOpen = true;
+		return true;
+	}
+
+	@Override
+	public boolean nextKeyValue(boolean readContents) throws IOException {
+		while (currentPartOpen) {
+			if (super.nextKeyValue(readContents))
+				return true;
+			openNextPart();
+		}
+		return false;
+	}
+
+	@Override
+	public long getNumRecordsRejected() {
+		return numRejectedInEarlierParts + (currentPartOpen ? super.getNumRecordsRejected() : 0L);
+	}
+
+	@Override
+	public float getProgress() {
+		if (totalLength == 0)
+			return 0.0f;
+		long partLength = currentPartOpen ? parts[currentPart].getLength() : 0L;
+		float partProgress = currentPartOpen ? super.getProgress() : 0.0f;
+		return Math.min(1.0f, (lengthOfEarlierParts + partProgress * partLength) / totalLength);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (currentPartOpen) {
+			numRejectedInEarlierParts += super.getNumRecordsRejected();
+			super.close();
+			currentPartOpen = false;
+		}
+	}
+}
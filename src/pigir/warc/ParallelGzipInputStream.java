@@ -0,0 +1,417 @@
+package pigir.warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Inflates the gzip members of one split of a multi-member .warc.gz
+ * file on several threads, and delivers the uncompressed bytes in
+ * file order. Member boundaries come from the file's WarcGzipMemberIndex.
+ *
+ * Consecutive members are grouped into batches of roughly batchSize
+ * compressed bytes. Each batch is fetched with a positioned read, and
+ * inflated by one worker, using an Inflater from a pool that is shared
+ * by the workers. The consumer works through the batches in order,
+ * while up to 2 * numThreads batches ahead of it are being inflated.
+ * Every member's CRC and length are checked against its gzip trailer.
+ * Output buffers are sized from the members' trailers, and, like the
+ * buffers of compressed bytes, returned to a pool once used up.
+ *
+ * Each member must end where the index says the next one starts.
+ * Bytes after the last member of the file that are not a member,
+ * such as zero padding, are ignored, as GzipMemberScanner does when
+ * it builds the index.
+ *
+ * Positioned reads leave the file position alone, so the stream's
+ * progress is available from getCompressedPos() instead.
+ *
+ * @author paepcke
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	// Inflated size of a batch is guessed as its compressed size times
+	// this if its members' trailers do not tell:
+	private static final int EXPANSION_GUESS = 4;
+	// Deflate cannot expand data by more than this; larger sizes in
+	// gzip trailers are not to be believed:
+	private static final int MAX_DEFLATE_RATIO = 1032;
+	// Largest array some JVMs can allocate:
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	// How long close() waits for busy workers to hand back their inflaters:
+	private static final int CLOSE_TIMEOUT_MSECS = 1000;
+
+	private static class Batch {
+		// Members memberOffsets[firstMember...endMember-1]:
+		int firstMember;
+		int endMember;
+		long start;
+		long end;
+		// Inflated bytes, filled by a worker:
+		byte[] data;
+		int len;
+		Batch(int theFirstMember, int theEndMember, long theStart, long theEnd) {
+			firstMember = theFirstMember;
+			endMember = theEndMember;
+			start = theStart;
+			end = theEnd;
+		}
+	}
+
+	private final FSDataInputStream fileIn;
+	private final ExecutorService workers;
+	private final ArrayBlockingQueue<Inflater> inflaterPool;
+	// Buffers of batches that are used up:
+	private final ArrayBlockingQueue<byte[]> compressedBufPool;
+	private final ArrayBlockingQueue<byte[]> dataBufPool;
+	private final long[] memberOffsets;
+	private final long end;
+	private AtomicInteger numThreadsCreated = new AtomicInteger(0);
+	// Summed over the workers, for WarcReadMetrics:
+	private final AtomicLong readNanos = new AtomicLong(0L);
+	private final AtomicLong inflateNanos = new AtomicLong(0L);
+
+	// Batches not yet handed to a worker, and batches being
+	// inflated, in file order:
+	private final LinkedList<Batch> pendingBatches = new LinkedList<Batch>();
+	private final LinkedList<Future<Batch>> inflatingBatches = new LinkedList<Future<Batch>>();
+	private final int maxBatchesAhead;
+
+	private Batch currentBatch = null;
+	private int currentPos = 0;
+	private long compressedPos;
+	private boolean closed = false;
+
+	/**
+	 * @param theFileIn the .warc.gz file
+	 * @param memberOffsets file offsets of the members to inflate, in ascending order
+	 * @param end file offset just past the last member
+	 * @param batchSize number of compressed bytes to inflate in one piece
+	 * @param numThreads number of inflating threads
+	 */
+	public ParallelGzipInputStream(FSDataInputStream theFileIn,
+								   long[] theMemberOffsets,
+								   long theEnd,
+								   int batchSize,
+								   int numThreads) {
+		fileIn = theFileIn;
+		memberOffsets = theMemberOffsets;
+		end = theEnd;
+		compressedPos = (memberOffsets.length > 0) ? memberOffsets[0] : end;
+		numThreads = Math.max(1, numThreads);
+		maxBatchesAhead = 2 * numThreads;
+		// A buffer per batch being inflated, plus the consumer's:
+		compressedBufPool = new ArrayBlockingQueue<byte[]>(maxBatchesAhead + 1);
+		dataBufPool = new ArrayBlockingQueue<byte[]>(maxBatchesAhead + 1);
+		inflaterPool = new ArrayBlockingQueue<Inflater>(numThreads);
+		for (int i=0; i<numThreads; i++)
+			inflaterPool.add(newInflater());
+		workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WarcInflater-" + numThreadsCreated.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// Group members into batches. A member larger than the
+		// batch size becomes a batch of its own:
+		int i = 0;
+		while (i < memberOffsets.length) {
+			long batchStart = memberOffsets[i];
+			int j = i + 1;
+			while ((j < memberOffsets.length) && (memberOffsets[j] - batchStart < batchSize))
+				j++;
+			pendingBatches.add(new Batch(i, j, batchStart, memberEnd(j - 1)));
+			i = j;
+		}
+		submitBatches();
+	}
+
+	/**
+	 * Keep the workers busy with the batches ahead of the consumer.
+	 */
+	private void submitBatches() {
+		while ((inflatingBatches.size() < maxBatchesAhead) && !pendingBatches.isEmpty()) {
+			final Batch batch = pendingBatches.removeFirst();
+			inflatingBatches.add(workers.submit(new Callable<Batch>() {
+				public Batch call() throws IOException, InterruptedException {
+					return inflateBatch(batch);
+				}
+			}));
+		}
+	}
+
+	/*-----------------------------------------------------
+	| inflateBatch()
+	------------------------*/
+
+	/**
+	 * Called from the constructor, once per worker.
+	 * @return an inflater for the raw deflate data of gzip members.
+	 */
+	protected Inflater newInflater() {
+		return new Inflater(true);
+	}
+
+	/**
+	 * @return file offset just past the given member, including any
+	 *         padding if it is the last member.
+	 */
+	private long memberEnd(int member) {
+		return (member + 1 < memberOffsets.length) ? memberOffsets[member + 1] : end;
+	}
+
+	/**
+	 * Worker side: read a batch of members, and inflate them one after the other.
+	 */
+	private Batch inflateBatch(Batch batch) throws IOException, InterruptedException {
+		if (batch.end - batch.start > MAX_ARRAY_SIZE)
+			throw new IOException("Gzip member starting at " + batch.start + " is too large to inflate in parallel.");
+		int compressedLen = (int) (batch.end - batch.start);
+		byte[] compressed = takeBuffer(compressedBufPool, compressedLen);
+		try {
+			long readStartNanos = System.nanoTime();
+			fileIn.readFully(batch.start, compressed, 0, compressedLen);
+			long inflateStartNanos = System.nanoTime();
+			readNanos.addAndGet(inflateStartNanos - readStartNanos);
+			batch.data = takeBuffer(dataBufPool, inflatedSizeGuess(batch, compressed, compressedLen));
+			batch.len = 0;
+			inflateMembers(batch, compressed);
+			inflateNanos.addAndGet(System.nanoTime() - inflateStartNanos);
+		} finally {
+			compressedBufPool.offer(compressed);
+		}
+		return batch;
+	}
+
+	private void inflateMembers(Batch batch, byte[] compressed) throws IOException, InterruptedException {
+		CRC32 crc = new CRC32();
+		Inflater inflater = inflaterPool.take();
+		try {
+			for (int member = batch.firstMember; member < batch.endMember; member++) {
+				long memberStart = memberOffsets[member];
+				int memberPos = (int) (memberStart - batch.start);
+				int memberEndPos = (int) (memberEnd(member) - batch.start);
+				int deflateStart = memberPos + GzipMemberScanner.headerLength(compressed, memberPos, memberEndPos - memberPos);
+				inflater.reset();
+				inflater.setInput(compressed, deflateStart, memberEndPos - deflateStart);
+				crc.reset();
+				int memberDataStart = batch.len;
+				try {
+					while (!inflater.finished()) {
+						if (batch.len == batch.data.length)
+							growBatchData(batch);
+						int numInflated = inflater.inflate(batch.data, batch.len, batch.data.length - batch.len);
+						if (numInflated == 0) {
+							if (inflater.needsInput())
+								throw new EOFException("Gzip member starting at " + memberStart + " is truncated.");
+							if (inflater.needsDictionary())
+								throw new IOException("Gzip member starting at " + memberStart + " requires a preset dictionary.");
+						}
+						batch.len += numInflated;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt gzip member starting at " + memberStart + ": " + e.getMessage());
+				}
+				crc.update(batch.data, memberDataStart, batch.len - memberDataStart);
+				int trailerPos = memberEndPos - inflater.getRemaining();
+				if (trailerPos + GzipMemberScanner.GZIP_TRAILER_LEN > memberEndPos)
+					throw new EOFException("Trailer of gzip member starting at " + memberStart + " is truncated.");
+				if ((readIntLE(compressed, trailerPos) != (int) crc.getValue()) ||
+					(readIntLE(compressed, trailerPos + 4) != batch.len - memberDataStart))
+					throw new IOException("CRC or length mismatch in gzip member starting at " + memberStart + ".");
+				// What follows the last member of the file may be padding:
+				if ((trailerPos + GzipMemberScanner.GZIP_TRAILER_LEN != memberEndPos) && (member + 1 < memberOffsets.length))
+					throw new IOException("Gzip member starting at " + memberStart + " does not end where the next indexed member starts (" + 
+										  memberOffsets[member + 1] + "). Is the member index stale?");
+			}
+		} finally {
+			// There is always room, so this does not throw when close()
+			// has interrupted the worker, as put() would:
+			inflaterPool.offer(inflater);
+			// Once the workers are shut down, close() may have drained the
+			// pool already; whichever of the two removes the inflater ends it:
+			if (workers.isShutdown() && inflaterPool.remove(inflater))
+				inflater.end();
+		}
+	}
+
+	/**
+	 * Guess a batch's inflated size from the ISIZE fields of its members'
+	 * trailers, falling back to a fixed ratio if they are implausible;
+	 * e.g. because the last member of the file is followed by padding.
+	 */
+	private int inflatedSizeGuess(Batch batch, byte[] compressed, int compressedLen) {
+		long guess = 0L;
+		for (int member = batch.firstMember; member < batch.endMember; member++) {
+			long memberEnd = memberEnd(member);
+			if (memberEnd - memberOffsets[member] >= GzipMemberScanner.GZIP_TRAILER_LEN)
+				guess += readIntLE(compressed, (int) (memberEnd - batch.start) - 4) & 0xffffffffL;
+		}
+		if ((guess == 0L) || (guess > (long) compressedLen * MAX_DEFLATE_RATIO))
+			guess = (long) compressedLen * EXPANSION_GUESS;
+		return (int) Math.max(1024L, Math.min(MAX_ARRAY_SIZE, guess));
+	}
+
+	/**
+	 * @return a buffer of at least minLen bytes from the pool, or a new one.
+	 */
+	private static byte[] takeBuffer(ArrayBlockingQueue<byte[]> pool, int minLen) {
+		byte[] buf = pool.poll();
+		if ((buf == null) || (buf.length < minLen))
+			// A buffer that is too small is dropped; it is replaced by a larger one:
+			buf = new byte[minLen];
+		return buf;
+	}
+
+	private static void growBatchData(Batch batch) throws IOException {
+		if (batch.data.length >= MAX_ARRAY_SIZE)
+			throw new IOException("Gzip members starting at " + batch.start + " inflate to more than " + 
+								  MAX_ARRAY_SIZE + " bytes; too many to inflate in parallel.");
+		byte[] newData = new byte[(int) Math.min(MAX_ARRAY_SIZE, 2L * batch.data.length)];
+		System.arraycopy(batch.data, 0, newData, 0, batch.len);
+		batch.data = newData;
+	}
+
+	private static int readIntLE(byte[] bytes, int pos) {
+		return (bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8) |
+			   ((bytes[pos + 2] & 0xff) << 16) | ((bytes[pos + 3] & 0xff) << 24);
+	}
+
+	/*-----------------------------------------------------
+	| Consumer Side
+	------------------------*/
+
+	/**
+	 * Make sure currentBatch has unread bytes.
+	 * @return false at end of stream.
+	 */
+	private boolean ensureBytes() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed.");
+		while ((currentBatch == null) || (currentPos >= currentBatch.len)) {
+			if (currentBatch != null) {
+				compressedPos = currentBatch.end;
+				dataBufPool.offer(currentBatch.data);
+				currentBatch = null;
+			}
+			if (inflatingBatches.isEmpty())
+				return false;
+			Future<Batch> next = inflatingBatches.removeFirst();
+			try {
+				currentBatch = next.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for inflated data.");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException("Inflating failed: " + cause);
+			}
+			currentPos = 0;
+			submitBatches();
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureBytes())
+			return -1;
+		return currentBatch.data[currentPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureBytes())
+			return -1;
+		int numToCopy = Math.min(len, currentBatch.len - currentPos);
+		System.arraycopy(currentBatch.data, currentPos, b, off, numToCopy);
+		currentPos += numToCopy;
+		return numToCopy;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long numSkipped = 0;
+		while ((numSkipped < n) && ensureBytes()) {
+			int numInBatch = (int) Math.min(n - numSkipped, currentBatch.len - currentPos);
+			currentPos += numInBatch;
+			numSkipped += numInBatch;
+		}
+		return numSkipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (currentBatch == null) ? 0 : currentBatch.len - currentPos;
+	}
+
+	/**
+	 * @return file offset of the first compressed byte not yet
+	 *         delivered in full to the consumer.
+	 */
+	public long getCompressedPos() {
+		return compressedPos;
+	}
+
+	/**
+	 * @return nanoseconds the workers spent reading the file, summed over the workers.
+	 */
+	public long getReadNanos() {
+		return readNanos.get();
+	}
+
+	/**
+	 * @return nanoseconds the workers spent inflating, summed over the workers.
+	 */
+	public long getInflateNanos() {
+		return inflateNanos.get();
+	}
+
+	/**
+	 * Stop the workers, release the inflaters, and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		workers.shutdownNow();
+		pendingBatches.clear();
+		inflatingBatches.clear();
+		currentBatch = null;
+		// Let busy workers hand back their inflaters before the pool
+		// is drained; those that finish later end their own. Ending an
+		// inflater in use would pull native memory out from under its worker:
+		try {
+			workers.awaitTermination(CLOSE_TIMEOUT_MSECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Inflater inflater;
+		while ((inflater = inflaterPool.poll()) != null)
+			inflater.end();
+		fileIn.close();
+	}
+}
@@ -0,0 +1,269 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads ahead of its consumer in a background thread. The thread
+ * fills blocks from the wrapped stream, and queues them for the
+ * consumer. Consumed blocks go back to the thread for refilling,
+ * so the blocks form a ring of fixed size and depth: at most
+ * depth * blockSize bytes are held ahead of the consumer.
+ *
+ * Wrapped around a GZIPInputStream, both the reading and the
+ * inflating happen in the background thread, while the consumer
+ * parses.
+ *
+ * Stall counters tell which side waits for which: producer stalls
+ * mean the consumer is the bottleneck (the ring was full); consumer
+ * stalls mean I/O or inflation is (the ring was empty).
+ *
+ * skip() cannot seek the wrapped stream, because the background
+ * thread has usually read past the target already. Skipped bytes are
+ * read and dropped.
+ *
+ * @author paepcke
+ *
+ */
+public class PrefetchInputStream extends InputStream {
+
+	private static final int JOIN_TIMEOUT_MSECS = 1000;
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	private static class Block {
+		byte[] data;
+		// Number of valid bytes; -1 marks end of stream:
+		int len = 0;
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final InputStream in;
+	// Blocks filled by the producer, waiting for the consumer:
+	private final ArrayBlockingQueue<Block> fullBlocks;
+	// Blocks the consumer is done with, waiting to be refilled:
+	private final ArrayBlockingQueue<Block> emptyBlocks;
+	private final Thread producer;
+	private volatile IOException producerException = null;
+	// Error of the underlying stream, held back until the bytes read before it are delivered:
+	private IOException pendingException = null;
+	private volatile boolean closed = false;
+
+	private Block currentBlock = null;
+	private int currentPos = 0;
+	private boolean atEOF = false;
+
+	private volatile long numProducerStalls = 0L;
+	private volatile long producerStallNanos = 0L;
+	private long numConsumerStalls = 0L;
+	private long consumerStallNanos = 0L;
+
+	/**
+	 * Create the ring, and start reading ahead.
+	 * @param theIn stream to read from
+	 * @param blockSize number of bytes per block
+	 * @param depth number of blocks in the ring
+	 */
+	public PrefetchInputStream(InputStream theIn, int blockSize, int depth) {
+		in = theIn;
+		depth = Math.max(2, depth);
+		fullBlocks = new ArrayBlockingQueue<Block>(depth);
+		emptyBlocks = new ArrayBlockingQueue<Block>(depth);
+		for (int i=0; i<depth; i++)
+			emptyBlocks.add(new Block(blockSize));
+		producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "WarcPrefetch");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/*-----------------------------------------------------
+	| produce()
+	------------------------*/
+
+	/**
+	 * Background thread body: fill empty blocks until end of
+	 * stream, error, or close().
+	 */
+	private void produce() {
+		try {
+			while (!closed) {
+				Block block = emptyBlocks.poll();
+				if (block == null) {
+					long stallStart = System.nanoTime();
+					block = emptyBlocks.take();
+					numProducerStalls++;
+					producerStallNanos += System.nanoTime() - stallStart;
+				}
+				block.len = fill(block.data);
+				fullBlocks.put(block);
+				if (block.len < 0)
+					return;
+			}
+		} catch (InterruptedException e) {
+			// close() was called.
+		} catch (IOException e) {
+			if (!closed) {
+				producerException = e;
+				// Wake up the consumer; there is always room, because
+				// the failed block never made it into fullBlocks:
+				Block eofBlock = new Block(0);
+				eofBlock.len = -1;
+				fullBlocks.offer(eofBlock);
+			}
+		}
+	}
+
+	/**
+	 * Read until the buffer is full, or until end of stream.
+	 * @return number of bytes read, or -1 if the stream was
+	 *         at its end before the first byte.
+	 */
+	private int fill(byte[] buf) throws IOException {
+		if (pendingException != null)
+			throw pendingException;
+		int numFilled = 0;
+		while (numFilled < buf.length) {
+			int numRead;
+			try {
+				numRead = in.read(buf, numFilled, buf.length - numFilled);
+			} catch (IOException e) {
+				if (numFilled == 0)
+					throw e;
+				// Hand out the bytes read before the error first. A
+				// reader that skips bad data needs them:
+				pendingException = e;
+				break;
+			}
+			if (numRead < 0)
+				break;
+			numFilled += numRead;
+		}
+		return ((numFilled == 0) && (buf.length > 0)) ? -1 : numFilled;
+	}
+
+	/*-----------------------------------------------------
+	| Consumer Side
+	------------------------*/
+
+	/**
+	 * Make sure currentBlock has unread bytes.
+	 * @return false at end of stream.
+	 */
+	private boolean ensureBytes() throws IOException {
+		while (!atEOF && ((currentBlock == null) || (currentPos >= currentBlock.len))) {
+			if (currentBlock != null) {
+				emptyBlocks.offer(currentBlock);
+				currentBlock = null;
+			}
+			Block block = fullBlocks.poll();
+			if (block == null) {
+				long stallStart = System.nanoTime();
+				try {
+					block = fullBlocks.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for prefetched data.");
+				}
+				numConsumerStalls++;
+				consumerStallNanos += System.nanoTime() - stallStart;
+			}
+			if (block.len < 0) {
+				atEOF = true;
+				if (producerException != null)
+					throw producerException;
+				break;
+			}
+			currentBlock = block;
+			currentPos = 0;
+		}
+		return !atEOF;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureBytes())
+			return -1;
+		return currentBlock.data[currentPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureBytes())
+			return -1;
+		int numToCopy = Math.min(len, currentBlock.len - currentPos);
+		System.arraycopy(currentBlock.data, currentPos, b, off, numToCopy);
+		currentPos += numToCopy;
+		return numToCopy;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long numSkipped = 0;
+		while ((numSkipped < n) && ensureBytes()) {
+			int numInBlock = (int) Math.min(n - numSkipped, currentBlock.len - currentPos);
+			currentPos += numInBlock;
+			numSkipped += numInBlock;
+		}
+		return numSkipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return ((currentBlock == null) || atEOF) ? 0 : currentBlock.len - currentPos;
+	}
+
+	/**
+	 * Stop the background thread, and close the wrapped stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		producer.interrupt();
+		try {
+			producer.join(JOIN_TIMEOUT_MSECS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (producer.isAlive())
+			logger.warn("Prefetch thread did not stop within " + JOIN_TIMEOUT_MSECS + "msecs; closing its stream anyway.");
+		in.close();
+	}
+
+	/*-----------------------------------------------------
+	| Stall Counters
+	------------------------*/
+
+	/**
+	 * @return number of times the background thread found the ring full.
+	 */
+	public long getNumProducerStalls() {
+		return numProducerStalls;
+	}
+
+	public long getProducerStallMillis() {
+		return producerStallNanos / 1000000L;
+	}
+
+	/**
+	 * @return number of times the consumer found the ring empty.
+	 */
+	public long getNumConsumerStalls() {
+		return numConsumerStalls;
+	}
+
+	public long getConsumerStallMillis() {
+		return consumerStallNanos / 1000000L;
+	}
+}
@@ -0,0 +1,263 @@
+package pigir.warc;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers records that hold only the mandatory header fields, and
+ * WARC-Target-URI, from the header sidecar of the split's WARC file
+ * (see WarcHeaderSidecar), rather than from the file itself. The
+ * archive is neither read nor inflated. WarcLoader uses this reader
+ * when a query needs no content and no optional header fields.
+ *
+ * A record belongs to the split in which its file offset lies, as
+ * with the other readers. Splits whose file has no sidecar, or a
+ * stale one, are passed on to WarcRecordReader; so are splits that
+ * need payload digests for deduplication. If content is asked for
+ * before the first record is delivered, the reader switches to the
+ * archive as well. The target URI is read from the sidecar only if
+ * there is a record filter; one set after initialize() is picked up
+ * before the first record.
+ *
+ * @author paepcke
+ *
+ */
+public class SidecarWarcRecordReader extends WarcRecordReader {
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	// False if the split is read by the superclass:
+	private boolean isFromSidecar = false;
+	private WarcHeaderSidecar.Reader sidecar = null;
+	private FileSplit split = null;
+	private TaskAttemptContext context = null;
+	private long start;
+	private long end;
+	private boolean isDone = false;
+	private boolean reuseRecord = false;
+	private WarcRecordFilter recordFilter = null;
+	// Whether the sidecar was opened with the target URI columns:
+	private boolean isTargetUriLoaded = false;
+	private long numRecordsDelivered = 0L;
+	private long numRecordsRejected = 0L;
+	private LongWritable keyWarcStreamPos = null;
+	private WarcRecord valueWarcRecord = null;
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext theContext) throws IOException {
+		FileSplit fileSplit = (FileSplit) genericSplit;
+		split = fileSplit;
+		context = theContext;
+		beginSplit(fileSplit, context);
+		isFromSidecar = false;
+		isDone = false;
+		numRecordsDelivered = 0L;
+		numRecordsRejected = 0L;
+		start = fileSplit.getStart();
+		end = start + fileSplit.getLength();
+		reuseRecord = isRecordReuse(context.getConfiguration());
+		recordFilter = getRecordFilter();
+		if ((recordFilter != null) && recordFilter.isEmpty())
+			recordFilter = null;
+		if (getDeduplicator() == null)
+			openSidecar();
+		else
+			sidecar = null;
+		if (sidecar == null) {
+			openSplit(fileSplit, context);
+			return;
+		}
+		isFromSidecar = true;
+		logger.debug("Reading headers of " + fileSplit.getPath() + " from " + start + " to " + end + " from its sidecar.");
+	}
+
+	/**
+	 * Open the sidecar of the split's file, with the target URI columns
+	 * if there is a record filter; the target URI is needed only for
+	 * filtering. Leaves sidecar null if the split cannot be read from it.
+	 */
+	private void openSidecar() throws IOException {
+		Path file = split.getPath();
+		FileSystem fs = file.getFileSystem(context.getConfiguration());
+		isTargetUriLoaded = (recordFilter != null);
+		sidecar = isTargetUriLoaded ?
+				WarcHeaderSidecar.Reader.open(fs, file,
+											  WarcHeaderSidecar.Column.CONTENT_LENGTHS,
+											  WarcHeaderSidecar.Column.TYPES,
+											  WarcHeaderSidecar.Column.DATES,
+											  WarcHeaderSidecar.Column.RECORD_IDS,
+											  WarcHeaderSidecar.Column.HOSTS,
+											  WarcHeaderSidecar.Column.URI_PATHS) :
+				WarcHeaderSidecar.Reader.open(fs, file,
+											  WarcHeaderSidecar.Column.CONTENT_LENGTHS,
+											  WarcHeaderSidecar.Column.TYPES,
+											  WarcHeaderSidecar.Column.DATES,
+											  WarcHeaderSidecar.Column.RECORD_IDS);
+		// Records of unknown offset are all read by the split at 0:
+		if ((sidecar != null) && !sidecar.isOffsetsKnown() && (start != 0))
+			sidecar = null;
+		if ((sidecar != null) && (getMetrics() != null))
+			getMetrics().add(WarcReadMetrics.Counters.FILE_BYTES_READ, sidecar.getNumBytesRead());
+	}
+
+	@Override
+	public void setRecordReuse(boolean doReuse) {
+		super.setRecordReuse(doReuse);
+		reuseRecord = doReuse;
+	}
+
+	@Override
+	public void setRecordFilter(WarcRecordFilter theFilter) {
+		super.setRecordFilter(theFilter);
+		recordFilter = ((theFilter == null) || theFilter.isEmpty()) ? null : theFilter;
+	}
+
+	@Override
+	public long getNumRecordsRejected() {
+		return isFromSidecar ? numRecordsRejected : super.getNumRecordsRejected();
+	}
+
+	/*-----------------------------------------------------
+	| nextKeyValue()
+	------------------------*/
+
+	@Override
+	public boolean nextKeyValue(boolean readContents) throws IOException {
+		if (isFromSidecar && readContents) {
+			if (numRecordsDelivered > 0)
+				throw new IOException("Content was asked for after records were read from the header sidecar of " +
+									  getCurrentFile() + ".");
+			isFromSidecar = false;
+			sidecar = null;
+			openSplit(split, context);
+		}
+		if (isFromSidecar && (recordFilter != null) && !isTargetUriLoaded) {
+			// The filter was set after initialize(), as WarcLoader does, and
+			// needs the target URIs that were left out:
+			if (numRecordsDelivered > 0)
+				throw new IOException("A record filter was set after records were read from the header sidecar of " +
+									  getCurrentFile() + ".");
+			openSidecar();
+			if (sidecar == null) {
+				isFromSidecar = false;
+				openSplit(split, context);
+			}
+		}
+		if (!isFromSidecar)
+			return super.nextKeyValue(readContents);
+		if (isDone)
+			return false;
+		if (keyWarcStreamPos == null)
+			keyWarcStreamPos = new LongWritable();
+		WarcRecord record = (reuseRecord && (valueWarcRecord != null)) ? valueWarcRecord : new WarcRecord();
+		WarcReadMetrics metrics = getMetrics();
+		long startNanos = (metrics == null) ? 0L : System.nanoTime();
+		while (sidecar.next()) {
+			long offset = sidecar.getOffset();
+			if (sidecar.isOffsetsKnown()) {
+				if (offset < start)
+					continue;
+				if (offset >= end)
+					break;
+			}
+			fillRecord(record);
+			if ((recordFilter != null) && !recordFilter.accept(record)) {
+				numRecordsRejected++;
+				continue;
+			}
+			if (metrics != null) {
+				long nowNanos = System.nanoTime();
+				metrics.add(WarcReadMetrics.Counters.PARSE_MSECS, nowNanos - startNanos);
+				metrics.add(WarcReadMetrics.Counters.RECORDS_FROM_HEADER_SIDECAR, 1L);
+				metrics.recordRead(record, false);
+				metrics.maybeLogSummary(nowNanos, getCurrentFile());
+			}
+			numRecordsDelivered++;
+			valueWarcRecord = record;
+			keyWarcStreamPos.set(offset);
+			return true;
+		}
+		isDone = true;
+		valueWarcRecord = null;
+		keyWarcStreamPos = null;
+		return false;
+	}
+
+	/**
+	 * Refill the record from the sidecar's current entry.
+	 */
+	private void fillRecord(WarcRecord record) {
+		record.clearRecord();
+		addHeader(record, WarcRecord.WARC_RECORD_ID, sidecar.getRecordId());
+		long contentLength = sidecar.getContentLength();
+		if (contentLength >= 0)
+			addHeader(record, WarcRecord.CONTENT_LENGTH, Long.toString(contentLength));
+		addHeader(record, WarcRecord.WARC_DATE, sidecar.getDate());
+		addHeader(record, WarcRecord.WARC_TYPE, sidecar.getType());
+		addHeader(record, WarcRecord.WARC_TARGET_URI, sidecar.getTargetUri());
+		record.setDeclaredContentLength(contentLength);
+		record.setRecordStartPos(sidecar.getOffset());
+	}
+
+	private static void addHeader(WarcRecord record, String lowerCaseName, String value) {
+		if (value != null)
+			record.addHeader(lowerCaseName, value);
+	}
+
+	/*-----------------------------------------------------
+	| RecordReader Methods
+	------------------------*/
+
+	@Override
+	public LongWritable getCurrentKey() {
+		return isFromSidecar ? keyWarcStreamPos : super.getCurrentKey();
+	}
+
+	@Override
+	public WarcRecord getCurrentValue() {
+		return isFromSidecar ? valueWarcRecord : super.getCurrentValue();
+	}
+
+	@Override
+	public long getCurrentRecordFileOffset() {
+		if (!isFromSidecar)
+			return super.getCurrentRecordFileOffset();
+		return ((valueWarcRecord == null) || !sidecar.isOffsetsKnown()) ? -1L : sidecar.getOffset();
+	}
+
+	@Override
+	public long getCurrentRecordFileLength() {
+		if (!isFromSidecar)
+			return super.getCurrentRecordFileLength();
+		return ((valueWarcRecord == null) || !sidecar.isOffsetsKnown()) ? -1L : sidecar.getLength();
+	}
+
+	@Override
+	public float getProgress() {
+		if (!isFromSidecar)
+			return super.getProgress();
+		if (isDone)
+			return 1.0f;
+		if (!sidecar.isOffsetsKnown())
+			return (sidecar.getNumRecords() == 0) ? 0.0f : (sidecar.getRecordIndex() + 1) / (float) sidecar.getNumRecords();
+		if (start == end)
+			return 0.0f;
+		return Math.max(0.0f, Math.min(1.0f, (sidecar.getOffset() - start) / (float) (end - start)));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (isFromSidecar && (getMetrics() != null))
+			getMetrics().add(WarcReadMetrics.Counters.RECORDS_REJECTED_BY_FILTER, numRecordsRejected);
+		sidecar = null;
+		// Publishes the metrics:
+		super.close();
+	}
+}
@@ -0,0 +1,192 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * Looks up URLs in a CDX-style index, as written by sorting the
+ * output of WarcCdxLoader by URL and storing it with PigStorage.
+ * The index is a directory of part files (or a single file) of
+ * tab separated lines:
+ *
+ *     <url>\t<date>\t<file>\t<offset>\t<length>
+ *
+ * Each part file is sorted by URL, as Pig's ORDER BY leaves them
+ * (String.compareTo() order). A lookup binary-searches every part
+ * file with positioned reads, so it touches O(log n) lines per part,
+ * and never reads an index file in full.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcCdxIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int READ_CHUNK_SIZE = 4096;
+
+	/**
+	 * One index line: where a record for a URL lives.
+	 */
+	public static class Entry {
+		public final String url;
+		public final String date;
+		public final String file;
+		public final long offset;
+		public final long length;
+
+		public Entry(String theUrl, String theDate, String theFile, long theOffset, long theLength) {
+			url = theUrl;
+			date = theDate;
+			file = theFile;
+			offset = theOffset;
+			length = theLength;
+		}
+
+		@Override
+		public String toString() {
+			return url + " " + date + " " + file + ":" + offset + "+" + length;
+		}
+	}
+
+	private Path[] partFiles;
+	private long[] partLengths;
+	private FSDataInputStream[] partStreams;
+	private byte[] chunk = new byte[READ_CHUNK_SIZE];
+
+	/**
+	 * @param fs file system holding the index
+	 * @param indexPath the index directory, or a single index file
+	 * @throws IOException
+	 */
+	public WarcCdxIndex(FileSystem fs, Path indexPath) throws IOException {
+		FileStatus[] parts;
+		if (fs.getFileStatus(indexPath).isDir()) {
+			parts = fs.listStatus(indexPath, new PathFilter() {
+				public boolean accept(Path path) {
+					// Leave out _logs, _SUCCESS, .crc files and the like:
+					return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+				}
+			});
+		} else
+			parts = new FileStatus[] {fs.getFileStatus(indexPath)};
+		Arrays.sort(parts);
+		partFiles = new Path[parts.length];
+		partLengths = new long[parts.length];
+		partStreams = new FSDataInputStream[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			partFiles[i] = parts[i].getPath();
+			partLengths[i] = parts[i].getLen();
+			partStreams[i] = fs.open(partFiles[i]);
+		}
+	}
+
+	/*-----------------------------------------------------
+	| lookup()
+	------------------------*/
+
+	/**
+	 * @param url the URL, exactly as in the records' WARC-Target-URI
+	 * @return all index entries for the URL, in index order. Empty if there are none.
+	 * @throws IOException
+	 */
+	public List<Entry> lookup(String url) throws IOException {
+		ArrayList<Entry> res = new ArrayList<Entry>();
+		for (int part=0; part<partFiles.length; part++) {
+			long lineStart = findFirstLineAtOrAfter(part, url);
+			while (lineStart < partLengths[part]) {
+				long lineEnd = lineEnd(part, lineStart);
+				String line = readString(part, lineStart, lineEnd);
+				lineStart = lineEnd + 1;
+				if (!urlOf(line).equals(url))
+					break;
+				res.add(parseLine(line));
+			}
+		}
+		return res;
+	}
+
+	public void close() throws IOException {
+		for (FSDataInputStream partStream : partStreams)
+			partStream.close();
+	}
+
+	/*-----------------------------------------------------
+	| Binary Search
+	------------------------*/
+
+	/**
+	 * Binary search over byte offsets. For an offset p, look at the
+	 * first line that starts at or after p. The smallest p at which that
+	 * line's URL is >= url (or at which there is no such line) leads to
+	 * the first line for the URL, if any.
+	 * @return offset of the first line whose URL is >= url, or the part's length.
+	 */
+	private long findFirstLineAtOrAfter(int part, String url) throws IOException {
+		long lo = 0;
+		long hi = partLengths[part];
+		while (lo < hi) {
+			long mid = lo + (hi - lo) / 2;
+			long lineStart = lineStartAtOrAfter(part, mid);
+			if ((lineStart >= partLengths[part]) ||
+				(urlOf(readString(part, lineStart, lineEnd(part, lineStart))).compareTo(url) >= 0))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lineStartAtOrAfter(part, lo);
+	}
+
+	private long lineStartAtOrAfter(int part, long pos) throws IOException {
+		if (pos == 0)
+			return 0;
+		// A line starts at pos if the byte before it is a newline:
+		return Math.min(partLengths[part], lineEnd(part, pos - 1) + 1);
+	}
+
+	/**
+	 * @return offset of the first newline at or after pos, or the part's length.
+	 */
+	private long lineEnd(int part, long pos) throws IOException {
+		while (pos < partLengths[part]) {
+			int numToRead = (int) Math.min(chunk.length, partLengths[part] - pos);
+			partStreams[part].readFully(pos, chunk, 0, numToRead);
+			for (int i=0; i<numToRead; i++) {
+				if (chunk[i] == '\n')
+					return pos + i;
+			}
+			pos += numToRead;
+		}
+		return partLengths[part];
+	}
+
+	private String readString(int part, long from, long to) throws IOException {
+		byte[] bytes = new byte[(int) (to - from)];
+		partStreams[part].readFully(from, bytes, 0, bytes.length);
+		return new String(bytes, UTF8);
+	}
+
+	private static String urlOf(String line) {
+		int tabPos = line.indexOf('\t');
+		return (tabPos < 0) ? line : line.substring(0, tabPos);
+	}
+
+	private Entry parseLine(String line) throws IOException {
+		String[] fields = line.split("\t");
+		if (fields.length < 5)
+			throw new IOException("Malformed CDX index line: '" + line + "'.");
+		try {
+			return new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3].trim()), Long.parseLong(fields[4].trim()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed offset or length in CDX index line: '" + line + "'.");
+		}
+	}
+}
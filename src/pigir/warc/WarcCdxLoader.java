@@ -0,0 +1,115 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+
+/**
+ * @author paepcke
+ *
+ * Loads one index entry per WARC record, for building a CDX-style
+ * URL index of a crawl. Tuples have the schema:
+ *    (url:chararray, date:chararray, file:chararray, offset:long, length:long)
+ *
+ * url is the record's WARC-Target-URI, date its WARC-Date. Reading
+ * 'length' bytes of 'file' at 'offset' yields the record. For
+ * gzipped files the bytes are the gzip member holding the record.
+ * Offsets in gzipped files require the file's member index (see
+ * WarcGzipMemberIndex); records of gzipped files without one are
+ * left out. So are records without a target URI. Content is never
+ * read, only skipped.
+ *
+ * Sort the entries by URL and store them with PigStorage to get an
+ * index that WarcFetchLoader can search:
+ *     entries = LOAD 'crawl/' USING pigir.warc.WarcCdxLoader('response')
+ *               AS (url:chararray, date:chararray, file:chararray, offset:long, length:long);
+ *     sorted  = ORDER entries BY url, date;
+ *     STORE sorted INTO 'crawl.cdx' USING PigStorage();
+ *
+ * See PigScripts/CommandLineUtils/buildWarcCdxIndex.pig. The optional
+ * constructor arguments restrict the records to index, as for WarcLoader.
+ */
+public class WarcCdxLoader extends WarcLoader {
+
+	private TupleFactory mTupleFactory = TupleFactory.getInstance();
+	private long numRecordsWithoutOffset = 0L;
+
+	public WarcCdxLoader() {
+		super();
+	}
+
+	/**
+	 * Index only records of the given WARC types.
+	 * @param warcTypes space separated list of WARC-Type values, like "response".
+	 */
+	public WarcCdxLoader(String warcTypes) {
+		super(warcTypes);
+	}
+
+	/**
+	 * @see WarcLoader#WarcLoader(String, String, String, String)
+	 */
+	public WarcCdxLoader(String warcTypes, String targetUriRegex, String fromDate, String toDate) {
+		super(warcTypes, targetUriRegex, fromDate, toDate);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public InputFormat getInputFormat() throws IOException {
+		InputFormat inputFormat = super.getInputFormat();
+		// Gzipped splits must be read member by member to learn the
+		// members' offsets. Only this loader's readers are told; other
+		// loads of the job keep reading at full speed:
+		if (inputFormat instanceof WarcPigTextInputFormat)
+			((WarcPigTextInputFormat) inputFormat).setRecordFileOffsets(true);
+		return inputFormat;
+	}
+
+	@Override
+	public Tuple getNext() throws IOException {
+		while (in.nextKeyValue(false)) {
+			WarcRecord warcRec = in.getCurrentValue();
+			String url = warcRec.getHeaderValue(WarcHeaderField.WARC_TARGET_URI);
+			if (url == null)
+				continue;
+			long offset = in.getCurrentRecordFileOffset();
+			if (offset < 0) {
+				if (numRecordsWithoutOffset++ == 0)
+					logger.warn("File offsets of the records in " + in.getCurrentFile() + " are unknown; they are not indexed.");
+				continue;
+			}
+			Tuple t = mTupleFactory.newTuple(5);
+			t.set(0, url);
+			t.set(1, warcRec.getHeaderValue(WarcHeaderField.WARC_DATE));
+			// Split parts may come from different files:
+			t.set(2, in.getCurrentFile().toString());
+			t.set(3, offset);
+			t.set(4, in.getCurrentRecordFileLength());
+			return t;
+		}
+		return null;
+	}
+
+	/**
+	 * All columns are cheap, so projections are not pushed.
+	 */
+	@Override
+	public List<OperatorSet> getFeatures() {
+		return null;
+	}
+
+	/**
+	 * Pig calls this on every LoadPushDown loader, whatever getFeatures()
+	 * says. getNext() always delivers all five columns, so the projection
+	 * is declined, and left to Pig; accepting it, as WarcLoader does,
+	 * would shift the columns that are kept.
+	 */
+	@Override
+	public RequiredFieldResponse pushProjection(RequiredFieldList requiredFieldList) throws FrontendException {
+		return new RequiredFieldResponse(false);
+	}
+}
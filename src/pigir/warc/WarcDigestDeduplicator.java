@@ -0,0 +1,280 @@
+package pigir.warc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+import org.apache.log4j.Logger;
+
+/**
+ * Recognizes records whose payload was seen before, by their
+ * WARC-Payload-Digest. Recrawls hold many such copies. WarcParser
+ * asks the deduplicator about every wanted record right after its
+ * header is parsed, so the content of a duplicate is never read.
+ * Depending on Constants.DEDUP_PROP_NAME, duplicates are dropped,
+ * or delivered without content (see WarcRecord.isDuplicatePayload()).
+ *
+ * There are two ways to tell duplicates:
+ *
+ *   o Within a split: digests seen so far are kept in a Bloom filter,
+ *     and a record is a duplicate if its digest is (probably) in the
+ *     filter. The filter is sized for Constants.DEDUP_EXPECTED_RECORDS_PROP_NAME
+ *     records at a false positive rate of
+ *     Constants.DEDUP_FALSE_POSITIVE_RATE_PROP_NAME; a false positive
+ *     takes a record for a duplicate that is not one.
+ *
+ *   o Across the crawl: a table of the digests that occur more than once,
+ *     each with the record ID of the copy to keep, is given in
+ *     Constants.DEDUP_TABLE_PROP_NAME. WarcLoader ships it to the tasks
+ *     through the distributed cache. A record is a duplicate if its digest
+ *     is in the table and its record ID is not the one to keep. The table
+ *     is tab separated text, such as the output of this pre-pass:
+ *
+ *         SET pigir.warc.loader.optional.headers.map 'true';
+ *         recs   = LOAD 'crawl' USING pigir.warc.WarcLoader();
+ *         d      = FOREACH recs GENERATE $4#'warc-payload-digest' AS digest, $2 AS date, $0 AS id;
+ *         d      = FILTER d BY digest IS NOT NULL;
+ *         g      = GROUP d BY digest;
+ *         firsts = FOREACH g {
+ *                      byDate = ORDER d BY date;
+ *                      first  = LIMIT byDate 1;
+ *                      GENERATE group, FLATTEN(first.id), COUNT(d) AS n;
+ *                  }
+ *         dups   = FILTER firsts BY n > 1;
+ *         STORE (FOREACH dups GENERATE $0, $1) INTO 'crawl-digests';
+ *
+ *     The table is held in memory, so it lists only repeated digests.
+ *
+ * Records without a payload digest are never duplicates. An instance
+ * serves one split, or all parts of a combined split, and must not
+ * be shared between threads.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcDigestDeduplicator {
+
+	public static final String DROP_MODE = "drop";
+	public static final String HEADER_ONLY_MODE = "header";
+
+	private static final String TABLE_LINK_NAME = "pigir-warc-dedup-table";
+
+	private static Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	// The table is the same for every split of a task. Tasks may run
+	// several readers at once (see ConcurrentWarcRecordReader):
+	private static String cachedTableName = null;
+	private static HashMap<String, String> cachedTable = null;
+
+	private boolean dropDuplicates;
+	// Digest to ID of the record to keep, or null:
+	private HashMap<String, String> table;
+	// Digests seen in this split, if there is no table:
+	private BloomFilter seenDigests = null;
+	private long numDuplicates = 0L;
+
+	/*-----------------------------------------------------
+	| forSplit()
+	------------------------*/
+
+	/**
+	 * @param conf the job's configuration
+	 * @return a deduplicator for one split, or null if deduplication is off.
+	 * @throws IOException if the digest table cannot be read
+	 */
+	public static WarcDigestDeduplicator forSplit(Configuration conf) throws IOException {
+		String mode = conf.get(Constants.DEDUP_PROP_NAME);
+		if ((mode == null) || mode.trim().isEmpty() || mode.trim().equalsIgnoreCase("off"))
+			return null;
+		mode = mode.trim().toLowerCase();
+		if (!mode.equals(DROP_MODE) && !mode.equals(HEADER_ONLY_MODE))
+			throw new IOException("Value of " + Constants.DEDUP_PROP_NAME + " must be '" + DROP_MODE +
+								  "', '" + HEADER_ONLY_MODE + "' or 'off', not '" + mode + "'.");
+		return new WarcDigestDeduplicator(mode.equals(DROP_MODE), getTable(conf),
+										  conf.getLong(Constants.DEDUP_EXPECTED_RECORDS_PROP_NAME,
+												  	   Constants.DEFAULT_DEDUP_EXPECTED_RECORDS),
+										  conf.getFloat(Constants.DEDUP_FALSE_POSITIVE_RATE_PROP_NAME,
+												  		Constants.DEFAULT_DEDUP_FALSE_POSITIVE_RATE));
+	}
+
+	/**
+	 * @param doDrop true to drop duplicates, false to deliver them without content
+	 * @param theTable digest to ID of the record to keep; null to
+	 *        find duplicates with a Bloom filter instead
+	 * @param expectedNumRecords number of records the Bloom filter is sized for
+	 * @param falsePositiveRate the Bloom filter's false positive rate at that size
+	 */
+	public WarcDigestDeduplicator(boolean doDrop,
+								  HashMap<String, String> theTable,
+								  long expectedNumRecords,
+								  double falsePositiveRate) {
+		dropDuplicates = doDrop;
+		table = theTable;
+		if (table == null) {
+			// Optimal Bloom filter for n keys at rate p: m = -n ln(p) / (ln 2)^2 bits, k = m/n ln 2 hashes:
+			long n = Math.max(1L, expectedNumRecords);
+			double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+			long numBits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+			int vectorSize = (int) Math.min(Integer.MAX_VALUE - 64, Math.max(64L, numBits));
+			int numHashes = Math.max(1, (int) Math.round((double) vectorSize / n * Math.log(2)));
+			seenDigests = new BloomFilter(vectorSize, numHashes, Hash.MURMUR_HASH);
+		}
+	}
+
+	/*-----------------------------------------------------
+	| isDuplicate()
+	------------------------*/
+
+	/**
+	 * Decide whether a record is a duplicate, and remember its digest.
+	 * @param record a record whose header has been parsed
+	 * @return true if the record's payload is a copy of an earlier one.
+	 */
+	public boolean isDuplicate(WarcRecord record) {
+		String digest = record.getHeaderValue(WarcHeaderField.WARC_PAYLOAD_DIGEST);
+		if (digest == null)
+			return false;
+		boolean isDup;
+		if (table != null) {
+			String keeperId = table.get(digest);
+			isDup = (keeperId != null) && !keeperId.equals(record.getHeaderValue(WarcHeaderField.WARC_RECORD_ID));
+		} else {
+			Key key = new Key(digest.getBytes());
+			isDup = seenDigests.membershipTest(key);
+			if (!isDup)
+				seenDigests.add(key);
+		}
+		if (isDup)
+			numDuplicates++;
+		return isDup;
+	}
+
+	/**
+	 * @return true if duplicates are dropped, false if they are delivered without content.
+	 */
+	public boolean isDropMode() {
+		return dropDuplicates;
+	}
+
+	/**
+	 * @return number of duplicates found so far.
+	 */
+	public long getNumDuplicates() {
+		return numDuplicates;
+	}
+
+	/*-----------------------------------------------------
+	| Digest Table
+	------------------------*/
+
+	/**
+	 * Have the digest table, if one is configured, copied to the task
+	 * nodes. Called from the loader's setLocation(), which Pig calls on
+	 * the front end while it sets up the job, and may call more than
+	 * once; the table is added only once.
+	 * @param conf the job's configuration
+	 * @throws IOException
+	 */
+	public static void addTableToDistributedCache(Configuration conf) throws IOException {
+		String tableName = conf.get(Constants.DEDUP_TABLE_PROP_NAME);
+		if ((tableName == null) || (conf.get(Constants.DEDUP_PROP_NAME) == null))
+			return;
+		URI tableUri = tableUri(tableName, conf);
+		URI[] cacheFiles = DistributedCache.getCacheFiles(conf);
+		if ((cacheFiles != null) && Arrays.asList(cacheFiles).contains(tableUri))
+			return;
+		DistributedCache.addCacheFile(tableUri, conf);
+	}
+
+	/**
+	 * @return the configured table, or null if there is none.
+	 */
+	private static synchronized HashMap<String, String> getTable(Configuration conf) throws IOException {
+		String tableName = conf.get(Constants.DEDUP_TABLE_PROP_NAME);
+		if (tableName == null)
+			return null;
+		if (!tableName.equals(cachedTableName)) {
+			cachedTable = readTable(localTablePath(tableName, conf), conf);
+			cachedTableName = tableName;
+		}
+		return cachedTable;
+	}
+
+	/**
+	 * @return local copy of the table, if the distributed cache made one,
+	 *         else the table itself (as in Pig's local mode).
+	 */
+	private static Path localTablePath(String tableName, Configuration conf) throws IOException {
+		URI tableUri = tableUri(tableName, conf);
+		URI[] cacheFiles = DistributedCache.getCacheFiles(conf);
+		Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+		if ((cacheFiles != null) && (localFiles != null) && (cacheFiles.length == localFiles.length)) {
+			for (int i=0; i<cacheFiles.length; i++) {
+				if (cacheFiles[i].equals(tableUri))
+					return FileSystem.getLocal(conf).makeQualified(localFiles[i]);
+			}
+		}
+		return new Path(tableUri.getScheme(), tableUri.getAuthority(), tableUri.getPath());
+	}
+
+	private static URI tableUri(String tableName, Configuration conf) throws IOException {
+		Path tablePath = new Path(tableName);
+		tablePath = tablePath.getFileSystem(conf).makeQualified(tablePath);
+		try {
+			// The fragment names the link to the local copy in the task's directory:
+			URI uri = tablePath.toUri();
+			return new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, TABLE_LINK_NAME);
+		} catch (URISyntaxException e) {
+			throw new IOException("Bad digest table name " + tableName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read a table file, or all part files of a table directory.
+	 */
+	private static HashMap<String, String> readTable(Path tablePath, Configuration conf) throws IOException {
+		FileSystem fs = tablePath.getFileSystem(conf);
+		FileStatus[] parts;
+		if (fs.getFileStatus(tablePath).isDir()) {
+			parts = fs.listStatus(tablePath, new PathFilter() {
+				public boolean accept(Path path) {
+					// Leave out _logs, _SUCCESS, .crc files and the like:
+					return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+				}
+			});
+		} else
+			parts = new FileStatus[] {fs.getFileStatus(tablePath)};
+		HashMap<String, String> res = new HashMap<String, String>();
+		for (FileStatus part : parts) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(part.getPath()), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if ((fields.length < 2) || fields[0].isEmpty())
+						continue;
+					// Keep the first occurrence, should a digest be listed twice:
+					if (!res.containsKey(fields[0]))
+						res.put(fields[0], fields[1]);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		logger.info("Read " + res.size() + " repeated payload digests from " + tablePath + ".");
+		return res;
+	}
+}
@@ -0,0 +1,177 @@
+package pigir.warc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigTextInputFormat;
+import org.apache.pig.data.Tuple;
+
+import pigir.pigudf.LineAndChunkReader;
+
+/**
+ * @author paepcke
+ *
+ * Fetches selected WARC records by URL, without scanning the crawl.
+ * The load location is a text file of URLs, one per line. Each URL
+ * is looked up in a CDX index built with WarcCdxLoader (see
+ * WarcCdxIndex), and each record found is read with a single
+ * positioned read of its file. Tuples have the same schema as
+ * those of WarcLoader:
+ *
+ *     docs = LOAD 'wantedUrls.txt' USING pigir.warc.WarcFetchLoader('crawl.cdx')
+ *            AS (warcRecordId:chararray, contentLength:int, date:chararray, warc_type:chararray,
+ *                optionalHeaderFlds:bytearray, content:chararray);
+ *
+ * A URL that was crawled several times yields one tuple per capture.
+ * URLs that are not in the index yield nothing. The URL list is split
+ * like any text file, so large lists are fetched by many map tasks.
+ */
+public class WarcFetchLoader extends WarcLoader {
+
+	// Number of WARC files kept open between fetches:
+	private static final int MAX_OPEN_WARC_FILES = 16;
+
+	private String cdxIndexLocation;
+	private WarcCdxIndex cdxIndex = null;
+	@SuppressWarnings("rawtypes")
+	private RecordReader urlReader = null;
+	private Configuration conf = null;
+	private LinkedList<WarcCdxIndex.Entry> pendingEntries = new LinkedList<WarcCdxIndex.Entry>();
+	private WarcRecord fetchedRecord = null;
+
+	@SuppressWarnings("serial")
+	private LinkedHashMap<String, FSDataInputStream> openWarcFiles =
+		new LinkedHashMap<String, FSDataInputStream>(MAX_OPEN_WARC_FILES, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FSDataInputStream> eldest) {
+				if (size() <= MAX_OPEN_WARC_FILES)
+					return false;
+				try {
+					eldest.getValue().close();
+				} catch (IOException e) {
+					logger.warn("Could not close WARC file " + eldest.getKey() + ": " + e.getMessage());
+				}
+				return true;
+			}
+		};
+
+	/**
+	 * @param theCdxIndexLocation directory (or file) of the CDX index, as stored
+	 *        from sorted WarcCdxLoader output.
+	 */
+	public WarcFetchLoader(String theCdxIndexLocation) {
+		super();
+		cdxIndexLocation = theCdxIndexLocation;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public InputFormat getInputFormat() {
+		return new PigTextInputFormat();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepareToRead(RecordReader reader, PigSplit split) {
+		urlReader = reader;
+		conf = split.getConf();
+		readOutputSettings(conf);
+	}
+
+	@Override
+	public Tuple getNext() throws IOException {
+		initColumnPlan();
+		if (cdxIndex == null) {
+			Path indexPath = new Path(cdxIndexLocation);
+			cdxIndex = new WarcCdxIndex(indexPath.getFileSystem(conf), indexPath);
+		}
+		while (true) {
+			while (pendingEntries.isEmpty()) {
+				String url = nextUrl();
+				if (url == null) {
+					close();
+					return null;
+				}
+				pendingEntries.addAll(cdxIndex.lookup(url));
+			}
+			WarcRecord warcRec = fetch(pendingEntries.removeFirst());
+			if (warcRec != null)
+				return makeTuple(warcRec);
+		}
+	}
+
+	/**
+	 * @return the next non-empty line of the URL list, trimmed, or null at its end.
+	 */
+	private String nextUrl() throws IOException {
+		try {
+			while (urlReader.nextKeyValue()) {
+				String url = ((Text) urlReader.getCurrentValue()).toString().trim();
+				if (!url.isEmpty())
+					return url;
+			}
+			return null;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading URL list.");
+		}
+	}
+
+	/*-----------------------------------------------------
+	| fetch()
+	------------------------*/
+
+	/**
+	 * Read the bytes an index entry points to, and parse the record
+	 * for the entry's URL and date out of them.
+	 * @param entry the index entry
+	 * @return the record, or null if the bytes do not hold it.
+	 * @throws IOException
+	 */
+	private WarcRecord fetch(WarcCdxIndex.Entry entry) throws IOException {
+		if (entry.length > Integer.MAX_VALUE)
+			throw new IOException("WARC record at " + entry + " is too large to fetch.");
+		FSDataInputStream warcIn = openWarcFiles.get(entry.file);
+		if (warcIn == null) {
+			Path warcPath = new Path(entry.file);
+			warcIn = warcPath.getFileSystem(conf).open(warcPath);
+			openWarcFiles.put(entry.file, warcIn);
+		}
+		byte[] recordBytes = new byte[(int) entry.length];
+		warcIn.readFully(entry.offset, recordBytes, 0, recordBytes.length);
+
+		InputStream recordIn = new ByteArrayInputStream(recordBytes);
+		if (GzipMemberScanner.isGzipMagic(recordBytes, 0, recordBytes.length))
+			recordIn = new GZIPInputStream(recordIn);
+		WarcParser parser = new WarcParser(new LineAndChunkReader(recordIn, conf));
+		// A gzip member may hold more than one record:
+		while ((fetchedRecord = parser.readNextWarcRecord(isContentWanted(), WarcRecord.NO_RECORD_START_LIMIT, fetchedRecord)) != null) {
+			if (entry.url.equals(fetchedRecord.getHeaderValue(WarcHeaderField.WARC_TARGET_URI)) &&
+				entry.date.equals(fetchedRecord.getHeaderValue(WarcHeaderField.WARC_DATE)))
+				return fetchedRecord;
+		}
+		logger.warn("No record for " + entry.url + " at " + entry + "; index may be stale.");
+		return null;
+	}
+
+	private void close() throws IOException {
+		for (FSDataInputStream warcIn : openWarcFiles.values())
+			warcIn.close();
+		openWarcFiles.clear();
+		if (cdxIndex != null) {
+			cdxIndex.close();
+			cdxIndex = null;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Sidecar index of the gzip member start offsets in a multi-member
+ * .warc.gz file. The index for foo.warc.gz lives in foo.warc.gz.idx.
+ * With the index, WarcPigTextInputFormat can cut splits at member
+ * boundaries, and each WarcRecordReader inflates only its own members.
+ *
+ * File layout (all numbers as Hadoop VLongs, offsets delta-encoded):
+ *
+ *     <magic><version><compressedFileLength><numMembers><offset0><offset1-offset0>...
+ *
+ * The index may be built ahead of time from the command line:
+ *
+ *     hadoop jar PigIR.jar pigir.warc.WarcGzipMemberIndex <warcFile.gz> [<warcFile.gz> ...]
+ *
+ * Jobs may also build missing indexes while they compute their splits
+ * (see Constants.GZIP_INDEX_BUILD_PROP_NAME), but that is off by default:
+ * it inflates every un-indexed file on the machine that submits the job.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcGzipMemberIndex {
+
+	private static final long INDEX_MAGIC = 0x57474958L; // "WGIX"
+	private static final long INDEX_VERSION = 1L;
+
+	private static Logger logger = Logger.getLogger(WarcGzipMemberIndex.class.getName());
+
+	// Length of the .warc.gz file at the time it was indexed. Used
+	// to detect stale indexes:
+	private long fileLength;
+	private long[] memberOffsets;
+
+	/*-----------------------------------------------------
+	| Constructors
+	------------------------*/
+
+	public WarcGzipMemberIndex(long theFileLength, long[] theMemberOffsets) {
+		fileLength = theFileLength;
+		memberOffsets = theMemberOffsets;
+	}
+
+	/*-----------------------------------------------------
+	| indexPathFor()
+	------------------------*/
+
+	/**
+	 * @param warcFile path to a .warc.gz file
+	 * @return path of that file's member index
+	 */
+	public static Path indexPathFor(Path warcFile) {
+		return new Path(warcFile.getParent(), warcFile.getName() + Constants.GZIP_MEMBER_INDEX_SUFFIX);
+	}
+
+	/**
+	 * @return true if the path names a member index, rather than a WARC file.
+	 */
+	public static boolean isIndexPath(Path path) {
+		return path.getName().endsWith(Constants.GZIP_MEMBER_INDEX_SUFFIX);
+	}
+
+	/*-----------------------------------------------------
+	| load()
+	------------------------*/
+
+	/**
+	 * Read the member index of a .warc.gz file.
+	 * @param fs file system holding the WARC file
+	 * @param warcFile path to the .warc.gz file (not to the index)
+	 * @return the index, or null if there is no index, or if the index
+	 *         does not match the current length of the WARC file.
+	 * @throws IOException if an index exists, but cannot be read.
+	 */
+	public static WarcGzipMemberIndex load(FileSystem fs, Path warcFile) throws IOException {
+		Path indexPath = indexPathFor(warcFile);
+		if (!fs.exists(indexPath))
+			return null;
+		FSDataInputStream indexIn = fs.open(indexPath);
+		try {
+			if (WritableUtils.readVLong(indexIn) != INDEX_MAGIC)
+				throw new IOException("File " + indexPath + " is not a WARC gzip member index.");
+			long version = WritableUtils.readVLong(indexIn);
+			if (version != INDEX_VERSION)
+				throw new IOException("Unsupported WARC gzip member index version " + version + " in " + indexPath + ".");
+			long indexedFileLength = WritableUtils.readVLong(indexIn);
+			int numMembers = (int) WritableUtils.readVLong(indexIn);
+			long[] offsets = new long[numMembers];
+			long offset = 0;
+			for (int i=0; i<numMembers; i++) {
+				offset += WritableUtils.readVLong(indexIn);
+				offsets[i] = offset;
+			}
+			long actualFileLength = fs.getFileStatus(warcFile).getLen();
+			if (indexedFileLength != actualFileLength) {
+				logger.warn("Ignoring stale gzip member index " + indexPath + ": indexed file length " +
+							indexedFileLength + ", actual length " + actualFileLength + ".");
+				return null;
+			}
+			return new WarcGzipMemberIndex(indexedFileLength, offsets);
+		} finally {
+			indexIn.close();
+		}
+	}
+
+	/*-----------------------------------------------------
+	| build()
+	------------------------*/
+
+	/**
+	 * Find the start offset of every gzip member in a .warc.gz file.
+	 * This inflates the entire file once.
+	 * @param fs file system holding the WARC file
+	 * @param warcFile path to the .warc.gz file
+	 * @return a new index
+	 * @throws IOException
+	 */
+	public static WarcGzipMemberIndex build(FileSystem fs, Path warcFile) throws IOException {
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		long fileLength = fs.getFileStatus(warcFile).getLen();
+		FSDataInputStream rawIn = fs.open(warcFile);
+		GzipMemberScanner scanner = new GzipMemberScanner(rawIn, 0L);
+		try {
+			while (scanner.next())
+				offsets.add(scanner.getMemberStart());
+		} finally {
+			scanner.end();
+			rawIn.close();
+		}
+		long[] offsetArr = new long[offsets.size()];
+		for (int i=0; i<offsetArr.length; i++)
+			offsetArr[i] = offsets.get(i);
+		logger.info("Indexed " + offsetArr.length + " gzip members in " + warcFile + ".");
+		return new WarcGzipMemberIndex(fileLength, offsetArr);
+	}
+
+	/*-----------------------------------------------------
+	| loadOrBuild()
+	------------------------*/
+
+	/**
+	 * Return the existing index for a .warc.gz file. If there is none,
+	 * and the configuration allows it, build one, and try to save it for
+	 * later jobs. Failure to save is logged, but is not an error.
+	 * @param fs file system holding the WARC file
+	 * @param warcFile path to the .warc.gz file
+	 * @param conf job configuration
+	 * @return the index, or null if none exists and building is disabled.
+	 * @throws IOException
+	 */
+	public static WarcGzipMemberIndex loadOrBuild(FileSystem fs, Path warcFile, Configuration conf) throws IOException {
+		WarcGzipMemberIndex index = load(fs, warcFile);
+		if ((index != null) || !conf.getBoolean(Constants.GZIP_INDEX_BUILD_PROP_NAME, false))
+			return index;
+		index = build(fs, warcFile);
+		if (conf.getBoolean(Constants.GZIP_INDEX_SAVE_PROP_NAME, false)) {
+			try {
+				index.write(fs, warcFile);
+			} catch (IOException e) {
+				logger.warn("Could not save gzip member index for " + warcFile + ": " + e.getMessage());
+			}
+		}
+		return index;
+	}
+
+	/*-----------------------------------------------------
+	| write()
+	------------------------*/
+
+	/**
+	 * Save this index next to the .warc.gz file it describes.
+	 * @param fs file system holding the WARC file
+	 * @param warcFile path to the .warc.gz file (not to the index)
+	 * @throws IOException
+	 */
+	public void write(FileSystem fs, Path warcFile) throws IOException {
+		FSDataOutputStream indexOut = fs.create(indexPathFor(warcFile), true);
+		try {
+			WritableUtils.writeVLong(indexOut, INDEX_MAGIC);
+			WritableUtils.writeVLong(indexOut, INDEX_VERSION);
+			WritableUtils.writeVLong(indexOut, fileLength);
+			WritableUtils.writeVLong(indexOut, memberOffsets.length);
+			long prevOffset = 0;
+			for (long offset : memberOffsets) {
+				WritableUtils.writeVLong(indexOut, offset - prevOffset);
+				prevOffset = offset;
+			}
+		} finally {
+			indexOut.close();
+		}
+	}
+
+	/*-----------------------------------------------------
+	| Accessors
+	------------------------*/
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public int getNumMembers() {
+		return memberOffsets.length;
+	}
+
+	public long[] getMemberOffsets() {
+		return memberOffsets;
+	}
+
+	/**
+	 * @param start first file offset of interest
+	 * @param end file offset just past the range of interest
+	 * @return offsets of all members that start within [start, end)
+	 */
+	public long[] getMemberOffsets(long start, long end) {
+		int from = firstMemberAtOrAfter(start);
+		int to = firstMemberAtOrAfter(end);
+		return Arrays.copyOfRange(memberOffsets, from, to);
+	}
+
+	/*-----------------------------------------------------
+	| getSplitPoints()
+	------------------------*/
+
+	/**
+	 * Partition the file into ranges of roughly targetSplitSize compressed
+	 * bytes, each starting at a member boundary. A single member larger than
+	 * the target gets a range of its own.
+	 * @param targetSplitSize desired number of compressed bytes per split
+	 * @return start offsets of the ranges; the first is the offset of the
+	 *         first member (0 for indexes made by build()), or 0 if there
+	 *         are no members. The last range extends to the end of the file.
+	 */
+	public long[] getSplitPoints(long targetSplitSize) {
+		ArrayList<Long> splitPoints = new ArrayList<Long>();
+		if (memberOffsets.length == 0)
+			return new long[] {0L};
+		long splitStart = memberOffsets[0];
+		splitPoints.add(splitStart);
+		for (long offset : memberOffsets) {
+			if (offset - splitStart >= targetSplitSize) {
+				splitPoints.add(offset);
+				splitStart = offset;
+			}
+		}
+		long[] res = new long[splitPoints.size()];
+		for (int i=0; i<res.length; i++)
+			res[i] = splitPoints.get(i);
+		return res;
+	}
+
+	private int firstMemberAtOrAfter(long offset) {
+		int pos = Arrays.binarySearch(memberOffsets, offset);
+		return (pos >= 0) ? pos : -(pos + 1);
+	}
+
+	/*-----------------------------------------------------
+	| main()
+	------------------------*/
+
+	/**
+	 * Build and save member indexes for the .warc.gz files named on the command line.
+	 * @param args paths of .warc.gz files, in any file system Hadoop knows about.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: WarcGzipMemberIndex <warcFile.gz> [<warcFile.gz> ...]");
+			System.exit(-1);
+		}
+		Configuration conf = new Configuration();
+		for (String warcFileName : args) {
+			Path warcFile = new Path(warcFileName);
+			FileSystem fs = warcFile.getFileSystem(conf);
+			WarcGzipMemberIndex index = build(fs, warcFile);
+			index.write(fs, warcFile);
+			System.out.println(warcFile + ": " + index.getNumMembers() + " members indexed into " + indexPathFor(warcFile) + ".");
+		}
+	}
+}
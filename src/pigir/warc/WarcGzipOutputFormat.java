@@ -0,0 +1,132 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes WarcRecords to .warc.gz files, one gzip member per record,
+ * as crawlers do. Next to each part file, the writer saves the
+ * file's gzip member index (see WarcGzipMemberIndex), so that
+ * WarcPigTextInputFormat can split the output at record boundaries
+ * without inflating it first.
+ *
+ * The compression level is taken from
+ * Constants.WARC_STORAGE_COMPRESSION_LEVEL_PROP_NAME.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcGzipOutputFormat extends FileOutputFormat<NullWritable, WarcRecord> {
+
+	public static final String WARC_GZIP_EXTENSION = ".warc.gz";
+
+	@Override
+	public RecordWriter<NullWritable, WarcRecord> getRecordWriter(TaskAttemptContext context) throws IOException {
+		Path file = getDefaultWorkFile(context, WARC_GZIP_EXTENSION);
+		FileSystem fs = file.getFileSystem(context.getConfiguration());
+		int level = context.getConfiguration().getInt(Constants.WARC_STORAGE_COMPRESSION_LEVEL_PROP_NAME,
+													  Deflater.DEFAULT_COMPRESSION);
+		return new WarcGzipRecordWriter(fs, file, level);
+	}
+
+	/*-----------------------------------------------------
+	| WarcGzipRecordWriter
+	------------------------*/
+
+	/**
+	 * Compresses each record into a gzip member of its own. One Deflater
+	 * is reset and reused for all members, rather than creating a
+	 * GZIPOutputStream (and its native zlib state) per record.
+	 */
+	public static class WarcGzipRecordWriter extends RecordWriter<NullWritable, WarcRecord> {
+
+		// ID1, ID2, CM=deflate, FLG=0, MTIME=0, XFL=0, OS=0; as GZIPOutputStream writes it:
+		private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+		private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+		private FileSystem fs;
+		private Path file;
+		private FSDataOutputStream out;
+		private Deflater deflater;
+		private CRC32 crc = new CRC32();
+		private byte[] deflateBuf = new byte[DEFLATE_BUFFER_SIZE];
+		private byte[] trailer = new byte[GzipMemberScanner.GZIP_TRAILER_LEN];
+		// The uncompressed record in WARC format:
+		private DataOutputBuffer recordBuf = new DataOutputBuffer();
+		private long[] memberOffsets = new long[1024];
+		private int numMembers = 0;
+
+		/**
+		 * @param theFs file system to write to
+		 * @param theFile the .warc.gz file to create. Its member index is
+		 *        written next to it when the writer is closed.
+		 * @param level deflate compression level, 0-9, or -1 for zlib's default
+		 * @throws IOException
+		 */
+		public WarcGzipRecordWriter(FileSystem theFs, Path theFile, int level) throws IOException {
+			fs = theFs;
+			file = theFile;
+			deflater = new Deflater(level, true);
+			out = fs.create(file, false);
+		}
+
+		@Override
+		public void write(NullWritable key, WarcRecord record) throws IOException {
+			recordBuf.reset();
+			record.writeWarc(recordBuf);
+			writeMember(recordBuf.getData(), recordBuf.getLength());
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException {
+			long fileLength = out.getPos();
+			out.close();
+			deflater.end();
+			new WarcGzipMemberIndex(fileLength, Arrays.copyOf(memberOffsets, numMembers)).write(fs, file);
+		}
+
+		/**
+		 * @return number of records written so far.
+		 */
+		public int getNumRecords() {
+			return numMembers;
+		}
+
+		private void writeMember(byte[] data, int len) throws IOException {
+			if (numMembers == memberOffsets.length)
+				memberOffsets = Arrays.copyOf(memberOffsets, 2 * memberOffsets.length);
+			memberOffsets[numMembers++] = out.getPos();
+			out.write(GZIP_HEADER);
+			deflater.reset();
+			deflater.setInput(data, 0, len);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int numDeflated = deflater.deflate(deflateBuf, 0, deflateBuf.length);
+				out.write(deflateBuf, 0, numDeflated);
+			}
+			crc.reset();
+			crc.update(data, 0, len);
+			writeIntLE(trailer, 0, (int) crc.getValue());
+			writeIntLE(trailer, 4, len);
+			out.write(trailer);
+		}
+
+		private static void writeIntLE(byte[] bytes, int pos, int value) {
+			bytes[pos] = (byte) value;
+			bytes[pos + 1] = (byte) (value >>> 8);
+			bytes[pos + 2] = (byte) (value >>> 16);
+			bytes[pos + 3] = (byte) (value >>> 24);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package pigir.warc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The header fields defined by the WARC standard. WarcParser maps
+ * header field names to these constants straight from the raw
+ * line bytes, via a case-insensitive byte trie. No String is
+ * created for the names of known fields.
+ *
+ * @author paepcke
+ *
+ */
+public enum WarcHeaderField {
+
+	WARC_TYPE(WarcRecord.WARC_TYPE, "WARC-Type", true),
+	WARC_RECORD_ID(WarcRecord.WARC_RECORD_ID, "WARC-Record-ID", true),
+	WARC_DATE(WarcRecord.WARC_DATE, "WARC-Date", true),
+	CONTENT_LENGTH(WarcRecord.CONTENT_LENGTH, "Content-Length", true),
+	CONTENT_TYPE(WarcRecord.CONTENT_TYPE, "Content-Type", false),
+	WARC_CONCURRENT_TO(WarcRecord.WARC_CONCURRENT_TO, "WARC-Concurrent-To", false),
+	WARC_BLOCK_DIGEST(WarcRecord.WARC_BLOCK_DIGEST, "WARC-Block-Digest", false),
+	WARC_PAYLOAD_DIGEST(WarcRecord.WARC_PAYLOAD_DIGEST, "WARC-Payload-Digest", false),
+	WARC_IP_ADDRESS(WarcRecord.WARC_IP_ADDRESS, "WARC-IP-Address", false),
+	WARC_REFERS_TO(WarcRecord.WARC_REFERS_TO, "WARC-Refers-To", false),
+	WARC_TARGET_URI(WarcRecord.WARC_TARGET_URI, "WARC-Target-URI", false),
+	WARC_TRUNCATED(WarcRecord.WARC_TRUNCATED, "WARC-Truncated", false),
+	WARC_WARCINFO_ID(WarcRecord.WARC_WARCINFO_ID, "WARC-Warcinfo-ID", false),
+	WARC_FILENAME(WarcRecord.WARC_FILENAME, "WARC-Filename", false),
+	WARC_PROFILE(WarcRecord.WARC_PROFILE, "WARC-Profile", false),
+	WARC_IDENTIFIED_PAYLOAD_TYPE(WarcRecord.WARC_IDENTIFIED_PAYLOAD_TYPE, "WARC-Identified-Payload-Type", false),
+	WARC_SEGMENT_ORIGIN_ID(WarcRecord.WARC_SEGMENT_ORIGIN_ID, "WARC-Segment-Origin-ID", false),
+	WARC_SEGMENT_NUMBER(WarcRecord.WARC_SEGMENT_NUMBER, "WARC-Segment-Number", false),
+	WARC_SEGMENT_TOTAL_LENGTH(WarcRecord.WARC_SEGMENT_TOTAL_LENGTH, "WARC-Segment-Total-Length", false);
+
+	private final String lowerCaseName;
+	private final String isoName;
+	private final boolean mandatory;
+
+	private WarcHeaderField(String theLowerCaseName, String theIsoName, boolean isMandatory) {
+		lowerCaseName = theLowerCaseName;
+		isoName = theIsoName;
+		mandatory = isMandatory;
+	}
+
+	/**
+	 * @return the field name in lower case. The same String
+	 *         instance is returned every time.
+	 */
+	public String getLowerCaseName() {
+		return lowerCaseName;
+	}
+
+	/**
+	 * @return the field name capitalized as in the WARC standard.
+	 */
+	public String getIsoName() {
+		return isoName;
+	}
+
+	/**
+	 * @return true if every WARC record must have this field.
+	 */
+	public boolean isMandatory() {
+		return mandatory;
+	}
+
+	//-------------------------------- Name Trie --------------------------
+
+	// Field names only contain letters, digits and '-'. Letters
+	// of either case map to the same symbol:
+	private static final int ALPHABET_SIZE = 26 + 10 + 1;
+	private static final int[] SYMBOL_OF_BYTE = new int[256];
+	private static final WarcHeaderField[] FIELDS = values();
+
+	// trieChildren[node][symbol] is the child node, or 0 for none.
+	// Node 0 is the root, which is nobody's child:
+	private static int[][] trieChildren;
+	// Field whose name ends at a node, or null:
+	private static WarcHeaderField[] trieFields;
+
+	static {
+		Arrays.fill(SYMBOL_OF_BYTE, -1);
+		for (int c='a'; c<='z'; c++) {
+			SYMBOL_OF_BYTE[c] = c - 'a';
+			SYMBOL_OF_BYTE[c - 'a' + 'A'] = c - 'a';
+		}
+		for (int c='0'; c<='9'; c++)
+			SYMBOL_OF_BYTE[c] = 26 + c - '0';
+		SYMBOL_OF_BYTE['-'] = 36;
+
+		ArrayList<int[]> children = new ArrayList<int[]>();
+		ArrayList<WarcHeaderField> fields = new ArrayList<WarcHeaderField>();
+		children.add(new int[ALPHABET_SIZE]);
+		fields.add(null);
+		for (WarcHeaderField field : FIELDS) {
+			int node = 0;
+			for (int i=0; i<field.lowerCaseName.length(); i++) {
+				int symbol = SYMBOL_OF_BYTE[field.lowerCaseName.charAt(i)];
+				if (children.get(node)[symbol] == 0) {
+					children.add(new int[ALPHABET_SIZE]);
+					fields.add(null);
+					children.get(node)[symbol] = children.size() - 1;
+				}
+				node = children.get(node)[symbol];
+			}
+			fields.set(node, field);
+		}
+		trieChildren = children.toArray(new int[children.size()][]);
+		trieFields = fields.toArray(new WarcHeaderField[fields.size()]);
+	}
+
+	/**
+	 * Look up a header field name, ignoring case.
+	 * @param bytes buffer holding the name
+	 * @param start index of the name's first byte
+	 * @param len number of bytes in the name
+	 * @return the field, or null if the name is not a standard WARC field name.
+	 */
+	public static WarcHeaderField lookup(byte[] bytes, int start, int len) {
+		int node = 0;
+		for (int i=start; i<start+len; i++) {
+			int symbol = SYMBOL_OF_BYTE[bytes[i] & 0xff];
+			if (symbol < 0)
+				return null;
+			node = trieChildren[node][symbol];
+			if (node == 0)
+				return null;
+		}
+		return trieFields[node];
+	}
+
+	/**
+	 * Look up a lower case header field name.
+	 * @return the field, or null if the name is not a standard WARC field name.
+	 */
+	public static WarcHeaderField lookup(String lowerCaseName) {
+		for (WarcHeaderField field : FIELDS) {
+			if (field.lowerCaseName.equals(lowerCaseName))
+				return field;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,534 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Columnar copy of the WARC header fields that metadata queries
+ * look at: record ID, date, type, target URI and content length,
+ * plus where each record and its content lie in the WARC file.
+ * The sidecar of foo.warc.gz lives in foo.warc.gz.hdr, and is
+ * typically around 1% the size of the archive. WarcLoader reads
+ * it instead of the archive for queries that need no content and
+ * no optional header fields (see SidecarWarcRecordReader).
+ *
+ * File layout (numbers as Hadoop VLongs, strings as Hadoop Text):
+ *
+ *     <magic><version><warcFileLength><numRecords><offsetsKnown>
+ *     <numColumns><columnLength>*  <column>*
+ *
+ * Each column holds one value per record, in file order, so readers
+ * seek past the columns they do not need:
+ *
+ *     OFFSETS          file offset of the record (or of its gzip member), delta-encoded
+ *     LENGTHS          bytes to read at that offset to get the record (or member); -1 if unknown
+ *     CONTENT_OFFSETS  offset of the content in the uncompressed record
+ *     CONTENT_LENGTHS  declared Content-Length; -1 if missing
+ *     TYPES            dictionary-encoded WARC-Type
+ *     DATES            WARC-Date, front-coded against the previous record's
+ *     RECORD_IDS       WARC-Record-ID, front-coded
+ *     HOSTS            dictionary-encoded scheme and host of WARC-Target-URI
+ *     URI_PATHS        rest of WARC-Target-URI, front-coded
+ *
+ * A dictionary column starts with the dictionary (<size><string>*); each
+ * value is then its dictionary index plus one, or 0 if the field is missing.
+ * A front-coded value is <prefixLength><suffix>: the number of chars it
+ * shares with the previous value, and the rest. A prefixLength of -1
+ * means the field is missing.
+ *
+ * Records of a .warc.gz file whose member offsets cannot be learned
+ * (see Constants.RECORD_FILE_OFFSETS_PROP_NAME) all get offset 0, and
+ * offsetsKnown is 0. Such a file is read as one split anyway.
+ *
+ * Sidecars are built ahead of time from the command line:
+ *
+ *     hadoop jar PigIR.jar pigir.warc.WarcHeaderSidecar <warcFileOrDir> [<warcFileOrDir> ...]
+ *
+ * @author paepcke
+ *
+ */
+public class WarcHeaderSidecar {
+
+	private static final long SIDECAR_MAGIC = 0x57484452L; // "WHDR"
+	private static final long SIDECAR_VERSION = 1L;
+
+	public static enum Column {
+		OFFSETS,
+		LENGTHS,
+		CONTENT_OFFSETS,
+		CONTENT_LENGTHS,
+		TYPES,
+		DATES,
+		RECORD_IDS,
+		HOSTS,
+		URI_PATHS
+	};
+
+	private static Logger logger = Logger.getLogger(WarcHeaderSidecar.class.getName());
+
+	/*-----------------------------------------------------
+	| sidecarPathFor()
+	------------------------*/
+
+	/**
+	 * @param warcFile path to a WARC file
+	 * @return path of that file's header sidecar
+	 */
+	public static Path sidecarPathFor(Path warcFile) {
+		return new Path(warcFile.getParent(), warcFile.getName() + Constants.HEADER_SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * @return true if the path names a header sidecar, rather than a WARC file.
+	 */
+	public static boolean isSidecarPath(Path path) {
+		return path.getName().endsWith(Constants.HEADER_SIDECAR_SUFFIX);
+	}
+
+	/*-----------------------------------------------------
+	| Writer
+	------------------------*/
+
+	/**
+	 * Collects the header columns of one WARC file, record by record.
+	 */
+	public static class Writer {
+
+		private DataOutputBuffer[] columns = new DataOutputBuffer[Column.values().length];
+		private Dictionary types = new Dictionary();
+		private Dictionary hosts = new Dictionary();
+		private String[] prevValues = new String[Column.values().length];
+		private long prevOffset = 0L;
+		private long numRecords = 0L;
+		private boolean offsetsKnown = true;
+
+		public Writer() {
+			for (int i=0; i<columns.length; i++)
+				columns[i] = new DataOutputBuffer();
+		}
+
+		/**
+		 * @param record a record whose header has been parsed. The content
+		 *        need not have been read.
+		 * @param fileOffset file offset of the record, or of its gzip member; -1 if unknown
+		 * @param fileLength bytes to read at fileOffset; -1 if unknown
+		 */
+		public void add(WarcRecord record, long fileOffset, long fileLength) throws IOException {
+			if (fileOffset < 0) {
+				offsetsKnown = false;
+				fileOffset = 0L;
+			}
+			WritableUtils.writeVLong(column(Column.OFFSETS), fileOffset - prevOffset);
+			prevOffset = fileOffset;
+			WritableUtils.writeVLong(column(Column.LENGTHS), fileLength);
+			long contentLength = record.getDeclaredContentLength();
+			WritableUtils.writeVLong(column(Column.CONTENT_OFFSETS),
+									 (contentLength < 0) ? -1L : record.getTotalRecordLength() - contentLength);
+			WritableUtils.writeVLong(column(Column.CONTENT_LENGTHS), contentLength);
+			types.writeCode(column(Column.TYPES), record.getHeaderValue(WarcHeaderField.WARC_TYPE));
+			writeFrontCoded(Column.DATES, record.getHeaderValue(WarcHeaderField.WARC_DATE));
+			writeFrontCoded(Column.RECORD_IDS, record.getHeaderValue(WarcHeaderField.WARC_RECORD_ID));
+			String uri = record.getHeaderValue(WarcHeaderField.WARC_TARGET_URI);
+			int hostEnd = (uri == null) ? 0 : hostEnd(uri);
+			hosts.writeCode(column(Column.HOSTS), (uri == null) ? null : uri.substring(0, hostEnd));
+			writeFrontCoded(Column.URI_PATHS, (uri == null) ? null : uri.substring(hostEnd));
+			numRecords++;
+		}
+
+		/**
+		 * Save the sidecar next to the WARC file it describes.
+		 * @param fs file system holding the WARC file
+		 * @param warcFile path to the WARC file (not to the sidecar)
+		 * @param warcFileLength length of the WARC file the records came from
+		 * @throws IOException
+		 */
+		public void write(FileSystem fs, Path warcFile, long warcFileLength) throws IOException {
+			// Dictionaries go in front of their codes:
+			DataOutputBuffer typesColumn = types.prependTo(column(Column.TYPES));
+			DataOutputBuffer hostsColumn = hosts.prependTo(column(Column.HOSTS));
+			columns[Column.TYPES.ordinal()] = typesColumn;
+			columns[Column.HOSTS.ordinal()] = hostsColumn;
+			FSDataOutputStream out = fs.create(sidecarPathFor(warcFile), true);
+			try {
+				WritableUtils.writeVLong(out, SIDECAR_MAGIC);
+				WritableUtils.writeVLong(out, SIDECAR_VERSION);
+				WritableUtils.writeVLong(out, warcFileLength);
+				WritableUtils.writeVLong(out, numRecords);
+				WritableUtils.writeVLong(out, offsetsKnown ? 1L : 0L);
+				WritableUtils.writeVLong(out, columns.length);
+				for (DataOutputBuffer column : columns)
+					WritableUtils.writeVLong(out, column.getLength());
+				for (DataOutputBuffer column : columns)
+					out.write(column.getData(), 0, column.getLength());
+			} finally {
+				out.close();
+			}
+		}
+
+		public long getNumRecords() {
+			return numRecords;
+		}
+
+		private DataOutputBuffer column(Column col) {
+			return columns[col.ordinal()];
+		}
+
+		private void writeFrontCoded(Column col, String value) throws IOException {
+			DataOutputBuffer out = column(col);
+			if (value == null) {
+				WritableUtils.writeVInt(out, -1);
+				return;
+			}
+			String prev = prevValues[col.ordinal()];
+			int prefixLen = 0;
+			if (prev != null) {
+				int maxLen = Math.min(prev.length(), value.length());
+				while ((prefixLen < maxLen) && (prev.charAt(prefixLen) == value.charAt(prefixLen)))
+					prefixLen++;
+				// Do not cut a surrogate pair in two:
+				if ((prefixLen > 0) && Character.isHighSurrogate(value.charAt(prefixLen - 1)))
+					prefixLen--;
+			}
+			WritableUtils.writeVInt(out, prefixLen);
+			Text.writeString(out, value.substring(prefixLen));
+			prevValues[col.ordinal()] = value;
+		}
+
+		/**
+		 * @return index just past the scheme and host (and port) of a URI,
+		 *         such as http://example.com:8080; 0 if it has none.
+		 */
+		private static int hostEnd(String uri) {
+			int schemeEnd = uri.indexOf("://");
+			if (schemeEnd < 0)
+				return 0;
+			int pathStart = uri.indexOf('/', schemeEnd + 3);
+			return (pathStart < 0) ? uri.length() : pathStart;
+		}
+	}
+
+	/**
+	 * Dictionary for a column of values that repeat a lot.
+	 */
+	private static class Dictionary {
+		private HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		private ArrayList<String> values = new ArrayList<String>();
+
+		void writeCode(DataOutputBuffer out, String value) throws IOException {
+			if (value == null) {
+				WritableUtils.writeVInt(out, 0);
+				return;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				values.add(value);
+				code = values.size();
+				codes.put(value, code);
+			}
+			WritableUtils.writeVInt(out, code);
+		}
+
+		DataOutputBuffer prependTo(DataOutputBuffer codeColumn) throws IOException {
+			DataOutputBuffer res = new DataOutputBuffer();
+			WritableUtils.writeVInt(res, values.size());
+			for (String value : values)
+				Text.writeString(res, value);
+			res.write(codeColumn.getData(), 0, codeColumn.getLength());
+			return res;
+		}
+	}
+
+	/*-----------------------------------------------------
+	| Reader
+	------------------------*/
+
+	/**
+	 * Walks the records of a sidecar in file order. Only the columns
+	 * asked for are read from the file; getters of other columns
+	 * return null, or -1.
+	 */
+	public static class Reader {
+
+		private DataInputBuffer[] columns = new DataInputBuffer[Column.values().length];
+		private String[][] dictionaries = new String[Column.values().length][];
+		private String[] prevValues = new String[Column.values().length];
+		private long numRecords;
+		private long recordIndex = -1L;
+		private boolean offsetsKnown;
+		private long numBytesRead = 0L;
+
+		private long offset = 0L;
+		private long length = -1L;
+		private long contentOffset = -1L;
+		private long contentLength = -1L;
+		private String type;
+		private String date;
+		private String recordId;
+		private String targetUri;
+
+		/**
+		 * Open the sidecar of a WARC file.
+		 * @param fs file system holding the WARC file
+		 * @param warcFile path to the WARC file (not to the sidecar)
+		 * @param wantedColumns columns to read. OFFSETS is always read.
+		 * @return a reader positioned before the first record, or null if
+		 *         there is no sidecar, or if it does not match the current
+		 *         length of the WARC file.
+		 * @throws IOException if a sidecar exists, but cannot be read.
+		 */
+		public static Reader open(FileSystem fs, Path warcFile, Column... wantedColumns) throws IOException {
+			Path sidecarPath = sidecarPathFor(warcFile);
+			if (!fs.exists(sidecarPath))
+				return null;
+			FSDataInputStream in = fs.open(sidecarPath);
+			try {
+				if (WritableUtils.readVLong(in) != SIDECAR_MAGIC)
+					throw new IOException("File " + sidecarPath + " is not a WARC header sidecar.");
+				long version = WritableUtils.readVLong(in);
+				if (version != SIDECAR_VERSION)
+					throw new IOException("Unsupported WARC header sidecar version " + version + " in " + sidecarPath + ".");
+				long sidecarFileLength = WritableUtils.readVLong(in);
+				long actualFileLength = fs.getFileStatus(warcFile).getLen();
+				if (sidecarFileLength != actualFileLength) {
+					logger.warn("Ignoring stale header sidecar " + sidecarPath + ": file length " +
+								sidecarFileLength + ", actual length " + actualFileLength + ".");
+					return null;
+				}
+				Reader reader = new Reader();
+				reader.numRecords = WritableUtils.readVLong(in);
+				reader.offsetsKnown = (WritableUtils.readVLong(in) != 0);
+				int numColumns = (int) WritableUtils.readVLong(in);
+				long[] columnLengths = new long[numColumns];
+				for (int i=0; i<numColumns; i++)
+					columnLengths[i] = WritableUtils.readVLong(in);
+				boolean[] isWanted = new boolean[numColumns];
+				isWanted[Column.OFFSETS.ordinal()] = true;
+				for (Column col : wantedColumns)
+					isWanted[col.ordinal()] = true;
+				long columnStart = in.getPos();
+				for (int i=0; (i<numColumns) && (i<reader.columns.length); i++) {
+					if (isWanted[i]) {
+						byte[] bytes = new byte[(int) columnLengths[i]];
+						in.readFully(columnStart, bytes);
+						reader.columns[i] = new DataInputBuffer();
+						reader.columns[i].reset(bytes, bytes.length);
+						reader.numBytesRead += bytes.length;
+					}
+					columnStart += columnLengths[i];
+				}
+				reader.numBytesRead += in.getPos();
+				reader.readDictionary(Column.TYPES);
+				reader.readDictionary(Column.HOSTS);
+				return reader;
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Move to the next record.
+		 * @return false if there are no more records.
+		 */
+		public boolean next() throws IOException {
+			if (recordIndex + 1 >= numRecords)
+				return false;
+			recordIndex++;
+			offset += WritableUtils.readVLong(columns[Column.OFFSETS.ordinal()]);
+			length = readLong(Column.LENGTHS);
+			contentOffset = readLong(Column.CONTENT_OFFSETS);
+			contentLength = readLong(Column.CONTENT_LENGTHS);
+			type = readDictionaryValue(Column.TYPES);
+			date = readFrontCoded(Column.DATES);
+			recordId = readFrontCoded(Column.RECORD_IDS);
+			String host = readDictionaryValue(Column.HOSTS);
+			String uriPath = readFrontCoded(Column.URI_PATHS);
+			targetUri = (uriPath == null) ? null : ((host == null) ? "" : host) + uriPath;
+			return true;
+		}
+
+		public long getNumRecords() {
+			return numRecords;
+		}
+
+		/**
+		 * @return index of the current record in the file, from 0.
+		 */
+		public long getRecordIndex() {
+			return recordIndex;
+		}
+
+		/**
+		 * @return false if the records' file offsets were unknown when the sidecar
+		 *         was built. getOffset() is then 0 for every record.
+		 */
+		public boolean isOffsetsKnown() {
+			return offsetsKnown;
+		}
+
+		/**
+		 * @return number of sidecar bytes read from the file system.
+		 */
+		public long getNumBytesRead() {
+			return numBytesRead;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getContentOffset() {
+			return contentOffset;
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getDate() {
+			return date;
+		}
+
+		public String getRecordId() {
+			return recordId;
+		}
+
+		public String getTargetUri() {
+			return targetUri;
+		}
+
+		private long readLong(Column col) throws IOException {
+			DataInputBuffer in = columns[col.ordinal()];
+			return (in == null) ? -1L : WritableUtils.readVLong(in);
+		}
+
+		private void readDictionary(Column col) throws IOException {
+			DataInputBuffer in = columns[col.ordinal()];
+			if (in == null)
+				return;
+			String[] dictionary = new String[WritableUtils.readVInt(in)];
+			for (int i=0; i<dictionary.length; i++)
+				dictionary[i] = Text.readString(in);
+			dictionaries[col.ordinal()] = dictionary;
+		}
+
+		private String readDictionaryValue(Column col) throws IOException {
+			DataInputBuffer in = columns[col.ordinal()];
+			if (in == null)
+				return null;
+			int code = WritableUtils.readVInt(in);
+			return (code == 0) ? null : dictionaries[col.ordinal()][code - 1];
+		}
+
+		private String readFrontCoded(Column col) throws IOException {
+			DataInputBuffer in = columns[col.ordinal()];
+			if (in == null)
+				return null;
+			int prefixLen = WritableUtils.readVInt(in);
+			if (prefixLen < 0)
+				return null;
+			String suffix = Text.readString(in);
+			String prev = prevValues[col.ordinal()];
+			String value = (prefixLen == 0) ? suffix : prev.substring(0, prefixLen) + suffix;
+			prevValues[col.ordinal()] = value;
+			return value;
+		}
+	}
+
+	/*-----------------------------------------------------
+	| build()
+	------------------------*/
+
+	/**
+	 * Read the headers of every record in a WARC file, and save its
+	 * sidecar. Content is skipped, not read. For a .warc.gz file, the
+	 * gzip member index is built and saved first, if it is missing, so
+	 * that record offsets are known. Unlike in jobs, this is on unless
+	 * the configuration turns it off (see Constants.GZIP_INDEX_BUILD_PROP_NAME):
+	 * building sidecars is a pre-pass that reads every file anyway.
+	 * @param fs file system holding the WARC file
+	 * @param warcFile path to the WARC file
+	 * @param conf configuration for reading the file
+	 * @return number of records in the sidecar
+	 * @throws IOException
+	 */
+	public static long build(FileSystem fs, Path warcFile, Configuration conf) throws IOException {
+		Configuration readConf = new Configuration(conf);
+		readConf.setBoolean(Constants.RECORD_FILE_OFFSETS_PROP_NAME, true);
+		readConf.setBoolean(Constants.METRICS_PROP_NAME, false);
+		readConf.set(Constants.DEDUP_PROP_NAME, "off");
+		readConf.setBoolean(Constants.GZIP_INDEX_BUILD_PROP_NAME, conf.getBoolean(Constants.GZIP_INDEX_BUILD_PROP_NAME, true));
+		readConf.setBoolean(Constants.GZIP_INDEX_SAVE_PROP_NAME, conf.getBoolean(Constants.GZIP_INDEX_SAVE_PROP_NAME, true));
+		long fileLength = fs.getFileStatus(warcFile).getLen();
+		if (MappedWarcRecordReader.isGzipFile(fs, warcFile))
+			WarcGzipMemberIndex.loadOrBuild(fs, warcFile, readConf);
+		WarcRecordReader reader = new WarcRecordReader();
+		reader.setRecordReuse(true);
+		reader.initialize(new FileSplit(warcFile, 0L, fileLength, new String[0]),
+						  new TaskAttemptContext(readConf, new TaskAttemptID()));
+		Writer writer = new Writer();
+		try {
+			while (reader.nextKeyValue(false))
+				writer.add(reader.getCurrentValue(), reader.getCurrentRecordFileOffset(), reader.getCurrentRecordFileLength());
+		} finally {
+			reader.close();
+		}
+		writer.write(fs, warcFile, fileLength);
+		logger.info("Wrote header sidecar of " + writer.getNumRecords() + " records for " + warcFile + ".");
+		return writer.getNumRecords();
+	}
+
+	/*-----------------------------------------------------
+	| main()
+	------------------------*/
+
+	/**
+	 * Build and save header sidecars for the WARC files named on the
+	 * command line, and for the WARC files in the directories named there.
+	 * @param args paths of WARC files or directories, in any file system Hadoop knows about.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: WarcHeaderSidecar <warcFileOrDir> [<warcFileOrDir> ...]");
+			System.exit(-1);
+		}
+		Configuration conf = new Configuration();
+		for (String warcFileName : args) {
+			Path path = new Path(warcFileName);
+			FileSystem fs = path.getFileSystem(conf);
+			FileStatus[] files = fs.getFileStatus(path).isDir() ? fs.listStatus(path) : new FileStatus[] {fs.getFileStatus(path)};
+			for (FileStatus file : files) {
+				Path warcFile = file.getPath();
+				if (file.isDir() || isSidecarPath(warcFile) || WarcGzipMemberIndex.isIndexPath(warcFile) ||
+					warcFile.getName().startsWith("_") || warcFile.getName().startsWith("."))
+					continue;
+				long numRecords = build(fs, warcFile, conf);
+				System.out.println(warcFile + ": " + numRecords + " record headers written to " + sidecarPathFor(warcFile) + ".");
+			}
+		}
+	}
+}
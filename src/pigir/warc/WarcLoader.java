@@ -1,27 +1,27 @@
 package pigir.warc;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.pig.FileInputLoadFunc;
 import org.apache.pig.LoadPushDown;
-import org.apache.pig.PigException;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
 import org.apache.pig.bzip2r.Bzip2TextInputFormat;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.DefaultBagFactory;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
@@ -40,116 +40,277 @@ import org.apache.pig.impl.util.UDFContext;
  *     WARC_DATE:chararray, 
  *     WARC_TYPE, {(<headerFldName>, <headerFldVal>)*}, 
  *     CONTENT:chararray)
+ *
+ * If the job property pigir.warc.loader.optional.headers.map is true, the
+ * optional header fields are a map [<headerFldName>#<headerFldVal>] instead
+ * of a bag. In a Pig script:
+ *     SET pigir.warc.loader.optional.headers.map 'true';
+ *
+ * If pigir.warc.loader.content.bytes is true, CONTENT is a bytearray
+ * holding the raw content bytes. Nothing is decoded, and the content
+ * takes half the memory of a chararray. UDFs that need text can
+ * decode just the part they look at (see WarcRecord.getContentChars()).
+ *
+ * Optional constructor arguments restrict the records that are loaded,
+ * based on their WARC header. Records that do not qualify are skipped
+ * without reading their content:
+ *     docs = LOAD 'crawl.warc.gz' 
+ *            USING pigir.warc.WarcLoader('response', 'null', '2009-03', '2009-04');
+ * loads only response records dated March 2009. The arguments are the
+ * WARC types (space separated), a regular expression for the target URI,
+ * and an inclusive start and exclusive end date. Use 'null' to leave out
+ * any of them. See WarcRecordFilter. Pig 0.8 does not push FILTER statements
+ * into loaders, so the restriction must be stated here.
+ *
+ * Crawls of many small WARC files are best loaded with
+ *     SET pigir.warc.combine.splits 'true';
+ * which packs several files into each map task (see CombineWarcInputFormat).
+ *
+ * Dirty crawls can be loaded with
+ *     SET pigir.warc.skip.bad.records 'true';
+ * which skips malformed records and corrupt gzip members, and counts
+ * them, rather than failing the job (see WarcRecordReader).
+ *
+ * Heaps can be sized for typical pages rather than for the odd huge
+ * video record with
+ *     SET pigir.warc.max.content.size '10485760';
+ * Only that many bytes of a larger content are loaded; the rest is
+ * skipped unread, and the record gets the optional header
+ * WARC-Truncated 'length', unless it already has one.
+ *
+ * Recrawls repeat many payloads. With
+ *     SET pigir.warc.dedup 'drop';
+ * records whose WARC-Payload-Digest was seen before are not loaded;
+ * with 'header' they are loaded with a null CONTENT. Their content is
+ * never read. Duplicates are found within each split, or across the
+ * crawl if pigir.warc.dedup.table names a table of repeated digests
+ * (see WarcDigestDeduplicator).
+ *
+ * Queries that need neither CONTENT nor the optional header fields are
+ * served from the header sidecars of WARC files that have one, without
+ * reading the archives (see WarcHeaderSidecar). Turn this off with
+ *     SET pigir.warc.header.sidecar 'false';
+ *
+ * Loaded records can be written back to .warc.gz files, one gzip member
+ * per record and ready to be split, with pigir.warc.WarcStorage.
+ *
+ * Reading time, bytes, record types and content sizes are added to
+ * the job's counters (see WarcReadMetrics). Turn this off with
+ *     SET pigir.warc.metrics 'false';
  */
 
 public class WarcLoader extends FileInputLoadFunc implements LoadPushDown {
 	
-	private final int NUM_OUTPUT_COLUMNS = 5;
-	private final int CONTENT_COL_INDEX = 5;
+	// Schema column indexes:
+	private static final int WARC_RECORD_ID_COL_INDEX = 0;
+	private static final int CONTENT_LENGTH_COL_INDEX = 1;
+	private static final int WARC_DATE_COL_INDEX = 2;
+	private static final int WARC_TYPE_COL_INDEX = 3;
+	private static final int OPTIONAL_HEADERS_COL_INDEX = 4;
+	private static final int CONTENT_COL_INDEX = 5;
+	private static final int NUM_OUTPUT_COLUMNS = 6;
 	
     protected WarcRecordReader in = null;    
     protected final Log mLog = LogFactory.getLog(getClass());
     private String signature;
         
-    private ArrayList<Object> mProtoTuple = null;
     private TupleFactory mTupleFactory = TupleFactory.getInstance();
+    private BagFactory mBagFactory = DefaultBagFactory.getInstance();
     private String loadLocation;
     private int numColsToReturn = 6;
     
     //protected final Log logger = LogFactory.getLog(getClass());
     protected final Log logger = LogFactory.getLog(getClass());
     
+    // Restriction on the records to load, or null:
+    private WarcRecordFilter recordFilter = null;
+    
     public WarcLoader() {
     }
     
+    /**
+     * Load only records of the given WARC types.
+     * @param warcTypes space separated list of WARC-Type values, like "response request".
+     */
+    public WarcLoader(String warcTypes) {
+    	this(warcTypes, null, null, null);
+    }
+    
+    /**
+     * Load only records of the given WARC types whose
+     * target URI contains a match for targetUriRegex.
+     */
+    public WarcLoader(String warcTypes, String targetUriRegex) {
+    	this(warcTypes, targetUriRegex, null, null);
+    }
+    
+    /**
+     * Load only records that pass all given criteria. Any argument
+     * may be 'null' to leave out the respective criterion.
+     * @param warcTypes space separated list of WARC-Type values
+     * @param targetUriRegex regular expression that must be found in WARC-Target-URI
+     * @param fromDate earliest WARC-Date (inclusive), e.g. 2009-03-01
+     * @param toDate latest WARC-Date (exclusive)
+     */
+    public WarcLoader(String warcTypes, String targetUriRegex, String fromDate, String toDate) {
+    	recordFilter = new WarcRecordFilter(warcTypes, targetUriRegex, fromDate, toDate);
+    	if (recordFilter.isEmpty())
+    		recordFilter = null;
+    }
+    
     // Vector with true wbRecordReader each position that corresponds to a
     // field that this loader is to include wbRecordReader its return tuples: 
     private boolean[] mRequiredColumns = null;
     
     private boolean mRequiredColumnsInitialized = false;
+    // Schema column index of each field of the result tuples:
+    private int[] columnPlan = null;
+    // Emit optional header fields as a map, rather than as a bag:
+    private boolean optionalHeadersAsMap = false;
+    // Emit content as raw bytes, rather than as a decoded String:
+    private boolean contentAsBytes = false;
+    // Pack small files into fewer splits (see CombineWarcInputFormat):
+    private boolean combineSplits = false;
     private WarcRecord warcRec = null;
 
     @Override
     public Tuple getNext() throws IOException {
-    	int errCode = 6018;
-        mProtoTuple = new ArrayList<Object>();
-        
-        BagFactory bagFact = DefaultBagFactory.getInstance();
+        initColumnPlan();
+        boolean done = ! in.nextKeyValue(isContentWanted());
+        if (done) {
+        	return null;
+        }
+        WarcReadMetrics metrics = in.getMetrics();
+        long startNanos = (metrics == null) ? 0L : System.nanoTime();
+        Tuple t = makeTuple(in.getCurrentValue());
+        if (metrics != null)
+        	metrics.add(WarcReadMetrics.Counters.TUPLE_BUILD_MSECS, System.nanoTime() - startNanos);
+        return t;
+    }
+    
+    /**
+     * Find out which columns Pig wants, once. 
+     */
+    protected void initColumnPlan() throws IOException {
         if (!mRequiredColumnsInitialized) {
             if (signature!=null) {
                 Properties p = UDFContext.getUDFContext().getUDFProperties(this.getClass());
                 mRequiredColumns = (boolean[])ObjectSerializer.deserialize(p.getProperty(signature));
-                if (mRequiredColumns == null) {
-                	mRequiredColumns = new boolean[NUM_OUTPUT_COLUMNS];
-                	for (int i=0;i<NUM_OUTPUT_COLUMNS;i++)
-                		mRequiredColumns[i] = true;
-                }
-                numColsToReturn = mRequiredColumns.length;
             }
+            if (mRequiredColumns == null) {
+            	mRequiredColumns = new boolean[NUM_OUTPUT_COLUMNS];
+            	for (int i=0;i<NUM_OUTPUT_COLUMNS;i++)
+            		mRequiredColumns[i] = true;
+            }
+            numColsToReturn = mRequiredColumns.length;
+            columnPlan = makeColumnPlan(mRequiredColumns);
             mRequiredColumnsInitialized = true;
         }
-        try {
-            boolean done = ! in.nextKeyValue((mRequiredColumns != null) && (CONTENT_COL_INDEX < numColsToReturn) && (mRequiredColumns[CONTENT_COL_INDEX]));
-            if (done) {
-                return null;
-            }
-            // Get one Warc record:
-            warcRec = (WarcRecord) in.getCurrentValue();
-            
-            // Create separate columns from the header information,
-            // followed by the content field.
-            // First the required fields that should be present wbRecordReader
-            // order:
-            int resFieldIndex = -1;
-            for (String headerKey : warcRec.mandatoryKeysHeader()) {
-            	// Check whether this WARC header field is wanted
-            	// wbRecordReader the result tuple (or is being projected out):
-            	if ((mRequiredColumns != null) && (++resFieldIndex < numColsToReturn) && mRequiredColumns[resFieldIndex]) {
-            		@SuppressWarnings("rawtypes")
-					Constructor fldConstructor = warcRec.mandatoryWarcHeaderFldTypes.get(headerKey);
-            		mProtoTuple.add(fldConstructor.newInstance(warcRec.get(headerKey)));
-            	}
-            	else {
-            		if (resFieldIndex >= numColsToReturn)
-            			break;
-            		continue;
-            	}
-            }
-            // Now all the optional header keys as a bag of maps (all strings):
-            // Check whether the bag of optional header keys is 
-            // wanted wbRecordReader the result tuple (or is being projected out):
-            if ((mRequiredColumns != null) && (++resFieldIndex < numColsToReturn)  && mRequiredColumns[resFieldIndex]) { 
-            	DataBag optionalHeaderFieldBag = bagFact.newDefaultBag();
-            	for (String headerKey : warcRec.optionalKeysHeader()) {
-            		Tuple headerOptionalAttrValPair = mTupleFactory.newTuple(2);
-            		headerOptionalAttrValPair.set(0,headerKey);
-            		headerOptionalAttrValPair.set(1,warcRec.get(headerKey));
-            		optionalHeaderFieldBag.add(headerOptionalAttrValPair);
-            	}
-            	mProtoTuple.add(optionalHeaderFieldBag);
-            }
-            // Check whether the WARC record content is wanted wbRecordReader the 
-            // result tuple (or is being projected out):
-            if ((mRequiredColumns != null) && (++resFieldIndex < numColsToReturn)  && mRequiredColumns[resFieldIndex]) { 
-            	mProtoTuple.add(warcRec.get(WarcRecord.CONTENT));
-            }
-            Tuple t =  mTupleFactory.newTupleNoCopy(mProtoTuple);
-            return t;
-        } catch (IllegalArgumentException e) {
-        	String errMsg = "Error creating WARC header tuple field for record:\n" + warcRec.toString(WarcRecord.DONT_INCLUDE_CONTENT);
-			throw new ExecException(errMsg, errCode, PigException.REMOTE_ENVIRONMENT, e);
-		} catch (InstantiationException e) {
-        	String errMsg = "Error creating WARC header tuple field for record:\n" + warcRec.toString(WarcRecord.DONT_INCLUDE_CONTENT);
-			throw new ExecException(errMsg, errCode, PigException.REMOTE_ENVIRONMENT, e);
-		} catch (IllegalAccessException e) {
-        	String errMsg = "Error creating WARC header tuple field for record:\n" + warcRec.toString(WarcRecord.DONT_INCLUDE_CONTENT);
-			throw new ExecException(errMsg, errCode, PigException.REMOTE_ENVIRONMENT, e);
-		} catch (InvocationTargetException e) {
-        	String errMsg = "Error creating WARC header tuple field for record:\n" + 
-        					warcRec.toString(WarcRecord.DONT_INCLUDE_CONTENT) +
-        					e.getCause().getMessage();
-			throw new ExecException(errMsg, errCode, PigException.REMOTE_ENVIRONMENT, e);
-		}
+    }
+    
+    /**
+     * @return true if the content column is wanted. Only valid after initColumnPlan().
+     */
+    protected boolean isContentWanted() {
+    	return (CONTENT_COL_INDEX < numColsToReturn) && (mRequiredColumns[CONTENT_COL_INDEX]);
+    }
+    
+    /**
+     * Fill the wanted columns, in schema order, straight into
+     * a tuple of the final size.
+     * @param theWarcRec the record to turn into a tuple
+     * @return the tuple
+     * @throws IOException
+     */
+    protected Tuple makeTuple(WarcRecord theWarcRec) throws IOException {
+        warcRec = theWarcRec;
+        Tuple t = mTupleFactory.newTuple(columnPlan.length);
+        for (int resFieldIndex=0; resFieldIndex<columnPlan.length; resFieldIndex++) {
+        	switch (columnPlan[resFieldIndex]) {
+        	case WARC_RECORD_ID_COL_INDEX:
+        		t.set(resFieldIndex, warcRec.getHeaderValue(WarcHeaderField.WARC_RECORD_ID));
+        		break;
+        	case CONTENT_LENGTH_COL_INDEX:
+        		long contentLength = warcRec.getDeclaredContentLength();
+        		t.set(resFieldIndex, ((contentLength < 0) || (contentLength > Integer.MAX_VALUE)) ? 
+        							 null : Integer.valueOf((int) contentLength));
+        		break;
+        	case WARC_DATE_COL_INDEX:
+        		t.set(resFieldIndex, warcRec.getHeaderValue(WarcHeaderField.WARC_DATE));
+        		break;
+        	case WARC_TYPE_COL_INDEX:
+        		t.set(resFieldIndex, warcRec.getHeaderValue(WarcHeaderField.WARC_TYPE));
+        		break;
+        	case OPTIONAL_HEADERS_COL_INDEX:
+        		t.set(resFieldIndex, optionalHeadersAsMap ? makeOptionalHeaderMap() : makeOptionalHeaderBag());
+        		break;
+        	case CONTENT_COL_INDEX:
+        		if (warcRec.isDuplicatePayload()) {
+        			// Header-only copy of a payload loaded before:
+        			t.set(resFieldIndex, null);
+        			break;
+        		}
+        		t.set(resFieldIndex, contentAsBytes ? 
+        							 new DataByteArray(warcRec.copyContentBytes()) : warcRec.getContentUTF8());
+        		break;
+        	}
+        }
+        return t;
+    }
+    
+	/*-----------------------------------------------------
+	| makeColumnPlan()
+	------------------------*/
+    
+    /**
+     * Translate the boolean vector of wanted columns into the
+     * list of schema column indexes to emit, in order. Computed
+     * once; getNext() then just walks the list.
+     * @param requiredColumns true for each schema column that is wanted
+     * @return schema column index of each result tuple field
+     */
+    private static int[] makeColumnPlan(boolean[] requiredColumns) {
+    	int numWanted = 0;
+    	for (int i=0; (i<requiredColumns.length) && (i<NUM_OUTPUT_COLUMNS); i++) {
+    		if (requiredColumns[i])
+    			numWanted++;
+    	}
+    	int[] plan = new int[numWanted];
+    	int planIndex = 0;
+    	for (int i=0; (i<requiredColumns.length) && (i<NUM_OUTPUT_COLUMNS); i++) {
+    		if (requiredColumns[i])
+    			plan[planIndex++] = i;
+    	}
+    	return plan;
+    }
+    
+    /**
+     * @return the optional header fields of the current record as a bag of (name, value) tuples.
+     * @throws ExecException
+     */
+    private DataBag makeOptionalHeaderBag() throws ExecException {
+    	DataBag optionalHeaderFieldBag = mBagFactory.newDefaultBag();
+    	for (int i=0; i<warcRec.getNumHeaders(); i++) {
+    		if (warcRec.isMandatoryHeader(i))
+    			continue;
+    		Tuple headerOptionalAttrValPair = mTupleFactory.newTuple(2);
+    		headerOptionalAttrValPair.set(0,warcRec.getHeaderName(i));
+    		headerOptionalAttrValPair.set(1,warcRec.getHeaderValue(i));
+    		optionalHeaderFieldBag.add(headerOptionalAttrValPair);
+    	}
+    	return optionalHeaderFieldBag;
+    }
+    
+    /**
+     * @return the optional header fields of the current record as a Pig map from name to value.
+     */
+    private Map<String, Object> makeOptionalHeaderMap() {
+    	HashMap<String, Object> optionalHeaderFieldMap = new HashMap<String, Object>();
+    	for (int i=0; i<warcRec.getNumHeaders(); i++) {
+    		if (!warcRec.isMandatoryHeader(i))
+    			optionalHeaderFieldMap.put(warcRec.getHeaderName(i), warcRec.getHeaderValue(i));
+    	}
+    	return optionalHeaderFieldMap;
     }
 
     @Override
@@ -201,18 +362,54 @@ public class WarcLoader extends FileInputLoadFunc implements LoadPushDown {
 
     @SuppressWarnings("rawtypes")
 	@Override
-    public InputFormat getInputFormat() {
+    public InputFormat getInputFormat() throws IOException {
         if(loadLocation.endsWith(".bz2") || loadLocation.endsWith(".bz")) {
             return new Bzip2TextInputFormat();
         } else {
-            return new WarcPigTextInputFormat();
+        	if (combineSplits)
+        		return new CombineWarcInputFormat();
+        	WarcPigTextInputFormat inputFormat = new WarcPigTextInputFormat();
+        	inputFormat.setUseHeaderSidecars(isHeaderSidecarEnough());
+        	return inputFormat;
         }
     }
+    
+    /**
+     * @return true if the wanted columns can be served from header
+     *         sidecars: neither content nor optional header fields are wanted.
+     * @throws IOException
+     */
+    protected boolean isHeaderSidecarEnough() throws IOException {
+    	if (signature == null)
+    		return false;
+    	initColumnPlan();
+    	for (int col : columnPlan) {
+    		if ((col == OPTIONAL_HEADERS_COL_INDEX) || (col == CONTENT_COL_INDEX))
+    			return false;
+    	}
+    	return true;
+    }
 
     @SuppressWarnings("rawtypes")
 	@Override
     public void prepareToRead(RecordReader reader, PigSplit split) {
         in = (WarcRecordReader) reader;
+        // getNext() copies everything it needs out of the
+        // record, so the reader may refill the same record:
+        in.setRecordReuse(true);
+        in.setRecordFilter(recordFilter);
+        readOutputSettings(split.getConf());
+    }
+    
+    /**
+     * Pick up the job properties that shape the output tuples.
+     * @param conf the job configuration, or null
+     */
+    protected void readOutputSettings(Configuration conf) {
+        if (conf != null) {
+        	optionalHeadersAsMap = conf.getBoolean(Constants.OPTIONAL_HEADERS_AS_MAP_PROP_NAME, false);
+        	contentAsBytes = conf.getBoolean(Constants.CONTENT_AS_BYTES_PROP_NAME, false);
+        }
     }
 
     @Override
@@ -220,6 +417,8 @@ public class WarcLoader extends FileInputLoadFunc implements LoadPushDown {
             throws IOException {
         loadLocation = location;
         FileInputFormat.setInputPaths(job, location);
+        combineSplits = job.getConfiguration().getBoolean(Constants.COMBINE_SPLITS_PROP_NAME, false);
+        WarcDigestDeduplicator.addTableToDistributedCache(job.getConfiguration());
     }
 
     @Override
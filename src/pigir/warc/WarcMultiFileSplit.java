@@ -0,0 +1,155 @@
+package pigir.warc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * An input split made of several file splits (usually several WARC
+ * files, or member-aligned pieces of .warc.gz files). One map
+ * task processes all of them.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcMultiFileSplit extends InputSplit implements Writable {
+
+	private Path[] paths;
+	private long[] starts;
+	private long[] lengths;
+	private String[] hosts;
+
+	/**
+	 * Needed for deserialization.
+	 */
+	public WarcMultiFileSplit() {
+	}
+
+	/**
+	 * @param fileSplits the parts of this split
+	 * @param theHosts hosts on which this split should preferably run
+	 */
+	public WarcMultiFileSplit(List<FileSplit> fileSplits, String[] theHosts) {
+		int numParts = fileSplits.size();
+		paths = new Path[numParts];
+		starts = new long[numParts];
+		lengths = new long[numParts];
+		for (int i=0; i<numParts; i++) {
+			FileSplit part = fileSplits.get(i);
+			paths[i] = part.getPath();
+			starts[i] = part.getStart();
+			lengths[i] = part.getLength();
+		}
+		hosts = theHosts;
+	}
+
+	/**
+	 * Convenience: the split prefers the union of the hosts its parts prefer.
+	 * @param fileSplits the parts of this split
+	 * @throws IOException
+	 */
+	public WarcMultiFileSplit(List<FileSplit> fileSplits) throws IOException {
+		this(fileSplits, unionOfHosts(fileSplits));
+	}
+
+	public int getNumParts() {
+		return paths.length;
+	}
+
+	public Path getPath(int i) {
+		return paths[i];
+	}
+
+	public long getStart(int i) {
+		return starts[i];
+	}
+
+	public long getLength(int i) {
+		return lengths[i];
+	}
+
+	/**
+	 * @return the parts of this split as ordinary file splits.
+	 */
+	public FileSplit[] getFileSplits() {
+		FileSplit[] res = new FileSplit[paths.length];
+		for (int i=0; i<paths.length; i++)
+			res[i] = new FileSplit(paths[i], starts[i], lengths[i], hosts);
+		return res;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.mapreduce.InputSplit#getLength()
+	 */
+	@Override
+	public long getLength() {
+		long total = 0;
+		for (long len : lengths)
+			total += len;
+		return total;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.mapreduce.InputSplit#getLocations()
+	 */
+	@Override
+	public String[] getLocations() {
+		return (hosts == null) ? new String[0] : hosts;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, paths.length);
+		for (int i=0; i<paths.length; i++) {
+			Text.writeString(out, paths[i].toString());
+			WritableUtils.writeVLong(out, starts[i]);
+			WritableUtils.writeVLong(out, lengths[i]);
+		}
+		// Hosts are a scheduling hint only; they are not
+		// needed once the split has reached its task.
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int numParts = WritableUtils.readVInt(in);
+		paths = new Path[numParts];
+		starts = new long[numParts];
+		lengths = new long[numParts];
+		for (int i=0; i<numParts; i++) {
+			paths[i] = new Path(Text.readString(in));
+			starts[i] = WritableUtils.readVLong(in);
+			lengths[i] = WritableUtils.readVLong(in);
+		}
+		hosts = null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+		for (int i=0; i<paths.length; i++) {
+			if (i > 0)
+				res.append(',');
+			res.append(paths[i] + ":" + starts[i] + "+" + lengths[i]);
+		}
+		return res.toString();
+	}
+
+	private static String[] unionOfHosts(List<FileSplit> fileSplits) throws IOException {
+		LinkedHashSet<String> res = new LinkedHashSet<String>();
+		for (FileSplit part : fileSplits) {
+			for (String host : part.getLocations())
+				res.add(host);
+		}
+		return new ArrayList<String>(res).toArray(new String[res.size()]);
+	}
+}
@@ -0,0 +1,467 @@
+package pigir.warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.io.Text;
+
+import pigir.pigudf.LineAndChunkReader;
+
+/**
+ * Pulls WARC records out of one stream. All parse state lives
+ * in the parser instance; nothing is shared between parsers. Any
+ * number of parsers may therefore run in parallel threads of one
+ * JVM, as long as each thread uses its own parser and stream.
+ * A single parser is not thread safe.
+ *
+ * Usage:
+ *     WarcParser parser = new WarcParser(lineReader);
+ *     WarcRecord rec = null;
+ *     while ((rec = parser.readNextWarcRecord(true, WarcRecord.NO_RECORD_START_LIMIT, rec)) != null) {
+ *         ...
+ *     }
+ *
+ * @author paepcke
+ *
+ */
+public class WarcParser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Longest Content-Length value that fits in a long:
+	private static final int MAX_LONG_DIGITS = 18;
+
+	private LineAndChunkReader warcLineReader;
+	// Scratch line buffer:
+	private Text txtBuf = new Text();
+	// Bytes consumed for the record being parsed:
+	private long grandTotalBytesRead = 0L;
+	// Stream position of the version line of the record being parsed:
+	private long recordStartPos = -1L;
+	// Optional header-based filter, and the number of records it rejected:
+	private WarcRecordFilter recordFilter = null;
+	private long numRecordsRejected = 0L;
+	// Whether a header without a valid Content-Length is reported
+	// as a bad record, rather than taken as the end of the stream:
+	private boolean skipBadRecords = false;
+	// Most content bytes read into a record; the rest is skipped. 0 for no limit:
+	private long maxContentSize = 0L;
+	// Recognizes duplicate payloads, or null:
+	private WarcDigestDeduplicator deduplicator = null;
+	
+	// Outcomes of reading one record; shared with MappedWarcRecordReader:
+	static final int RECORD_READ = 0;
+	static final int RECORD_REJECTED = 1;
+	static final int NO_MORE_RECORDS = 2;
+	static final int RECORD_DROPPED_AS_DUPLICATE = 3;
+
+	// Returned by parseHeaderLine() for the empty line that ends a header:
+	static final long END_OF_HEADER = -2L;
+	// Returned by parseHeaderLine() for fields other than Content-Length:
+	static final long NOT_CONTENT_LENGTH = -3L;
+
+	/**
+	 * @param theWarcLineReader line reader over the (uncompressed) WARC stream,
+	 *        or null for a reader that finds records itself, and only uses the
+	 *        parser's header parsing and record checks.
+	 */
+	public WarcParser(LineAndChunkReader theWarcLineReader) {
+		warcLineReader = theWarcLineReader;
+	}
+
+	public LineAndChunkReader getLineReader() {
+		return warcLineReader;
+	}
+
+	/**
+	 * Only deliver records that pass the given filter. The content of
+	 * rejected records is skipped, not read.
+	 * @param theFilter the filter, or null to deliver all records
+	 */
+	public void setRecordFilter(WarcRecordFilter theFilter) {
+		recordFilter = ((theFilter == null) || theFilter.isEmpty()) ? null : theFilter;
+	}
+
+	/**
+	 * Turn skip mode on or off. In skip mode a record whose header lacks
+	 * a valid Content-Length causes a MalformedWarcRecordException, after
+	 * which reading may go on with the next record. Outside skip mode
+	 * such a header ends the stream, as it always did. Records whose
+	 * content is truncated or too large (see setMaxContentSize()) cause
+	 * a MalformedWarcRecordException either way.
+	 * @param doSkip
+	 */
+	public void setSkipBadRecords(boolean doSkip) {
+		skipBadRecords = doSkip;
+	}
+
+	/**
+	 * Read at most the given number of content bytes into a record.
+	 * The rest of a larger content is skipped without being buffered,
+	 * and the record is marked truncated (see WarcRecord.isContentTruncated()).
+	 * Without a limit, content longer than Integer.MAX_VALUE bytes causes
+	 * a MalformedWarcRecordException.
+	 * @param theMaxContentSize the limit, or 0 for none
+	 */
+	public void setMaxContentSize(long theMaxContentSize) {
+		maxContentSize = Math.max(0L, theMaxContentSize);
+	}
+
+	/**
+	 * Drop records whose payload duplicates an earlier one, or deliver
+	 * them without content, as the deduplicator says. Their content is
+	 * skipped either way.
+	 * @param theDeduplicator the deduplicator, or null to deliver all copies
+	 */
+	public void setDeduplicator(WarcDigestDeduplicator theDeduplicator) {
+		deduplicator = theDeduplicator;
+	}
+
+	/**
+	 * @return number of records the record filter rejected so far.
+	 */
+	public long getNumRecordsRejected() {
+		return numRecordsRejected;
+	}
+
+	/*-----------------------------------------------------
+	| readNextWarcRecord()
+	------------------------*/
+
+	/**
+	 * Reads the next WARC record from the stream, unless that
+	 * record's version line starts at or beyond recordStartLimit.
+	 * Record readers pass the end of their split, so that the record
+	 * straddling a split boundary is read by exactly one reader.
+	 * @param readContent whether the record content is needed.
+	 * @param recordStartLimit stream position (as per the line reader's getPos())
+	 *        at which this parser's territory ends.
+	 * @param reuseRecord if non-null, this record is cleared and refilled
+	 *        instead of allocating a new one. Its content buffer is kept, and grows
+	 *        as needed. Callers must be done with the previous contents of the
+	 *        record before passing it in again.
+	 * @return a WARC record (or null if eof, or if the next record starts at or after the limit)
+	 * @throws MalformedWarcRecordException if the next record cannot be read. The
+	 *         parser may be called again to continue with the record after it.
+	 * @throws IOException
+	 */
+	public WarcRecord readNextWarcRecord(boolean readContent,
+										 long recordStartLimit,
+										 WarcRecord reuseRecord) throws IOException {
+		WarcRecord retRecord = (reuseRecord == null) ? new WarcRecord() : reuseRecord;
+		int outcome;
+		do {
+			retRecord.clearRecord();
+			outcome = readNextRecord(readContent, recordStartLimit, retRecord);
+		} while ((outcome == RECORD_REJECTED) || (outcome == RECORD_DROPPED_AS_DUPLICATE));
+		if (outcome == NO_MORE_RECORDS) {
+			return null;
+		}
+		retRecord.setTotalRecordLength(grandTotalBytesRead);
+		retRecord.setRecordStartPos(recordStartPos);
+		return retRecord;
+	}
+
+	// ---------------------------------   Private Methods ---------------------------
+
+	/**
+	 * The actual heavy lifting of reading the next WARC record. The
+	 * readContent parameter is used to support cases when the original
+	 * Pig query project out the content. We save time if we don't need
+	 * that content.
+	 *
+	 * @param readContent indicate whether the content of the record is needed, as opposed to just the WARC header info.
+	 * @param recordStartLimit stream position at or beyond which a record's version line
+	 *        no longer counts as a record for this parser.
+	 * @param record the record to fill with header fields and content. Must have been cleared.
+	 * @return RECORD_READ, RECORD_REJECTED if the record filter turned the
+	 *         record down, RECORD_DROPPED_AS_DUPLICATE, or NO_MORE_RECORDS
+	 *         at end of stream.
+	 * @throws IOException
+	 */
+	private int readNextRecord(boolean readContent,
+								   long recordStartLimit,
+								   WarcRecord record) throws IOException {
+		if (warcLineReader==null) {
+			return NO_MORE_RECORDS;
+		}
+
+		grandTotalBytesRead = 0L;
+		recordStartPos = -1L;
+		// Find our WARC header
+		boolean foundWARCHeader = scanToRecordStart();
+		txtBuf.clear();
+
+		// No WARC header found?
+		if (!foundWARCHeader) { return NO_MORE_RECORDS; }
+
+		// Record begins beyond the caller's territory (e.g. in the next split)?
+		if (recordStartPos >= recordStartLimit) { return NO_MORE_RECORDS; }
+
+		// Read the header (up to the first empty line).
+		// Make sure we get the (mandatory) content length
+		// in the header, because we rely on it below.
+		// We do not check for the other mandatory header fields:
+		long contentLength = pullHeaderFromStream(record);
+		txtBuf.clear();
+		if (!checkContentLength(record, contentLength, recordStartPos, grandTotalBytesRead))
+			return NO_MORE_RECORDS;
+
+		int outcome = judgeRecord(record);
+		if (readContent && (outcome == RECORD_READ) && !record.isDuplicatePayload()) {
+			long numToRead = numContentBytesToRead(contentLength);
+			if (numToRead > Integer.MAX_VALUE) {
+				// Move past the record, so that a caller in skip mode can go on:
+				if (skipBadRecords)
+					grandTotalBytesRead += warcLineReader.skip(contentLength);
+				throw new MalformedWarcRecordException("Content of WARC record ID: " +
+						record.get(WarcRecord.WARC_RECORD_ID) +
+						" is too large to hold in memory (" + contentLength + " bytes).", 
+						recordStartPos, grandTotalBytesRead);
+			}
+			// Pull the bytes of the content from the stream:
+			byte[] retContent = record.ensureContentCapacity((int) numToRead);
+			Integer totalRead = pullContent(retContent, (int) numToRead);
+			if (totalRead == null)
+				throw new MalformedWarcRecordException("Could not read content from WARC record ID: " +
+						record.get(WarcRecord.WARC_RECORD_ID) +
+						" of supposed content length " +
+						record.get(WarcRecord.CONTENT_LENGTH) +
+				". Reason is other than EOF.", recordStartPos, grandTotalBytesRead);
+
+			if (totalRead < numToRead) {
+				// Did we hit EOF in the middle of the WARC record's content?
+				throw new MalformedWarcRecordException("Hit end of file while reading content of WARC record ID: " +
+						record.get(WarcRecord.WARC_RECORD_ID) +
+						" of supposed content length " +
+						record.get(WarcRecord.CONTENT_LENGTH) +
+				".", recordStartPos, grandTotalBytesRead + totalRead);
+			}
+			grandTotalBytesRead += totalRead;
+			record.setContentLength((int) numToRead);
+			if (numToRead < contentLength) {
+				// Skip the tail; it is never buffered:
+				long numSkipped = warcLineReader.skip(contentLength - numToRead);
+				grandTotalBytesRead += numSkipped;
+				if (numSkipped < contentLength - numToRead)
+					throw new MalformedWarcRecordException("Hit end of file while skipping content of WARC record ID: " +
+							record.get(WarcRecord.WARC_RECORD_ID) +
+							" of supposed content length " +
+							record.get(WarcRecord.CONTENT_LENGTH) +
+							".", recordStartPos, grandTotalBytesRead);
+				record.markContentTruncated();
+			}
+		} else {
+			// Jump over the content. Scanning it line by line for the
+			// next version line would be slower, and would be fooled
+			// by content lines that look like version lines:
+			long numSkipped = warcLineReader.skip(contentLength);
+			grandTotalBytesRead += numSkipped;
+			if (skipBadRecords && (numSkipped < contentLength))
+				throw new MalformedWarcRecordException("Hit end of file while skipping content of WARC record ID: " +
+						record.get(WarcRecord.WARC_RECORD_ID) +
+						" of supposed content length " +
+						record.get(WarcRecord.CONTENT_LENGTH) +
+						".", recordStartPos, grandTotalBytesRead);
+		}
+		return outcome;
+	}
+
+	/*-----------------------------------------------------
+	| Record Checks
+	------------------------*/
+
+	/**
+	 * Set a record's declared content length once its header is read.
+	 * @param contentLength the header's Content-Length, or -1 if it has no valid one
+	 * @param recordStart stream position of the record's version line
+	 * @param numBytesConsumed bytes of the record read so far
+	 * @return false if there is no valid Content-Length outside skip mode,
+	 *         which ends the stream.
+	 * @throws MalformedWarcRecordException if there is no valid Content-Length in skip mode.
+	 */
+	boolean checkContentLength(WarcRecord record, long contentLength, long recordStart, long numBytesConsumed) 
+			throws MalformedWarcRecordException {
+		record.setDeclaredContentLength(contentLength);
+		if (contentLength >= 0)
+			return true;
+		if (skipBadRecords)
+			throw new MalformedWarcRecordException("WARC record ID: " +
+					record.get(WarcRecord.WARC_RECORD_ID) +
+					" has no valid Content-Length.", recordStart, numBytesConsumed);
+		return false;
+	}
+
+	/**
+	 * Decide what becomes of a record whose header is read: whether the
+	 * filter turns it down, and whether its payload duplicates an earlier
+	 * one. Rejected records are counted; duplicates that are delivered
+	 * are marked as such, and get no content.
+	 * @return RECORD_READ, RECORD_REJECTED, or RECORD_DROPPED_AS_DUPLICATE.
+	 */
+	int judgeRecord(WarcRecord record) {
+		if ((recordFilter != null) && !recordFilter.accept(record)) {
+			numRecordsRejected++;
+			return RECORD_REJECTED;
+		}
+		if ((deduplicator == null) || !deduplicator.isDuplicate(record))
+			return RECORD_READ;
+		if (deduplicator.isDropMode())
+			return RECORD_DROPPED_AS_DUPLICATE;
+		record.markDuplicatePayload();
+		return RECORD_READ;
+	}
+
+	/**
+	 * @return number of content bytes to read into a record, after
+	 *         truncation to the maximum content size, if any. A record
+	 *         that gets fewer bytes than its content length must be
+	 *         marked truncated.
+	 */
+	long numContentBytesToRead(long contentLength) {
+		return ((maxContentSize > 0) && (contentLength > maxContentSize)) ? maxContentSize : contentLength;
+	}
+
+	/**
+	 * @param retContent
+	 * @param contentLength
+	 * @return
+	 * @throws IOException
+	 */
+	private Integer pullContent(byte[] retContent, int contentLength) throws IOException {
+		int totalWant=contentLength;
+		int totalRead=0;
+		while (totalRead < contentLength) {
+			try {
+				int numRead=warcLineReader.read(retContent, totalRead, totalWant);
+				if (numRead < 0) {
+					return null;
+				} else {
+					totalRead += numRead;
+					totalWant = contentLength-totalRead;
+				} // end if (numRead < 0) / else
+			} catch (EOFException eofEx) {
+				// resize to what we have
+				if (totalRead > 0) {
+					return totalRead;
+				} else {
+					return null;
+				}
+			} // end try/catch (EOFException)
+		} // end while (totalRead < contentLength)
+		return totalRead;
+	}
+
+	/**
+	 * Read header lines up to the first empty line, and add the
+	 * fields to the record.
+	 * @param record the record to which header fields are added
+	 * @return the record's content length, or -1 if the header has no
+	 *         valid Content-Length field.
+	 * @throws IOException
+	 */
+	private long pullHeaderFromStream(WarcRecord record) throws IOException {
+		int bytesRead;
+		long contentLength=-1;
+		txtBuf.clear();
+		while ((bytesRead = warcLineReader.readLine(txtBuf))!=0) {
+			grandTotalBytesRead += bytesRead;
+			long lineValue = parseHeaderLine(record, txtBuf.getBytes(), 0, txtBuf.getLength());
+			if (lineValue == END_OF_HEADER)
+				break;
+			if (lineValue != NOT_CONTENT_LENGTH)
+				contentLength = lineValue;
+			txtBuf.clear();
+		}
+		return contentLength;
+	}
+
+	/**
+	 * Add the field of one header line to a record. Works on the raw
+	 * line bytes: names of standard fields are recognized by
+	 * WarcHeaderField.lookup(), values are handed to the record as
+	 * bytes, and Content-Length is parsed without creating a String.
+	 * Lines without a colon are ignored.
+	 * @param line buffer holding the line, with or without its line terminator
+	 * @return END_OF_HEADER if the line is empty; the value of a Content-Length
+	 *         field, or -1 if that is not a number; NOT_CONTENT_LENGTH otherwise.
+	 */
+	static long parseHeaderLine(WarcRecord record, byte[] line, int start, int end) {
+		int lineEnd = trimEnd(line, start, end);
+		int lineStart = trimStart(line, start, lineEnd);
+		if (lineStart == lineEnd)
+			return END_OF_HEADER;
+		int colonPos = indexOf(line, (byte) ':', lineStart, lineEnd);
+		if (colonPos < 0)
+			return NOT_CONTENT_LENGTH;
+		int nameEnd = trimEnd(line, lineStart, colonPos);
+		int valueStart = trimStart(line, colonPos + 1, lineEnd);
+		WarcHeaderField field = WarcHeaderField.lookup(line, lineStart, nameEnd - lineStart);
+		// Only non-standard field names are turned into Strings:
+		String lowerCaseName = (field != null) ? null :
+			new String(line, lineStart, nameEnd - lineStart, UTF8).toLowerCase();
+		record.addHeader(field, lowerCaseName, line, valueStart, lineEnd - valueStart);
+		return (field == WarcHeaderField.CONTENT_LENGTH) ? parseLong(line, valueStart, lineEnd) : NOT_CONTENT_LENGTH;
+	}
+
+	/**
+	 * Parse a non-negative decimal number from bytes.
+	 * @return the number, or -1 if the bytes are not a number.
+	 */
+	static long parseLong(byte[] bytes, int start, int end) {
+		if ((start == end) || (end - start > MAX_LONG_DIGITS))
+			return -1;
+		long res = 0;
+		for (int i=start; i<end; i++) {
+			int digit = bytes[i] - '0';
+			if ((digit < 0) || (digit > 9))
+				return -1;
+			res = 10 * res + digit;
+		}
+		return res;
+	}
+
+	static boolean isWhitespace(byte b) {
+		return (b == ' ') || (b == '\t') || (b == '\r') || (b == '\n');
+	}
+
+	static int trimStart(byte[] bytes, int start, int end) {
+		while ((start < end) && isWhitespace(bytes[start]))
+			start++;
+		return start;
+	}
+
+	static int trimEnd(byte[] bytes, int start, int end) {
+		while ((end > start) && isWhitespace(bytes[end - 1]))
+			end--;
+		return end;
+	}
+
+	static int indexOf(byte[] bytes, byte b, int start, int end) {
+		for (int i=start; i<end; i++) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return success true/false
+	 * @throws IOException
+	 */
+	private boolean scanToRecordStart() throws IOException {
+		boolean foundMark = false;
+		int bytesRead;
+		long lineStartPos = warcLineReader.getPos();
+		while ((!foundMark) && ((bytesRead = warcLineReader.readLine(txtBuf))!=0)) {
+			grandTotalBytesRead += bytesRead;
+			if (WarcRecord.isVersionLine(txtBuf)) {
+				foundMark=true;
+				recordStartPos = lineStartPos;
+			}
+			lineStartPos += bytesRead;
+			txtBuf.clear();
+		}
+		return foundMark;
+	}
+}
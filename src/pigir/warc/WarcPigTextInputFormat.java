@@ -1,17 +1,157 @@
 package pigir.warc;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.log4j.Logger;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigTextInputFormat;
 
+/**
+ * Input format for WARC files. Uncompressed files are split by the
+ * usual Hadoop rules; WarcRecordReader resynchronizes on record
+ * boundaries. A gzipped file is normally one split. But if the file
+ * has a gzip member index (see WarcGzipMemberIndex), or one is to be
+ * built (see Constants.GZIP_INDEX_BUILD_PROP_NAME), the file is cut
+ * into splits at member boundaries instead.
+ * Gzip member indexes and header sidecars next to the WARC files
+ * are not read as input.
+ */
 public class WarcPigTextInputFormat extends PigTextInputFormat {
+
+  private static final String GZIP_EXTENSION = ".gz";
+  private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+  // Set by loaders whose query needs only what header sidecars hold:
+  private boolean useHeaderSidecars = false;
+  // Set by loaders that need the file offsets of records:
+  private boolean recordFileOffsets = false;
+
+  /**
+   * Read records from the header sidecars of WARC files that have one
+   * (see SidecarWarcRecordReader), unless Constants.HEADER_SIDECAR_PROP_NAME
+   * is false. Only for readers whose caller never asks for content or
+   * for optional header fields.
+   * @param doUse
+   */
+  public void setUseHeaderSidecars(boolean doUse) {
+	  useHeaderSidecars = doUse;
+  }
+
+  /**
+   * Have the readers learn the file offset of every record (see
+   * WarcRecordReader.setRecordFileOffsets()). Unlike
+   * Constants.RECORD_FILE_OFFSETS_PROP_NAME, this leaves other
+   * loads of the same job alone.
+   * @param doWant
+   */
+  public void setRecordFileOffsets(boolean doWant) {
+	  recordFileOffsets = doWant;
+  }
+
   @Override
   public RecordReader<LongWritable, Text>
-  			createRecordReader(InputSplit split, 
+  			createRecordReader(InputSplit split,
   							   TaskAttemptContext context) {
-	  return new WarcRecordReader();
+	  WarcRecordReader reader;
+	  if (useHeaderSidecars && 
+		  ((context == null) || context.getConfiguration().getBoolean(Constants.HEADER_SIDECAR_PROP_NAME, true)))
+		  reader = new SidecarWarcRecordReader();
+	  else if ((context != null) && context.getConfiguration().getBoolean(Constants.MMAP_PROP_NAME, false))
+		  reader = new MappedWarcRecordReader();
+	  else
+		  reader = new WarcRecordReader();
+	  reader.setRecordFileOffsets(recordFileOffsets);
+	  return reader;
+  }
+
+  protected boolean isRecordFileOffsets() {
+	  return recordFileOffsets;
+  }
+
+  /* (non-Javadoc)
+   * @see org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigFileInputFormat#listStatus(org.apache.hadoop.mapreduce.JobContext)
+   * When a directory of WARC files is loaded, leave out the gzip member
+   * index files and header sidecars that live next to the WARC files.
+   */
+  @Override
+  protected List<FileStatus> listStatus(JobContext job) throws IOException {
+	  List<FileStatus> files = super.listStatus(job);
+	  Iterator<FileStatus> it = files.iterator();
+	  while (it.hasNext()) {
+		  Path path = it.next().getPath();
+		  if (WarcGzipMemberIndex.isIndexPath(path) || WarcHeaderSidecar.isSidecarPath(path))
+			  it.remove();
+	  }
+	  return files;
+  }
+
+  /* (non-Javadoc)
+   * @see org.apache.hadoop.mapreduce.lib.input.FileInputFormat#getSplits(org.apache.hadoop.mapreduce.JobContext)
+   * Let the superclass compute splits, then replace each whole-file split of
+   * a .warc.gz file with member-aligned splits, if a member index is available.
+   */
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+	  List<InputSplit> splits = super.getSplits(job);
+	  List<InputSplit> resSplits = new ArrayList<InputSplit>(splits.size());
+	  Configuration conf = job.getConfiguration();
+	  for (InputSplit split : splits) {
+		  FileSplit fileSplit = (FileSplit) split;
+		  Path path = fileSplit.getPath();
+		  if (!path.getName().endsWith(GZIP_EXTENSION) || (fileSplit.getStart() != 0)) {
+			  resSplits.add(split);
+			  continue;
+		  }
+		  FileSystem fs = path.getFileSystem(conf);
+		  FileStatus fileStatus = fs.getFileStatus(path);
+		  WarcGzipMemberIndex index;
+		  try {
+			  index = WarcGzipMemberIndex.loadOrBuild(fs, path, conf);
+		  } catch (IOException e) {
+			  // Building the index fails on corrupt members. The reader
+			  // can skip those, but only by reading the whole file:
+			  if (!conf.getBoolean(Constants.SKIP_BAD_RECORDS_PROP_NAME, false))
+				  throw e;
+			  logger.warn("Could not index gzip members of " + path + "; reading it as one split: " + e.getMessage());
+			  index = null;
+		  }
+		  if ((index == null) || (index.getNumMembers() < 2)) {
+			  resSplits.add(split);
+			  continue;
+		  }
+		  long splitSize = computeSplitSize(fileStatus.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+		  long[] splitPoints = index.getSplitPoints(splitSize);
+		  for (int i=0; i<splitPoints.length; i++) {
+			  long splitStart = splitPoints[i];
+			  long splitEnd = (i + 1 < splitPoints.length) ? splitPoints[i + 1] : fileStatus.getLen();
+			  resSplits.add(new FileSplit(path, splitStart, splitEnd - splitStart,
+					  					  getHosts(fs, fileStatus, splitStart, splitEnd - splitStart)));
+		  }
+		  logger.info("Cut gzipped WARC file " + path + " into " + splitPoints.length + " member-aligned splits.");
+	  }
+	  return resSplits;
+  }
+
+  /**
+   * @return hosts holding the block in which a split starts.
+   */
+  private String[] getHosts(FileSystem fs, FileStatus fileStatus, long start, long length) throws IOException {
+	  BlockLocation[] blkLocations = fs.getFileBlockLocations(fileStatus, start, length);
+	  if ((blkLocations == null) || (blkLocations.length == 0))
+		  return new String[0];
+	  return blkLocations[0].getHosts();
   }
 }
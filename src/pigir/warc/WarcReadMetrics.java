@@ -0,0 +1,231 @@
+package pigir.warc;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.log4j.Logger;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+ * Where the time of a WARC reading task goes. A WarcRecordReader
+ * keeps one instance, and feeds it from its streams (through
+ * MeteredInputStream) and from its record loop. WarcLoader adds
+ * the time it spends building tuples.
+ *
+ * Updates are plain field increments, plus one System.nanoTime()
+ * per stream read and per record, so metrics can stay on in
+ * production. Hadoop counters are updated only in publish(),
+ * which the reader calls when it is closed. Optionally, a summary
+ * is logged every Constants.METRICS_LOG_INTERVAL_PROP_NAME seconds.
+ *
+ * Not thread safe. With a PrefetchInputStream, the background
+ * thread updates only the file read and inflate slots, and the
+ * consumer thread only the others.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcReadMetrics {
+
+	public static enum Counters {
+		RECORDS_READ,
+		// Records whose content was skipped, because no column needed it:
+		RECORDS_CONTENT_SKIPPED,
+		// Records of which only the start of the content was read:
+		RECORDS_CONTENT_TRUNCATED,
+		RECORDS_REJECTED_BY_FILTER,
+		// Records dropped, or delivered without content, as payload duplicates:
+		RECORDS_DUPLICATE_PAYLOAD,
+		// Records read from header sidecars, rather than from the WARC files:
+		RECORDS_FROM_HEADER_SIDECAR,
+		// Bytes read from the file system (compressed, for .warc.gz files):
+		FILE_BYTES_READ,
+		// WARC bytes handed to the parser, read or skipped:
+		UNCOMPRESSED_BYTES_READ,
+		FILE_READ_MSECS,
+		INFLATE_MSECS,
+		// Time the record loop waited for the stream below the parser. Includes
+		// file reads and inflating, unless a prefetch thread does those:
+		STREAM_WAIT_MSECS,
+		// Time in the record loop that is not spent waiting for the stream:
+		PARSE_MSECS,
+		TUPLE_BUILD_MSECS,
+		// Declared content length histogram:
+		CONTENT_SIZE_UNDER_1KB,
+		CONTENT_SIZE_1KB_TO_10KB,
+		CONTENT_SIZE_10KB_TO_100KB,
+		CONTENT_SIZE_100KB_TO_1MB,
+		CONTENT_SIZE_1MB_TO_10MB,
+		CONTENT_SIZE_10MB_AND_OVER
+	};
+
+	// Counter group of the per-WARC-Type record counts:
+	public static final String RECORD_TYPE_COUNTER_GROUP = "WARC record types";
+	// Record types beyond this many are counted as OTHER_RECORD_TYPE,
+	// so that a broken file cannot flood the job tracker with counters:
+	private static final int MAX_RECORD_TYPES = 32;
+	private static final String OTHER_RECORD_TYPE = "other";
+	private static final String NO_RECORD_TYPE = "none";
+
+	private static final long NANOS_PER_MSEC = 1000000L;
+	// Upper limits of all but the last content size bucket:
+	private static final long[] CONTENT_SIZE_LIMITS = {
+		1024L, 10 * 1024L, 100 * 1024L, 1024 * 1024L, 10 * 1024 * 1024L
+	};
+	private static final Counters[] CONTENT_SIZE_BUCKETS = {
+		Counters.CONTENT_SIZE_UNDER_1KB,
+		Counters.CONTENT_SIZE_1KB_TO_10KB,
+		Counters.CONTENT_SIZE_10KB_TO_100KB,
+		Counters.CONTENT_SIZE_100KB_TO_1MB,
+		Counters.CONTENT_SIZE_1MB_TO_10MB,
+		Counters.CONTENT_SIZE_10MB_AND_OVER
+	};
+
+	private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
+
+	// Current values, times in nanoseconds:
+	private long[] values = new long[Counters.values().length];
+	// Counter values (times in msecs) already published:
+	private long[] published = new long[Counters.values().length];
+	private TreeMap<String, long[]> recordTypeCounts = new TreeMap<String, long[]>();
+	private TreeMap<String, Long> publishedRecordTypeCounts = new TreeMap<String, Long>();
+
+	private long logIntervalNanos;
+	private long lastLogNanos = System.nanoTime();
+
+	/**
+	 * @param logIntervalSecs seconds between summaries in the log; 0 for none.
+	 */
+	public WarcReadMetrics(long logIntervalSecs) {
+		logIntervalNanos = logIntervalSecs * 1000L * NANOS_PER_MSEC;
+	}
+
+	public void add(Counters counter, long amount) {
+		values[counter.ordinal()] += amount;
+	}
+
+	/**
+	 * @return current value; times are in nanoseconds.
+	 */
+	public long get(Counters counter) {
+		return values[counter.ordinal()];
+	}
+
+	/**
+	 * Count a record the reader delivers.
+	 * @param record the record
+	 * @param contentRead false if the record's content was skipped
+	 */
+	public void recordRead(WarcRecord record, boolean contentRead) {
+		values[Counters.RECORDS_READ.ordinal()]++;
+		if (!contentRead)
+			values[Counters.RECORDS_CONTENT_SKIPPED.ordinal()]++;
+		else if (record.isContentTruncated())
+			values[Counters.RECORDS_CONTENT_TRUNCATED.ordinal()]++;
+		values[contentSizeBucket(record.getDeclaredContentLength()).ordinal()]++;
+
+		String recordType = record.getHeaderValue(WarcHeaderField.WARC_TYPE);
+		if (recordType == null)
+			recordType = NO_RECORD_TYPE;
+		long[] typeCount = recordTypeCounts.get(recordType);
+		if (typeCount == null) {
+			if (recordTypeCounts.size() >= MAX_RECORD_TYPES)
+				recordType = OTHER_RECORD_TYPE;
+			typeCount = recordTypeCounts.get(recordType);
+			if (typeCount == null) {
+				typeCount = new long[1];
+				recordTypeCounts.put(recordType, typeCount);
+			}
+		}
+		typeCount[0]++;
+	}
+
+	/**
+	 * Log a summary if the log interval has passed.
+	 * @param nowNanos the current System.nanoTime(), which the caller has at hand anyway
+	 * @param source what is being read, for the log message
+	 */
+	public void maybeLogSummary(long nowNanos, Object source) {
+		if ((logIntervalNanos <= 0) || (nowNanos - lastLogNanos < logIntervalNanos))
+			return;
+		lastLogNanos = nowNanos;
+		logger.info("WARC read metrics at " + source + ": " + toString());
+	}
+
+	/**
+	 * Add what has changed since the last call to the job's counters.
+	 * Several readers of one task (see ConcurrentWarcRecordReader) may
+	 * publish at the same time; counters are not thread safe.
+	 */
+	public void publish() {
+		PigStatusReporter reporter = PigStatusReporter.getInstance();
+		if (reporter == null)
+			return;
+		synchronized (WarcReadMetrics.class) {
+			for (Counters counterName : Counters.values()) {
+				long value = counterValue(counterName);
+				long delta = value - published[counterName.ordinal()];
+				if (delta == 0)
+					continue;
+				Counter counter = reporter.getCounter(counterName);
+				if (counter != null)
+					counter.increment(delta);
+				published[counterName.ordinal()] = value;
+			}
+			for (Map.Entry<String, long[]> typeCount : recordTypeCounts.entrySet()) {
+				Long publishedCount = publishedRecordTypeCounts.get(typeCount.getKey());
+				long delta = typeCount.getValue()[0] - ((publishedCount == null) ? 0L : publishedCount);
+				if (delta == 0)
+					continue;
+				Counter counter = reporter.getCounter(RECORD_TYPE_COUNTER_GROUP, typeCount.getKey());
+				if (counter != null)
+					counter.increment(delta);
+				publishedRecordTypeCounts.put(typeCount.getKey(), typeCount.getValue()[0]);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+		for (Counters counterName : Counters.values()) {
+			res.append(counterName.name().toLowerCase()).append('=').append(counterValue(counterName)).append(' ');
+		}
+		res.append("types={");
+		boolean isFirst = true;
+		for (Map.Entry<String, long[]> typeCount : recordTypeCounts.entrySet()) {
+			if (!isFirst)
+				res.append(", ");
+			res.append(typeCount.getKey()).append('=').append(typeCount.getValue()[0]);
+			isFirst = false;
+		}
+		return res.append('}').toString();
+	}
+
+	// ---------------------------------   Private Methods ---------------------------
+
+	/**
+	 * @return value as published in counters: times in msecs.
+	 */
+	private long counterValue(Counters counterName) {
+		long value = values[counterName.ordinal()];
+		switch (counterName) {
+		case FILE_READ_MSECS:
+		case INFLATE_MSECS:
+		case STREAM_WAIT_MSECS:
+		case PARSE_MSECS:
+		case TUPLE_BUILD_MSECS:
+			return value / NANOS_PER_MSEC;
+		default:
+			return value;
+		}
+	}
+
+	private static Counters contentSizeBucket(long contentLength) {
+		int bucket = 0;
+		while ((bucket < CONTENT_SIZE_LIMITS.length) && (contentLength >= CONTENT_SIZE_LIMITS[bucket]))
+			bucket++;
+		return CONTENT_SIZE_BUCKETS[bucket];
+	}
+}
@@ -41,17 +41,26 @@ package pigir.warc;
  * 
  */
 
-import java.io.EOFException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 
 import pigir.pigudf.LineAndChunkReader;
 
@@ -94,7 +103,7 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public static final String WARC_DATE = "warc-date";
 	public static final String CONTENT_LENGTH = "content-length";
 	public static final String CONTENT_TYPE = "content-type";
-	public static final String WARC_CONCURRENT_TO = "warc-concurrent-To";
+	public static final String WARC_CONCURRENT_TO = "warc-concurrent-to";
 	public static final String WARC_BLOCK_DIGEST = "warc-block-digest";
 	public static final String WARC_PAYLOAD_DIGEST = "warc-payload-digest";
 	public static final String WARC_IP_ADDRESS = "warc-ip-address";
@@ -108,6 +117,9 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public static final String WARC_SEGMENT_ORIGIN_ID = "warc-segment-origin-id";
 	public static final String WARC_SEGMENT_NUMBER = "warc-segment-number";
 	public static final String WARC_SEGMENT_TOTAL_LENGTH = "warc-segment-total-length";
+	
+	// WARC-Truncated value for content cut off at a length limit:
+	public static final String TRUNCATED_BY_LENGTH = "length";
 		
 	private static final String[] mandatoryHeaderFields = {WARC_RECORD_ID,
 														   CONTENT_LENGTH,
@@ -119,7 +131,7 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	private static Constructor<String> strConstructor = null;
 	private static Constructor<Integer> intConstructor = null;
 	
-	{
+	static {
 		try {
 			strConstructor = String.class.getConstructor(String.class);
 			intConstructor = Integer.class.getConstructor(String.class);
@@ -130,8 +142,10 @@ public class WarcRecord extends Text implements WarcRecordMap {
 		}
 	}
 
+	// Shared by all records, so that reading a record does not
+	// allocate a new map:
 	@SuppressWarnings({ "rawtypes", "serial" })
-	public HashMap<String,Constructor> mandatoryWarcHeaderFldTypes = new HashMap<String, Constructor>() {
+	public static final HashMap<String,Constructor> mandatoryWarcHeaderFldTypes = new HashMap<String, Constructor>() {
 		{
 			put(WARC_RECORD_ID, strConstructor);
 			put(CONTENT_LENGTH, intConstructor);
@@ -143,196 +157,97 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public static final boolean INCLUDE_CONTENT = true; 
 	public static final boolean DONT_INCLUDE_CONTENT = false; 
 	
-	// Fast method for looking up whether a header key is mandatory or not:
-	@SuppressWarnings("serial")
-	private static final HashMap<String,Boolean> mandatoryHeaderFieldsLookup = new HashMap<String, Boolean>() {
-		{
-			for (String key : mandatoryHeaderFields) {
-				put(key, true);
-			}
-		}
-	};
-	
 	// Marker to look for when finding the next WARC record wbRecordReader a stream:
 	public static String WARC_VERSION = "WARC/0.18";
 	public static String WARC_VERSION_LINE = "WARC/0.18\n";
+	// Version line writeWarc() opens records with. Records do not keep
+	// the version they were read as, and their fields are those of 1.0:
+	public static final String WARC_WRITE_VERSION = "WARC/1.0";
+	// Any WARC version line starts with this prefix (WARC/0.18, WARC/1.0, ...):
+	public static final String WARC_VERSION_PREFIX = "WARC/";
+	private static final byte[] WARC_VERSION_PREFIX_BYTES = WARC_VERSION_PREFIX.getBytes();
+	// Longest line we still accept as a version line; e.g. "WARC/0.18" plus slack:
+	private static final int MAX_VERSION_LINE_LEN = 16;
+	// Pass as recordStartLimit to read records regardless of where they start:
+	public static final long NO_RECORD_START_LIMIT = Long.MAX_VALUE;
 	private static String NEWLINE="\n";
 	
-	private static HashMap<String,String> tmpHeaderMap = new HashMap<String, String>();
-	private static Long tmpGrandTotalBytesRead = 0L;
-	private static HashSet<String> tmpOptionalHeaderKeys = new HashSet<String>();
+	private static final int INITIAL_NUM_HEADER_SLOTS = 16;
+	private static final int INITIAL_HEADER_BYTES = 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final byte[] HTTP_VERSION_PREFIX_BYTES = "HTTP/".getBytes();
+	private static final byte[] CRLF_BYTES = {'\r', '\n'};
+	private static final byte[] HEADER_SEPARATOR_BYTES = {':', ' '};
+	// How far into the content getContentCharset() looks for an HTTP header:
+	private static final int MAX_HTTP_HEADER_SNIFF_LEN = 8192;
+	private static final Pattern CHARSET_PARAM_PATTERN = Pattern.compile("(?i)charset\\s*=\\s*[\"']?([-\\w.:+]+)");
 	
 	// Instance variables:
-	private HashMap<String,String> headerMap = null;
-	private Long grandTotalBytesRead;
-	private byte[] warcContent=null;
-	private HashSet<String> optionalHeaderKeysThisRecord;
-
-	/**
-	 * The actual heavy lifting of reading wbRecordReader the next WARC record. The
-	 * readContent parameter is used to support cases when the original
-	 * Pig query project out the content. We save time if we don't need
-	 * that content.
-	 * 
-	 * @param warcLineReader a line reader
-	 * @param readContent indicate whether the content of the record is needed, as opposed to just the WARC header info.
-	 * @return the content bytes (w/ the headerBuffer populated)
-	 * @throws java.io.IOException
-	 */
-	private static byte[] readNextRecord(LineAndChunkReader warcLineReader, boolean readContent) throws IOException {
-		if (warcLineReader==null) { 
-			return null;
-		}
-
-		Text txtBuf = new Text();
-		byte[] retContent=null;
-		
-		tmpOptionalHeaderKeys.clear();
-		tmpGrandTotalBytesRead = 0L;
-		tmpHeaderMap.clear();
-		// Find our WARC header
-		boolean foundWARCHeader = scanToRecordStart(warcLineReader, txtBuf);
-		txtBuf.clear();
-		
-		// No WARC header found?
-		if (!foundWARCHeader) { return null; }
-
-		// Read the header (up to the first empty line).
-		// Make sure we get the (mandatory) content length 
-		// is wbRecordReader the header, because we rely on it below. 
-		// We do not check for the other mandatory header fields:
-		int contentLength = pullHeaderFromStream(warcLineReader, 
-												 txtBuf);
-		txtBuf.clear();
-		
-		if (contentLength < 0) {
-			return null;
-		}
-
-		if (readContent) {
-			// Pull the bytes of the content from the stream:
-			retContent=new byte[contentLength];
-			Integer totalRead = pullContent(warcLineReader, retContent, contentLength);
-			if (totalRead == null)
-				throw new IOException("Could not read content from WARC record ID: " +
-						tmpHeaderMap.get(WARC_RECORD_ID) + 
-						" of supposed content length " +
-						tmpHeaderMap.get(CONTENT_LENGTH) +
-				". Reason is other than EOF.");
-
-			if (totalRead < contentLength) {
-				// Did we hit EOF wbRecordReader the middle of the WARC record's content?
-				throw new IOException("Hit end of file while reading content of WARC record ID: " +
-						tmpHeaderMap.get(WARC_RECORD_ID) + 
-						" of supposed content length " +
-						tmpHeaderMap.get(CONTENT_LENGTH) +
-				".");
-			}
-			tmpGrandTotalBytesRead += totalRead;
-			return retContent;
-		} else {
-			return new byte[0];
-		}
-	}
+	
+	// Header fields are kept in flat parallel arrays, rather than
+	// in a map. Records have a dozen or so header fields, so a linear
+	// scan is as fast as hashing, and refilling a record for reuse
+	// allocates nothing. Names are lower case. For standard fields
+	// the name is the (shared) constant of the field's WarcHeaderField;
+	// headerFields[i] is null for non-standard fields:
+	private String[] headerNames = new String[INITIAL_NUM_HEADER_SLOTS];
+	private WarcHeaderField[] headerFields = new WarcHeaderField[INITIAL_NUM_HEADER_SLOTS];
+	// Values that came from the parser stay raw bytes in headerBytes
+	// until someone asks for them; valueStarts/valueLengths locate them.
+	// A value length of -1 means the value is in headerValues:
+	private String[] headerValues = new String[INITIAL_NUM_HEADER_SLOTS];
+	private int[] valueStarts = new int[INITIAL_NUM_HEADER_SLOTS];
+	private int[] valueLengths = new int[INITIAL_NUM_HEADER_SLOTS];
+	private byte[] headerBytes = new byte[INITIAL_HEADER_BYTES];
+	private int headerBytesLen = 0;
+	private int numHeaders = 0;
+	
+	private Long grandTotalBytesRead = 0L;
+	private long recordStartPos = -1L;
+	// Content buffer. When the record is reused, the buffer is
+	// kept and only grows; contentLength says how much of it is valid: 
+	private byte[] warcContent=new byte[0];
+	private int contentLength = 0;
+	// Non-null while the content is a slice of a memory-mapped file,
+	// rather than in warcContent. See MappedWarcRecordReader:
+	private ByteBuffer contentBuffer = null;
+	// Value of the Content-Length header field, as parsed; -1 if unknown:
+	private long declaredContentLength = -1L;
+	// Whether only the start of the content was read:
+	private boolean contentTruncated = false;
+	// Whether the content was left out, because the payload is a duplicate:
+	private boolean duplicatePayload = false;
+	// Whether the content was set from outside, rather than read with the
+	// record, and may differ from the bytes its digest fields were taken of:
+	private boolean contentReplaced = false;
 
 	/**
-	 * @param warcLineReader
-	 * @param retContent
-	 * @param contentLength
-	 * @return
-	 * @throws IOException
+	 * Check whether a line is a WARC version line, such as "WARC/0.18"
+	 * or "WARC/1.0". Those lines open every record. Works on the raw line
+	 * bytes, so no String is created for the many lines that are not
+	 * version lines.
+	 * @param line the line without its terminating newline
+	 * @return true if the line marks the start of a WARC record
 	 */
-	private static Integer pullContent(LineAndChunkReader warcLineReader,
-			byte[] retContent, int contentLength) throws IOException {
-		int totalWant=contentLength;
-		int totalRead=0;
-		while (totalRead < contentLength) {
-			try {
-				int numRead=warcLineReader.read(retContent, totalRead, totalWant);
-				if (numRead < 0) {
-					return null;
-				} else {
-					totalRead += numRead;
-					totalWant = contentLength-totalRead;
-				} // end if (numRead < 0) / else
-			} catch (EOFException eofEx) {
-				// resize to what we have
-				if (totalRead > 0) {
-					return totalRead;
-				} else {
-					return null;
-				}
-			} // end try/catch (EOFException)
-		} // end while (totalRead < contentLength)
-		return totalRead;
-	}
-
-	/**
-	 * @param warcLineReader
-	 * @param txtBuf
-	 * @param inHeader
-	 * @return
-	 * @throws IOException
-	 */
-	private static int pullHeaderFromStream(LineAndChunkReader warcLineReader,
-			Text txtBuf) throws IOException {
-		boolean inHeader = true;
-		String line;
-		int bytesRead;
-		int contentLength=-1;
-		String headerAttrName;
-		String headerAttrValue;
-		txtBuf.clear();
-		while (inHeader && ((bytesRead = warcLineReader.readLine(txtBuf))!=0)) {
-			line = txtBuf.toString();
-			tmpGrandTotalBytesRead += bytesRead;
-			if (line.trim().length()==0) {
-				inHeader=false;
-			} else {
-				String[] thisHeaderPieceParts=line.split(":", 2);
-				if (thisHeaderPieceParts.length==2) {
-					headerAttrName  = (thisHeaderPieceParts[0]).trim().toLowerCase();
-					headerAttrValue =  thisHeaderPieceParts[1].trim();
-					tmpHeaderMap.put(headerAttrName, headerAttrValue);
-					
-					// Accumulate a list of optional header keys:
-					if (mandatoryHeaderFieldsLookup.get(headerAttrName) == null)
-						tmpOptionalHeaderKeys.add(headerAttrName);
-					
-					if (headerAttrName.startsWith(CONTENT_LENGTH)) {
-						try {
-							contentLength=Integer.parseInt(headerAttrValue.trim());
-						} catch (NumberFormatException nfEx) {
-							contentLength=-1;
-						}
-					}
-				}
-			}
-			txtBuf.clear();
-		}
-		return contentLength;
+	public static boolean isVersionLine(Text line) {
+		return isVersionLine(line.getBytes(), 0, line.getLength());
 	}
 
 	/**
-	 * @param warcLineReader
-	 * @param txtBuf
-	 * @return success true/false
-	 * @throws IOException
+	 * Check whether the given bytes are a WARC version line.
+	 * @see #isVersionLine(Text)
 	 */
-	private static boolean scanToRecordStart(LineAndChunkReader warcLineReader,
-											 Text txtBuf) throws IOException {
-		String line;
-		boolean foundMark = false;
-		int bytesRead;
-		while ((!foundMark) && ((bytesRead = warcLineReader.readLine(txtBuf))!=0)) {
-			line = txtBuf.toString();
-			tmpGrandTotalBytesRead += bytesRead;
-			if (line.startsWith(WARC_VERSION)) {
-				foundMark=true;
-			}
-			txtBuf.clear();
+	public static boolean isVersionLine(byte[] bytes, int start, int len) {
+		if ((len <= WARC_VERSION_PREFIX_BYTES.length) || (len > MAX_VERSION_LINE_LEN))
+			return false;
+		for (int i=0; i<WARC_VERSION_PREFIX_BYTES.length; i++) {
+			if (bytes[start + i] != WARC_VERSION_PREFIX_BYTES[i])
+				return false;
 		}
-		return foundMark;
+		// Version number must start with a digit:
+		byte firstVersionChar = bytes[start + WARC_VERSION_PREFIX_BYTES.length]; 
+		return (firstVersionChar >= '0') && (firstVersionChar <= '9');
 	}
 
 	/**
@@ -341,21 +256,32 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	 * @return a WARC record (or null if eof)
 	 * @throws java.io.IOException
 	 */
-	@SuppressWarnings("unchecked")
 	public static WarcRecord readNextWarcRecord(LineAndChunkReader warcInLineReader, boolean readContent) throws IOException {
-		
-		byte[] recordContent=readNextRecord(warcInLineReader, readContent);
-		if (recordContent==null) { 
-			return null; 
-		}
-
-		WarcRecord retRecord=new WarcRecord();
-		retRecord.headerMap = (HashMap<String, String>) tmpHeaderMap.clone();
-		retRecord.grandTotalBytesRead = tmpGrandTotalBytesRead;
-		retRecord.optionalHeaderKeysThisRecord = (HashSet<String>) tmpOptionalHeaderKeys.clone();
-		retRecord.setRecordContent(recordContent);
-		
-		return retRecord;
+		return readNextWarcRecord(warcInLineReader, readContent, NO_RECORD_START_LIMIT, null);
+	}
+	
+	/**
+	 * Reads the next WARC record, unless that record's version line
+	 * starts at or beyond recordStartLimit. Always allocates a new record.
+	 * @see #readNextWarcRecord(LineAndChunkReader, boolean, long, WarcRecord)
+	 */
+	public static WarcRecord readNextWarcRecord(LineAndChunkReader warcInLineReader, 
+												boolean readContent, 
+												long recordStartLimit) throws IOException {
+		return readNextWarcRecord(warcInLineReader, readContent, recordStartLimit, null);
+	}
+	
+	/**
+	 * Convenience for one-off reads. Creates a throw-away WarcParser
+	 * over the line reader. Callers that read many records from one
+	 * stream should hold on to a WarcParser instead.
+	 * @see WarcParser#readNextWarcRecord(boolean, long, WarcRecord)
+	 */
+	public static WarcRecord readNextWarcRecord(LineAndChunkReader warcInLineReader, 
+												boolean readContent, 
+												long recordStartLimit,
+												WarcRecord reuseRecord) throws IOException {
+		return new WarcParser(warcInLineReader).readNextWarcRecord(readContent, recordStartLimit, reuseRecord);
 	}
 
 	/**
@@ -371,11 +297,230 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public Long getTotalRecordLength() {
 		return grandTotalBytesRead;
 	}
+	
+	/**
+	 * Retrieves the stream position of this record's version line,
+	 * as reported by the line reader that delivered the record.
+	 * @return position of the first byte of the record
+	 */
+	public long getRecordStartPos() {
+		return recordStartPos;
+	}
+
+	void setTotalRecordLength(long theGrandTotalBytesRead) {
+		grandTotalBytesRead = theGrandTotalBytesRead;
+	}
+	
+	void setRecordStartPos(long theRecordStartPos) {
+		recordStartPos = theRecordStartPos;
+	}
+	
+	void setContentLength(int theContentLength) {
+		contentLength = theContentLength;
+	}
+	
+	void setDeclaredContentLength(long theDeclaredContentLength) {
+		declaredContentLength = theDeclaredContentLength;
+	}
+	
+	/**
+	 * Note that only the start of the content was read, because the
+	 * content was larger than the reader's limit. Like a crawler that
+	 * stops at its length limit, add WARC-Truncated: length, unless
+	 * the record already says why it is truncated.
+	 */
+	void markContentTruncated() {
+		contentTruncated = true;
+		if (findHeader(WarcHeaderField.WARC_TRUNCATED) < 0)
+			addHeader(WARC_TRUNCATED, TRUNCATED_BY_LENGTH);
+	}
+	
+	/**
+	 * @return true if getContentLength() is less than the declared content
+	 *         length, because the reader kept only the start of a content
+	 *         larger than Constants.MAX_CONTENT_SIZE_PROP_NAME.
+	 */
+	public boolean isContentTruncated() {
+		return contentTruncated;
+	}
+	
+	void markDuplicatePayload() {
+		duplicatePayload = true;
+	}
+	
+	/**
+	 * @return true if the record's payload duplicates an earlier record's,
+	 *         and its content was therefore not read (see WarcDigestDeduplicator).
+	 */
+	public boolean isDuplicatePayload() {
+		return duplicatePayload;
+	}
+	
+	/**
+	 * @return the value of the record's Content-Length header field, or -1 if
+	 *         it is unknown. Unlike getContentLength(), this is available
+	 *         even if the content was not read.
+	 */
+	public long getDeclaredContentLength() {
+		return declaredContentLength;
+	}
 
 
 	protected void setRecordContent(byte[] content) {
+		setRecordContent(content, false);
+	}
+	
+	/**
+	 * @param content the new content
+	 * @param isOriginalPayload true if content holds the very bytes the record
+	 *        was read with, so that its digest fields still hold for it.
+	 */
+	void setRecordContent(byte[] content, boolean isOriginalPayload) {
 		warcContent = content;
+		contentLength = content.length;
+		contentBuffer = null;
+		contentReplaced = !isOriginalPayload;
+	}
+	
+	/**
+	 * Make the record's content a view of bytes that live elsewhere,
+	 * such as in a memory-mapped file. Nothing is copied until
+	 * getContentBytes() is called.
+	 * @param theContentBuffer buffer whose remaining bytes are the content
+	 */
+	void setContentBuffer(ByteBuffer theContentBuffer) {
+		contentBuffer = theContentBuffer;
+		contentLength = theContentBuffer.remaining();
+	}
+	
+	/**
+	 * Retrieves the content without copying it. For records from
+	 * MappedWarcRecordReader this is a slice of the mapped file,
+	 * which stays valid after the record is reused. For all other
+	 * records it wraps the content buffer, and is overwritten when
+	 * the record is reused.
+	 * @return a read-only buffer whose remaining bytes are the content
+	 */
+	public ByteBuffer getContentBuffer() {
+		if (contentBuffer != null)
+			return contentBuffer.asReadOnlyBuffer();
+		return ByteBuffer.wrap(warcContent, 0, contentLength).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Retrieves the raw content bytes. When records are being
+	 * reused, the array may be longer than the content; only
+	 * the first getContentLength() bytes are valid. Content that
+	 * was delivered as a mapped buffer is copied on the first call.
+	 * @return the content buffer
+	 */
+	public byte[] getContentBytes() {
+		if (contentBuffer != null) {
+			contentBuffer.duplicate().get(ensureContentCapacity(contentLength), 0, contentLength);
+			contentBuffer = null;
+		}
+		return warcContent;
+	}
+	
+	/**
+	 * @return number of valid bytes in getContentBytes()
+	 */
+	public int getContentLength() {
+		return contentLength;
+	}
+	
+	/**
+	 * @return a new array holding exactly the content bytes. Unlike
+	 *         getContentBytes(), the array stays valid when the record is reused.
+	 */
+	public byte[] copyContentBytes() {
+		byte[] res = new byte[contentLength];
+		if (contentBuffer != null)
+			contentBuffer.duplicate().get(res);
+		else
+			System.arraycopy(warcContent, 0, res, 0, contentLength);
+		return res;
+	}
+	
+	/**
+	 * Retrieves the content as characters that are decoded only
+	 * as far as they are looked at. Nothing is copied; for reused
+	 * records the result is valid until the next record is read.
+	 * @see ContentCharSequence
+	 * @return the content, decoded with getContentCharset()
+	 */
+	public ContentCharSequence getContentChars() {
+		return getContentChars(getContentCharset());
+	}
+	
+	/**
+	 * @param charset charset to decode the content with
+	 * @return the content as lazily decoded characters
+	 */
+	public ContentCharSequence getContentChars(Charset charset) {
+		return new ContentCharSequence(getContentBuffer(), charset);
+	}
+	
+	/**
+	 * Figure out how the content is encoded. Looks for a charset
+	 * parameter first in the record's Content-Type header field, then,
+	 * for HTTP messages, in the Content-Type field of the HTTP header
+	 * that starts the content.
+	 * @return the content's charset. UTF-8 if none is declared, or if
+	 *         the declared charset is not supported.
+	 */
+	public Charset getContentCharset() {
+		String charsetName = charsetParameter(getHeaderValue(WarcHeaderField.CONTENT_TYPE));
+		if (charsetName == null)
+			charsetName = charsetParameter(findHttpContentType());
+		if (charsetName != null) {
+			try {
+				if (Charset.isSupported(charsetName))
+					return Charset.forName(charsetName);
+			} catch (IllegalArgumentException e) {
+				// Illegal charset name; fall back to the default.
+			}
+		}
+		return UTF8;
+	}
+	
+	/**
+	 * @return the value of the Content-Type field in the HTTP header at
+	 *         the start of the content, or null if the content does not
+	 *         start with an HTTP header, or the header has no such field.
+	 */
+	private String findHttpContentType() {
+		int headLen = Math.min(contentLength, MAX_HTTP_HEADER_SNIFF_LEN);
+		ByteBuffer content = getContentBuffer();
+		for (int i=0; i<HTTP_VERSION_PREFIX_BYTES.length; i++) {
+			if ((i >= headLen) || (content.get(i) != HTTP_VERSION_PREFIX_BYTES[i]))
+				return null;
+		}
+		byte[] head = new byte[headLen];
+		content.get(head);
+		// HTTP header bytes are ISO-8859-1 by definition:
+		String[] lines = new String(head, ISO_8859_1).split("\r?\n");
+		for (String line : lines) {
+			if (line.isEmpty())
+				break;
+			int colonPos = line.indexOf(':');
+			if ((colonPos > 0) && line.substring(0, colonPos).trim().equalsIgnoreCase(CONTENT_TYPE))
+				return line.substring(colonPos + 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * @param contentType a Content-Type field value, like "text/html; charset=ISO-8859-1"
+	 * @return the charset name, or null if contentType is null or has no charset parameter.
+	 */
+	private static String charsetParameter(String contentType) {
+		if (contentType == null)
+			return null;
+		Matcher matcher = CHARSET_PARAM_PATTERN.matcher(contentType);
+		return matcher.find() ? matcher.group(1) : null;
 	}
+	
 	/**
 	 * Retrieves the bytes content as a UTF-8 string
 	 * @return
@@ -383,13 +528,356 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public String getContentUTF8() {
 		String retString=null;
 		try {
-			retString = new String(warcContent, "UTF-8");
+			retString = new String(getContentBytes(), 0, contentLength, "UTF-8");
 		} catch (UnsupportedEncodingException ex) {
-			retString=new String(warcContent);
+			retString=new String(getContentBytes(), 0, contentLength);
 		}
 		return retString;
 	}
+	
+	//  -----------------------------------  Flat Header Access -----------------------
+	
+	/**
+	 * @return number of header fields in this record
+	 */
+	public int getNumHeaders() {
+		return numHeaders;
+	}
+	
+	/**
+	 * @param i index between 0 and getNumHeaders()-1
+	 * @return lower case name of the i'th header field
+	 */
+	public String getHeaderName(int i) {
+		return headerNames[i];
+	}
+	
+	/**
+	 * @param i index between 0 and getNumHeaders()-1
+	 * @return value of the i'th header field
+	 */
+	public String getHeaderValue(int i) {
+		if ((headerValues[i] == null) && (valueLengths[i] >= 0))
+			headerValues[i] = new String(headerBytes, valueStarts[i], valueLengths[i], UTF8);
+		return headerValues[i];
+	}
+	
+	/**
+	 * @param field a standard WARC header field
+	 * @return the field's value in this record, or null if the record does not have the field.
+	 */
+	public String getHeaderValue(WarcHeaderField field) {
+		int i = findHeader(field);
+		return (i < 0) ? null : getHeaderValue(i);
+	}
+	
+	/**
+	 * @param field a standard WARC header field
+	 * @return index of the field among this record's header fields, or -1 if
+	 *         the record does not have the field.
+	 */
+	public int getHeaderIndex(WarcHeaderField field) {
+		return findHeader(field);
+	}
+	
+	/**
+	 * Compare a header value with ASCII bytes, ignoring case, without
+	 * decoding the value.
+	 * @param field a standard WARC header field
+	 * @param lowerCaseAscii the bytes to compare against, in lower case
+	 * @return true if the record has the field, and its value matches
+	 */
+	public boolean headerValueEqualsIgnoreCase(WarcHeaderField field, byte[] lowerCaseAscii) {
+		int i = findHeader(field);
+		if (i < 0)
+			return false;
+		if (valueLengths[i] < 0)
+			return headerValues[i].equalsIgnoreCase(new String(lowerCaseAscii, ISO_8859_1));
+		if (valueLengths[i] != lowerCaseAscii.length)
+			return false;
+		int start = valueStarts[i];
+		for (int j=0; j<lowerCaseAscii.length; j++) {
+			int b = headerBytes[start + j];
+			if ((b >= 'A') && (b <= 'Z'))
+				b += 'a' - 'A';
+			if (b != lowerCaseAscii[j])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Compare the beginning of a header value with the given bytes, 
+	 * without decoding the value. Only the first bound.length bytes of
+	 * the value take part. A value that is a proper prefix of bound
+	 * is smaller than bound.
+	 * @param field a standard WARC header field, which this record must have
+	 * @param bound the bytes to compare against
+	 * @return negative, zero or positive, as the value prefix is less than,
+	 *         equal to, or greater than bound.
+	 */
+	public int compareHeaderValuePrefix(WarcHeaderField field, byte[] bound) {
+		int i = findHeader(field);
+		byte[] valBytes;
+		int start;
+		int len;
+		if (valueLengths[i] < 0) {
+			valBytes = headerValues[i].getBytes(UTF8);
+			start = 0;
+			len = valBytes.length;
+		} else {
+			valBytes = headerBytes;
+			start = valueStarts[i];
+			len = valueLengths[i];
+		}
+		int numToCompare = Math.min(len, bound.length);
+		for (int j=0; j<numToCompare; j++) {
+			int diff = (valBytes[start + j] & 0xff) - (bound[j] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return (len < bound.length) ? -1 : 0;
+	}
+	
+	/**
+	 * @param i index between 0 and getNumHeaders()-1
+	 * @return the standard WARC field of the i'th header field, or null for non-standard fields.
+	 */
+	public WarcHeaderField getHeaderField(int i) {
+		return headerFields[i];
+	}
+	
+	/**
+	 * @param i index between 0 and getNumHeaders()-1
+	 * @return true if the i'th header field is one of the mandatory fields
+	 */
+	public boolean isMandatoryHeader(int i) {
+		return (headerFields[i] != null) && headerFields[i].isMandatory();
+	}
+	
+	/**
+	 * Forget header fields and content, but keep the buffers
+	 * for the next record.
+	 */
+	void clearRecord() {
+		for (int i=0; i<numHeaders; i++) {
+			headerNames[i] = null;
+			headerValues[i] = null;
+		}
+		numHeaders = 0;
+		headerBytesLen = 0;
+		contentLength = 0;
+		contentBuffer = null;
+		declaredContentLength = -1L;
+		contentTruncated = false;
+		duplicatePayload = false;
+		contentReplaced = false;
+		grandTotalBytesRead = 0L;
+		recordStartPos = -1L;
+	}
+	
+	private int findHeader(WarcHeaderField field) {
+		for (int i=0; i<numHeaders; i++) {
+			if (headerFields[i] == field)
+				return i;
+		}
+		return -1;
+	}
+	
+	private int findHeader(String lowerCaseName) {
+		for (int i=0; i<numHeaders; i++) {
+			if (headerNames[i].equals(lowerCaseName))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Add a header field, or replace the value of an existing field
+	 * of the same name.
+	 * @return the previous value, or null
+	 */
+	String addHeader(String lowerCaseName, String value) {
+		int i = findHeader(lowerCaseName);
+		if (i >= 0) {
+			String prevValue = getHeaderValue(i);
+			headerValues[i] = value;
+			valueLengths[i] = -1;
+			return prevValue;
+		}
+		i = newHeaderSlot(WarcHeaderField.lookup(lowerCaseName), lowerCaseName);
+		headerValues[i] = value;
+		valueLengths[i] = -1;
+		return null;
+	}
+	
+	/**
+	 * Add a header field whose value is still raw bytes. Used by
+	 * the parser. The value bytes are copied into this record; they
+	 * are decoded to a String only if the value is asked for.
+	 * @param field the standard field, or null if the field is not standard
+	 * @param lowerCaseName name of the field. Ignored for standard fields.
+	 * @param bytes buffer holding the value
+	 * @param start index of the value's first byte
+	 * @param len number of bytes in the value
+	 */
+	void addHeader(WarcHeaderField field, String lowerCaseName, byte[] bytes, int start, int len) {
+		int i = (field != null) ? findHeader(field) : findHeader(lowerCaseName);
+		if (i < 0)
+			i = newHeaderSlot(field, lowerCaseName);
+		if (headerBytesLen + len > headerBytes.length)
+			headerBytes = Arrays.copyOf(headerBytes, Math.max(headerBytesLen + len, 2 * headerBytes.length));
+		System.arraycopy(bytes, start, headerBytes, headerBytesLen, len);
+		headerValues[i] = null;
+		valueStarts[i] = headerBytesLen;
+		valueLengths[i] = len;
+		headerBytesLen += len;
+	}
+	
+	private int newHeaderSlot(WarcHeaderField field, String lowerCaseName) {
+		if (numHeaders == headerNames.length) {
+			int newLen = 2 * headerNames.length;
+			headerNames = Arrays.copyOf(headerNames, newLen);
+			headerFields = Arrays.copyOf(headerFields, newLen);
+			headerValues = Arrays.copyOf(headerValues, newLen);
+			valueStarts = Arrays.copyOf(valueStarts, newLen);
+			valueLengths = Arrays.copyOf(valueLengths, newLen);
+		}
+		headerNames[numHeaders] = (field != null) ? field.getLowerCaseName() : lowerCaseName;
+		headerFields[numHeaders] = field;
+		return numHeaders++;
+	}
+	
+	private String removeHeader(String lowerCaseName) {
+		int i = findHeader(lowerCaseName);
+		if (i < 0)
+			return null;
+		String prevValue = getHeaderValue(i);
+		int numToMove = numHeaders - i - 1;
+		System.arraycopy(headerNames, i + 1, headerNames, i, numToMove);
+		System.arraycopy(headerFields, i + 1, headerFields, i, numToMove);
+		System.arraycopy(headerValues, i + 1, headerValues, i, numToMove);
+		System.arraycopy(valueStarts, i + 1, valueStarts, i, numToMove);
+		System.arraycopy(valueLengths, i + 1, valueLengths, i, numToMove);
+		numHeaders--;
+		headerNames[numHeaders] = null;
+		headerFields[numHeaders] = null;
+		headerValues[numHeaders] = null;
+		return prevValue;
+	}
+	
+	/**
+	 * Make sure the content buffer holds at least the given number
+	 * of bytes. Grows geometrically, so that a reused record settles
+	 * on a buffer size after a few records.
+	 * @return the content buffer
+	 */
+	byte[] ensureContentCapacity(int capacity) {
+		if (warcContent.length < capacity) {
+			warcContent = new byte[Math.max(capacity, 2 * warcContent.length)];
+		}
+		return warcContent;
+	}
 
+	//  -----------------------------------  Writable Methods -----------------------
+	
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.io.Text#write(java.io.DataOutput)
+	 * Serializes header fields and content. Needed wherever Hadoop copies
+	 * records by serialization, as MultithreadedMapper does. 
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, numHeaders);
+		for (int i=0; i<numHeaders; i++) {
+			Text.writeString(out, headerNames[i]);
+			Text.writeString(out, getHeaderValue(i));
+		}
+		WritableUtils.writeVLong(out, grandTotalBytesRead);
+		WritableUtils.writeVLong(out, recordStartPos);
+		WritableUtils.writeVLong(out, declaredContentLength);
+		out.writeBoolean(contentTruncated);
+		out.writeBoolean(duplicatePayload);
+		out.writeBoolean(contentReplaced);
+		WritableUtils.writeVInt(out, contentLength);
+		out.write(getContentBytes(), 0, contentLength);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.io.Text#readFields(java.io.DataInput)
+	 * Refills this record, reusing its buffers.
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		clearRecord();
+		int numHeadersIn = WritableUtils.readVInt(in);
+		for (int i=0; i<numHeadersIn; i++) {
+			String name = Text.readString(in);
+			String value = Text.readString(in);
+			addHeader(name, value);
+		}
+		grandTotalBytesRead = WritableUtils.readVLong(in);
+		recordStartPos = WritableUtils.readVLong(in);
+		declaredContentLength = WritableUtils.readVLong(in);
+		contentTruncated = in.readBoolean();
+		duplicatePayload = in.readBoolean();
+		contentReplaced = in.readBoolean();
+		contentLength = WritableUtils.readVInt(in);
+		in.readFully(ensureContentCapacity(contentLength), 0, contentLength);
+	}
+	
+	/*-----------------------------------------------------
+	| writeWarc()
+	------------------------*/
+	
+	/**
+	 * Write this record in WARC format: WARC_WRITE_VERSION line, header
+	 * fields (with ISO capitalization for standard fields), empty line,
+	 * content, and two line ends. Content-Length is written last among the
+	 * header fields, and always matches the content actually held, whatever
+	 * the record's Content-Length field said. WARC-Block-Digest and
+	 * WARC-Payload-Digest are left out when the content held is not the
+	 * payload they were taken of: when it was truncated or left out on
+	 * reading, or replaced since.
+	 * @param out where to write the record
+	 * @throws IOException
+	 */
+	public void writeWarc(OutputStream out) throws IOException {
+		boolean digestsHold = !(contentTruncated || duplicatePayload || contentReplaced);
+		out.write(WARC_WRITE_VERSION.getBytes(UTF8));
+		out.write(CRLF_BYTES);
+		for (int i=0; i<numHeaders; i++) {
+			if (headerNames[i].equals(CONTENT_LENGTH))
+				continue;
+			if (!digestsHold &&
+				(headerNames[i].equals(WARC_BLOCK_DIGEST) || headerNames[i].equals(WARC_PAYLOAD_DIGEST)))
+				continue;
+			String isoName = (headerFields[i] != null) ? headerFields[i].getIsoName() : headerNames[i];
+			out.write(isoName.getBytes(UTF8));
+			out.write(HEADER_SEPARATOR_BYTES);
+			if ((headerValues[i] == null) && (valueLengths[i] >= 0))
+				out.write(headerBytes, valueStarts[i], valueLengths[i]);
+			else if (headerValues[i] != null)
+				out.write(headerValues[i].getBytes(UTF8));
+			out.write(CRLF_BYTES);
+		}
+		out.write(("Content-Length: " + contentLength).getBytes(UTF8));
+		out.write(CRLF_BYTES);
+		out.write(CRLF_BYTES);
+		if (contentBuffer != null) {
+			ByteBuffer content = contentBuffer.duplicate();
+			byte[] chunk = new byte[Math.min(contentLength, 64 * 1024)];
+			while (content.hasRemaining()) {
+				int len = Math.min(chunk.length, content.remaining());
+				content.get(chunk, 0, len);
+				out.write(chunk, 0, len);
+			}
+		} else
+			out.write(warcContent, 0, contentLength);
+		out.write(CRLF_BYTES);
+		out.write(CRLF_BYTES);
+	}
+	
 	@Override
 	public String toString() {
 		return toString(DONT_INCLUDE_CONTENT);
@@ -398,9 +886,10 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public String toString(boolean shouldIncludeContent) {
 		StringBuffer retBuffer=new StringBuffer();
 		String headerVal;
-		for (String headerFldNm : headerMap.keySet()) {
-			retBuffer.append(ISO_WARC_HEADER_FIELD_NAMES.get(headerFldNm) + ":" + 
-							 ((headerVal = headerMap.get(headerFldNm)) == null ? "" : headerVal) + "\n");
+		for (int i=0; i<numHeaders; i++) {
+			String isoName = ISO_WARC_HEADER_FIELD_NAMES.get(headerNames[i]);
+			retBuffer.append(((isoName == null) ? headerNames[i] : isoName) + ":" + 
+							 ((headerVal = getHeaderValue(i)) == null ? "" : headerVal) + "\n");
 		}
 		if (shouldIncludeContent) {
 			retBuffer.append(NEWLINE);
@@ -416,25 +905,27 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	@Override
 	public int size() {
 		// Plus 1 is for the pseudo 'content' byte array
-		// that's not really part of the hash:
-		return headerMap.size() + 1;
+		// that's not really part of the header:
+		return numHeaders + 1;
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return headerMap.isEmpty() && (warcContent.length == 0); 
+		return (numHeaders == 0) && (contentLength == 0); 
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
 		String lowerCaseKey = ((String) key).toLowerCase();
-		return (headerMap.containsKey(lowerCaseKey) || lowerCaseKey.equals(CONTENT));
+		return ((findHeader(lowerCaseKey) >= 0) || lowerCaseKey.equals(CONTENT));
 	}
 
 	@Override
 	public boolean containsValue(Object value) {
-		if (headerMap.containsValue(value))
-			return true;
+		for (int i=0; i<numHeaders; i++) {
+			if (getHeaderValue(i).equals(value))
+				return true;
+		}
 		String content = getContentUTF8();
 		return content.contains((String) value);
 	}
@@ -444,7 +935,8 @@ public class WarcRecord extends Text implements WarcRecordMap {
 		if (((String) key).equalsIgnoreCase(CONTENT)) {
 			return getContentUTF8();
 		}
-		return headerMap.get(((String)key).toLowerCase());
+		int i = findHeader(((String)key).toLowerCase());
+		return (i < 0) ? null : getHeaderValue(i);
 	}
 
 	@Override
@@ -453,12 +945,10 @@ public class WarcRecord extends Text implements WarcRecordMap {
 		String lowerCaseKey = key.toLowerCase();
 		if (lowerCaseKey.equals(CONTENT)) {
 			prevValue = getContentUTF8();
-			warcContent = value.getBytes();
+			setRecordContent(value.getBytes());
 			return prevValue;
 		}
-		prevValue = headerMap.get(lowerCaseKey);
-		headerMap.put(lowerCaseKey, value);
-		return prevValue;
+		return addHeader(lowerCaseKey, value);
 	}
 
 	@Override
@@ -467,10 +957,10 @@ public class WarcRecord extends Text implements WarcRecordMap {
 		String lowerCaseKey = ((String)key).toLowerCase();
 		if (lowerCaseKey.equalsIgnoreCase(CONTENT)) {
 			prevValue = getContentUTF8();
-			warcContent = new byte[0];
+			setRecordContent(new byte[0]);
 			return prevValue;
 		}
-		return headerMap.remove(lowerCaseKey);
+		return removeHeader(lowerCaseKey);
 	}
 
 	@Override
@@ -482,13 +972,16 @@ public class WarcRecord extends Text implements WarcRecordMap {
 
 	@Override
 	public Set<String> keySet() {
-		Set<String> res = headerMap.keySet();
+		Set<String> res = keySetHeader();
 		res.add(CONTENT);
 		return res;
 	}
 	
 	public Set<String> keySetHeader() {
-		return headerMap.keySet();
+		HashSet<String> res = new HashSet<String>();
+		for (int i=0; i<numHeaders; i++)
+			res.add(headerNames[i]);
+		return res;
 	}
 	
 	public String[] mandatoryKeysHeader() {
@@ -496,7 +989,12 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	}
 
 	public Set<String> optionalKeysHeader() {
-		return optionalHeaderKeysThisRecord;
+		HashSet<String> res = new HashSet<String>();
+		for (int i=0; i<numHeaders; i++) {
+			if (!isMandatoryHeader(i))
+				res.add(headerNames[i]);
+		}
+		return res;
 	}
 	
 	public String[] mandatoryValuesHeader() {
@@ -509,14 +1007,17 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	
 	@Override
 	public Collection<String> values() {
-		Collection<String> res = headerMap.values();
+		Collection<String> res = valuesHeader();
 		res.add(getContentUTF8());
 		return res;
 	}
 	
 	@Override
 	public Collection<String> valuesHeader() {
-		return headerMap.values();
+		ArrayList<String> res = new ArrayList<String>(numHeaders + 1);
+		for (int i=0; i<numHeaders; i++)
+			res.add(getHeaderValue(i));
+		return res;
 	}
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -528,8 +1029,8 @@ public class WarcRecord extends Text implements WarcRecordMap {
 	public Set<Entry<String,String>> entrySet(boolean readContent) {
 		//Set<Entry> res = new HashSet<Entry>();
 		HashSet<Entry<String,String>> res = new HashSet<Entry<String,String>>();
-		for (Map.Entry<String, String> headerMapEntry : headerMap.entrySet()){
-			res.add(new Entry<String,String>(headerMapEntry.getKey(), headerMapEntry.getValue()));
+		for (int i=0; i<numHeaders; i++){
+			res.add(new Entry<String,String>(headerNames[i], getHeaderValue(i)));
 		}
 		if (readContent) {
 			res.add(new Entry<String,String>(CONTENT, getContentUTF8()));
@@ -0,0 +1,129 @@
+package pigir.warc;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides from a record's header alone whether the record is wanted.
+ * WarcParser applies the filter right after parsing a header, and
+ * skips the content of rejected records without reading it into
+ * memory. Any criterion may be left out (null); a record must pass
+ * all criteria that are given:
+ *
+ *   o WARC types: space separated list, such as "response request".
+ *     Compared case-insensitively against the WARC-Type field.
+ *   o Target URI: a regular expression that must be found in
+ *     the WARC-Target-URI field (Matcher.find() semantics).
+ *   o Date range: WARC-Date must be >= fromDate and < toDate. WARC dates
+ *     are ISO 8601 (e.g. 2009-03-01T12:34:56Z), so bounds are compared
+ *     as strings, and may be prefixes, like "2009" or "2009-03".
+ *
+ * A record that lacks a field for which a criterion is given is rejected.
+ * Type and date tests work on the raw header bytes; only the target
+ * URI is decoded to a String, and only for records that passed the
+ * other tests. A filter instance must not be shared between threads.
+ *
+ * @author paepcke
+ *
+ */
+public class WarcRecordFilter {
+
+	// Types and dates are ASCII, whatever the platform's default charset:
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private byte[][] warcTypes = null;
+	private Pattern targetUriPattern = null;
+	private Matcher targetUriMatcher = null;
+	private byte[] fromDate = null;
+	private byte[] toDate = null;
+
+	/**
+	 * All parameters may be null, empty, or the string "null", meaning
+	 * that the respective criterion is not applied. The "null" convention
+	 * makes it easy to leave out criteria in Pig LOAD statements.
+	 * @param theWarcTypes space separated list of acceptable WARC-Type values
+	 * @param theTargetUriRegex regular expression for WARC-Target-URI
+	 * @param theFromDate earliest acceptable WARC-Date (inclusive)
+	 * @param theToDate latest acceptable WARC-Date (exclusive)
+	 */
+	public WarcRecordFilter(String theWarcTypes, String theTargetUriRegex, String theFromDate, String theToDate) {
+		if (isGiven(theWarcTypes)) {
+			String[] types = theWarcTypes.trim().split("\\s+");
+			warcTypes = new byte[types.length][];
+			for (int i=0; i<types.length; i++)
+				warcTypes[i] = types[i].toLowerCase(Locale.ENGLISH).getBytes(ASCII);
+		}
+		if (isGiven(theTargetUriRegex)) {
+			targetUriPattern = Pattern.compile(theTargetUriRegex);
+			targetUriMatcher = targetUriPattern.matcher("");
+		}
+		if (isGiven(theFromDate))
+			fromDate = theFromDate.trim().getBytes(ASCII);
+		if (isGiven(theToDate))
+			toDate = theToDate.trim().getBytes(ASCII);
+	}
+
+	/**
+	 * @return true if this filter would accept every record.
+	 */
+	public boolean isEmpty() {
+		return (warcTypes == null) && (targetUriPattern == null) && (fromDate == null) && (toDate == null);
+	}
+
+	/**
+	 * @param record a record whose header has been parsed. The content
+	 *        need not have been read.
+	 * @return true if the record passes all criteria.
+	 */
+	public boolean accept(WarcRecord record) {
+		if (warcTypes != null) {
+			boolean typeOK = false;
+			for (byte[] warcType : warcTypes) {
+				if (record.headerValueEqualsIgnoreCase(WarcHeaderField.WARC_TYPE, warcType)) {
+					typeOK = true;
+					break;
+				}
+			}
+			if (!typeOK)
+				return false;
+		}
+		if ((fromDate != null) || (toDate != null)) {
+			if (record.getHeaderIndex(WarcHeaderField.WARC_DATE) < 0)
+				return false;
+			if ((fromDate != null) && (record.compareHeaderValuePrefix(WarcHeaderField.WARC_DATE, fromDate) < 0))
+				return false;
+			if ((toDate != null) && (record.compareHeaderValuePrefix(WarcHeaderField.WARC_DATE, toDate) >= 0))
+				return false;
+		}
+		if (targetUriPattern != null) {
+			String uri = record.getHeaderValue(WarcHeaderField.WARC_TARGET_URI);
+			if ((uri == null) || !targetUriMatcher.reset(uri).find())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder("WarcRecordFilter(");
+		if (warcTypes != null) {
+			res.append("types:");
+			for (byte[] warcType : warcTypes)
+				res.append(" " + new String(warcType, ASCII));
+			res.append(";");
+		}
+		if (targetUriPattern != null)
+			res.append(" uri: " + targetUriPattern.pattern() + ";");
+		if (fromDate != null)
+			res.append(" from: " + new String(fromDate, ASCII) + ";");
+		if (toDate != null)
+			res.append(" to: " + new String(toDate, ASCII) + ";");
+		return res.append(")").toString();
+	}
+
+	private static boolean isGiven(String param) {
+		return (param != null) && !param.trim().isEmpty() && !param.trim().equalsIgnoreCase("null");
+	}
+}
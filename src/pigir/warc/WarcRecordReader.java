@@ -2,115 +2,745 @@ package pigir.warc;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.log4j.Logger;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
 
 import pigir.pigudf.LineAndChunkReader;
 
 /**
- * Treats keys as offset wbRecordReader file and value as one Warc record. 
+ * Treats keys as offset wbRecordReader file and value as one Warc record.
+ *
+ * Uncompressed WARC files are splittable: the reader seeks straight
+ * to the start of its split, resynchronizes on the next WARC version
+ * line, and stops at the first record whose version line starts
+ * at or after the end of the split. That record belongs to the
+ * next split. Gzipped files cannot be entered at an arbitrary
+ * offset. Their splits must start at gzip member boundaries, as
+ * cut by WarcPigTextInputFormat from a WarcGzipMemberIndex. A split
+ * of a gzipped file that starts anywhere else is left empty.
+ *
+ * With Constants.SKIP_BAD_RECORDS_PROP_NAME set, records that cannot
+ * be parsed, and corrupt gzip members, are skipped rather than failing
+ * the task. Parsing resumes at the next version line, or at the next
+ * gzip member. Gzipped files with a member index are then read member
+ * by member, so that a corrupt member costs only its own records.
+ * Without an index, the reader searches the file for the next member
+ * header after the corrupt one (see GzipMemberInputStream).
+ * Skipped records and bytes are counted in BadRecordCounters, and
+ * their file offsets optionally written to Constants.SKIP_LOG_DIR_PROP_NAME.
  */
 public class WarcRecordReader extends RecordReader<LongWritable, Text> {
-	
+
   private static final boolean DO_READ_CONTENT = true;
   private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  // Bad records beyond this many per split are counted, but not logged:
+  private static final int MAX_LOGGED_BAD_RECORDS = 100;
   private final Logger logger = Logger.getLogger(WarcLoader.class.getName());
   private long start;
   private long pos;
   private long end;
+  private boolean isCompressed = false;
   private LineAndChunkReader warcLineReader;
-  private DataInputStream warcInStream; 
+  private WarcParser warcParser;
+  private DataInputStream warcInStream;
   private LongWritable keyWarcStreamPos = null;
   private WarcRecord valueWarcRecord = null;
   private FSDataInputStream fileIn = null;
+  // When true, every call to nextKeyValue() refills the same
+  // WarcRecord instance, rather than allocating a new one:
+  private boolean reuseRecord = false;
+  // Reuse as set by setRecordReuse(), which overrides the job
+  // configuration; null if never set:
+  private Boolean reuseRecordSetting = null;
+  private WarcRecordFilter recordFilter = null;
+  // Set if the caller needs file offsets of records, whatever the job configuration says:
+  private boolean recordFileOffsetsWanted = false;
+  // Non-null if reading ahead in a background thread:
+  private PrefetchInputStream prefetchStream = null;
+  // Non-null if inflating gzip members on several threads:
+  private ParallelGzipInputStream parallelGzipStream = null;
+  // Non-null if inflating a .warc.gz file without member index in skip mode:
+  private GzipMemberInputStream gzipMemberStream = null;
+  // Inflater and line reader shared by the members of a split that are
+  // inflated one at a time; created for the first of them:
+  private GzipMemberInputStream memberInflater = null;
+  private LineAndChunkReader memberLineReader = null;
+  // File extent of the current record; -1 if unknown:
+  private long recordFileOffset = -1L;
+  private long recordFileLength = -1L;
+  // Set when the members of a gzipped split are inflated one at
+  // a time, so that records can be traced to their member:
+  private long[] memberOffsets = null;
+  private int nextMemberIndex = 0;
+  private long numRejectedInEarlierMembers = 0L;
+  private long membersEnd;
+  private long currentMemberOffset = -1L;
+  private Configuration job = null;
+  private Path file = null;
+  // Skip mode: bad records are counted and skipped instead of failing the task:
+  private boolean skipBadRecords = false;
+  private long numBadRecords = 0L;
+  // Most content bytes read into a record; 0 for no limit:
+  private long maxContentSize = 0L;
+  // Recognizes duplicate payloads in this split, or null:
+  private WarcDigestDeduplicator deduplicator = null;
+  // Duplicates the deduplicator had found before this split, if it is shared:
+  private long numDuplicatesBefore = 0L;
+  private TaskAttemptID taskAttemptId = null;
+  private String badRecordLogName = null;
+  // Side file of bad record offsets; opened at the first bad record:
+  private PrintWriter badRecordLog = null;
+  // Null if metrics are turned off. Kept across splits:
+  private WarcReadMetrics metrics = null;
+
+  protected static enum PrefetchCounters {
+	  PREFETCH_PRODUCER_STALLS,
+	  PREFETCH_PRODUCER_STALL_MSECS,
+	  PREFETCH_CONSUMER_STALLS,
+	  PREFETCH_CONSUMER_STALL_MSECS
+  };
+
+  protected static enum BadRecordCounters {
+	  BAD_RECORDS_SKIPPED,
+	  // Uncompressed bytes of WARC records that could not be parsed:
+	  BAD_RECORD_BYTES_SKIPPED,
+	  // Compressed bytes of corrupt gzip members:
+	  CORRUPT_GZIP_BYTES_SKIPPED
+  };
+
 
-    
   public void initialize(InputSplit genericSplit,
                          TaskAttemptContext context) throws IOException {
     FileSplit split = (FileSplit) genericSplit;
-    Configuration job = context.getConfiguration();
+    beginSplit(split, context);
+    openSplit(split, context);
+  }
 
+  /**
+   * Open the split's file, and position the stream at the split's
+   * first record. Called by initialize() after beginSplit(). Subclasses
+   * that read some splits themselves call beginSplit() once, and pass
+   * the other splits on to this method.
+   * @param split the split about to be read
+   * @param context the task's context
+   * @throws IOException
+   */
+  protected void openSplit(FileSplit split, TaskAttemptContext context) throws IOException {
+    Configuration job = context.getConfiguration();
     start = split.getStart();
     end = start + split.getLength();
-    final Path file = split.getPath();
+    reuseRecord = isRecordReuse(job);
     FileSystem fs = file.getFileSystem(job);
-    fileIn = fs.open(split.getPath());
-
-    try {
-    	GZIPInputStream gzWarcInStream = new GZIPInputStream(fileIn,
-    													   job.getInt("io.file.buffer.size", DEFAULT_BUFFER_SIZE));
-    	warcInStream = new DataInputStream(gzWarcInStream);
-    } catch (IOException e) {
-    	// Not a gzipped file?
-    	try {
-    		// The attempt to read using the gzip stream above consumed
-    		// the first two bytes. Reset:
-    		fileIn.seek(0);
-    		warcInStream = new DataInputStream (fileIn);
-    	} catch (Exception e1) {
-    		logger.info("Could not open WARC split.");
+    fileIn = fs.open(file);
+
+    isCompressed = isGzipStream(fileIn, 0L);
+    if (isCompressed) {
+    	pos = 0;
+    	// Splits of gzipped files that do not start at the beginning
+    	// of the file must start at a gzip member boundary. That is
+    	// how WarcPigTextInputFormat cuts them when the file has a
+    	// member index:
+    	if ((start != 0) && !isGzipStream(fileIn, start)) {
+    		logger.info("Split of gzipped WARC file " + file + " at " + start + " is not member-aligned. Split is left empty.");
+    		end = start;
+    		return;
+    	}
+    	boolean wantRecordFileOffsets = recordFileOffsetsWanted || job.getBoolean(Constants.RECORD_FILE_OFFSETS_PROP_NAME, false);
+    	if (wantRecordFileOffsets || skipBadRecords) {
+    		// Inflate member by member, so that each record's
+    		// member is known:
+    		WarcGzipMemberIndex memberIndex = WarcGzipMemberIndex.load(fs, file);
+    		if (memberIndex != null) {
+    			memberOffsets = memberIndex.getMemberOffsets(start, end);
+    			membersEnd = Math.min(end, memberIndex.getFileLength());
+    			openNextGoodMember();
+    			return;
+    		}
+    		if (wantRecordFileOffsets)
+    			logger.warn("No gzip member index for " + file + "; file offsets of its records are unknown.");
+    	}
+    	parallelGzipStream = maybeInflateInParallel(fs, file, job);
+    	if (parallelGzipStream != null) {
+    		warcInStream = new DataInputStream(meterParserInput(parallelGzipStream));
+    		warcLineReader = new LineAndChunkReader(warcInStream, job);
+    		warcParser = newParser(warcLineReader);
     		return;
     	}
+    	openGzipStream(start);
+    	return;
     }
-    // TODO: Test slices with non-zero start, and with start > MAX_INTEGER
+
     boolean skipFirstLine = false;
     if (start != 0) {
+    	// Back up one byte, so that a version line starting
+    	// exactly at 'start' is not lost when we discard the
+    	// (usually partial) first line below:
     	skipFirstLine = true;
     	--start;
-    	// Skipping wbRecordReader a datastream only works for int. So, if
-    	// start within the slice is greater than what fits into 
-    	// an int, we need to skip wbRecordReader multiple steps:
-    	if (start > Integer.MAX_VALUE) {
-    		for (int intChunkCount=0; intChunkCount < (start / Integer.MAX_VALUE); intChunkCount++) {
-    			warcInStream.skipBytes(Integer.MAX_VALUE);
-    		}
-    		warcInStream.skipBytes(((Long)(start % (new Long(Integer.MAX_VALUE)))).intValue());
-    	}
-    	warcInStream.skipBytes((int) (start - pos));
+    	fileIn.seek(start);
     }
-    warcLineReader = new LineAndChunkReader(warcInStream, job);
+    // Skipping content is a seek, not a read:
+    InputStream rawIn = meterFileReads(fileIn, false);
+    warcInStream = new DataInputStream(meterParserInput(prefetchEnabled(job) ? maybePrefetch(rawIn, job) : rawIn));
+    warcLineReader = new LineAndChunkReader(warcInStream, job, start);
 
     if (skipFirstLine) {  // skip first line and re-establish "start".
       start += warcLineReader.readLine(new Text(), 0,
                            (int)Math.min((long)Integer.MAX_VALUE, end - start));
     }
+    warcParser = newParser(warcLineReader);
     this.pos = start;
   }
-  
-  
+
+  /**
+   * Set up the state that does not depend on how the split is read.
+   * A reader may be initialized again for another split (see
+   * MultiFileWarcRecordReader), so the previous split is forgotten.
+   * Subclasses that read splits themselves call this from initialize().
+   * @param split the split about to be read
+   * @param context the task's context
+   * @throws IOException if the payload digest table cannot be read
+   */
+  protected void beginSplit(FileSplit split, TaskAttemptContext context) throws IOException {
+	  beginSplit(split, context, WarcDigestDeduplicator.forSplit(context.getConfiguration()));
+  }
+
+  /**
+   * As beginSplit(split, context), but with the given deduplicator
+   * rather than a new one. Readers that read several splits as one
+   * (see MultiFileWarcRecordReader) pass the same deduplicator for
+   * each, so that copies are found across all of them.
+   * @param theDeduplicator the deduplicator, or null if deduplication is off
+   */
+  protected void beginSplit(FileSplit split, TaskAttemptContext context, WarcDigestDeduplicator theDeduplicator) throws IOException {
+	  resetSplitState();
+	  job = context.getConfiguration();
+	  file = split.getPath();
+	  skipBadRecords = job.getBoolean(Constants.SKIP_BAD_RECORDS_PROP_NAME, false);
+	  maxContentSize = job.getLong(Constants.MAX_CONTENT_SIZE_PROP_NAME, 0L);
+	  deduplicator = theDeduplicator;
+	  numDuplicatesBefore = (deduplicator == null) ? 0L : deduplicator.getNumDuplicates();
+	  taskAttemptId = context.getTaskAttemptID();
+	  badRecordLogName = taskAttemptId + "_" + file.getName() + "_" + split.getStart();
+	  if ((metrics == null) && job.getBoolean(Constants.METRICS_PROP_NAME, true))
+		  metrics = new WarcReadMetrics(job.getLong(Constants.METRICS_LOG_INTERVAL_PROP_NAME, 0L));
+  }
+
+  /*-----------------------------------------------------
+  | Metering
+  ------------------------*/
+
+  /**
+   * @return the metrics of this reader, or null if metrics are turned off.
+   */
+  public WarcReadMetrics getMetrics() {
+	  return metrics;
+  }
+
+  /**
+   * Meter the stream that reads the file.
+   * @param in the stream
+   * @param isSkipRead whether skipped bytes are read, rather than sought past.
+   */
+  private InputStream meterFileReads(InputStream in, boolean isSkipRead) {
+	  if (metrics == null)
+		  return in;
+	  return new MeteredInputStream(in, metrics, 
+			  						WarcReadMetrics.Counters.FILE_BYTES_READ, 
+			  						WarcReadMetrics.Counters.FILE_READ_MSECS, 
+			  						null, isSkipRead);
+  }
+
+  /**
+   * Meter a stream that inflates, leaving out the time of the file reads below it.
+   */
+  private InputStream meterInflater(InputStream in) {
+	  if (metrics == null)
+		  return in;
+	  return new MeteredInputStream(in, metrics, 
+			  						null,
+			  						WarcReadMetrics.Counters.INFLATE_MSECS,
+			  						WarcReadMetrics.Counters.FILE_READ_MSECS, false);
+  }
+
+  /**
+   * Meter the stream the parser reads from.
+   */
+  private InputStream meterParserInput(InputStream in) {
+	  if (metrics == null)
+		  return in;
+	  return new MeteredInputStream(in, metrics, 
+			  						WarcReadMetrics.Counters.UNCOMPRESSED_BYTES_READ,
+			  						WarcReadMetrics.Counters.STREAM_WAIT_MSECS,
+			  						null, true);
+  }
+
+  private void resetSplitState() {
+	  isCompressed = false;
+	  warcLineReader = null;
+	  warcParser = null;
+	  warcInStream = null;
+	  fileIn = null;
+	  prefetchStream = null;
+	  parallelGzipStream = null;
+	  gzipMemberStream = null;
+	  recordFileOffset = -1L;
+	  recordFileLength = -1L;
+	  memberOffsets = null;
+	  nextMemberIndex = 0;
+	  numRejectedInEarlierMembers = 0L;
+	  currentMemberOffset = -1L;
+	  numBadRecords = 0L;
+	  badRecordLog = null;
+  }
+
+  /**
+   * @param lineReader the stream to parse, or null for a subclass
+   *        that finds records itself, and wants the parser's record checks.
+   * @return a parser with this split's record filter, skip mode, content
+   *         size limit, and deduplicator.
+   */
+  protected WarcParser newParser(LineAndChunkReader lineReader) {
+	  WarcParser parser = new WarcParser(lineReader);
+	  parser.setRecordFilter(recordFilter);
+	  parser.setSkipBadRecords(skipBadRecords);
+	  parser.setMaxContentSize(maxContentSize);
+	  parser.setDeduplicator(deduplicator);
+	  return parser;
+  }
+
+  /**
+   * Inflate the split's bytes from 'from' to its end as one stream.
+   * @param from file offset of a gzip member
+   * @throws IOException
+   */
+  private void openGzipStream(long from) throws IOException {
+	  fileIn.seek(from);
+	  // Inflate only the members of this split. close() closes the file:
+	  BoundedInputStream splitIn = new BoundedInputStream(fileIn, end - from);
+	  splitIn.setPropagateClose(false);
+	  InputStream rawIn = meterFileReads(splitIn, true);
+	  InputStream gzWarcInStream;
+	  if (skipBadRecords) {
+		  // Knows where the member it fails on starts:
+		  gzipMemberStream = new GzipMemberInputStream(rawIn, from);
+		  gzWarcInStream = gzipMemberStream;
+	  } else
+		  gzWarcInStream = new GZIPInputStream(rawIn, job.getInt("io.file.buffer.size", DEFAULT_BUFFER_SIZE));
+	  warcInStream = new DataInputStream(meterParserInput(maybePrefetch(meterInflater(gzWarcInStream), job)));
+	  warcLineReader = new LineAndChunkReader(warcInStream, job);
+	  warcParser = newParser(warcLineReader);
+  }
+
+  /**
+   * If so configured, and if the file has a member index, return
+   * a stream that inflates this split's gzip members on several threads.
+   * @param fs file system holding the WARC file
+   * @param file the .warc.gz file
+   * @param job job configuration
+   * @return the stream, or null if members are to be inflated one by one.
+   * @throws IOException
+   */
+  private ParallelGzipInputStream maybeInflateInParallel(FileSystem fs, Path file, Configuration job) throws IOException {
+	  if (!job.getBoolean(Constants.INFLATE_PARALLEL_PROP_NAME, false))
+		  return null;
+	  // Only load the index here; building it is the input format's business:
+	  WarcGzipMemberIndex memberIndex = WarcGzipMemberIndex.load(fs, file);
+	  if (memberIndex == null) {
+		  logger.info("No gzip member index for " + file + "; inflating on a single thread.");
+		  return null;
+	  }
+	  return new ParallelGzipInputStream(fileIn,
+			  							 memberIndex.getMemberOffsets(start, end),
+			  							 Math.min(end, memberIndex.getFileLength()),
+			  							 job.getInt(Constants.INFLATE_BATCH_SIZE_PROP_NAME, Constants.DEFAULT_INFLATE_BATCH_SIZE),
+			  							 job.getInt(Constants.INFLATE_THREADS_PROP_NAME, Constants.DEFAULT_INFLATE_THREADS));
+  }
+
+  /**
+   * Point the parser at the next gzip member of the split.
+   * @return false if there are no more members.
+   * @throws IOException
+   */
+  private boolean openNextMember() throws IOException {
+	  // Not closed: that would end the inflater the members share:
+	  warcLineReader = null;
+	  if (warcParser != null) {
+		  numRejectedInEarlierMembers += warcParser.getNumRecordsRejected();
+		  warcParser = null;
+	  }
+	  if (nextMemberIndex >= memberOffsets.length)
+		  return false;
+	  currentMemberOffset = memberOffsets[nextMemberIndex++];
+	  fileIn.seek(currentMemberOffset);
+	  BoundedInputStream memberIn = new BoundedInputStream(fileIn, currentMemberLength());
+	  memberIn.setPropagateClose(false);
+	  if (memberInflater == null)
+		  memberInflater = new GzipMemberInputStream(memberIn, currentMemberOffset);
+	  memberInflater.reset(meterFileReads(memberIn, true), currentMemberOffset, true);
+	  warcInStream = new DataInputStream(meterParserInput(meterInflater(memberInflater)));
+	  if (memberLineReader == null)
+		  memberLineReader = new LineAndChunkReader(warcInStream, job);
+	  else
+		  memberLineReader.reset(warcInStream);
+	  warcLineReader = memberLineReader;
+	  warcParser = newParser(warcLineReader);
+	  return true;
+  }
+
+  /**
+   * Like openNextMember(), but in skip mode members whose gzip
+   * header is corrupt are skipped.
+   * @return false if there are no more members.
+   * @throws IOException
+   */
+  private boolean openNextGoodMember() throws IOException {
+	  while (true) {
+		  try {
+			  return openNextMember();
+		  } catch (IOException e) {
+			  if (!skipBadRecords)
+				  throw e;
+			  reportBadRecord(currentMemberOffset, 0L, currentMemberLength(), e);
+		  }
+	  }
+  }
+
+  private long currentMemberLength() {
+	  long memberEnd = (nextMemberIndex < memberOffsets.length) ? memberOffsets[nextMemberIndex] : membersEnd;
+	  return memberEnd - currentMemberOffset;
+  }
+
+  private boolean prefetchEnabled(Configuration job) {
+	  return job.getBoolean(Constants.PREFETCH_PROP_NAME, false);
+  }
+
+  /**
+   * If so configured, wrap a stream into a PrefetchInputStream,
+   * so that reading (and inflating) happen in a background thread.
+   * @param rawIn the stream to read from
+   * @param job job configuration
+   * @return either rawIn, or a prefetching stream around it.
+   */
+  private InputStream maybePrefetch(InputStream rawIn, Configuration job) {
+	  if (!prefetchEnabled(job))
+		  return rawIn;
+	  prefetchStream = new PrefetchInputStream(rawIn, 
+			  								   job.getInt(Constants.PREFETCH_BLOCK_SIZE_PROP_NAME, Constants.DEFAULT_PREFETCH_BLOCK_SIZE),
+			  								   job.getInt(Constants.PREFETCH_DEPTH_PROP_NAME, Constants.DEFAULT_PREFETCH_DEPTH));
+	  return prefetchStream;
+  }
+
+  /**
+   * Peek at two bytes of a file to see whether a gzip member starts
+   * there. We look at the content rather than at the file name
+   * extension, so that compressed files without a .gz extension are
+   * still read correctly. The stream is left positioned at offset.
+   * @param fileIn the freshly opened file
+   * @param offset where in the file to look
+   * @return true if the bytes at offset are the gzip magic number
+   * @throws IOException
+   */
+  private boolean isGzipStream(FSDataInputStream fileIn, long offset) throws IOException {
+	  fileIn.seek(offset);
+	  int byte1 = fileIn.read();
+	  int byte2 = fileIn.read();
+	  fileIn.seek(offset);
+	  return (byte1 == GzipMemberScanner.GZIP_MAGIC_BYTE1) && (byte2 == GzipMemberScanner.GZIP_MAGIC_BYTE2);
+  }
+
+  /**
+   * Turn record reuse on or off. With reuse on, the WarcRecord returned
+   * by getCurrentValue() is overwritten by the next call to nextKeyValue().
+   * Callers that hold on to records across calls must turn reuse off.
+   * Reuse may also be turned on via Constants.RECORD_REUSE_PROP_NAME;
+   * this setting overrides that property.
+   * @param doReuse
+   */
+  public void setRecordReuse(boolean doReuse) {
+	  reuseRecordSetting = doReuse;
+	  reuseRecord = doReuse;
+  }
+
+  /**
+   * Inflate gzipped splits member by member, so that
+   * getCurrentRecordFileOffset() knows each record's member, as if
+   * Constants.RECORD_FILE_OFFSETS_PROP_NAME were set for this reader
+   * alone. Must be called before initialize().
+   * @param doWant
+   */
+  public void setRecordFileOffsets(boolean doWant) {
+	  recordFileOffsetsWanted = doWant;
+  }
+
+  /**
+   * Deliver only records that pass the given filter. May be called
+   * before or after initialize().
+   * @param theFilter filter on header fields, or null for all records
+   */
+  public void setRecordFilter(WarcRecordFilter theFilter) {
+	  recordFilter = theFilter;
+	  if (warcParser != null)
+		  warcParser.setRecordFilter(theFilter);
+  }
+
+  protected WarcRecordFilter getRecordFilter() {
+	  return recordFilter;
+  }
+
+  /**
+   * @param job job configuration
+   * @return whether to reuse records: as set by setRecordReuse(), or if
+   *         that was never called, as set in Constants.RECORD_REUSE_PROP_NAME.
+   */
+  protected boolean isRecordReuse(Configuration job) {
+	  if (reuseRecordSetting != null)
+		  return reuseRecordSetting;
+	  return job.getBoolean(Constants.RECORD_REUSE_PROP_NAME, false);
+  }
+
+  /**
+   * @return number of records the record filter rejected so far
+   */
+  public long getNumRecordsRejected() {
+	  return numRecordsRejectedInSplit();
+  }
+
+  private long numRecordsRejectedInSplit() {
+	  return numRejectedInEarlierMembers + ((warcParser == null) ? 0L : warcParser.getNumRecordsRejected());
+  }
+
+  protected boolean isSkipBadRecords() {
+	  return skipBadRecords;
+  }
+
+  /**
+   * @return the deduplicator of this split, or null if deduplication is off.
+   */
+  protected WarcDigestDeduplicator getDeduplicator() {
+	  return deduplicator;
+  }
+
+  /**
+   * @return the file of the split being read, or null before initialize().
+   */
+  public Path getCurrentFile() {
+	  return file;
+  }
+
+  /**
+   * File offset from which the current record can be read back with a
+   * positioned read. For uncompressed files that is the start of the
+   * record's version line. For gzipped files it is the start of the
+   * gzip member holding the record, if Constants.RECORD_FILE_OFFSETS_PROP_NAME
+   * is set, or setRecordFileOffsets() was called, and the file has a member index. 
+   * @return the offset, or -1 if it is not known.
+   */
+  public long getCurrentRecordFileOffset() {
+	  return recordFileOffset;
+  }
+
+  /**
+   * @return number of bytes to read at getCurrentRecordFileOffset() to get
+   *         the whole current record (or member), or -1 if not known.
+   */
+  public long getCurrentRecordFileLength() {
+	  return recordFileLength;
+  }
+
   public boolean nextKeyValue() throws IOException {
 	  return nextKeyValue(DO_READ_CONTENT);
   }
-  
+
   public boolean nextKeyValue(boolean readContents) throws IOException {
+    if (warcLineReader == null) {
+    	return false;
+    }
     if (keyWarcStreamPos == null) {
       keyWarcStreamPos = new LongWritable();
     }
-    keyWarcStreamPos.set(pos);
-    valueWarcRecord = WarcRecord.readNextWarcRecord(warcLineReader, readContents);
+    // For uncompressed files the split end bounds the records we
+    // deliver. Gzipped splits end at a member boundary, and the
+    // stream itself stops there:
+    long recordStartLimit = isCompressed ? WarcRecord.NO_RECORD_START_LIMIT : end;
+    WarcRecord reusableRecord = reuseRecord ? valueWarcRecord : null;
+    long loopStartNanos = 0L;
+    long streamWaitNanos = 0L;
+    if (metrics != null) {
+    	loopStartNanos = System.nanoTime();
+    	streamWaitNanos = metrics.get(WarcReadMetrics.Counters.STREAM_WAIT_MSECS);
+    }
+    valueWarcRecord = readNextGoodRecord(readContents, recordStartLimit, reusableRecord);
+    if (metrics != null) {
+    	long nowNanos = System.nanoTime();
+    	metrics.add(WarcReadMetrics.Counters.PARSE_MSECS, 
+    				(nowNanos - loopStartNanos) - (metrics.get(WarcReadMetrics.Counters.STREAM_WAIT_MSECS) - streamWaitNanos));
+    	if (valueWarcRecord != null) {
+    		metrics.recordRead(valueWarcRecord, readContents);
+    		metrics.maybeLogSummary(nowNanos, file);
+    	}
+    }
     if (valueWarcRecord == null) {
+    	recordFileOffset = -1L;
+    	recordFileLength = -1L;
     	keyWarcStreamPos = null;
     	return false;
     }
-    
+    keyWarcStreamPos.set(valueWarcRecord.getRecordStartPos());
+
     logger.debug("Pulled another WARC record.");
-    
+
     // Update position wbRecordReader the Data stream
-    pos += valueWarcRecord.getTotalRecordLength();
+    pos = warcLineReader.getPos();
+    if (memberOffsets != null) {
+    	recordFileOffset = currentMemberOffset;
+    	recordFileLength = currentMemberLength();
+    } else if (!isCompressed) {
+    	recordFileOffset = valueWarcRecord.getRecordStartPos();
+    	recordFileLength = pos - recordFileOffset;
+    }
     return true;
   }
 
+  /**
+   * Pull the next record from the parser, moving on to the next
+   * gzip member as needed. In skip mode, bad records and corrupt
+   * gzip data are reported and skipped.
+   * @return the record, or null if there are no more.
+   * @throws IOException
+   */
+  private WarcRecord readNextGoodRecord(boolean readContents,
+		  								long recordStartLimit,
+		  								WarcRecord reusableRecord) throws IOException {
+	  while (true) {
+		  try {
+			  WarcRecord record = warcParser.readNextWarcRecord(readContents, recordStartLimit, reusableRecord);
+			  while ((record == null) && (memberOffsets != null) && openNextGoodMember())
+				  record = warcParser.readNextWarcRecord(readContents, recordStartLimit, reusableRecord);
+			  return record;
+		  } catch (MalformedWarcRecordException e) {
+			  if (!skipBadRecords)
+				  throw e;
+			  // The parser has moved past the bad record's header, and
+			  // resumes at the next version line. Stream positions of
+			  // gzipped files are not file offsets; report the member:
+			  long fileOffset = !isCompressed ? e.getRecordStartPos() :
+				  (gzipMemberStream != null) ? gzipMemberStream.getMemberStart() : currentMemberOffset;
+			  reportBadRecord(fileOffset, e.getNumBytesConsumed(), 0L, e);
+		  } catch (IOException e) {
+			  // Read errors of uncompressed files are not the data's fault:
+			  if (!skipBadRecords || !isCompressed)
+				  throw e;
+			  if (!skipCorruptGzipData(e))
+				  return null;
+		  }
+	  }
+  }
+
+  /**
+   * Move past gzip data that failed to inflate.
+   * @param cause the inflater's complaint
+   * @return false if no gzip member is left in the split.
+   * @throws IOException
+   */
+  private boolean skipCorruptGzipData(IOException cause) throws IOException {
+	  if (memberOffsets != null) {
+		  reportBadRecord(currentMemberOffset, 0L, currentMemberLength(), cause);
+		  return openNextGoodMember();
+	  }
+	  // No member index. Give up on the current stream, and look
+	  // for a member header after the start of the bad member:
+	  long badMemberStart = gzipMemberStream.getMemberStart();
+	  numRejectedInEarlierMembers += warcParser.getNumRecordsRejected();
+	  if (prefetchStream != null) {
+		  reportPrefetchStalls();
+		  prefetchStream = null;
+	  }
+	  warcLineReader.close();
+	  warcLineReader = null;
+	  warcParser = null;
+	  long nextMember = findNextMemberStart(badMemberStart + 1);
+	  reportBadRecord(badMemberStart, 0L, nextMember - badMemberStart, cause);
+	  if (nextMember >= end)
+		  return false;
+	  // If this is not a member after all, reading it fails, and we come back here:
+	  openGzipStream(nextMember);
+	  return true;
+  }
+
+  /**
+   * @return offset of the first plausible gzip member header at or
+   *         after 'from' within the split, or the split's end if there is none.
+   * @throws IOException
+   */
+  private long findNextMemberStart(long from) throws IOException {
+	  byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+	  long bufStart = from;
+	  while (bufStart < end) {
+		  int numToRead = (int) Math.min(buf.length, end - bufStart);
+		  fileIn.readFully(bufStart, buf, 0, numToRead);
+		  for (int i=0; i<numToRead; i++) {
+			  if (GzipMemberScanner.isMemberHeaderStart(buf, i, numToRead - i))
+				  return bufStart + i;
+		  }
+		  // Look at a header that straddles the buffer end again, with the next buffer:
+		  bufStart += Math.max(1, numToRead - 3);
+	  }
+	  return end;
+  }
+
+  /**
+   * Count a skipped bad record, or a stretch of corrupt gzip data,
+   * in the job's counters, and log where it was.
+   * @param fileOffset file offset of the bad record or member, or -1 if not known
+   * @param numRecordBytes uncompressed bytes skipped
+   * @param numCompressedBytes compressed bytes skipped
+   * @param cause what was wrong
+   */
+  protected void reportBadRecord(long fileOffset, long numRecordBytes, long numCompressedBytes, IOException cause) {
+	  numBadRecords++;
+	  PigStatusReporter reporter = PigStatusReporter.getInstance();
+	  if (reporter != null) {
+		  incrCounter(reporter, BadRecordCounters.BAD_RECORDS_SKIPPED, 1L);
+		  incrCounter(reporter, BadRecordCounters.BAD_RECORD_BYTES_SKIPPED, numRecordBytes);
+		  incrCounter(reporter, BadRecordCounters.CORRUPT_GZIP_BYTES_SKIPPED, numCompressedBytes);
+	  }
+	  if (numBadRecords <= MAX_LOGGED_BAD_RECORDS)
+		  logger.warn("Skipped bad WARC data in " + file + " at offset " + fileOffset + ": " + cause.getMessage());
+	  else if (numBadRecords == MAX_LOGGED_BAD_RECORDS + 1)
+		  logger.warn("More bad WARC data in " + file + "; only counting from now on.");
+	  String logDir = job.get(Constants.SKIP_LOG_DIR_PROP_NAME);
+	  if (logDir == null)
+		  return;
+	  try {
+		  if (badRecordLog == null) {
+			  Path logPath = new Path(logDir, badRecordLogName);
+			  badRecordLog = new PrintWriter(new OutputStreamWriter(logPath.getFileSystem(job).create(logPath, true), "UTF-8"));
+		  }
+		  badRecordLog.println(file + "\t" + fileOffset + "\t" + (numRecordBytes + numCompressedBytes) + "\t" + cause.getMessage());
+	  } catch (IOException e) {
+		  logger.warn("Could not write to bad record log in " + logDir + ": " + e.getMessage());
+	  }
+  }
+
   @Override
   public LongWritable getCurrentKey() {
     return keyWarcStreamPos;
@@ -127,15 +757,73 @@ public class WarcRecordReader extends RecordReader<LongWritable, Text> {
   public float getProgress() {
     if (start == end) {
       return 0.0f;
-    } else {
-      return Math.min(1.0f, (pos - start) / (float)(end - start));
     }
+    if (isCompressed) {
+    	// Positions in the uncompressed stream say nothing
+    	// about how much of the (compressed) split is done:
+    	try {
+    		long compressedPos = (parallelGzipStream != null) ? parallelGzipStream.getCompressedPos() : fileIn.getPos();
+    		return Math.min(1.0f, (compressedPos - start) / (float)(end - start));
+    	} catch (IOException e) {
+    		return 0.0f;
+    	}
+    }
+    return Math.min(1.0f, (pos - start) / (float)(end - start));
   }
-  
+
   public synchronized void close() throws IOException {
-    if (warcLineReader	 != null) {
-      warcLineReader.close(); 
+    if (prefetchStream != null) {
+    	reportPrefetchStalls();
+    }
+    if (badRecordLog != null) {
+    	badRecordLog.close();
+    	badRecordLog = null;
     }
+    if (metrics != null) {
+    	if (parallelGzipStream != null) {
+    		// Its workers read and inflate with positioned reads:
+    		metrics.add(WarcReadMetrics.Counters.FILE_BYTES_READ, parallelGzipStream.getCompressedPos() - start);
+    		metrics.add(WarcReadMetrics.Counters.FILE_READ_MSECS, parallelGzipStream.getReadNanos());
+    		metrics.add(WarcReadMetrics.Counters.INFLATE_MSECS, parallelGzipStream.getInflateNanos());
+    	}
+    	metrics.add(WarcReadMetrics.Counters.RECORDS_REJECTED_BY_FILTER, numRecordsRejectedInSplit());
+    	if (deduplicator != null)
+    		metrics.add(WarcReadMetrics.Counters.RECORDS_DUPLICATE_PAYLOAD, deduplicator.getNumDuplicates() - numDuplicatesBefore);
+    	metrics.publish();
+    }
+    // Gzip streams do not close the file:
+    if (warcLineReader != null)
+    	warcLineReader.close();
+    warcLineReader = null;
+    if (memberInflater != null) {
+    	memberInflater.close();
+    	memberInflater = null;
+    	memberLineReader = null;
+    }
+    if (fileIn != null)
+    	fileIn.close();
+  }
+
+  /**
+   * Add the prefetch stall counts to the job's counters, and log them.
+   */
+  private void reportPrefetchStalls() {
+	  PigStatusReporter reporter = PigStatusReporter.getInstance();
+	  if (reporter != null) {
+		  incrCounter(reporter, PrefetchCounters.PREFETCH_PRODUCER_STALLS, prefetchStream.getNumProducerStalls());
+		  incrCounter(reporter, PrefetchCounters.PREFETCH_PRODUCER_STALL_MSECS, prefetchStream.getProducerStallMillis());
+		  incrCounter(reporter, PrefetchCounters.PREFETCH_CONSUMER_STALLS, prefetchStream.getNumConsumerStalls());
+		  incrCounter(reporter, PrefetchCounters.PREFETCH_CONSUMER_STALL_MSECS, prefetchStream.getConsumerStallMillis());
+	  }
+	  logger.info("Prefetch stalls: reader waited " + prefetchStream.getNumProducerStalls() + " times (" + 
+			  	  prefetchStream.getProducerStallMillis() + "msecs) for the parser; parser waited " +
+			  	  prefetchStream.getNumConsumerStalls() + " times (" + prefetchStream.getConsumerStallMillis() + 
+			  	  "msecs) for the reader.");
   }
-}
 
+  private void incrCounter(PigStatusReporter reporter, Enum<?> counterName, long amount) {
+	  Counter counter = reporter.getCounter(counterName);
+	  if (counter != null)
+		  counter.increment(amount);
+  }
+}
@@ -0,0 +1,162 @@
+package pigir.warc;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+
+/**
+ * @author paepcke
+ *
+ * A store function that writes tuples of WarcLoader's schema
+ *    (WARC_RECORD_ID:chararray,
+ *     CONTENT_LENGTH:int,
+ *     WARC_DATE:chararray,
+ *     WARC_TYPE, {(<headerFldName>, <headerFldVal>)*},
+ *     CONTENT:chararray)
+ * as WARC records into .warc.gz files, one gzip member per record.
+ * The optional header fields may be a bag or a map, as WarcLoader
+ * delivers them. CONTENT may be a chararray, which is written in
+ * UTF-8, or a bytearray, which is written as is. Content-Length is
+ * computed from the content; the CONTENT_LENGTH column is ignored.
+ *
+ * Each part file gets its gzip member index (see WarcGzipMemberIndex),
+ * so the output can be loaded with WarcLoader, and split, right away:
+ *     docs = LOAD 'crawl.warc.gz' USING pigir.warc.WarcLoader();
+ *     html = FILTER docs BY $4#'content-type' MATCHES 'text/html.*';
+ *     STORE html INTO 'html-only' USING pigir.warc.WarcStorage();
+ *
+ * Content written from a chararray is re-encoded, and may differ
+ * from the bytes that were crawled. To copy records unchanged, load
+ * them with
+ *     SET pigir.warc.loader.content.bytes 'true';
+ * WARC-Block-Digest and WARC-Payload-Digest are only written for such
+ * bytearray contents, and not for records with a WARC-Truncated field
+ * or a null CONTENT, whose bytes need not be those the digests were
+ * taken of. Records are written as WARC/1.0.
+ *
+ * The deflate level is set with
+ *     SET pigir.warc.storage.compression.level '9';
+ */
+public class WarcStorage extends StoreFunc {
+
+	// Schema column indexes, as in WarcLoader:
+	private static final int WARC_RECORD_ID_COL_INDEX = 0;
+	private static final int WARC_DATE_COL_INDEX = 2;
+	private static final int WARC_TYPE_COL_INDEX = 3;
+	private static final int OPTIONAL_HEADERS_COL_INDEX = 4;
+	private static final int CONTENT_COL_INDEX = 5;
+	private static final int NUM_INPUT_COLUMNS = 6;
+
+	private static final byte[] NO_CONTENT = new byte[0];
+
+	private RecordWriter<NullWritable, WarcRecord> writer = null;
+	// Refilled for every tuple:
+	private WarcRecord warcRec = new WarcRecord();
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public OutputFormat getOutputFormat() throws IOException {
+		return new WarcGzipOutputFormat();
+	}
+
+	@Override
+	public void setStoreLocation(String location, Job job) throws IOException {
+		FileOutputFormat.setOutputPath(job, new Path(location));
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public void prepareToWrite(RecordWriter theWriter) throws IOException {
+		writer = theWriter;
+	}
+
+	@Override
+	public void putNext(Tuple t) throws IOException {
+		if ((t == null) || (t.size() < NUM_INPUT_COLUMNS))
+			throw new IOException("WarcStorage needs tuples of " + NUM_INPUT_COLUMNS +
+								  " fields, as WarcLoader loads them, but got " + t);
+		warcRec.clearRecord();
+		addHeader(WarcRecord.WARC_TYPE, t.get(WARC_TYPE_COL_INDEX));
+		addHeader(WarcRecord.WARC_RECORD_ID, t.get(WARC_RECORD_ID_COL_INDEX));
+		addHeader(WarcRecord.WARC_DATE, t.get(WARC_DATE_COL_INDEX));
+		addOptionalHeaders(t.get(OPTIONAL_HEADERS_COL_INDEX));
+		Object contentField = t.get(CONTENT_COL_INDEX);
+		byte[] content = contentBytes(contentField);
+		warcRec.setRecordContent(content,
+								 (contentField instanceof DataByteArray) &&
+								 (warcRec.getHeaderValue(WarcHeaderField.WARC_TRUNCATED) == null));
+		warcRec.setDeclaredContentLength(content.length);
+		try {
+			writer.write(NullWritable.get(), warcRec);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing WARC record " +
+								  t.get(WARC_RECORD_ID_COL_INDEX) + ": " + e.getMessage());
+		}
+	}
+
+	// ---------------------------------   Private Methods ---------------------------
+
+	private void addHeader(String lowerCaseName, Object value) {
+		if (value != null)
+			warcRec.addHeader(lowerCaseName, value.toString());
+	}
+
+	/**
+	 * Add the optional header fields, given as a bag of (name, value)
+	 * tuples or as a map from name to value. Mandatory fields among
+	 * them are ignored; they come from their own columns.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addOptionalHeaders(Object headers) throws ExecException {
+		if (headers == null)
+			return;
+		if (headers instanceof DataBag) {
+			Iterator<Tuple> it = ((DataBag) headers).iterator();
+			while (it.hasNext()) {
+				Tuple nameValPair = it.next();
+				if (nameValPair.size() >= 2)
+					addOptionalHeader(nameValPair.get(0), nameValPair.get(1));
+			}
+		} else if (headers instanceof Map) {
+			for (Map.Entry<String, Object> nameValPair : ((Map<String, Object>) headers).entrySet())
+				addOptionalHeader(nameValPair.getKey(), nameValPair.getValue());
+		} else
+			throw new ExecException("Optional WARC header fields must be a bag or a map, not " +
+									headers.getClass().getName() + ".");
+	}
+
+	private void addOptionalHeader(Object name, Object value) {
+		if ((name == null) || (value == null))
+			return;
+		String lowerCaseName = name.toString().trim().toLowerCase();
+		WarcHeaderField field = WarcHeaderField.lookup(lowerCaseName);
+		if (lowerCaseName.isEmpty() || ((field != null) && field.isMandatory()))
+			return;
+		addHeader(lowerCaseName, value);
+	}
+
+	private static byte[] contentBytes(Object content) throws IOException {
+		if (content == null)
+			return NO_CONTENT;
+		if (content instanceof DataByteArray)
+			return ((DataByteArray) content).get();
+		try {
+			return content.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException("UTF-8 not supported: " + e.getMessage());
+		}
+	}
+}
@@ -42,6 +42,9 @@ public final class Constants {
 	// will always be honored to give the distributor time to fire up
 	// after the distributor demon spawned it:
 	public static final int[] DISTRIB_ATTEMPT_PAUSES = {6,6,10,10};
+	// Read distributor streams through a SocketChannel and a direct
+	// buffer (see DistributorChannel), rather than a DataInputStream:
+	public static final boolean USE_DISTRIBUTOR_CHANNEL = true;
 	
 	// Machine name entry used in site lists for crawls that are not mounted:
 	public static final String CRAWL_UNAVAILABLE_MACHINE_NAME = "WB0";
@@ -90,6 +93,9 @@ public final class Constants {
 	
 	// -------------------------------- Misc --------------------------
 	
+	// Most threads that inflate the pages of a compressed distributor stream:
+	public static final int MAX_INFLATE_THREADS = 4;
+	
 	
 	//-------------------------------- Constant-Returning Static Methods --------------------------	
 	
@@ -30,6 +30,10 @@ public class WbAudioRecord extends WbBinaryRecord {
 	public WbAudioRecord(Metadata md, Vector<String> httpHeader, byte[] content) {
 		super(md, httpHeader, content);
 	}
+	
+	public WbAudioRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		super(md, page, httpHeaderEnd, contentStart, contentLen);
+	}
 
 	public WbAudioRecord(Metadata md, String httpHeader, byte[] content){
 		super(md, httpHeader, content);
@@ -33,13 +33,17 @@ public abstract class WbBinaryRecord extends WbRecord {
 		super(md, httpHeader, content);
 	}
 	
+	public WbBinaryRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		super(md, page, httpHeaderEnd, contentStart, contentLen);
+	}
+	
 	public WbBinaryRecord(Metadata md, String httpHeader, byte[] content) {
 		super(md, httpHeader, content);
 	}
 
 	@Override
 	public DataByteArray getContent() {
-		return new DataByteArray(this.wbContent);
+		return new DataByteArray(getContentBytes());
 	}
 	
 	@Override
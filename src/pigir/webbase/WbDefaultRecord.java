@@ -34,6 +34,10 @@ public class WbDefaultRecord extends WbBinaryRecord {
 	public WbDefaultRecord(Metadata md, Vector<String> httpHeader, byte[] content) {
 		super(md, httpHeader, content);
 	}
+	
+	public WbDefaultRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		super(md, page, httpHeaderEnd, contentStart, contentLen);
+	}
 
 	@Override
 	public WebContentType getContentType() {
@@ -41,6 +45,6 @@ public class WbDefaultRecord extends WbBinaryRecord {
 	}
 	
 	public String getContentAsString() {
-		return new String(this.wbContent);
+		return new String(this.wbContent, wbContentStart, wbContentLen);
 	}
 }
@@ -33,6 +33,10 @@ public class WbImageRecord extends WbBinaryRecord {
 		super(md, httpHeader, content);
 	}
 	
+	public WbImageRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		super(md, page, httpHeaderEnd, contentStart, contentLen);
+	}
+	
 	public WbImageRecord(Metadata md, String httpHeader, byte[] content) { 
 		super(md, httpHeader, content);
 	}
@@ -44,6 +48,6 @@ public class WbImageRecord extends WbBinaryRecord {
 	
 	@Override
 	public DataByteArray getContent() {
-		return new DataByteArray(this.wbContent);
+		return new DataByteArray(getContentBytes());
 	}
 }
@@ -41,8 +41,16 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	
 	protected Metadata md;
 
-	private HashMap<String,String> httpHeader = new HashMap<String,String>();
+	// Built on first use (see getHttpHeader()), from httpHeaderVec or,
+	// if that is null, from the raw header bytes wbContent[0...httpHeaderEnd-1]:
+	private HashMap<String,String> httpHeader = null;
+	private Vector<String> httpHeaderVec = null;
+	private int httpHeaderEnd = 0;
+	// The content is wbContent[wbContentStart...wbContentStart+wbContentLen-1].
+	// The array may hold the whole page, HTTP header and all:
 	protected byte[] wbContent=null;
+	protected int wbContentStart = 0;
+	protected int wbContentLen = 0;
 	
 	private static final String[] mandatoryHeaderFields = {WEBBASE_URL,
 														   WEBBASE_DATE,
@@ -89,21 +97,66 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 		this(md, WbRecordFactory.getHTTPHeader(httpHeader), content);
 	}
 	
+	/**
+	 * The HTTP header lines are split into fields only when a field
+	 * is first asked for.
+	 * @param md The WebBase metadata header before the page's HTTP header
+	 * @param httpHeaderVec The page's HTTP header lines
+	 * @param content The Web content
+	 */
 	public WbRecord(Metadata md, Vector<String> httpHeaderVec, byte[] content) {
 		this.md = md;
-		this.wbContent = content;
+		this.httpHeaderVec = httpHeaderVec;
+		setContent(content);
+		this.logger = WbRecordReader.getLogger();
+	}
+	
+	/**
+	 * Neither the HTTP header nor the content are copied. The header
+	 * is parsed only when one of its fields is first asked for.
+	 * @param md The WebBase metadata header before the page's HTTP header
+	 * @param page Buffer that holds the page. The HTTP header starts at index 0.
+	 * @param httpHeaderEnd Index after the HTTP header's last line; 0
+	 *        to give the record no HTTP header fields
+	 * @param contentStart Index of the content's first byte in page
+	 * @param contentLen Number of content bytes
+	 */
+	public WbRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		this.md = md;
+		this.wbContent = page;
+		this.httpHeaderEnd = httpHeaderEnd;
+		this.wbContentStart = contentStart;
+		this.wbContentLen = contentLen;
 		this.logger = WbRecordReader.getLogger();
+	}
+	
+	/*-----------------------------------------------------
+	| getHttpHeader()
+	------------------------*/
+	
+	/**
+	 * @return map from HTTP header field name to value. Built
+	 *         from the header lines the first time it is needed. 
+	 */
+	private HashMap<String,String> getHttpHeader() {
+		if (httpHeader != null)
+			return httpHeader;
+		httpHeader = new HashMap<String,String>();
+		Vector<String> headerLines = (httpHeaderVec != null) ? 
+									 httpHeaderVec : 
+									 WbRecordFactory.getHTTPHeader(wbContent, httpHeaderEnd);
+		httpHeaderVec = null;
 		
-		if (httpHeaderVec.size() < 1)
-			return;
+		if (headerLines.size() < 1)
+			return httpHeader;
 		
-		if (httpHeaderVec.get(0).startsWith("HTTP")) {
-			this.httpHeader.put("Server-response", httpHeaderVec.get(0));
+		if (headerLines.get(0).startsWith("HTTP")) {
+			this.httpHeader.put("Server-response", headerLines.get(0));
 		}
 		String headerLine;
 		int colonIndx;
-		for (int i=1; i<httpHeaderVec.size(); i++) {
-			headerLine = httpHeaderVec.get(i);
+		for (int i=1; i<headerLines.size(); i++) {
+			headerLine = headerLines.get(i);
 			// Can't conveniently use split(":") b/c date/time has colons.
 			colonIndx = headerLine.indexOf(':');
 			if (colonIndx < 0)
@@ -111,6 +164,7 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 			this.httpHeader.put(headerLine.substring(0, colonIndx).trim(), 
 								headerLine.substring(colonIndx + 1).trim());
 		}
+		return httpHeader;
 	}
 	
 	/*-----------------------------------------------------
@@ -124,7 +178,35 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	------------------------*/
 	
 	protected void setContent(byte[] c) {
+		// The raw HTTP header may live in the old content buffer:
+		if ((httpHeader == null) && (httpHeaderVec == null) && (wbContent != null))
+			getHttpHeader();
 		this.wbContent = c;
+		this.wbContentStart = 0;
+		this.wbContentLen = c.length;
+	}
+	
+	/*-----------------------------------------------------
+	| getContentBytes() 
+	------------------------*/
+	
+	/**
+	 * @return the content bytes. Copied only if the record's 
+	 *         buffer holds more than the content.
+	 */
+	public byte[] getContentBytes() {
+		if ((wbContentStart == 0) && (wbContentLen == wbContent.length))
+			return wbContent;
+		byte[] res = new byte[wbContentLen];
+		System.arraycopy(wbContent, wbContentStart, res, 0, wbContentLen);
+		return res;
+	}
+	
+	/**
+	 * @return number of content bytes.
+	 */
+	public int getContentLength() {
+		return wbContentLen;
 	}
 	
 	/*-----------------------------------------------------
@@ -147,8 +229,8 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	------------------------*/
 	public String getHTTPHeaderAsString() {
 		String retString = "";
-		for (String key : httpHeader.keySet()) {
-			retString += key + "=" + httpHeader.get(key) + "\r\n";
+		for (String key : getHttpHeader().keySet()) {
+			retString += key + "=" + getHttpHeader().get(key) + "\r\n";
 		}
 		return retString;
 	}
@@ -162,7 +244,7 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	
 	public String toString(Boolean includeContent) {
 		if (includeContent)
-			return md.toString() + getHTTPHeaderAsString() + (new String(this.wbContent));
+			return md.toString() + getHTTPHeaderAsString() + (new String(this.wbContent, wbContentStart, wbContentLen));
 		else
 			return md.toString() + getHTTPHeaderAsString();
 	}
@@ -177,9 +259,9 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	public String getContentUTF8() {
 		String retString=null;
 		try {
-			retString = new String(wbContent, "UTF-8");
+			retString = new String(wbContent, wbContentStart, wbContentLen, "UTF-8");
 		} catch (UnsupportedEncodingException ex) {
-			retString=new String(wbContent);
+			retString=new String(wbContent, wbContentStart, wbContentLen);
 		}
 		return retString;
 	}
@@ -235,11 +317,11 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 
 	@Override
 	public boolean isEmpty() {
-		return (md == null) && (wbContent.length == 0); 
+		return (md == null) && (wbContentLen == 0); 
 	}
 
 	public boolean isContentEmpty() {
-		return (wbContent.length == 0);
+		return (wbContentLen == 0);
 	}
 	
 	/* (non-Javadoc)
@@ -254,7 +336,7 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 		return (md.containsKey(lowerCaseKey) || 
 				lowerCaseKey.equals(CONTENT) ||
 				lowerCaseKey.equals(HTTP_HEADER_MAP) ||
-				httpHeader.containsKey(lowerCaseKey));
+				getHttpHeader().containsKey(lowerCaseKey));
 	}
 
 	/* (non-Javadoc)
@@ -269,7 +351,7 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	public boolean containsValue(Object value) {
 		if (md.containsValue(value))
 			return true;
-		if (httpHeader.containsValue(value))
+		if (getHttpHeader().containsValue(value))
 			return true;
 		if (getContentType() == WebContentType.TEXT)
 			return ((String) getContent()).contains((String) value);
@@ -291,11 +373,11 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 		if ((val = md.fieldToString((String) key)) != null)
 			return val;
 		// Nope, is the key from an HTTP header field?
-		if ((val = httpHeader.get(key)) != null)
+		if ((val = getHttpHeader().get(key)) != null)
 			return val;
 		// Nope. Does caller want the HTTP header map as a whole?
 		if (key.equals(HTTP_HEADER_MAP))
-			return httpHeader.toString();
+			return getHttpHeader().toString();
 		// Nope. Do they want the content?
 		if (key.equals(CONTENT)) {
 			// We do serve content via the Map interface for text pages...
@@ -331,7 +413,7 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 		Object oldVal;
 		if ((oldVal = md.remove(lowerCaseKey)) != null)
 			return oldVal.toString();
-		if ((oldVal = httpHeader.remove(lowerCaseKey)) != null)
+		if ((oldVal = getHttpHeader().remove(lowerCaseKey)) != null)
 				return oldVal.toString();
 		if (key == HTTP_HEADER_MAP) {
 			logger.error("Attempt to delete HTTP header from record. Can't be done.");
@@ -340,12 +422,12 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 		if (key == CONTENT) {
 			if (getContentType() == WebContentType.TEXT) {
 				String oldContent = (String) getContent();
-				wbContent = new byte[0];
+				setContent(new byte[0]);
 				return oldContent;
 			}
 			else {
 				logger.warn("Used remove() to delete content from binary record. Content was removed, but old content was not returned.");
-				wbContent = new byte[0];
+				setContent(new byte[0]);
 				return null;
 			}
 		}
@@ -355,15 +437,16 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	public Collection<Object> values() {
 		Collection<Object> objVals = md.values();
 		// Add the HTTP header vals flat:
-		objVals.add(httpHeader);
+		objVals.add(getHttpHeader());
 		objVals.add(getContent());
 		return objVals;
 	}
 	
 	@Override
 	public Set<String> keySet() {
-		Set<String> res = md.keySet();
-		res.addAll(httpHeader.keySet());
+		// The metadata's key set is shared by all records:
+		Set<String> res = new HashSet<String>(md.keySet());
+		res.addAll(getHttpHeader().keySet());
 		res.add(CONTENT);
 		return res;
 	}
@@ -377,8 +460,8 @@ public abstract class WbRecord extends Text implements WbRecordMap<String, Objec
 	 * values are relatively short.
 	 */
 	public Set<String> keySetHeader() {
-		Set<String> allKeys = md.keySet();
-		allKeys.addAll(httpHeader.keySet());
+		Set<String> allKeys = new HashSet<String>(md.keySet());
+		allKeys.addAll(getHttpHeader().keySet());
 		return allKeys;
 	}
 	
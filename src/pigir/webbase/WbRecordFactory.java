@@ -27,6 +27,7 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.Vector;
 
 /**
@@ -37,6 +38,13 @@ import java.util.Vector;
  * Web content does not even have a header, we return null from
  * the constructor.
  * 
+ * The page is scanned as bytes. Only the Content-Type line of the
+ * HTTP header is decoded here; the record parses the rest of the
+ * header if, and when, a header field is asked for. The record's
+ * content is a view of the page buffer, from the end of the header
+ * on, so binary content is never turned into a String, and the page
+ * is not copied.
+ * 
  * @author paepcke
  *
  */
@@ -45,6 +53,13 @@ byte[] barray = new byte[1];
 
 	FileWriter foo;
 	BufferedWriter bar;
+	
+	// HTTP header fields are ISO-8859-1; this decoding never fails:
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	// Number of bytes in the "\r\n\r\n" that ends the HTTP header: 
+	private static final int HEADER_TERMINATOR_LEN = 4;
+	private static final byte[] CONTENT_TYPE_FIELD_NAME = "content-type".getBytes(HEADER_CHARSET);
+	
 	/**
 	 * @param md The WebBase metadata header before each page's HTTP header 
 	 * @param page The Web content
@@ -52,35 +67,151 @@ byte[] barray = new byte[1];
 	 * if the Web content does not have an identifiable HTTP header.
 	 */
 	public static WbRecord getWbRecord(Metadata md, byte[] page) {
+		return getWbRecord(md, page, page.length);
+	}
+	
+	/**
+	 * @param md The WebBase metadata header before each page's HTTP header 
+	 * @param page Buffer holding the Web content. The record keeps 
+	 *        a reference to it; the buffer must not be reused.
+	 * @param pageLen Number of bytes of the Web content, starting at index 0.
+	 * @return a WbRecord subclass as described in class comment, or null
+	 * if the Web content does not have an identifiable HTTP header.
+	 */
+	public static WbRecord getWbRecord(Metadata md, byte[] page, int pageLen) {
+		return getWbRecord(md, page, pageLen, true);
+	}
+	
+	/**
+	 * @param md The WebBase metadata header before each page's HTTP header 
+	 * @param page Buffer holding the Web content. The record keeps 
+	 *        a reference to it; the buffer must not be reused.
+	 * @param pageLen Number of bytes of the Web content, starting at index 0.
+	 * @param keepHttpHeader false if nobody will ask for the page's HTTP header
+	 *        fields. The record then has none, though its type is still 
+	 *        determined from the Content-Type field.
+	 * @return a WbRecord subclass as described in class comment, or null
+	 * if the Web content does not have an identifiable HTTP header.
+	 */
+	public static WbRecord getWbRecord(Metadata md, byte[] page, int pageLen, boolean keepHttpHeader) {
 		
-		// Get the page as a string to extract the http header
-		String pageStr = new String(page);
-		Vector<String> httpHeader = getHTTPHeader(pageStr);
-		
-		//determine the web content type from the http header
-		WebContentType type = getContentType(httpHeader);
-		
-		// Get the content of the page without the http header
-		byte[] content = null;
-		int headerEnd = pageStr.indexOf("\r\n\r\n");
+		// Find the end of the http header: 
+		int headerEnd = findHeaderEnd(page, pageLen);
 		// No end-of-header found?
 		if (headerEnd < 0)
 			return null;
-		content = pageStr.substring(headerEnd + 4).getBytes();
+		
+		//determine the web content type from the http header
+		WebContentType type = getContentType(page, headerEnd);
+		
+		// The content of the page without the http header:
+		int contentStart = headerEnd + HEADER_TERMINATOR_LEN;
+		int contentLen = pageLen - contentStart;
+		int httpHeaderEnd = keepHttpHeader ? headerEnd : 0;
 		
 		switch(type) {
 		case TEXT:
-			return new WbTextRecord(md, httpHeader, content);
+			return new WbTextRecord(md, page, httpHeaderEnd, contentStart, contentLen);
 			
 		case AUDIO:
-			return new WbAudioRecord(md, httpHeader, content);
+			return new WbAudioRecord(md, page, httpHeaderEnd, contentStart, contentLen);
 		
 		case IMAGE:
-			return new WbImageRecord (md, httpHeader, content);
+			return new WbImageRecord (md, page, httpHeaderEnd, contentStart, contentLen);
 			
 		default:
-			return new WbDefaultRecord (md, httpHeader, content);
+			return new WbDefaultRecord (md, page, httpHeaderEnd, contentStart, contentLen);
+		}
+	}
+	
+	/**
+	 * @return index of the "\r\n\r\n" that ends the HTTP header, or -1 if there is none.
+	 */
+	static int findHeaderEnd(byte[] page, int pageLen) {
+		for (int i=0; i + HEADER_TERMINATOR_LEN <= pageLen; i++) {
+			if ((page[i] == '\r') && (page[i+1] == '\n') && (page[i+2] == '\r') && (page[i+3] == '\n'))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Split the HTTP header bytes of a page into lines, as getHTTPHeader(String)
+	 * does: lines end with \r\n, \n or \r, and the header ends with the first
+	 * empty line.
+	 * @param page The Web content
+	 * @param headerEnd Index after the header's last line
+	 * @return the header lines
+	 */
+	static Vector<String> getHTTPHeader(byte[] page, int headerEnd) {
+		Vector<String> httpHeader = new Vector<String>();
+		int lineStart = 0;
+		int lineEnd;
+		while ((lineEnd = findLineEnd(page, lineStart, headerEnd)) > lineStart) {
+			httpHeader.add(new String(page, lineStart, lineEnd - lineStart, HEADER_CHARSET));
+			lineStart = skipLineBreak(page, lineEnd, headerEnd);
+		}
+		return httpHeader;
+	}
+	
+	/**
+	 * @return index of the \r or \n that ends the line starting at 
+	 *         lineStart, or headerEnd. Equals lineStart for an empty line.
+	 */
+	private static int findLineEnd(byte[] page, int lineStart, int headerEnd) {
+		int lineEnd = lineStart;
+		while ((lineEnd < headerEnd) && (page[lineEnd] != '\r') && (page[lineEnd] != '\n'))
+			lineEnd++;
+		return lineEnd;
+	}
+	
+	/**
+	 * @return index after the \r\n, \n or \r at lineEnd.
+	 */
+	private static int skipLineBreak(byte[] page, int lineEnd, int headerEnd) {
+		if ((lineEnd < headerEnd) && (page[lineEnd] == '\r'))
+			lineEnd++;
+		if ((lineEnd < headerEnd) && (page[lineEnd] == '\n'))
+			lineEnd++;
+		return lineEnd;
+	}
+	
+	/**
+	 * Find the Content-Type field among the HTTP header lines of a page,
+	 * and decode only that line.
+	 * @param page The Web content
+	 * @param headerEnd Index after the header's last line
+	 * @return the type of the Web content.
+	 */
+	static WebContentType getContentType(byte[] page, int headerEnd) {
+		int lineStart = 0;
+		int lineEnd;
+		while ((lineEnd = findLineEnd(page, lineStart, headerEnd)) > lineStart) {
+			if (isContentTypeLine(page, lineStart, lineEnd)) {
+				Vector<String> contentTypeLine = new Vector<String>(1);
+				contentTypeLine.add(new String(page, lineStart, lineEnd - lineStart, HEADER_CHARSET));
+				return getContentType(contentTypeLine);
+			}
+			lineStart = skipLineBreak(page, lineEnd, headerEnd);
+		}
+		return WebContentType.DEFAULT;
+	}
+	
+	/**
+	 * @return true if the field name of the given header line, trimmed, is
+	 *         Content-Type in any case.
+	 */
+	private static boolean isContentTypeLine(byte[] page, int lineStart, int lineEnd) {
+		int i = lineStart;
+		while ((i < lineEnd) && (page[i] <= ' '))
+			i++;
+		for (int j=0; j<CONTENT_TYPE_FIELD_NAME.length; j++, i++) {
+			if ((i >= lineEnd) || (Character.toLowerCase((char) (page[i] & 0xff)) != CONTENT_TYPE_FIELD_NAME[j]))
+				return false;
 		}
+		while ((i < lineEnd) && (page[i] <= ' ') && (page[i] != ':'))
+			i++;
+		return (i < lineEnd) && (page[i] == ':');
 	}
 	
 	// Right now this assumes there is exactly 1 HTTP header as the first part of every page
@@ -18,8 +18,8 @@ import pigir.webbase.wbpull.webStream.BufferedWebStreamIterator;
  * 
  * The task here is to contact the distributor demon, get a distributor,
  * and then read page by page from the stream. Stream reading is done by
- * a BufferedWebStreamIterator, which reads some number of pages at a
- * time into a buffer to ammortize communication cost with WebBase.
+ * a BufferedWebStreamIterator, whose background thread keeps a buffer
+ * of pages filled while this reader's caller processes earlier pages.
  *  
  * @author paepcke
  *
@@ -27,6 +27,7 @@ import pigir.webbase.wbpull.webStream.BufferedWebStreamIterator;
 public class WbRecordReader extends RecordReader<WbInputSplit, Text>{
 	
 	private static final boolean DO_READ_CONTENT = true;
+	private static final boolean DO_READ_HTTP_HEADER = true;
 	private WbRecord valueWbRecord = null;
 	//private String crawlName;
 	//private String crawlType;
@@ -99,10 +100,25 @@ public class WbRecordReader extends RecordReader<WbInputSplit, Text>{
 	public boolean nextKeyValue() throws IOException, InterruptedException {
 		// Don't need to pull anything. Just check whether another
 		// page is available:
-		return nextKeyValue(DO_READ_CONTENT);
+		return nextKeyValue(DO_READ_CONTENT, DO_READ_HTTP_HEADER);
 	}
 	
 	public boolean nextKeyValue(boolean readContents) throws IOException, InterruptedException {
+		return nextKeyValue(readContents, DO_READ_HTTP_HEADER);
+	}
+	
+	/**
+	 * @param readContents false if the caller does not need the page content
+	 * @param readHttpHeader false if the caller does not need the HTTP header
+	 *        fields. Pages built from then on carry none, and their header is 
+	 *        never parsed.
+	 * @return false if there are no more pages.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean nextKeyValue(boolean readContents, boolean readHttpHeader) throws IOException, InterruptedException {
+		
+		webBaseStream.setHttpHeaderWanted(readHttpHeader);
 		
 		if (distributorDemonContact.numPagesWanted != Constants.ALL_PAGES_WANTED &&
 				recordsRead >= distributorDemonContact.numPagesWanted)
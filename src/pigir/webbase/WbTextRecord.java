@@ -34,10 +34,14 @@ public class WbTextRecord extends WbRecord {
 	public WbTextRecord(Metadata md, Vector<String> httpHeader, byte[] content) {
 		super(md, httpHeader, content);
 	}
+	
+	public WbTextRecord(Metadata md, byte[] page, int httpHeaderEnd, int contentStart, int contentLen) {
+		super(md, page, httpHeaderEnd, contentStart, contentLen);
+	}
 
 	@Override
 	public String getContent() {
-		return new String(this.wbContent);
+		return new String(this.wbContent, wbContentStart, wbContentLen);
 	}
 
 	@Override
@@ -63,7 +67,7 @@ public class WbTextRecord extends WbRecord {
 		String lowerCaseKey = key.toLowerCase();
 		if (lowerCaseKey.equals(CONTENT)) {
 			prevValue = getContent();
-			wbContent = value.getBytes();
+			setContent(value.getBytes());
 			return prevValue;
 		}
 		return super.put(key, value);
@@ -74,7 +78,7 @@ public class WbTextRecord extends WbRecord {
 		String lowerCaseKey = ((String)key).toLowerCase();
 		if (lowerCaseKey.equalsIgnoreCase(CONTENT)) {
 			prevValue = getContent();
-			wbContent = new byte[0];
+			setContent(new byte[0]);
 			return prevValue;
 		}
 		return super.remove(key);
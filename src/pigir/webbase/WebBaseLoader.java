@@ -35,6 +35,7 @@ public class WebBaseLoader extends LoadFunc implements LoadPushDown {
 	private MultiTypeProperties wbJobProperties = 
 		new MultiTypeProperties(UDFContext.getUDFContext().getUDFProperties(getClass()));
 	private final int NUM_OUTPUT_COLUMNS = 7;
+	private final int HTTP_HEADER_COL_INDEX = 5;
 	private final int CONTENT_COL_INDEX = 6;
 	
     // Vector with true wbRecordReader each position that corresponds to a
@@ -111,7 +112,10 @@ public class WebBaseLoader extends LoadFunc implements LoadPushDown {
         try {
             boolean done = ! wbRecordReader.nextKeyValue((mRequiredColumns != null) && 
             				(CONTENT_COL_INDEX < numColsToReturn) && 
-            				(mRequiredColumns[CONTENT_COL_INDEX]));
+            				(mRequiredColumns[CONTENT_COL_INDEX]),
+            				(mRequiredColumns != null) && 
+            				(HTTP_HEADER_COL_INDEX < numColsToReturn) && 
+            				(mRequiredColumns[HTTP_HEADER_COL_INDEX]));
             if (done) {
                 return null;
             }
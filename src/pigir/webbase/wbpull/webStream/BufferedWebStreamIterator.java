@@ -1,16 +1,26 @@
 package pigir.webbase.wbpull.webStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.log4j.Logger;
@@ -23,25 +33,107 @@ import pigir.webbase.WbRecord;
 import pigir.webbase.WbRecordFactory;
 import pigir.webbase.WbRecordReader;
 
+/**
+ * Iterator over the pages of a WebBase distributor stream. A reader
+ * thread pulls pages off the distributor socket into a bounded queue,
+ * and blocks when the queue is full. The consumer (WbRecordReader)
+ * only takes pages from the queue. Reading from the network and
+ * processing pages thus overlap, and a slow consumer never lets the
+ * distributor time out for more than the queue's worth of pages.
+ * 
+ * Compressed pages are inflated by a small pool of worker threads,
+ * so that the reader thread only reads. The queue holds each page's
+ * Future in stream order, which keeps the pages in order however the
+ * workers finish. Workers share a few Inflaters, rather than creating
+ * one per page, and size their output from the inflate ratio seen so
+ * far.
+ * 
+ * Unless Constants.USE_DISTRIBUTOR_CHANNEL is false, the reader thread
+ * reads through a DistributorChannel: the fixed-size header of each
+ * page is decoded from a large direct buffer, and page bytes are read
+ * straight into the page array, so most pages cost a single read from
+ * the socket. Raw pages of compressed streams are read into buffers
+ * from a pool, which the inflaters return them to. Buffers of 
+ * uncompressed pages are not pooled, because their records keep them.
+ * 
+ * Time the consumer waits for pages, time the reader waits for queue
+ * space, time spent inflating, and the queue's depth, are added to the
+ * job's counters.
+ */
 public class BufferedWebStreamIterator extends WebStream implements Iterator<WbRecord> {
 
 	private static int BUFFER_SIZE = 100;
+	// How long the consumer waits for a page before checking whether
+	// the reader thread is done:
+	private static final long POLL_MSECS = 100;
+	private static final long NANOS_PER_MSEC = 1000000L;
+	
+	// Inflate worker threads; one core is left to the reader and the consumer:
+	private static final int NUM_INFLATE_THREADS = 
+		Math.max(1, Math.min(Constants.MAX_INFLATE_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+	// Inflated size of a page is guessed as its compressed size times
+	// this ratio until pages have been inflated:
+	private static final float INITIAL_INFLATE_RATIO = 4.0f;
+	
+	// Pooled raw page buffers are allocated in multiples of this size:
+	private static final int PAGE_BUFFER_GRAIN = 16 * 1024;
 	
 	private static byte COMPRESSED_MASK = 2;
-	private ArrayBlockingQueue<WbRecord> wbRecordQueue = new ArrayBlockingQueue<WbRecord>(BUFFER_SIZE);
+	private ArrayBlockingQueue<Future<WbRecord>> wbRecordQueue = new ArrayBlockingQueue<Future<WbRecord>>(BUFFER_SIZE);
+	private PageReader pageReader = null;
+	// Null unless the stream is compressed:
+	private ExecutorService inflatePool = null;
+	private int numInflateThreads = NUM_INFLATE_THREADS;
+	private ArrayBlockingQueue<Inflater> inflaters = null;
+	// Buffers for compressed pages, returned once they are inflated:
+	private ArrayBlockingQueue<byte[]> pageBuffers = null;
+	// Running mean of inflated to compressed page size. Updated by the
+	// workers without synchronization; it is only a hint:
+	private volatile float inflateRatio = INITIAL_INFLATE_RATIO;
+	// False if the consumer never looks at the pages' HTTP header fields.
+	// Pages already built when this changes keep theirs:
+	private volatile boolean httpHeaderWanted = true;
+	// Page taken by hasNext(), but not yet handed out by next():
+	private WbRecord nextRecord = null;
 	
 	private	DataInputStream		in;
 	private	DataOutputStream	out;
+	// Null if the distributor is read through in and out:
+	private DistributorChannel	channel = null;
 	
 	private int nextReporting = Constants.WB_PAGE_LOAD_REPORT_GRANULARITY;
 	
 	private Logger logger = null;
 	
 	protected static enum RecordCounters {
-		PAGES_LOADED
+		PAGES_LOADED,
+		// Time the consumer waited for the reader thread:
+		CONSUMER_STALL_MSECS,
+		// Time the reader thread waited for the consumer to make room:
+		PRODUCER_STALL_MSECS,
+		// Largest number of pages waiting in the queue:
+		QUEUE_DEPTH_MAX,
+		// Pages waiting in the queue, summed over all pages taken from it;
+		// divide by PAGES_LOADED for the mean depth:
+		QUEUE_DEPTH_SUM,
+		// Time the worker threads spent inflating compressed pages:
+		INFLATE_MSECS
 	};
 	protected PigStatusReporter reporter = null;
 	protected Counter recordCounter = null;
+	
+	// Counter values; the producer's are written by the reader thread:
+	private long numPagesTaken = 0L;
+	private long consumerStallNanos = 0L;
+	private long queueDepthSum = 0L;
+	private volatile long producerStallNanos = 0L;
+	private volatile int queueDepthMax = 0;
+	// Pages read off the distributor, including those the factory
+	// refuses; for numbering pages. Used by the reader thread only:
+	private int numPagesRead = 0;
+	private AtomicLong inflateNanos = new AtomicLong();
+	// Values already added to the job's counters:
+	private long[] publishedCounts = new long[RecordCounters.values().length];
 
 	private boolean streamCompressed = false;
 	
@@ -55,15 +147,7 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 	
 	public BufferedWebStreamIterator(String machineName, int distribDemonPort, String startSite, String endSite, int totalNumPages) throws IOException {
 		super(machineName, distribDemonPort, totalNumPages);
-
-		logger = WbRecordReader.getLogger();
-		reporter = PigStatusReporter.getInstance();
-		if (reporter != null) {
-			recordCounter = reporter.getCounter(RecordCounters.PAGES_LOADED);
-		}
-		else {
-			logger.warn("Could not obtain a Web page counter.");
-		}
+		initCounters();
 
 		Socket distributorDemonSocket = Common.getSocket(machineName, 
 														 distribDemonPort, 
@@ -118,11 +202,60 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 		} catch (InterruptedException e) {}
 		
 		// Open distributor itself:
-		Socket distributorSocket = openDistributorSocket(distributorIPAndPortStrings[0], distributorIPAndPortStrings[1]);
-		in = new DataInputStream(distributorSocket.getInputStream());
-		out = new DataOutputStream(distributorSocket.getOutputStream());
-		out.writeInt(totalNumPages);
-		
+		if (Constants.USE_DISTRIBUTOR_CHANNEL) {
+			channel = openDistributorChannel(distributorIPAndPortStrings[0], distributorIPAndPortStrings[1]);
+			channel.requestPages(totalNumPages);
+		} else {
+			Socket distributorSocket = openDistributorSocket(distributorIPAndPortStrings[0], distributorIPAndPortStrings[1]);
+			in = new DataInputStream(distributorSocket.getInputStream());
+			out = new DataOutputStream(distributorSocket.getOutputStream());
+			out.writeInt(totalNumPages);
+		}
+		startReading();
+	}
+	
+	/**
+	 * Read from a distributor channel that is already connected, rather
+	 * than asking a distributor demon for a distributor.
+	 * @param machineName name of the distributor's machine, for messages
+	 * @param port distributor's port, for messages
+	 * @param theChannel channel connected to the distributor
+	 * @param totalNumPages number of pages to request
+	 * @param theNumInflateThreads number of threads that inflate compressed pages
+	 * @throws IOException
+	 */
+	protected BufferedWebStreamIterator(String machineName, int port, DistributorChannel theChannel, 
+										int totalNumPages, int theNumInflateThreads) throws IOException {
+		super(machineName, port, totalNumPages);
+		initCounters();
+		numInflateThreads = theNumInflateThreads;
+		channel = theChannel;
+		channel.requestPages(totalNumPages);
+		startReading();
+	}
+	
+	private void initCounters() {
+		logger = WbRecordReader.getLogger();
+		reporter = PigStatusReporter.getInstance();
+		if (reporter != null) {
+			recordCounter = reporter.getCounter(RecordCounters.PAGES_LOADED);
+		}
+		else {
+			logger.warn("Could not obtain a Web page counter.");
+		}
+	}
+	
+	/*-----------------------------------------------------
+	| startReading() 
+	------------------------*/
+	
+	/**
+	 * Read the stream's document type, and start the reader thread,
+	 * and the inflate workers if the stream is compressed. The page 
+	 * request has been sent.
+	 * @throws IOException
+	 */
+	private void startReading() throws IOException {
 		// Read the one-char doc type of incoming info. It tells us whether
 		// the incoming stream is compressed:
 		
@@ -133,7 +266,7 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 		byte docType;
 		try {
 			// TODO: make sure we don't get stuck here.
-			docType = in.readByte();
+			docType = (channel != null) ? channel.readByte() : in.readByte();
 		} catch (IOException e1) {
 			throw new IOException("Could not read from distributor.");
 		}
@@ -141,7 +274,19 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 				    Constants.getHostInfo() +
 				    ": received document type byte from distributor. Beginning download... ");
 		streamCompressed = (docType & COMPRESSED_MASK) == COMPRESSED_MASK;
-		fillBuffer();
+		if (streamCompressed) {
+			inflaters = new ArrayBlockingQueue<Inflater>(numInflateThreads);
+			pageBuffers = new ArrayBlockingQueue<byte[]>(BUFFER_SIZE);
+			inflatePool = Executors.newFixedThreadPool(numInflateThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread worker = new Thread(r, "WebBase page inflater " + machineName + ":" + port);
+					worker.setDaemon(true);
+					return worker;
+				}
+			});
+		}
+		pageReader = new PageReader();
+		pageReader.start();
 	}
 	
 
@@ -195,6 +340,63 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 		return distributor;
 	}
 	
+	/*-----------------------------------------------------
+	| openDistributorChannel() 
+	------------------------*/
+	
+	/**
+	 * Like openDistributorSocket(), but connects a DistributorChannel.
+	 * Makes Constants.NUM_DISTRIB_ATTEMPTS attempts, pausing
+	 * Constants.DISTRIB_ATTEMPT_PAUSES seconds after each failed one.
+	 * @param distributorIP
+	 * @param distributorPort
+	 * @return the connected channel.
+	 * @throws IOException
+	 */
+	private DistributorChannel openDistributorChannel(String distributorIP, String distributorPort)
+			throws IOException {
+		
+		String errMsg = "From " +
+						Constants.getHostInfo() +
+						": could not open a distributor at " + distributorIP + ":" + distributorPort + ". ";
+		logger.info("From " +
+				    Constants.getHostInfo() +
+				    ": attempt to open channel to distributor at " +
+				    distributorIP + ":" + distributorPort);
+		InetSocketAddress distributorAddr;
+		try {
+			distributorAddr = new InetSocketAddress(Common.getInetAddressFromAsciiIP(distributorIP), 
+													Integer.parseInt(distributorPort));
+		} catch (UnknownHostException e) {
+			logger.error(errMsg + "Bad IP format: " + distributorIP);
+			throw new IOException(errMsg + "Bad IP format: " + distributorIP);
+		} catch (NumberFormatException e) {
+			logger.error(errMsg + "Bad distributor port: " + distributorPort);
+			throw new IOException(errMsg + "Bad distributor port: " + distributorPort);
+		}
+		
+		for (int attempt = 1; ; attempt++) {
+			try {
+				DistributorChannel res = new DistributorChannel(distributorAddr);
+				logger.info("From " +
+						    Constants.getHostInfo() +
+						    ": success opening channel to distributor at " +
+						    distributorIP + ":" + distributorPort);
+				return res;
+			} catch (IOException e) {
+				if (attempt >= Constants.NUM_DISTRIB_ATTEMPTS) {
+					logger.error(errMsg + e.getMessage());
+					throw new IOException(errMsg + e.getMessage());
+				}
+				logger.warn(errMsg + e.getMessage() + " Retrying...");
+			}
+			try {
+				Thread.sleep(1000 * Constants.DISTRIB_ATTEMPT_PAUSES[Math.min(attempt, Constants.DISTRIB_ATTEMPT_PAUSES.length) - 1]);
+			} catch (InterruptedException e) {
+				throw new IOException(errMsg + "Interrupted while waiting to retry.");
+			}
+		}
+	}
 	
 	/*-----------------------------------------------------
 	| hasNext() 
@@ -202,13 +404,9 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 	
 	@Override
 	public boolean hasNext() {
-		if (wbRecordQueue.isEmpty())
-			try {
-				fillBuffer();
-			} catch (IOException e) {
-				return false;
-			}
-		return !wbRecordQueue.isEmpty();
+		if (nextRecord == null)
+			nextRecord = takePage();
+		return nextRecord != null;
 	}
 
 	/*-----------------------------------------------------
@@ -217,15 +415,9 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 	
 	@Override
 	public WbRecord next() {
-		if (wbRecordQueue.isEmpty())
-			try {
-				fillBuffer();
-				if (wbRecordQueue.isEmpty())
-					return null;
-			} catch (IOException e) {
-				return null;
-			}
-		return wbRecordQueue.remove();
+		WbRecord res = (nextRecord != null) ? nextRecord : takePage();
+		nextRecord = null;
+		return res;
 	}
 
 	/*-----------------------------------------------------
@@ -242,149 +434,414 @@ public class BufferedWebStreamIterator extends WebStream implements Iterator<WbR
 	------------------------*/
 	
 	public void close() {
+		if (pageReader != null)
+			pageReader.shutDown();
+		// Closing the socket's streams, or the channel, also unblocks
+		// the reader thread if it is waiting for the distributor:
 		try {
-			in.close();
-			out.close();			
+			if (channel != null)
+				channel.close();
+			else {
+				in.close();
+				out.close();
+			}
 		} catch (IOException e) {
 			// oh well.
 		}
+		if (pageReader != null) {
+			try {
+				pageReader.join(POLL_MSECS);
+			} catch (InterruptedException e) {
+				// oh well.
+			}
+		}
+		if (inflatePool != null) {
+			inflatePool.shutdownNow();
+			// Let busy workers return their inflaters before the pool of
+			// them is drained; those that finish later end their own:
+			try {
+				inflatePool.awaitTermination(POLL_MSECS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// oh well.
+			}
+			Inflater inflater;
+			while ((inflater = inflaters.poll()) != null)
+				inflater.end();
+			pageBuffers.clear();
+		}
+		wbRecordQueue.clear();
+		publishCounters();
 	}
 	
 	/*-----------------------------------------------------
-	| fillBuffer()
+	| newInflater()
 	------------------------*/
 	
-	private int fillBuffer() throws IOException {
-		
-		int		docID, pageSize, urlLen, tsLen;
-		int     truePageLen; // uncompressed len
-		long	offset;
-		// String page;
-		String	timeStamp, url;
-		byte[] tsBytes, urlBytes, pageBytes;
-		byte[] truePageBytes; // uncompressed
-		int numPagesThisRound = 0;
-		
-		Metadata metadata;
-		
-		wbRecordQueue.clear();
-		for(int i = 0; i < BUFFER_SIZE; i++) {
+	/**
+	 * @return an inflater for the zlib data of compressed pages.
+	 */
+	protected Inflater newInflater() {
+		return new Inflater();
+	}
+	
+	/*-----------------------------------------------------
+	| setHttpHeaderWanted()
+	------------------------*/
+	
+	/**
+	 * @param isWanted false if the HTTP header fields of pages are not 
+	 *        needed. Pages then carry none, and their header is never parsed.
+	 */
+	public void setHttpHeaderWanted(boolean isWanted) {
+		httpHeaderWanted = isWanted;
+	}
+	
+	/*-----------------------------------------------------
+	| takePage()
+	------------------------*/
+	
+	/**
+	 * Take the next page from the queue, waiting for the reader
+	 * thread if the queue is empty, and for the page's inflater if
+	 * the page is not inflated yet.
+	 * @return the next page, or null when the stream is exhausted,
+	 *         or broken.
+	 */
+	private WbRecord takePage() {
+		WbRecord wbRecord = null;
+		while (wbRecord == null) {
+			Future<WbRecord> page = wbRecordQueue.poll();
+			long startNanos = System.nanoTime();
 			try {
-				docID			= in.readInt();
-				offset			= in.readLong();
-				tsLen			= in.readInt();
-				urlLen			= in.readInt();
-				pageSize		= in.readInt();
-						
-				if(tsLen > TIMESTAMP_LENGTH || tsLen < 0) {
-					String errMsg = "Bad date string length read from page stream.\n    " +
-							"Expected max of " + TIMESTAMP_LENGTH + ". Got: " + tsLen +
-							" at page# " + totalNumPagesRetrieved + 1;
-					logger.warn(errMsg);
-					throw new IOException(errMsg);
-				}
-				if(urlLen > MAX_URL_SIZE || urlLen < 0) {
-					String errMsg = "Bad URL string length read from page stream. " +
-							"Expected max of " + MAX_URL_SIZE + ". Got: " + urlLen +
-							" at page# " + totalNumPagesRetrieved + 1;
-					logger.error(errMsg);
-					throw new IOException(errMsg);
-				}
-
-				if(pageSize > MAX_WEBPAGE_SIZE || pageSize < 0) {
-					String errMsg = "Bad page size read from page stream. " +
-							"Expected max of " + MAX_WEBPAGE_SIZE + ". Got: " + pageSize + 
-							" at page# " + totalNumPagesRetrieved + 1;
-					logger.error(errMsg);
-					throw new IOException(errMsg);
-				}
-				
-				if(pageSize > MAX_WEBPAGE_SIZE) {
-					logger.error("Bad page size read from page stream. " +
-							"Expected max of " + MAX_WEBPAGE_SIZE + ". Got: " + pageSize);
-					continue;
-				}
-					
-				//read timestamp
-				tsBytes = new byte[tsLen];
-				in.read(tsBytes, 0, tsLen);
-				timeStamp  = new String(tsBytes);
-				
-				//read url
-				urlBytes = new byte[urlLen];
-				in.read(urlBytes, 0, urlLen);
-				url = new String(urlBytes);
-					
-				// Read page itself:
-				pageBytes = new byte[pageSize];
-				int bytesToRead = pageSize;
-				int numRead = 0; 
-				while(bytesToRead > 0) {
-					numRead = in.read(pageBytes, pageSize - bytesToRead, bytesToRead);
-					if(numRead < 1)
+				while (page == null) {
+					// Checked before polling, since the reader may queue its
+					// last pages just before it finishes:
+					boolean readerDone = pageReader.isDone();
+					page = wbRecordQueue.poll(POLL_MSECS, TimeUnit.MILLISECONDS);
+					if ((page == null) && readerDone)
 						break;
-					bytesToRead -= numRead;
-				}
-				if (streamCompressed) {
-					ByteArrayOutputStream uncompressedTxt = decompress(pageBytes, pageSize);
-					truePageLen = uncompressedTxt.size();
-					truePageBytes = uncompressedTxt.toByteArray();
-				} else {
-					truePageLen = pageSize;
-					truePageBytes = pageBytes;
 				}
-				// Construct metadata
-				metadata = new Metadata(docID, truePageLen, offset, timeStamp, url);
-				
-				// If the Web page is so defective that the factory
-				// refuses to mind a record, then skip it:
-				WbRecord wbRecord = WbRecordFactory.getWbRecord(metadata, truePageBytes);
-				if (wbRecord == null)
-					continue;
-				wbRecordQueue.put(wbRecord);
-				totalNumPagesRetrieved++;
-				numPagesThisRound++;
-			} catch(EOFException e) {
-				break;
-			} catch(IOException e) {
-				throw new IOException("Could not read from distributor (note that distributors time out if not read from in a timely fashion): " + e.getMessage());
+				if (page != null)
+					// Null if the factory refused the page; try the next one:
+					wbRecord = page.get();
 			} catch (InterruptedException e) {
-				throw new IOException("Could not add new page to buffer. Interrupted.");
+				logger.warn("Interrupted while waiting for Web pages from " + machineName + ".");
+				page = null;
+			} catch (ExecutionException e) {
+				logger.error(e.getCause().getMessage());
+				page = null;
+			}
+			consumerStallNanos += System.nanoTime() - startNanos;
+			if (page == null) {
+				publishCounters();
+				return null;
 			}
 		}
-		if (totalNumPagesRetrieved > nextReporting) {
-			String progressMsg = "Total of " + totalNumPagesRetrieved + "Web pages retrieved from " + machineName; 
+		numPagesTaken++;
+		// Counted here, on the consumer thread, so only pages the
+		// factory built a record from are counted:
+		totalNumPagesRetrieved++;
+		queueDepthSum += wbRecordQueue.size();
+		if (numPagesTaken >= nextReporting) {
+			String progressMsg = "Total of " + numPagesTaken + " Web pages retrieved from " + machineName; 
 			logger.info(progressMsg);
 			if (reporter != null) {
 				reporter.setStatus(progressMsg);
 			}
-			nextReporting = totalNumPagesRetrieved + Constants.WB_PAGE_LOAD_REPORT_GRANULARITY;
+			nextReporting = (int) numPagesTaken + Constants.WB_PAGE_LOAD_REPORT_GRANULARITY;
+			publishCounters();
 		}
-		
+		return wbRecord;
+	}
+	
+	/*-----------------------------------------------------
+	| publishCounters()
+	------------------------*/
+	
+	/**
+	 * Add what changed since the last call to the job's counters.
+	 * Called on the consumer thread only.
+	 */
+	private void publishCounters() {
 		if (recordCounter != null) {
-			recordCounter.increment(numPagesThisRound);
-		}	
+			recordCounter.increment(numPagesTaken - publishedCounts[RecordCounters.PAGES_LOADED.ordinal()]);
+			publishedCounts[RecordCounters.PAGES_LOADED.ordinal()] = numPagesTaken;
+		}
+		if (reporter == null)
+			return;
+		publishCounter(RecordCounters.CONSUMER_STALL_MSECS, consumerStallNanos / NANOS_PER_MSEC);
+		publishCounter(RecordCounters.PRODUCER_STALL_MSECS, producerStallNanos / NANOS_PER_MSEC);
+		publishCounter(RecordCounters.QUEUE_DEPTH_MAX, queueDepthMax);
+		publishCounter(RecordCounters.QUEUE_DEPTH_SUM, queueDepthSum);
+		publishCounter(RecordCounters.INFLATE_MSECS, inflateNanos.get() / NANOS_PER_MSEC);
+	}
+	
+	private void publishCounter(RecordCounters counterName, long value) {
+		long delta = value - publishedCounts[counterName.ordinal()];
+		if (delta == 0)
+			return;
+		Counter counter = reporter.getCounter(counterName);
+		if (counter != null)
+			counter.increment(delta);
+		publishedCounts[counterName.ordinal()] = value;
+	}
+	
+	/*-----------------------------------------------------
+	| PageReader
+	------------------------*/
+	
+	/**
+	 * Reads pages off the distributor socket and queues them until the
+	 * stream ends, an error occurs, or the iterator is closed. Pages
+	 * of compressed streams are handed to the inflate pool; others
+	 * are built right here.
+	 */
+	private class PageReader extends Thread {
+		
+		private volatile boolean done = false;
+		private volatile boolean shutDown = false;
 		
-		return numPagesThisRound;
+		public PageReader() {
+			super("WebBase page reader " + machineName + ":" + port);
+			setDaemon(true);
+		}
+		
+		public boolean isDone() {
+			return done;
+		}
+		
+		public void shutDown() {
+			shutDown = true;
+			interrupt();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				Future<WbRecord> page;
+				while (!shutDown) {
+					try {
+						PageBuilder pageBuilder = readPage();
+						if (inflatePool != null)
+							page = inflatePool.submit(pageBuilder);
+						else {
+							FutureTask<WbRecord> builtPage = new FutureTask<WbRecord>(pageBuilder);
+							builtPage.run();
+							page = builtPage;
+						}
+					} catch (EOFException e) {
+						break;
+					}
+					if (!wbRecordQueue.offer(page)) {
+						long startNanos = System.nanoTime();
+						wbRecordQueue.put(page);
+						producerStallNanos += System.nanoTime() - startNanos;
+					}
+					numPagesRead++;
+					int depth = wbRecordQueue.size();
+					if (depth > queueDepthMax)
+						queueDepthMax = depth;
+				}
+			} catch (InterruptedException e) {
+				// Closed by the consumer.
+			} catch (IOException e) {
+				if (!shutDown)
+					logger.error("Could not read from distributor (note that distributors time out if not read from in a timely fashion): " + e.getMessage());
+			} finally {
+				done = true;
+			}
+		}
 	}
 	
-	private ByteArrayOutputStream decompress(byte[] src, int len) throws IOException{
-		final int TMP_BUF_SIZE = 2048;
-		byte[] xferBuf = new byte[TMP_BUF_SIZE];
-		InflaterInputStream uncompressingIn = null;
-		uncompressingIn = new InflaterInputStream(new ByteArrayInputStream(src));
+	/*-----------------------------------------------------
+	| readPage()
+	------------------------*/
+	
+	/**
+	 * Read one page off the distributor stream. Called on the 
+	 * reader thread only.
+	 * @return a builder that turns the raw page into a record.
+	 * @throws EOFException at the end of the stream.
+	 * @throws IOException
+	 */
+	private PageBuilder readPage() throws IOException {
 		
-		ByteArrayOutputStream clearOut = new ByteArrayOutputStream();
-		int numRead;
-		try {
-			while ((numRead = uncompressingIn.read(xferBuf, 0, TMP_BUF_SIZE)) > 0)
-				clearOut.write(xferBuf, 0, numRead);
-		} catch (IOException e) {
-			String errMsg = "Could not decompress page# " + totalNumPagesRetrieved + 1 + ". " + e.getMessage();
+		int		docID, pageSize, urlLen, tsLen;
+		long	offset;
+		String	timeStamp, url;
+		byte[]	pageBytes;
+		
+		if (channel != null) {
+			channel.readPageHeader();
+			docID		= channel.getDocID();
+			offset		= channel.getOffset();
+			tsLen		= channel.getTimeStampLen();
+			urlLen		= channel.getUrlLen();
+			pageSize	= channel.getPageSize();
+		} else {
+			docID		= in.readInt();
+			offset		= in.readLong();
+			tsLen		= in.readInt();
+			urlLen		= in.readInt();
+			pageSize	= in.readInt();
+		}
+				
+		if(tsLen > TIMESTAMP_LENGTH || tsLen < 0) {
+			String errMsg = "Bad date string length read from page stream.\n    " +
+					"Expected max of " + TIMESTAMP_LENGTH + ". Got: " + tsLen +
+					" at page# " + (numPagesRead + 1);
+			logger.warn(errMsg);
+			throw new IOException(errMsg);
+		}
+		if(urlLen > MAX_URL_SIZE || urlLen < 0) {
+			String errMsg = "Bad URL string length read from page stream. " +
+					"Expected max of " + MAX_URL_SIZE + ". Got: " + urlLen +
+					" at page# " + (numPagesRead + 1);
+			logger.error(errMsg);
+			throw new IOException(errMsg);
+		}
+
+		if(pageSize > MAX_WEBPAGE_SIZE || pageSize < 0) {
+			String errMsg = "Bad page size read from page stream. " +
+					"Expected max of " + MAX_WEBPAGE_SIZE + ". Got: " + pageSize + 
+					" at page# " + (numPagesRead + 1);
 			logger.error(errMsg);
 			throw new IOException(errMsg);
 		}
 		
-		return clearOut;
+		pageBytes = newPageBuffer(pageSize);
+		if (channel != null) {
+			timeStamp	= channel.readString(tsLen);
+			url			= channel.readString(urlLen);
+			channel.readFully(pageBytes, pageSize);
+		} else {
+			// DataInputStream.read() may return fewer bytes than asked for:
+			byte[] tsBytes = new byte[tsLen];
+			in.readFully(tsBytes);
+			timeStamp = new String(tsBytes);
+			byte[] urlBytes = new byte[urlLen];
+			in.readFully(urlBytes);
+			url = new String(urlBytes);
+			in.readFully(pageBytes, 0, pageSize);
+		}
+		return new PageBuilder(docID, offset, timeStamp, url, pageBytes, pageSize, numPagesRead + 1);
+	}
+	
+	/*-----------------------------------------------------
+	| newPageBuffer()
+	------------------------*/
+	
+	/**
+	 * @param pageSize number of bytes the page has on the stream
+	 * @return a buffer of at least pageSize bytes; pooled if the page
+	 *         is compressed, and will be returned by its inflater.
+	 */
+	private byte[] newPageBuffer(int pageSize) {
+		if (pageBuffers == null)
+			return new byte[pageSize];
+		byte[] res = pageBuffers.poll();
+		if ((res == null) || (res.length < pageSize))
+			// A buffer that is too small is dropped; larger pages
+			// will get larger buffers:
+			res = new byte[((pageSize + PAGE_BUFFER_GRAIN - 1) / PAGE_BUFFER_GRAIN) * PAGE_BUFFER_GRAIN];
+		return res;
+	}
+	
+	/*-----------------------------------------------------
+	| PageBuilder
+	------------------------*/
+	
+	/**
+	 * Turns a page as read off the stream into a record, inflating
+	 * it first if the stream is compressed.
+	 */
+	private class PageBuilder implements Callable<WbRecord> {
+		
+		private int docID;
+		private long offset;
+		private String timeStamp;
+		private String url;
+		// The page is pageBytes[0...pageLen-1]:
+		private byte[] pageBytes;
+		private int pageLen;
+		// For error messages:
+		private int pageNum;
+		
+		public PageBuilder(int theDocID, long theOffset, String theTimeStamp, String theUrl, 
+						   byte[] thePageBytes, int thePageLen, int thePageNum) {
+			docID = theDocID;
+			offset = theOffset;
+			timeStamp = theTimeStamp;
+			url = theUrl;
+			pageBytes = thePageBytes;
+			pageLen = thePageLen;
+			pageNum = thePageNum;
+		}
+		
+		/**
+		 * @return the record, or null if the factory refused the page.
+		 */
+		public WbRecord call() throws IOException {
+			if (streamCompressed)
+				decompress();
+			// Construct metadata
+			Metadata metadata = new Metadata(docID, pageLen, offset, timeStamp, url);
+			
+			// If the Web page is so defective that the factory
+			// refuses to mind a record, then skip it. The record
+			// keeps the page buffer, and refers to its content:
+			return WbRecordFactory.getWbRecord(metadata, pageBytes, pageLen, httpHeaderWanted);
+		}
+		
+		/*-----------------------------------------------------
+		| decompress()
+		------------------------*/
+		
+		/**
+		 * Replace the zlib compressed page with its inflated bytes, and
+		 * return the compressed page's buffer to the pool. Called on 
+		 * the inflate workers.
+		 * @throws IOException if the page is corrupt or truncated
+		 */
+		private void decompress() throws IOException {
+			long startNanos = System.nanoTime();
+			Inflater inflater = inflaters.poll();
+			if (inflater == null)
+				inflater = newInflater();
+			try {
+				inflater.setInput(pageBytes, 0, pageLen);
+				byte[] clearBytes = new byte[(int) Math.min(MAX_WEBPAGE_SIZE, (long) (pageLen * inflateRatio * 1.1f) + 64)];
+				int clearLen = 0;
+				while (!inflater.finished()) {
+					if (clearLen == clearBytes.length)
+						clearBytes = Arrays.copyOf(clearBytes, 2 * clearBytes.length);
+					int numInflated = inflater.inflate(clearBytes, clearLen, clearBytes.length - clearLen);
+					if ((numInflated == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new IOException("Unexpected end of compressed page.");
+					clearLen += numInflated;
+				}
+				if (pageLen > 0)
+					inflateRatio = 0.9f * inflateRatio + 0.1f * clearLen / pageLen;
+				pageBuffers.offer(pageBytes);
+				// The record holds on to the buffer; don't let it waste much:
+				pageBytes = (clearBytes.length - clearLen > clearBytes.length / 4) ? 
+							Arrays.copyOf(clearBytes, clearLen) : clearBytes;
+				pageLen = clearLen;
+			} catch (DataFormatException e) {
+				// Logged by the consumer, which ends the stream here:
+				throw new IOException("Could not decompress page# " + pageNum + ". " + e.getMessage());
+			} catch (IOException e) {
+				throw new IOException("Could not decompress page# " + pageNum + ". " + e.getMessage());
+			} finally {
+				inflater.reset();
+				if (!inflaters.offer(inflater))
+					inflater.end();
+				// Once the pool is shut down, close() may have drained the
+				// inflaters already; whichever of the two removes this one ends it:
+				else if (inflatePool.isShutdown() && inflaters.remove(inflater))
+					inflater.end();
+				inflateNanos.addAndGet(System.nanoTime() - startNanos);
+			}
+		}
 	}
 }
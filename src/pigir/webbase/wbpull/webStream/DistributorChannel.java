@@ -0,0 +1,217 @@
+package pigir.webbase.wbpull.webStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection to a WebBase distributor over a SocketChannel. All reads
+ * go through one large direct buffer, so a single read() from the
+ * socket usually brings in the fixed-size headers of several pages,
+ * which are then decoded from the buffer without further system calls.
+ * Page bodies are read with a scattering read straight into the
+ * caller's page array, with the bytes that follow the page landing in
+ * the direct buffer. Unlike DataInputStream.read(), every read here
+ * either fills what was asked for, or throws EOFException.
+ *
+ * The stream holds, for each page, docID:int, offset:long,
+ * timestamp length:int, URL length:int, page size:int, the timestamp,
+ * the URL and the page; numbers are big-endian.
+ *
+ * Used by the reader thread of BufferedWebStreamIterator only.
+ */
+public class DistributorChannel {
+
+	// Bytes of the fixed-size header before each page:
+	public static final int PAGE_HEADER_LEN = 4 + 8 + 4 + 4 + 4;
+	// Must hold a page header, a timestamp and the largest URL:
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private SocketChannel channel;
+	// In read mode between calls: bytes from position to limit are
+	// read off the socket, but not yet consumed:
+	private ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	// The page array, followed by buf, for scattering reads:
+	private ByteBuffer[] pageAndBuf = new ByteBuffer[2];
+	// For decoding strings:
+	private byte[] scratch = new byte[1024];
+
+	// Fields of the last page header read:
+	private int docID;
+	private long offset;
+	private int timeStampLen;
+	private int urlLen;
+	private int pageSize;
+
+	/*-----------------------------------------------------
+	| Constructors
+	------------------------*/
+
+	/**
+	 * Connect to a distributor.
+	 * @param distributorAddr the distributor's address and port
+	 * @throws IOException if the distributor does not accept the connection
+	 */
+	public DistributorChannel(InetSocketAddress distributorAddr) throws IOException {
+		channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(true);
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setReceiveBufferSize(BUFFER_SIZE);
+			channel.connect(distributorAddr);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		buf.flip();
+		pageAndBuf[1] = buf;
+	}
+
+	/*-----------------------------------------------------
+	| requestPages()
+	------------------------*/
+
+	/**
+	 * Ask the distributor for pages.
+	 * @param numPages number of pages wanted
+	 * @throws IOException
+	 */
+	public void requestPages(int numPages) throws IOException {
+		ByteBuffer request = ByteBuffer.allocate(4);
+		request.putInt(numPages);
+		request.flip();
+		while (request.hasRemaining())
+			channel.write(request);
+	}
+
+	/*-----------------------------------------------------
+	| readByte()
+	------------------------*/
+
+	public byte readByte() throws IOException {
+		fill(1);
+		return buf.get();
+	}
+
+	/*-----------------------------------------------------
+	| readPageHeader()
+	------------------------*/
+
+	/**
+	 * Read the fixed-size header of the next page. Its fields are
+	 * then available from getDocID() through getPageSize().
+	 * @throws EOFException at the end of the stream
+	 * @throws IOException
+	 */
+	public void readPageHeader() throws IOException {
+		fill(PAGE_HEADER_LEN);
+		docID			= buf.getInt();
+		offset			= buf.getLong();
+		timeStampLen	= buf.getInt();
+		urlLen			= buf.getInt();
+		pageSize		= buf.getInt();
+	}
+
+	public int getDocID() {
+		return docID;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getTimeStampLen() {
+		return timeStampLen;
+	}
+
+	public int getUrlLen() {
+		return urlLen;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/*-----------------------------------------------------
+	| readString()
+	------------------------*/
+
+	/**
+	 * @param len number of bytes in the string; at most BUFFER_SIZE
+	 * @return the string, decoded like new String(byte[]).
+	 * @throws IOException
+	 */
+	public String readString(int len) throws IOException {
+		if (len > BUFFER_SIZE)
+			throw new IOException("String of " + len + " bytes is longer than the read buffer.");
+		fill(len);
+		if (scratch.length < len)
+			scratch = new byte[Math.max(len, 2 * scratch.length)];
+		buf.get(scratch, 0, len);
+		return new String(scratch, 0, len);
+	}
+
+	/*-----------------------------------------------------
+	| readFully()
+	------------------------*/
+
+	/**
+	 * Read bytes into an array: first those already in the buffer,
+	 * then the rest straight off the socket.
+	 * @param dst array to fill
+	 * @param len number of bytes to read into dst, starting at index 0
+	 * @throws EOFException if the stream ends first
+	 * @throws IOException
+	 */
+	public void readFully(byte[] dst, int len) throws IOException {
+		int numBuffered = Math.min(buf.remaining(), len);
+		buf.get(dst, 0, numBuffered);
+		if (numBuffered == len)
+			return;
+		// buf is empty now; let it take whatever follows the page:
+		ByteBuffer page = ByteBuffer.wrap(dst, numBuffered, len - numBuffered);
+		pageAndBuf[0] = page;
+		buf.clear();
+		try {
+			while (page.hasRemaining()) {
+				if (channel.read(pageAndBuf) < 0)
+					throw new EOFException("Distributor stream ended within a page.");
+			}
+		} finally {
+			pageAndBuf[0] = null;
+			buf.flip();
+		}
+	}
+
+	/*-----------------------------------------------------
+	| close()
+	------------------------*/
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/*-----------------------------------------------------
+	| fill()
+	------------------------*/
+
+	/**
+	 * Make sure at least n unconsumed bytes are in the buffer.
+	 * @throws EOFException if the stream ends first
+	 */
+	private void fill(int n) throws IOException {
+		if (buf.remaining() >= n)
+			return;
+		buf.compact();
+		try {
+			while (buf.position() < n) {
+				if (channel.read(buf) < 0)
+					throw new EOFException();
+			}
+		} finally {
+			buf.flip();
+		}
+	}
+}